@@ -74,6 +74,44 @@ public class NativeSecp256k1 {
         }
     }
 
+    /**
+     * Verifies many secp256k1 signatures, taking the context lock and setting up the transfer buffer only once for the
+     * whole batch rather than once per signature. Entries whose arguments are malformed are reported as invalid rather
+     * than failing the whole batch. Calling when enabled == false is undefined (probably library not loaded)
+     *
+     * @param data The data which was signed, each must be exactly 32 bytes
+     * @param signatures The signatures
+     * @param pubs The public keys which did the signing
+     * @return whether each of the signatures is valid
+     */
+    public static boolean[] verifyBatch(byte[][] data, byte[][] signatures, byte[][] pubs) throws AssertFailException {
+        Preconditions.checkArgument(data.length == signatures.length && data.length == pubs.length);
+
+        ByteBuffer byteBuff = nativeECDSABuffer.get();
+        if (byteBuff == null || byteBuff.capacity() < 32 + 520 + 520) {
+            byteBuff = ByteBuffer.allocateDirect(32 + 520 + 520);
+            byteBuff.order(ByteOrder.nativeOrder());
+            nativeECDSABuffer.set(byteBuff);
+        }
+        boolean[] results = new boolean[data.length];
+        r.lock();
+        try {
+            long context = Secp256k1Context.getContext();
+            for (int i = 0; i < data.length; i++) {
+                if (data[i].length != 32 || signatures[i].length > 520 || pubs[i].length > 520)
+                    continue;
+                byteBuff.rewind();
+                byteBuff.put(data[i]);
+                byteBuff.put(signatures[i]);
+                byteBuff.put(pubs[i]);
+                results[i] = secp256k1_ecdsa_verify(byteBuff, context, signatures[i].length, pubs[i].length) == 1;
+            }
+        } finally {
+            r.unlock();
+        }
+        return results;
+    }
+
     /**
      * libsecp256k1 Create an ECDSA signature.
      *
@@ -24,6 +24,7 @@ import org.bitcoinj.core.listeners.*;
 import org.bitcoinj.store.*;
 import org.bitcoinj.utils.*;
 import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletGroup;
 import org.slf4j.*;
 
 import javax.annotation.*;
@@ -82,6 +83,8 @@ public abstract class AbstractBlockChain {
 
     /** Keeps a map of block hashes to StoredBlocks. */
     private final BlockStore blockStore;
+    /** Keeps the recent blocks of the block store in memory, for walking back through the chain. */
+    private final ChainIndex chainIndex = new ChainIndex();
 
     /**
      * Tracks the top of the best known chain.<p>
@@ -110,6 +113,8 @@ public abstract class AbstractBlockChain {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
+        // Roughly how much memory the block takes up.
+        final int size;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
             Preconditions.checkArgument((block.transactions == null && filtered)
@@ -117,11 +122,29 @@ public abstract class AbstractBlockChain {
             this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            if (filtered) {
+                int size = Block.HEADER_SIZE + filteredTxHashes.size() * Sha256Hash.LENGTH;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.getOptimalEncodingMessageSize();
+                this.size = size;
+            } else {
+                this.size = block.getOptimalEncodingMessageSize();
+            }
         }
     }
+
+    /** The default for {@link #setMaxOrphanBlocksBytes(long)}. */
+    public static final long DEFAULT_MAX_ORPHAN_BLOCKS_BYTES = 16 * 1024 * 1024;
+
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
+    // were downloading the block chain. They are also indexed by the hash of the block they build on, so that when a
+    // block is connected only its own children have to be looked at. The oldest are evicted to stay within the byte
+    // limit.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    private final Map<Sha256Hash, List<OrphanBlock>> orphanBlocksByPrev = new HashMap<Sha256Hash, List<OrphanBlock>>();
+    private long orphanBlocksBytes;
+    private long maxOrphanBlocksBytes = DEFAULT_MAX_ORPHAN_BLOCKS_BYTES;
+    private long orphanBlocksEvicted, orphanBytesEvicted;
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -198,6 +221,23 @@ public abstract class AbstractBlockChain {
         removeTransactionReceivedListener(wallet);
     }
 
+    /**
+     * Adds a group of wallets to the BlockChain, which passes transactions on only to the wallets they match. As with
+     * {@link #addWallet(Wallet)}, the wallets are unaffected by any blocks received while they were not part of it.
+     */
+    public void addWalletGroup(WalletGroup group) {
+        addNewBestBlockListener(Threading.SAME_THREAD, group);
+        addReorganizeListener(Threading.SAME_THREAD, group);
+        addTransactionReceivedListener(Threading.SAME_THREAD, group);
+    }
+
+    /** Removes a group of wallets from the chain. */
+    public void removeWalletGroup(WalletGroup group) {
+        removeNewBestBlockListener(group);
+        removeReorganizeListener(group);
+        removeTransactionReceivedListener(group);
+    }
+
     /** Replaced with more specific listener methods: use them instead. */
     @Deprecated @SuppressWarnings("deprecation")
     public void addListener(BlockChainListener listener) {
@@ -288,6 +328,14 @@ public abstract class AbstractBlockChain {
     public BlockStore getBlockStore() {
         return blockStore;
     }
+
+    /**
+     * Returns the in memory index of recent blocks, which finds the ancestors of a block faster than following
+     * {@link StoredBlock#getPrev(BlockStore)}.
+     */
+    public ChainIndex getChainIndex() {
+        return chainIndex;
+    }
     
     /**
      * Adds/updates the given {@link Block} with the block store.
@@ -428,8 +476,7 @@ public abstract class AbstractBlockChain {
         // TODO: Use read/write locks to ensure that during chain download properties are still low latency.
         lock.lock();
         try {
-            // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
+            // Quick check for duplicates to avoid an expensive check further down (in findSplit).
             if (block.equals(getChainHead().getHeader())) {
                 return true;
             }
@@ -480,7 +527,7 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                addOrphan(new OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 checkState(lock.isHeldByCurrentThread());
@@ -490,7 +537,7 @@ public abstract class AbstractBlockChain {
             }
 
             if (tryConnecting)
-                tryConnectingOrphans();
+                tryConnectingOrphans(block.getHash());
 
             return true;
         } finally {
@@ -508,6 +555,8 @@ public abstract class AbstractBlockChain {
         try {
             Set<Sha256Hash> hashes = new HashSet<Sha256Hash>(orphanBlocks.keySet());
             orphanBlocks.clear();
+            orphanBlocksByPrev.clear();
+            orphanBlocksBytes = 0;
             return hashes;
         } finally {
             lock.unlock();
@@ -539,7 +588,7 @@ public abstract class AbstractBlockChain {
                         block.getHashAsString(), filteredTxHashList.size(), filteredTxn.size());
                 for (Sha256Hash hash : filteredTxHashList) log.debug("  matched tx {}", hash);
             }
-            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head, blockStore))
+            if (expensiveChecks && block.getTimeSeconds() <= chainIndex.getMedianTimestamp(head, blockStore))
                 throw new VerificationException("Block's timestamp is too early");
 
             // BIP 66 & 65: Enforce block version 3/4 once they are a supermajority of blocks
@@ -575,7 +624,7 @@ public abstract class AbstractBlockChain {
             if (haveNewBestChain) {
                 log.info("Block is causing a re-organize");
             } else {
-                StoredBlock splitPoint = findSplit(newBlock, head, blockStore);
+                StoredBlock splitPoint = findSplit(newBlock, head);
                 if (splitPoint != null && splitPoint.equals(newBlock)) {
                     // newStoredBlock is a part of the same chain, there's no fork. This happens when we receive a block
                     // that we already saw and linked into the chain previously, which isn't the chain head.
@@ -748,14 +797,14 @@ public abstract class AbstractBlockChain {
         // Firstly, calculate the block at which the chain diverged. We only need to examine the
         // chain from beyond this block to find differences.
         StoredBlock head = getChainHead();
-        final StoredBlock splitPoint = findSplit(newChainHead, head, blockStore);
+        final StoredBlock splitPoint = findSplit(newChainHead, head);
         log.info("Re-organize after split at height {}", splitPoint.getHeight());
         log.info("Old chain head: {}", head.getHeader().getHashAsString());
         log.info("New chain head: {}", newChainHead.getHeader().getHashAsString());
         log.info("Split at block: {}", splitPoint.getHeader().getHashAsString());
         // Then build a list of all blocks in the old part of the chain and the new part.
-        final LinkedList<StoredBlock> oldBlocks = getPartialChain(head, splitPoint, blockStore);
-        final LinkedList<StoredBlock> newBlocks = getPartialChain(newChainHead, splitPoint, blockStore);
+        final LinkedList<StoredBlock> oldBlocks = getPartialChain(head, splitPoint);
+        final LinkedList<StoredBlock> newBlocks = getPartialChain(newChainHead, splitPoint);
         // Disconnect each transaction in the previous main chain that is no longer in the new main chain
         StoredBlock storedNewHead = splitPoint;
         if (shouldVerifyTransactions()) {
@@ -775,7 +824,7 @@ public abstract class AbstractBlockChain {
             for (Iterator<StoredBlock> it = newBlocks.descendingIterator(); it.hasNext();) {
                 cursor = it.next();
                 Block cursorBlock = cursor.getHeader();
-                if (expensiveChecks && cursorBlock.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(blockStore), blockStore))
+                if (expensiveChecks && cursorBlock.getTimeSeconds() <= chainIndex.getMedianTimestamp(chainIndex.getPrev(cursor, blockStore), blockStore))
                     throw new VerificationException("Block's timestamp is too early during reorg");
                 TransactionOutputChanges txOutChanges;
                 if (cursor != newChainHead || block == null)
@@ -816,13 +865,13 @@ public abstract class AbstractBlockChain {
     /**
      * Returns the set of contiguous blocks between 'higher' and 'lower'. Higher is included, lower is not.
      */
-    private static LinkedList<StoredBlock> getPartialChain(StoredBlock higher, StoredBlock lower, BlockStore store) throws BlockStoreException {
+    private LinkedList<StoredBlock> getPartialChain(StoredBlock higher, StoredBlock lower) throws BlockStoreException {
         checkArgument(higher.getHeight() > lower.getHeight(), "higher and lower are reversed");
         LinkedList<StoredBlock> results = new LinkedList<StoredBlock>();
         StoredBlock cursor = higher;
         while (true) {
             results.add(cursor);
-            cursor = checkNotNull(cursor.getPrev(store), "Ran off the end of the chain");
+            cursor = checkNotNull(chainIndex.getPrev(cursor, blockStore), "Ran off the end of the chain");
             if (cursor.equals(lower)) break;
         }
         return results;
@@ -833,10 +882,13 @@ public abstract class AbstractBlockChain {
      * found (ie they are not part of the same chain). Returns newChainHead or chainHead if they don't actually diverge
      * but are part of the same chain.
      */
-    private static StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead,
-                                         BlockStore store) throws BlockStoreException {
-        StoredBlock currentChainCursor = oldChainHead;
-        StoredBlock newChainCursor = newChainHead;
+    private StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead) throws BlockStoreException {
+        // Bring the higher one down to the height of the other first, which the chain index does in few steps.
+        int height = Math.min(newChainHead.getHeight(), oldChainHead.getHeight());
+        StoredBlock currentChainCursor = chainIndex.getAncestor(oldChainHead, height, blockStore);
+        checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
+        StoredBlock newChainCursor = chainIndex.getAncestor(newChainHead, height, blockStore);
+        checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
         // Loop until we find the block both chains have in common. Example:
         //
         //    A -> B -> C -> D
@@ -844,13 +896,10 @@ public abstract class AbstractBlockChain {
         //
         // findSplit will return block B. oldChainHead = D and newChainHead = G.
         while (!currentChainCursor.equals(newChainCursor)) {
-            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
-                currentChainCursor = currentChainCursor.getPrev(store);
-                checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
-            } else {
-                newChainCursor = newChainCursor.getPrev(store);
-                checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
-            }
+            currentChainCursor = chainIndex.getPrev(currentChainCursor, blockStore);
+            checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
+            newChainCursor = chainIndex.getPrev(newChainCursor, blockStore);
+            checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
         }
         return currentChainCursor;
     }
@@ -897,41 +946,144 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    // Stores an orphan block, evicting the oldest ones if the orphans take up too much memory. The new block is kept
+    // even if it is larger than the limit by itself.
+    private void addOrphan(OrphanBlock orphanBlock) {
+        checkState(lock.isHeldByCurrentThread());
+        orphanBlocks.put(orphanBlock.block.getHash(), orphanBlock);
+        Sha256Hash prevHash = orphanBlock.block.getPrevBlockHash();
+        List<OrphanBlock> siblings = orphanBlocksByPrev.get(prevHash);
+        if (siblings == null)
+            orphanBlocksByPrev.put(prevHash, siblings = new ArrayList<OrphanBlock>(1));
+        siblings.add(orphanBlock);
+        orphanBlocksBytes += orphanBlock.size;
+        Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
+        while (orphanBlocksBytes > maxOrphanBlocksBytes && orphanBlocks.size() > 1) {
+            OrphanBlock oldest = iter.next();
+            iter.remove();
+            removeFromPrevIndex(oldest);
+            orphanBlocksEvicted++;
+            orphanBytesEvicted += oldest.size;
+            log.info("Evicted orphan block {} of {} bytes, {} orphan bytes left", oldest.block.getHash(), oldest.size,
+                    orphanBlocksBytes);
+        }
+    }
+
+    private void removeFromPrevIndex(OrphanBlock orphanBlock) {
+        Sha256Hash prevHash = orphanBlock.block.getPrevBlockHash();
+        List<OrphanBlock> siblings = orphanBlocksByPrev.get(prevHash);
+        siblings.remove(orphanBlock);
+        if (siblings.isEmpty())
+            orphanBlocksByPrev.remove(prevHash);
+        orphanBlocksBytes -= orphanBlock.size;
+    }
+
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks that build on the given block, and the ones that build on those, and so on.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connected) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("Orphan block {} is not connectable right now", orphanBlock.block.getHash());
+        // Breadth first through the orphans, starting from the children of the block that was just connected. Only
+        // blocks whose parent was connected are looked at, so this is linear in the number of orphans connected.
+        int blocksConnected = 0;
+        Exception failure = null;
+        ArrayDeque<Sha256Hash> parents = new ArrayDeque<Sha256Hash>();
+        parents.add(connected);
+        while (!parents.isEmpty()) {
+            List<OrphanBlock> children = orphanBlocksByPrev.remove(parents.poll());
+            if (children == null)
+                continue;
+            // All the children come out before any of them is connected, as their parent won't be connected again. If
+            // one of them fails, the others still get their turn and the first failure is thrown once we're done.
+            for (OrphanBlock orphanBlock : children) {
+                orphanBlocks.remove(orphanBlock.block.getHash());
+                orphanBlocksBytes -= orphanBlock.size;
+            }
+            for (OrphanBlock orphanBlock : children) {
+                try {
+                    // False here ensures we don't recurse infinitely downwards when connecting huge chains.
+                    add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
+                } catch (VerificationException e) {
+                    failure = orphanFailed(orphanBlock, failure, e);
+                    continue;
+                } catch (BlockStoreException e) {
+                    failure = orphanFailed(orphanBlock, failure, e);
+                    continue;
+                } catch (PrunedException e) {
+                    failure = orphanFailed(orphanBlock, failure, e);
                     continue;
                 }
-                // Otherwise we can connect it now.
-                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
                 log.info("Connected orphan {}", orphanBlock.block.getHash());
-                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+                parents.add(orphanBlock.block.getHash());
+                blocksConnected++;
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
+        if (failure != null) {
+            Throwables.propagateIfPossible(failure, BlockStoreException.class, PrunedException.class);
+            throw new RuntimeException(failure);
+        }
+    }
+
+    private static Exception orphanFailed(OrphanBlock orphanBlock, @Nullable Exception failure, Exception e) {
+        log.warn("Failed to connect orphan " + orphanBlock.block.getHash(), e);
+        return failure != null ? failure : e;
+    }
+
+    /**
+     * Sets how many bytes the orphan blocks may take up, roughly. Once they take up more, the oldest ones are thrown
+     * away, and will have to be downloaded again. Defaults to {@link #DEFAULT_MAX_ORPHAN_BLOCKS_BYTES}.
+     */
+    public void setMaxOrphanBlocksBytes(long maxOrphanBlocksBytes) {
+        checkArgument(maxOrphanBlocksBytes >= 0);
+        lock.lock();
+        try {
+            this.maxOrphanBlocksBytes = maxOrphanBlocksBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks are currently held. */
+    public int getOrphanBlockCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns roughly how many bytes the orphan blocks currently held take up. */
+    public long getOrphanBlocksBytes() {
+        lock.lock();
+        try {
+            return orphanBlocksBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks were thrown away to stay within the limit, since this chain was created. */
+    public long getEvictedOrphanBlockCount() {
+        lock.lock();
+        try {
+            return orphanBlocksEvicted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns roughly how many bytes of orphan blocks were thrown away to stay within the limit. */
+    public long getEvictedOrphanBlocksBytes() {
+        lock.lock();
+        try {
+            return orphanBytesEvicted;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.core.listeners.FeeFilterMessage;
 import org.bitcoinj.core.listeners.SendHeadersMessage;
+import org.bitcoinj.utils.ByteArrayPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,6 +30,7 @@ import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkState;
 import static org.bitcoinj.core.Utils.*;
 
 /**
@@ -47,6 +49,12 @@ public class BitcoinSerializer extends MessageSerializer {
     private static final Logger log = LoggerFactory.getLogger(BitcoinSerializer.class);
     private static final int COMMAND_LEN = 12;
 
+    /**
+     * Arrays that payloads are read into while they're parsed, when the serializer doesn't retain them. Shared by all
+     * serializers and connections.
+     */
+    static final ByteArrayPool PAYLOAD_POOL = new ByteArrayPool(2L * Message.MAX_SIZE);
+
     private final NetworkParameters params;
     private final boolean parseRetain;
 
@@ -158,17 +166,44 @@ public class BitcoinSerializer extends MessageSerializer {
     }
 
     /**
-     * Deserialize payload only.  You must provide a header, typically obtained by calling
-     * {@link BitcoinSerializer#deserializeHeader}.
+     * <p>Deserialize payload only.  You must provide a header, typically obtained by calling
+     * {@link BitcoinSerializer#deserializeHeader}.</p>
+     *
+     * <p>Unless the serializer retains payloads, messages are parsed straight out of the array backing the buffer if
+     * there is one, and blocks and transactions read from other buffers are parsed out of a pooled array. Either way
+     * the parsed message doesn't refer to the bytes it was parsed from, so the buffer can be reused afterwards.</p>
      */
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+        // Only blocks and transactions know how to parse from the middle of an array that has other data after them.
+        boolean canParseFromOffset = header.command.equals("block") || header.command.equals("tx");
+        byte[] payloadBytes;
+        int offset = 0;
+        boolean pooled = false;
+        if (!parseRetain && in.hasArray() && (canParseFromOffset ||
+                (in.arrayOffset() + in.position() == 0 && in.array().length == header.size))) {
+            payloadBytes = in.array();
+            offset = in.arrayOffset() + in.position();
+            in.position(in.position() + header.size);
+        } else {
+            pooled = !parseRetain && canParseFromOffset;
+            payloadBytes = pooled ? PAYLOAD_POOL.take(header.size) : new byte[header.size];
+            in.get(payloadBytes, 0, header.size);
+        }
+        try {
+            return deserializePayload(header, payloadBytes, offset);
+        } finally {
+            if (pooled)
+                PAYLOAD_POOL.give(payloadBytes);
+        }
+    }
 
+    private Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, int offset) throws ProtocolException {
         // Verify the checksum.
         byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
+        hash = Sha256Hash.hashTwice(payloadBytes, offset, header.size);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -178,25 +213,29 @@ public class BitcoinSerializer extends MessageSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    HEX.encode(payloadBytes));
+                    HEX.encode(payloadBytes, offset, header.size));
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header.command, header.size, payloadBytes, offset, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes, offset, header.size) + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
+    private Message makeMessage(String command, int length, byte[] payloadBytes, int offset, byte[] hash, byte[] checksum) throws ProtocolException {
+        // Blocks and transactions may be parsed from the middle of a larger array, see deserializePayload.
+        if (command.equals("block"))
+            return makeBlock(payloadBytes, offset, length);
+        else if (command.equals("tx"))
+            return makeTransaction(payloadBytes, offset, length, hash);
+        checkState(offset == 0 && payloadBytes.length == length);
         // We use an if ladder rather than reflection because reflection is very slow on Android.
         Message message;
         if (command.equals("version")) {
             return new VersionMessage(params, payloadBytes);
         } else if (command.equals("inv")) { 
             message = makeInventoryMessage(payloadBytes, length);
-        } else if (command.equals("block")) {
-            message = makeBlock(payloadBytes, length);
         } else if (command.equals("merkleblock")) {
             message = makeFilteredBlock(payloadBytes);
         } else if (command.equals("getdata")) {
@@ -205,8 +244,6 @@ public class BitcoinSerializer extends MessageSerializer {
             message = new GetBlocksMessage(params, payloadBytes);
         } else if (command.equals("getheaders")) {
             message = new GetHeadersMessage(params, payloadBytes);
-        } else if (command.equals("tx")) {
-            message = makeTransaction(payloadBytes, 0, length, hash);
         } else if (command.equals("addr")) {
             message = makeAddressMessage(payloadBytes, length);
         } else if (command.equals("ping")) {
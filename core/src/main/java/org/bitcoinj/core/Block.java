@@ -229,7 +229,7 @@ public class Block extends Message {
     protected void parseTransactions(final int transactionsOffset) throws ProtocolException {
         cursor = transactionsOffset;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (payload.length == cursor) {
+        if (payload.length == cursor || (length != UNKNOWN_LENGTH && offset + length == cursor)) {
             // This message is just a header, it has no transactions.
             transactionBytesValid = false;
             return;
@@ -0,0 +1,239 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import com.google.common.primitives.Ints;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Keeps the recent part of the block chain in memory, so that walking back from a block doesn't have to go to the
+ * {@link BlockStore} for every step. Difficulty checks walk back up to 144 blocks for every new block, and the median
+ * time past check another 11.</p>
+ *
+ * <p>Besides a pointer to its parent, every block gets a pointer to an ancestor further back, chosen the same way
+ * Bitcoin Core chooses its skip pointers, so that {@link #getAncestor(StoredBlock, int, BlockStore)} takes a number
+ * of steps that is logarithmic in the distance. Blocks are indexed as they're walked from or through. Blocks
+ * more than the given number of blocks below the highest one are dropped, and walks continue through the block store
+ * from there.</p>
+ *
+ * <p>The index holds the {@link StoredBlock}s themselves, so their chain work and timestamps are at hand too. This
+ * class is thread safe.</p>
+ */
+public class ChainIndex {
+    /** The default number of blocks below the highest one that are kept. */
+    public static final int DEFAULT_DEPTH = 5000;
+
+    private static class Entry {
+        final StoredBlock block;
+        final int height;
+        @Nullable Entry prev;
+        @Nullable Entry skip;
+
+        Entry(StoredBlock block) {
+            this.block = block;
+            this.height = block.getHeight();
+        }
+    }
+
+    private final int depth;
+    @GuardedBy("this") private final Map<Sha256Hash, Entry> entries = new HashMap<Sha256Hash, Entry>();
+    @GuardedBy("this") private int maxHeight = -1;
+
+    public ChainIndex() {
+        this(DEFAULT_DEPTH);
+    }
+
+    public ChainIndex(int depth) {
+        checkArgument(depth > 0);
+        this.depth = depth;
+    }
+
+    /** Turns off the lowest bit that is set. */
+    private static int invertLowestOne(int n) {
+        return n & (n - 1);
+    }
+
+    /** Returns the height a block at the given height gets its skip pointer to, as in Bitcoin Core. */
+    static int getSkipHeight(int height) {
+        if (height < 2)
+            return 0;
+        // Any number strictly lower than height is acceptable, but the following expression seems to perform well
+        // in simulations (max 110 steps to go back up to 2**18 blocks).
+        return (height & 1) != 0 ? invertLowestOne(invertLowestOne(height - 1)) + 1 : invertLowestOne(height);
+    }
+
+    /** Adds the given block, if it isn't in the index already. Its parent should be added first. */
+    public synchronized void add(StoredBlock block) {
+        addLocked(block);
+    }
+
+    private Entry addLocked(StoredBlock block) {
+        Sha256Hash hash = block.getHeader().getHash();
+        Entry entry = entries.get(hash);
+        if (entry != null)
+            return entry;
+        entry = new Entry(block);
+        // Blocks too far down aren't kept, but walks can still go through them.
+        if (entry.height < maxHeight - depth)
+            return entry;
+        entry.prev = entries.get(block.getHeader().getPrevBlockHash());
+        if (entry.prev != null) {
+            Entry skip = walkIndex(entry.prev, getSkipHeight(entry.height));
+            if (skip.height == getSkipHeight(entry.height))
+                entry.skip = skip;
+        }
+        entries.put(hash, entry);
+        if (entry.height > maxHeight)
+            maxHeight = entry.height;
+        if (entries.size() > depth + depth / 4)
+            prune();
+        return entry;
+    }
+
+    /** Walks back from the given entry as far as the index goes, stopping at the given height. */
+    private static Entry walkIndex(Entry entry, int height) {
+        while (entry.height > height) {
+            Entry next = entry.prev;
+            Entry skip = entry.skip;
+            if (skip != null) {
+                int skipHeight = skip.height;
+                int skipPrevHeight = getSkipHeight(entry.height - 1);
+                // Only follow the skip pointer if the one of the parent doesn't take us closer.
+                if (skipHeight == height || (skipHeight > height && !(skipPrevHeight < skipHeight - 2
+                        && skipPrevHeight >= height)))
+                    next = skip;
+            }
+            if (next == null)
+                break;
+            entry = next;
+        }
+        return entry;
+    }
+
+    // Drops the blocks that are too far below the highest one, and the pointers to them.
+    private void prune() {
+        int floor = maxHeight - depth;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (entry.height < floor) {
+                it.remove();
+                continue;
+            }
+            if (entry.prev != null && entry.prev.height < floor)
+                entry.prev = null;
+            if (entry.skip != null && entry.skip.height < floor)
+                entry.skip = null;
+        }
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, or the block itself if it is at that height. Returns
+     * null if the height is negative or the chain can't be followed back that far.
+     */
+    @Nullable
+    public StoredBlock getAncestor(StoredBlock block, int height, BlockStore store) throws BlockStoreException {
+        checkArgument(height <= block.getHeight(), "Height %s is above the block at %s", height, block.getHeight());
+        if (height < 0)
+            return null;
+        synchronized (this) {
+            Entry entry = addLocked(block);
+            boolean extended = false;
+            try {
+                while (true) {
+                    entry = walkIndex(entry, height);
+                    if (entry.height == height)
+                        return entry.block;
+                    // The index doesn't go back far enough, so get the parent from the store and link it in, so that
+                    // the next walk doesn't have to.
+                    StoredBlock prev = store.get(entry.block.getHeader().getPrevBlockHash());
+                    if (prev == null)
+                        return null;
+                    Entry prevEntry = addLocked(prev);
+                    if (prevEntry.height >= maxHeight - depth) {
+                        entry.prev = prevEntry;
+                        extended = true;
+                    }
+                    entry = prevEntry;
+                }
+            } finally {
+                if (extended)
+                    addMissingSkips();
+            }
+        }
+    }
+
+    // Blocks that were added before their ancestors have no skip pointers. Sets them, from the bottom up, so that each
+    // one can use the skip pointers below it.
+    private void addMissingSkips() {
+        List<Entry> missing = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (entry.skip == null && entry.prev != null)
+                missing.add(entry);
+        }
+        Collections.sort(missing, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Ints.compare(a.height, b.height);
+            }
+        });
+        for (Entry entry : missing) {
+            int skipHeight = getSkipHeight(entry.height);
+            Entry skip = walkIndex(entry.prev, skipHeight);
+            if (skip.height == skipHeight)
+                entry.skip = skip;
+        }
+    }
+
+    /** Returns the parent of the given block, or null if it can't be found. */
+    @Nullable
+    public StoredBlock getPrev(StoredBlock block, BlockStore store) throws BlockStoreException {
+        return getAncestor(block, block.getHeight() - 1, store);
+    }
+
+    /**
+     * Returns the median of the timestamps of the given block and the 10 blocks before it, like
+     * {@link AbstractBlockChain#getMedianTimestampOfRecentBlocks(StoredBlock, BlockStore)}.
+     */
+    public long getMedianTimestamp(StoredBlock block, BlockStore store) throws BlockStoreException {
+        long[] timestamps = new long[11];
+        int unused = 9;
+        timestamps[10] = block.getHeader().getTimeSeconds();
+        while (unused >= 0 && (block = getPrev(block, store)) != null)
+            timestamps[unused--] = block.getHeader().getTimeSeconds();
+
+        Arrays.sort(timestamps, unused + 1, 11);
+        return timestamps[unused + (11 - unused) / 2];
+    }
+
+    /** Returns the number of blocks in the index. */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
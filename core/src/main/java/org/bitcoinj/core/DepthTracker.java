@@ -0,0 +1,188 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Keeps the depth of many {@link TransactionConfidence} objects up to date without touching each of them on every
+ * block. A confidence object attached with {@link TransactionConfidence#setDepthTracker(DepthTracker)} derives its
+ * depth from how many blocks the tracker has seen since its depth was last set, so a new block costs the same however
+ * many transactions are buried under it.</p>
+ *
+ * <p>Instead of hearing about every block, the owner of the tracker, usually a {@link org.bitcoinj.wallet.Wallet},
+ * learns from {@link #onNewBestBlock()} which transactions just reached one of the notification depths, and only
+ * informs listeners about those. Depths waited for with {@link TransactionConfidence#getDepthFuture(int)} are
+ * notified as well. This class is thread safe.</p>
+ */
+public class DepthTracker {
+    // By default, each of the first six confirmations is notified.
+    private static final int[] DEFAULT_NOTIFICATION_DEPTHS = { 1, 2, 3, 4, 5, 6 };
+
+    private final ReentrantLock lock = Threading.lock("DepthTracker");
+
+    // The number of best chain blocks seen. Read without the lock by the confidence objects.
+    private volatile int blocksSeen;
+    @GuardedBy("lock") private int[] notificationDepths;
+    // When each scheduled confidence object reaches its next notification depth, in blocks seen, and the other way.
+    @GuardedBy("lock") private final Map<TransactionConfidence, Integer> dueAt = new HashMap<TransactionConfidence, Integer>();
+    @GuardedBy("lock") private final Map<Integer, Set<TransactionConfidence>> due = new HashMap<Integer, Set<TransactionConfidence>>();
+
+    public DepthTracker() {
+        this(DEFAULT_NOTIFICATION_DEPTHS);
+    }
+
+    public DepthTracker(int... notificationDepths) {
+        this.notificationDepths = sortedDepths(notificationDepths);
+    }
+
+    private static int[] sortedDepths(int[] depths) {
+        int[] sorted = depths.clone();
+        Arrays.sort(sorted);
+        for (int depth : sorted)
+            checkArgument(depth > 0, "Notification depths must be positive: %s", depth);
+        return sorted;
+    }
+
+    /** Returns the number of best chain blocks seen so far. */
+    int getBlocksSeen() {
+        return blocksSeen;
+    }
+
+    /**
+     * Counts a new block on top of the best chain, which adds one to the depth of every attached transaction that is
+     * {@link TransactionConfidence.ConfidenceType#BUILDING}.
+     *
+     * @return the confidence objects that have just reached one of the notification depths
+     */
+    public List<TransactionConfidence> onNewBestBlock() {
+        Set<TransactionConfidence> reached;
+        lock.lock();
+        try {
+            blocksSeen++;
+            reached = due.remove(blocksSeen);
+            if (reached == null)
+                return Collections.emptyList();
+            for (TransactionConfidence confidence : reached)
+                dueAt.remove(confidence);
+        } finally {
+            lock.unlock();
+        }
+        // Outside of our lock, as confidence objects call into us with theirs held.
+        for (TransactionConfidence confidence : reached)
+            confidence.scheduleDepthNotification();
+        return new ArrayList<TransactionConfidence>(reached);
+    }
+
+    /**
+     * Sets the depths at which transactions are notified. Transactions deeper than the deepest of them aren't looked
+     * at again on new blocks.
+     */
+    public void setNotificationDepths(int... depths) {
+        List<TransactionConfidence> scheduled;
+        lock.lock();
+        try {
+            notificationDepths = sortedDepths(depths);
+            scheduled = new ArrayList<TransactionConfidence>(dueAt.keySet());
+        } finally {
+            lock.unlock();
+        }
+        for (TransactionConfidence confidence : scheduled)
+            confidence.scheduleDepthNotification();
+    }
+
+    public int[] getNotificationDepths() {
+        lock.lock();
+        try {
+            return notificationDepths.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many transactions are due to reach a notification depth. */
+    public int getScheduledCount() {
+        lock.lock();
+        try {
+            return dueAt.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Schedules the notification of the given confidence object when it next reaches a notification depth, or the
+     * given wanted depth if that comes first. Its depth is given as of the given number of blocks seen.
+     */
+    void schedule(TransactionConfidence confidence, int depth, int depthBlocksSeen, int wantedDepth) {
+        lock.lock();
+        try {
+            unscheduleLocked(confidence);
+            int depthNow = depth + blocksSeen - depthBlocksSeen;
+            int next = wantedDepth > depthNow ? wantedDepth : Integer.MAX_VALUE;
+            for (int notificationDepth : notificationDepths) {
+                if (notificationDepth > depthNow) {
+                    next = Math.min(next, notificationDepth);
+                    break;
+                }
+            }
+            if (next == Integer.MAX_VALUE)
+                return;
+            int blocks = blocksSeen + next - depthNow;
+            dueAt.put(confidence, blocks);
+            Set<TransactionConfidence> set = due.get(blocks);
+            if (set == null) {
+                set = new HashSet<TransactionConfidence>();
+                due.put(blocks, set);
+            }
+            set.add(confidence);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void unschedule(TransactionConfidence confidence) {
+        lock.lock();
+        try {
+            unscheduleLocked(confidence);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void unscheduleLocked(TransactionConfidence confidence) {
+        Integer blocks = dueAt.remove(confidence);
+        if (blocks == null)
+            return;
+        Set<TransactionConfidence> set = due.get(blocks);
+        set.remove(confidence);
+        if (set.isEmpty())
+            due.remove(blocks);
+    }
+}
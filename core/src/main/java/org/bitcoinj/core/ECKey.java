@@ -53,11 +53,14 @@ import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -725,6 +728,63 @@ public class ECKey implements EncryptableItem {
         }
     }
 
+    /**
+     * <p>Verifies many ECDSA signatures at once, e.g. all signatures of a block or of a set of wallet transactions.
+     * Entry i of the result tells whether signatures[i] is a valid signature of data[i] by pubs[i]. A malformed public
+     * key makes only its own entry invalid rather than failing the whole batch.</p>
+     *
+     * <p>This is cheaper than calling {@link #verify(byte[], ECDSASignature, byte[])} for every entry: with native
+     * verification the library lock and transfer buffer are set up once for the whole batch, otherwise each distinct
+     * public key is only decompressed once no matter how many signatures it made.</p>
+     *
+     * @param data       Hashes of the data to verify.
+     * @param signatures The signatures.
+     * @param pubs       The public key bytes to use.
+     */
+    public static boolean[] verifyBatch(byte[][] data, ECDSASignature[] signatures, byte[][] pubs) {
+        checkArgument(data.length == signatures.length && data.length == pubs.length,
+                "Batch arrays have different lengths");
+        boolean[] results = new boolean[data.length];
+        if (FAKE_SIGNATURES) {
+            Arrays.fill(results, true);
+            return results;
+        }
+
+        if (Secp256k1Context.isEnabled()) {
+            byte[][] derSignatures = new byte[signatures.length][];
+            for (int i = 0; i < signatures.length; i++)
+                derSignatures[i] = signatures[i].encodeToDER();
+            try {
+                return NativeSecp256k1.verifyBatch(data, derSignatures, pubs);
+            } catch (NativeSecp256k1Util.AssertFailException e) {
+                log.error("Caught AssertFailException inside secp256k1", e);
+                return results;
+            }
+        }
+
+        Map<ByteBuffer, ECPublicKeyParameters> decodedPubs = new HashMap<ByteBuffer, ECPublicKeyParameters>();
+        ECDSASigner signer = new ECDSASigner();
+        for (int i = 0; i < data.length; i++) {
+            ByteBuffer pubKey = ByteBuffer.wrap(pubs[i]);
+            ECPublicKeyParameters params = decodedPubs.get(pubKey);
+            try {
+                if (params == null) {
+                    params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pubs[i]), CURVE);
+                    decodedPubs.put(pubKey, params);
+                }
+                signer.init(false, params);
+                results[i] = signer.verifySignature(data[i], signatures[i].r, signatures[i].s);
+            } catch (IllegalArgumentException e) {
+                // Not a valid encoding of a point on the curve.
+            } catch (NullPointerException e) {
+                // Bouncy Castle contains a bug that can cause NPEs given specially crafted signatures. Those signatures
+                // are inherently invalid/attack sigs so we just fail them here rather than crash the thread.
+                log.error("Caught NPE inside bouncy castle", e);
+            }
+        }
+        return results;
+    }
+
     /**
      * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key.
      *
@@ -27,13 +27,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -143,40 +145,72 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
-    // TODO: Remove lots of duplicated code in the two connectTransactions
+    /**
+     * Returns the verifier that runs the scripts of connected blocks. It can be used to find out how long the script
+     * checks of the last block took.
+     */
+    public ParallelScriptVerifier getScriptVerifier() {
+        return scriptVerifier;
+    }
 
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
+    /**
+     * Replaces the verifier that runs the scripts of connected blocks, e.g. to use a different number of threads.
+     * The old verifier isn't shut down.
+     */
+    public void setScriptVerifier(ParallelScriptVerifier scriptVerifier) {
+        this.scriptVerifier = checkNotNull(scriptVerifier);
+    }
+
+    /** Returns the prefetcher that looks up the outputs spent by connected blocks, or null if they're looked up one
+     * at a time (the default). */
+    @Nullable
+    public UTXOPrefetcher getUTXOPrefetcher() {
+        return utxoPrefetcher;
+    }
 
     /**
-     * A job submitted to the executor which verifies signatures.
+     * Sets a prefetcher to look up all the outputs spent by a block in parallel before it's connected, or null to
+     * look them up one at a time as they are spent. The store must allow reads from several threads at once, see
+     * {@link UTXOPrefetcher}. The old prefetcher isn't shut down.
      */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final Set<VerifyFlag> verifyFlags;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
-            this.tx = tx;
-            this.prevOutScripts = prevOutScripts;
-            this.verifyFlags = verifyFlags;
-        }
+    public void setUTXOPrefetcher(@Nullable UTXOPrefetcher utxoPrefetcher) {
+        this.utxoPrefetcher = utxoPrefetcher;
+    }
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    Coin value = tx.getInput(index).getConnectedOutput() != null ? tx.getInput(index).getConnectedOutput().getValue() : Coin.ZERO;
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), value, verifyFlags);
-                }
-            } catch (VerificationException e) {
-                return e;
-            }
-            return null;
-        }
+    private volatile ParallelScriptVerifier scriptVerifier = new ParallelScriptVerifier();
+    @Nullable private volatile UTXOPrefetcher utxoPrefetcher;
+    // Whether the open batch write has changes, e.g. from the blocks disconnected and connected before this one in a
+    // reorg. The prefetcher threads don't see them, so the outputs are looked up on our own thread then.
+    @GuardedBy("lock") private boolean batchHasChanges;
+
+    private Map<TransactionOutPoint, UTXO> prefetchOutputs(@Nullable List<Transaction> transactions)
+            throws BlockStoreException {
+        UTXOPrefetcher prefetcher = utxoPrefetcher;
+        boolean changed = batchHasChanges;
+        batchHasChanges = true;
+        if (prefetcher == null || transactions == null || changed)
+            return new HashMap<TransactionOutPoint, UTXO>();
+        return prefetcher.prefetch(blockStore, transactions);
+    }
+
+    /**
+     * Returns the output spent by the given input, from those prefetched if it's there. A prefetched output is only
+     * handed out once, so spending it twice in a block goes to the store for the second time, which has it removed.
+     */
+    @Nullable
+    private UTXO getSpentOutput(Map<TransactionOutPoint, UTXO> prefetched, TransactionInput in)
+            throws BlockStoreException {
+        UTXO prevOut = prefetched.remove(in.getOutpoint());
+        if (prevOut != null)
+            return prevOut;
+        return blockStore.getTransactionOutput(in.getOutpoint().getHash(), in.getOutpoint().getIndex());
+    }
+
+    private static int countInputs(List<Transaction> transactions) {
+        int inputs = 0;
+        for (Transaction tx : transactions)
+            inputs += tx.getInputs().size();
+        return inputs;
     }
 
     /**
@@ -207,6 +241,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         return address;
     }
 
+    // TODO: Remove lots of duplicated code in the two connectTransactions
+
+    // TODO: execute in order of largest transaction (by input count) first
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -222,11 +259,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<UTXO> txOutsCreated = new LinkedList<UTXO>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        ParallelScriptVerifier.BlockVerification scriptVerification = scriptVerifier.begin(countInputs(block.transactions));
         try {
+            Map<TransactionOutPoint, UTXO> prefetched = prefetchOutputs(block.transactions);
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
                 // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
@@ -248,15 +283,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 boolean isCoinBase = tx.isCoinBase();
                 Coin valueIn = Coin.ZERO;
                 Coin valueOut = Coin.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<Script>();
+                final List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
+                final List<Coin> prevOutValues = new ArrayList<Coin>(tx.getInputs().size());
                 final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx, getVersionTally(), height);
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                in.getOutpoint().getIndex());
+                        UTXO prevOut = getSpentOutput(prefetched, in);
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -277,6 +312,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         }
 
                         prevOutScripts.add(prevOut.getScript());
+                        prevOutValues.add(prevOut.getValue());
                         blockStore.removeUnspentTransactionOutput(prevOut);
                         txOutsSpent.add(prevOut);
                     }
@@ -308,34 +344,20 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
 
                 if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    // The verifier works on copies of tx, but this must still come after we are done with it
+                    scriptVerification.add(tx, prevOutScripts, prevOutValues, verifyFlags);
                 }
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            scriptVerification.awaitResult();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            scriptVerification.cancel();
+            abortBatch();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            scriptVerification.cancel();
+            abortBatch();
             throw e;
         }
         return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
@@ -355,13 +377,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         StoredUndoableBlock block = blockStore.getUndoBlock(newBlock.getHeader().getHash());
         if (block == null) {
             // We're trying to re-org too deep and the data needed has been deleted.
-            blockStore.abortDatabaseBatchWrite();
+            abortBatch();
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ParallelScriptVerifier.BlockVerification scriptVerification =
+                scriptVerifier.begin(block.getTransactions() != null ? countInputs(block.getTransactions()) : 0);
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
+                Map<TransactionOutPoint, UTXO> prefetched = prefetchOutputs(transactions);
                 LinkedList<UTXO> txOutsSpent = new LinkedList<UTXO>();
                 LinkedList<UTXO> txOutsCreated = new LinkedList<UTXO>();
                 long sigOps = 0;
@@ -376,22 +401,19 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
                         params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
                     boolean isCoinBase = tx.isCoinBase();
                     Coin valueIn = Coin.ZERO;
                     Coin valueOut = Coin.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<Script>();
+                    final List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
+                    final List<Coin> prevOutValues = new ArrayList<Coin>(tx.getInputs().size());
 
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
-                            final UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                    in.getOutpoint().getIndex());
+                            final UTXO prevOut = getSpentOutput(prefetched, in);
                             if (prevOut == null)
                                 throw new VerificationException("Attempted spend of a non-existent or already spent output!");
                             if (prevOut.isCoinbase() && newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
@@ -407,6 +429,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             // TODO: Enforce DER signature format
 
                             prevOutScripts.add(prevOut.getScript());
+                            prevOutValues.add(prevOut.getValue());
 
                             blockStore.removeUnspentTransactionOutput(prevOut);
                             txOutsSpent.add(prevOut);
@@ -439,30 +462,17 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     }
 
                     if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        // The verifier works on copies of tx, but this must still come after we are done with it
+                        scriptVerification.add(tx, prevOutScripts, prevOutValues, verifyFlags);
                     }
                 }
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerification.awaitResult();
             } else {
+                batchHasChanges = true;
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
                     for (UTXO out : txOutChanges.txOutsCreated) {
@@ -476,12 +486,12 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            scriptVerification.cancel();
+            abortBatch();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            scriptVerification.cancel();
+            abortBatch();
             throw e;
         }
         return txOutChanges;
@@ -495,6 +505,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     protected void disconnectTransactions(StoredBlock oldBlock) throws PrunedException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
         blockStore.beginDatabaseBatchWrite();
+        batchHasChanges = true;
         try {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
             if (undoBlock == null) throw new PrunedException(oldBlock.getHeader().getHash());
@@ -504,10 +515,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             for (UTXO out : txOutChanges.txOutsCreated)
                 blockStore.removeUnspentTransactionOutput(out);
         } catch (PrunedException e) {
-            blockStore.abortDatabaseBatchWrite();
+            abortBatch();
             throw e;
         } catch (BlockStoreException e) {
-            blockStore.abortDatabaseBatchWrite();
+            abortBatch();
             throw e;
         }
     }
@@ -517,10 +528,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         checkState(lock.isHeldByCurrentThread());
         blockStore.setVerifiedChainHead(chainHead);
         blockStore.commitDatabaseBatchWrite();
+        batchHasChanges = false;
     }
 
     @Override
     protected void notSettingChainHead() throws BlockStoreException {
+        abortBatch();
+    }
+
+    private void abortBatch() throws BlockStoreException {
+        batchHasChanges = false;
         blockStore.abortDatabaseBatchWrite();
     }
 
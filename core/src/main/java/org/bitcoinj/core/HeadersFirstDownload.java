@@ -0,0 +1,640 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.PeerGroup.FilterRecalculateMode;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.Threading;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Downloads the block chain headers first, and the blocks from all connected peers at once. The headers are fetched
+ * from the download peer, checked to link up, to have enough proof of work and to match the checkpoints, and then the
+ * blocks are requested from whichever peers have room for more requests, a window of blocks ahead of the chain head at
+ * a time. Blocks are handed to the chain in order as they come in, so the chain never sees an orphan.</p>
+ *
+ * <p>A peer that doesn't deliver a block in time has the request taken over by another peer, and gets fewer requests
+ * until it delivers again. Headers before the fast catchup time are added to the chain as they are, as
+ * {@link Peer} does. If a filtered block exhausts the Bloom filter, requesting stops until a fresh filter has been
+ * sent to all peers, and the undelivered blocks are requested again.</p>
+ *
+ * <p>Once the end of the header chain is reached and all the blocks are in, the {@link PeerGroup} goes back to the
+ * usual download from the download peer, which picks up any blocks that were found meanwhile.</p>
+ */
+class HeadersFirstDownload {
+    private static final Logger log = LoggerFactory.getLogger(HeadersFirstDownload.class);
+
+    /** How many blocks past the chain head filtered blocks or headers are requested. */
+    static final int WINDOW = 1024;
+    /** How many blocks past the chain head full blocks are requested, as those may be large. */
+    static final int FULL_BLOCK_WINDOW = 128;
+    /** How many blocks may be requested from a single peer at once. */
+    static final int MAX_BLOCKS_IN_FLIGHT_PER_PEER = 16;
+    /** How long a peer has to deliver a block before another peer is asked for it. */
+    static final long STALL_TIMEOUT_MSEC = 10 * 1000;
+    /** How many headers may be waiting for their blocks before no more headers are requested. */
+    static final int MAX_HEADERS_AHEAD = 10 * HeadersMessage.MAX_HEADERS;
+
+    private final NetworkParameters params;
+    private final PeerGroup peerGroup;
+    private final AbstractBlockChain chain;
+    private final ScheduledExecutorService executor;
+    private final long fastCatchupTimeSecs;
+    private final boolean filtered;
+    private final int window;
+
+    private final ReentrantLock lock = Threading.lock("headersfirstdownload");
+    // Taken while blocks are handed to the chain, so that they go in in order. Always taken before lock.
+    private final ReentrantLock deliveryLock = Threading.lock("headersfirstdelivery");
+
+    private static class Request {
+        final Peer peer;
+        final long timeMsec;
+
+        Request(Peer peer, long timeMsec) {
+            this.peer = peer;
+            this.timeMsec = timeMsec;
+        }
+    }
+
+    private static class Received {
+        final Peer peer;
+        final Block block;
+        @Nullable final FilteredBlock filteredBlock;
+        // Whether the block is a header before the fast catchup time, which isn't requested from anyone.
+        final boolean headerOnly;
+
+        Received(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, boolean headerOnly) {
+            this.peer = peer;
+            this.block = block;
+            this.filteredBlock = filteredBlock;
+            this.headerOnly = headerOnly;
+        }
+    }
+
+    private static class PeerState {
+        int inFlight;
+        // Halved when the peer stalls, grown back by one for every block it delivers.
+        int maxInFlight = MAX_BLOCKS_IN_FLIGHT_PER_PEER;
+    }
+
+    // Headers are numbered in the order they're received, and blocks are handed to the chain in that order. Only the
+    // headers whose blocks aren't in the chain yet are kept, so this is also what's pending.
+    @GuardedBy("lock") private final Map<Sha256Hash, Integer> sequence = new HashMap<Sha256Hash, Integer>();
+    @GuardedBy("lock") private final TreeMap<Integer, Sha256Hash> unrequested = new TreeMap<Integer, Sha256Hash>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> inFlight = new LinkedHashMap<Sha256Hash, Request>();
+    @GuardedBy("lock") private final TreeMap<Integer, Received> received = new TreeMap<Integer, Received>();
+    @GuardedBy("lock") private final Map<Peer, PeerState> peers = new HashMap<Peer, PeerState>();
+    @GuardedBy("lock") private int nextSequence, lastSequence = -1;
+    @GuardedBy("lock") @Nullable private Sha256Hash lastHeaderHash;
+    @GuardedBy("lock") private int lastHeaderHeight;
+    @GuardedBy("lock") @Nullable private Peer headersPeer;
+    @GuardedBy("lock") private boolean headersRequested, headersDone, passedFastCatchupTime, paused, done;
+    @GuardedBy("lock") @Nullable private ScheduledFuture<?> stallCheck;
+
+    /**
+     * @param executor runs the periodic check for stalled requests
+     * @param filtered whether to request filtered blocks from the peers that support them, rather than full blocks
+     */
+    HeadersFirstDownload(NetworkParameters params, PeerGroup peerGroup, AbstractBlockChain chain,
+                         ScheduledExecutorService executor, long fastCatchupTimeSecs, boolean filtered) {
+        this.params = params;
+        this.peerGroup = peerGroup;
+        this.chain = chain;
+        this.executor = executor;
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.filtered = filtered;
+        this.window = filtered ? WINDOW : FULL_BLOCK_WINDOW;
+    }
+
+    /**
+     * Starts fetching headers from the given peer, or carries on from another peer if already started. Blocks are
+     * requested from all peers that were passed to {@link #peerConnected(Peer)}.
+     */
+    void start(Peer headersPeer) {
+        lock.lock();
+        try {
+            if (done)
+                return;
+            this.headersPeer = headersPeer;
+            if (lastHeaderHash == null) {
+                StoredBlock head = chain.getChainHead();
+                lastHeaderHash = head.getHeader().getHash();
+                lastHeaderHeight = head.getHeight();
+                log.info("{}: Starting headers first download from height {}", headersPeer, lastHeaderHeight);
+                stallCheck = executor.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            checkForStalls();
+                        } catch (Throwable e) {
+                            log.error("Exception in stall check", e);  // The executor swallows exceptions :(
+                        }
+                    }
+                }, 1, 1, TimeUnit.SECONDS);
+            }
+            headersRequested = false;
+            maybeRequestHeadersLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true once all headers and blocks are in, or the download was given up on. */
+    boolean isDone() {
+        lock.lock();
+        try {
+            return done;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void maybeRequestHeadersLocked() {
+        if (headersRequested || headersDone || done || headersPeer == null || lastSequence - nextSequence >= MAX_HEADERS_AHEAD)
+            return;
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(102);
+        locator.add(lastHeaderHash);
+        try {
+            // If a reorg happened since the last headers, the peer may not know the last one, so give it the chain too.
+            StoredBlock cursor = chain.getChainHead();
+            for (int i = 100; cursor != null && i > 0; i--) {
+                if (!cursor.getHeader().getHash().equals(lastHeaderHash))
+                    locator.add(cursor.getHeader().getHash());
+                cursor = chain.getChainIndex().getPrev(cursor, chain.getBlockStore());
+            }
+        } catch (BlockStoreException e) {
+            log.error("Failed to walk the block chain whilst constructing a locator");
+            throw new RuntimeException(e);
+        }
+        locator.add(params.getGenesisBlock().getHash());
+        headersRequested = true;
+        headersPeer.sendMessage(new GetHeadersMessage(params, locator, Sha256Hash.ZERO_HASH));
+    }
+
+    /** Called with headers from any peer. Headers that weren't asked for are ignored. */
+    void receiveHeaders(Peer peer, HeadersMessage m) throws ProtocolException {
+        Map<Peer, List<Sha256Hash>> requests;
+        lock.lock();
+        try {
+            if (done || peer != headersPeer || !headersRequested) {
+                log.debug("{}: Ignoring headers we didn't ask for", peer);
+                return;
+            }
+            headersRequested = false;
+            for (Block header : m.getBlockHeaders()) {
+                Sha256Hash hash = header.getHash();
+                int height;
+                if (header.getPrevBlockHash().equals(lastHeaderHash)) {
+                    height = lastHeaderHeight + 1;
+                } else {
+                    // The peer is on another branch than our last header. That's only fine if the branch forks off
+                    // from blocks already in the chain, and nothing is waiting to go in.
+                    StoredBlock prev = sequence.isEmpty() ? chain.getBlockStore().get(header.getPrevBlockHash()) : null;
+                    if (prev == null)
+                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                    height = prev.getHeight() + 1;
+                }
+                header.verifyHeader();
+                if (!params.passesCheckpoint(height, hash))
+                    throw new ProtocolException("Header " + hash + " at height " + height + " doesn't match the checkpoint");
+                lastHeaderHash = hash;
+                lastHeaderHeight = height;
+                int seq = ++lastSequence;
+                sequence.put(hash, seq);
+                if (!passedFastCatchupTime && header.getTimeSeconds() < fastCatchupTimeSecs) {
+                    // Nothing in it for us, so the header will do.
+                    received.put(seq, new Received(peer, header, null, true));
+                } else {
+                    passedFastCatchupTime = true;
+                    unrequested.put(seq, hash);
+                }
+            }
+            if (m.getBlockHeaders().size() < HeadersMessage.MAX_HEADERS) {
+                log.info("{}: Reached the end of the header chain at height {}", peer, lastHeaderHeight);
+                headersDone = true;
+            } else {
+                maybeRequestHeadersLocked();
+            }
+            requests = assignRequestsLocked();
+        } catch (VerificationException e) {
+            throw new ProtocolException(e);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        sendRequests(requests);
+        deliver();
+    }
+
+    /**
+     * Called with a block, or a filtered block once its transactions are in, from any peer. Blocks that weren't asked
+     * for are dropped, as the chain is only extended in order while this download runs.
+     */
+    void receiveBlock(Peer peer, Block block, @Nullable FilteredBlock filteredBlock) {
+        Map<Peer, List<Sha256Hash>> requests;
+        lock.lock();
+        try {
+            Sha256Hash hash = block.getHash();
+            Request request = inFlight.remove(hash);
+            if (request == null) {
+                // Either not ours, or a stalled request that another peer already delivered.
+                log.debug("{}: Received block we did not ask for: {}", peer, hash);
+                return;
+            }
+            PeerState state = peers.get(request.peer);
+            if (state != null) {
+                state.inFlight--;
+                if (request.peer == peer && state.maxInFlight < MAX_BLOCKS_IN_FLIGHT_PER_PEER)
+                    state.maxInFlight++;
+            }
+            received.put(sequence.get(hash), new Received(peer, block, filteredBlock, false));
+            requests = assignRequestsLocked();
+        } finally {
+            lock.unlock();
+        }
+        sendRequests(requests);
+        deliver();
+    }
+
+    /** Called when a peer says it doesn't have the given items. Blocks among them are asked from another peer. */
+    void receiveNotFound(Peer peer, NotFoundMessage m) {
+        Map<Peer, List<Sha256Hash>> requests;
+        lock.lock();
+        try {
+            for (InventoryItem item : m.getItems()) {
+                Request request = inFlight.get(item.hash);
+                if (request == null || request.peer != peer)
+                    continue;
+                log.info("{}: Peer doesn't have block {}", peer, item.hash);
+                cancelLocked(item.hash, request);
+            }
+            requests = assignRequestsLocked();
+        } finally {
+            lock.unlock();
+        }
+        sendRequests(requests);
+    }
+
+    /** Called when a peer is connected, so that blocks can be requested from it. */
+    void peerConnected(Peer peer) {
+        Map<Peer, List<Sha256Hash>> requests;
+        lock.lock();
+        try {
+            VersionMessage version = peer.getPeerVersionMessage();
+            if (version == null || !version.hasBlockChain() || peers.containsKey(peer))
+                return;
+            peers.put(peer, new PeerState());
+            requests = assignRequestsLocked();
+        } finally {
+            lock.unlock();
+        }
+        sendRequests(requests);
+    }
+
+    /** Called when a peer goes away. Its requests are given to other peers. */
+    void peerDisconnected(Peer peer) {
+        Map<Peer, List<Sha256Hash>> requests;
+        lock.lock();
+        try {
+            if (peers.remove(peer) == null && peer != headersPeer)
+                return;
+            for (Iterator<Map.Entry<Sha256Hash, Request>> it = inFlight.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Sha256Hash, Request> entry = it.next();
+                if (entry.getValue().peer == peer) {
+                    it.remove();
+                    unrequested.put(sequence.get(entry.getKey()), entry.getKey());
+                }
+            }
+            if (peer == headersPeer) {
+                // The PeerGroup picks a new download peer, which carries on with the headers.
+                headersPeer = null;
+                headersRequested = false;
+            }
+            requests = assignRequestsLocked();
+        } finally {
+            lock.unlock();
+        }
+        sendRequests(requests);
+    }
+
+    // Puts the request back for another peer to take.
+    @GuardedBy("lock")
+    private void cancelLocked(Sha256Hash hash, Request request) {
+        inFlight.remove(hash);
+        PeerState state = peers.get(request.peer);
+        if (state != null)
+            state.inFlight--;
+        unrequested.put(sequence.get(hash), hash);
+    }
+
+    @GuardedBy("lock")
+    private Map<Peer, List<Sha256Hash>> assignRequestsLocked() {
+        Map<Peer, List<Sha256Hash>> requests = new HashMap<Peer, List<Sha256Hash>>();
+        if (paused || done)
+            return requests;
+        long now = Utils.currentTimeMillis();
+        for (Iterator<Map.Entry<Integer, Sha256Hash>> it = unrequested.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer, Sha256Hash> entry = it.next();
+            if (entry.getKey() >= nextSequence + window)
+                break;
+            Peer peer = pickPeerLocked(null);
+            if (peer == null)
+                break;
+            it.remove();
+            peers.get(peer).inFlight++;
+            inFlight.put(entry.getValue(), new Request(peer, now));
+            List<Sha256Hash> hashes = requests.get(peer);
+            if (hashes == null)
+                requests.put(peer, hashes = new ArrayList<Sha256Hash>());
+            hashes.add(entry.getValue());
+        }
+        return requests;
+    }
+
+    // Returns the peer with the most room for more requests, other than the given one.
+    @GuardedBy("lock")
+    @Nullable
+    private Peer pickPeerLocked(@Nullable Peer except) {
+        Peer best = null;
+        int bestRoom = 0;
+        for (Map.Entry<Peer, PeerState> entry : peers.entrySet()) {
+            int room = entry.getValue().maxInFlight - entry.getValue().inFlight;
+            if (room > bestRoom && entry.getKey() != except) {
+                best = entry.getKey();
+                bestRoom = room;
+            }
+        }
+        return best;
+    }
+
+    private void sendRequests(Map<Peer, List<Sha256Hash>> requests) {
+        for (Map.Entry<Peer, List<Sha256Hash>> entry : requests.entrySet()) {
+            Peer peer = entry.getKey();
+            boolean filteredBlocks = filtered && peer.getPeerVersionMessage().isBloomFilteringSupported();
+            GetDataMessage getdata = new GetDataMessage(params);
+            for (Sha256Hash hash : entry.getValue()) {
+                if (filteredBlocks)
+                    getdata.addFilteredBlock(hash);
+                else
+                    getdata.addBlock(hash);
+            }
+            peer.sendMessage(getdata);
+            // The pong marks the end of the transactions of the last filtered block.
+            if (filteredBlocks)
+                peer.sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        }
+    }
+
+    // Hands the blocks that are next in line to the chain.
+    private void deliver() {
+        boolean finished = false, gaveUp = false;
+        boolean exhausted = false;
+        Map<Peer, List<Sha256Hash>> requests;
+        deliveryLock.lock();
+        try {
+            Peer notifyPeer;
+            while (true) {
+                Received next;
+                lock.lock();
+                try {
+                    if (paused || done)
+                        break;
+                    next = received.remove(nextSequence);
+                    if (next == null)
+                        break;
+                    nextSequence++;
+                    notifyPeer = headersPeer != null ? headersPeer : next.peer;
+                } finally {
+                    lock.unlock();
+                }
+                if (next.filteredBlock != null && next.peer.checkForFilterExhaustion(next.filteredBlock)) {
+                    log.info("Bloom filter exhausted whilst processing block {}, discarding", next.block.getHash());
+                    lock.lock();
+                    try {
+                        nextSequence--;
+                        received.put(nextSequence, next);
+                        pauseLocked();
+                    } finally {
+                        lock.unlock();
+                    }
+                    exhausted = true;
+                    break;
+                }
+                try {
+                    boolean connected = next.filteredBlock != null ? chain.add(next.filteredBlock) : chain.add(next.block);
+                    if (connected) {
+                        lock.lock();
+                        try {
+                            sequence.remove(next.block.getHash());
+                        } finally {
+                            lock.unlock();
+                        }
+                        notifyPeer.invokeOnBlocksDownloaded(next.block, next.filteredBlock);
+                    } else {
+                        // Can only happen if the chain was changed behind our back.
+                        log.warn("Block {} didn't connect to the chain, giving up", next.block.getHash());
+                        gaveUp = true;
+                        break;
+                    }
+                } catch (VerificationException e) {
+                    log.warn("{}: Block verification failed, giving up", next.peer, e);
+                    next.peer.close();
+                    gaveUp = true;
+                    break;
+                } catch (PrunedException e) {
+                    // Unreachable when in SPV mode.
+                    throw new RuntimeException(e);
+                }
+            }
+            lock.lock();
+            try {
+                maybeRequestHeadersLocked();
+                if (headersDone && !headersRequested && nextSequence > lastSequence)
+                    finished = true;
+                requests = assignRequestsLocked();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            deliveryLock.unlock();
+        }
+        sendRequests(requests);
+        if (exhausted)
+            refreshFilter();
+        if (finished || gaveUp)
+            finish(gaveUp);
+    }
+
+    // Stops requesting, and puts everything that wasn't handed to the chain yet back to be requested again.
+    @GuardedBy("lock")
+    private void pauseLocked() {
+        paused = true;
+        for (Map.Entry<Sha256Hash, Request> entry : inFlight.entrySet())
+            unrequested.put(sequence.get(entry.getKey()), entry.getKey());
+        inFlight.clear();
+        for (Iterator<Map.Entry<Integer, Received>> it = received.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer, Received> entry = it.next();
+            if (!entry.getValue().headerOnly) {
+                it.remove();
+                unrequested.put(entry.getKey(), entry.getValue().block.getHash());
+            }
+        }
+        for (PeerState state : peers.values())
+            state.inFlight = 0;
+    }
+
+    // Sends a fresh filter with new lookahead keys to all peers, waits until they all have it and carries on.
+    private void refreshFilter() {
+        ListenableFuture<BloomFilter> future =
+                peerGroup.recalculateFastCatchupAndFilter(FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
+        Futures.addCallback(future, new FutureCallback<BloomFilter>() {
+            @Override
+            public void onSuccess(BloomFilter result) {
+                // A ping after the filter tells us when the peer has switched to it.
+                List<ListenableFuture<Long>> pongs = new ArrayList<ListenableFuture<Long>>();
+                for (Peer peer : peerGroup.getConnectedPeers()) {
+                    try {
+                        pongs.add(peer.ping());
+                    } catch (ProtocolException e) {
+                        // Too old to tell, carry on regardless.
+                    }
+                }
+                Futures.addCallback(Futures.successfulAsList(pongs), new FutureCallback<List<Long>>() {
+                    @Override
+                    public void onSuccess(List<Long> result) {
+                        resume();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        resume();
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.error("Failed to recalculate the Bloom filter", t);
+                resume();
+            }
+        });
+    }
+
+    private void resume() {
+        Map<Peer, List<Sha256Hash>> requests;
+        lock.lock();
+        try {
+            paused = false;
+            requests = assignRequestsLocked();
+        } finally {
+            lock.unlock();
+        }
+        sendRequests(requests);
+        deliver();
+    }
+
+    // Hands requests that took too long to other peers, and gives the slow peers fewer requests.
+    void checkForStalls() {
+        Map<Peer, List<Sha256Hash>> requests = new HashMap<Peer, List<Sha256Hash>>();
+        lock.lock();
+        try {
+            if (paused || done)
+                return;
+            long now = Utils.currentTimeMillis();
+            for (Map.Entry<Sha256Hash, Request> entry : new ArrayList<Map.Entry<Sha256Hash, Request>>(inFlight.entrySet())) {
+                Request request = entry.getValue();
+                if (now - request.timeMsec < STALL_TIMEOUT_MSEC)
+                    continue;
+                PeerState state = peers.get(request.peer);
+                if (state != null)
+                    state.maxInFlight = Math.max(1, state.maxInFlight / 2);
+                Peer other = pickPeerLocked(request.peer);
+                if (other == null) {
+                    // Nobody else to ask, so keep waiting.
+                    inFlight.put(entry.getKey(), new Request(request.peer, now));
+                    continue;
+                }
+                log.info("{}: Stalled on block {}, asking {}", request.peer, entry.getKey(), other);
+                if (state != null)
+                    state.inFlight--;
+                peers.get(other).inFlight++;
+                inFlight.put(entry.getKey(), new Request(other, now));
+                List<Sha256Hash> hashes = requests.get(other);
+                if (hashes == null)
+                    requests.put(other, hashes = new ArrayList<Sha256Hash>());
+                hashes.add(entry.getKey());
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendRequests(requests);
+    }
+
+    private void finish(boolean gaveUp) {
+        lock.lock();
+        try {
+            if (done)
+                return;
+            done = true;
+            if (gaveUp)
+                log.warn("Headers first download given up at height {}", chain.getBestChainHeight());
+            else
+                log.info("Headers first download done at height {}", chain.getBestChainHeight());
+            if (stallCheck != null)
+                stallCheck.cancel(false);
+            inFlight.clear();
+            unrequested.clear();
+            received.clear();
+            sequence.clear();
+        } finally {
+            lock.unlock();
+        }
+        peerGroup.headersFirstDownloadDone(this, gaveUp);
+    }
+
+    /** Gives up on the download, for example because the peer group is stopping. */
+    void cancel() {
+        lock.lock();
+        try {
+            done = true;
+            if (stallCheck != null)
+                stallCheck.cancel(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
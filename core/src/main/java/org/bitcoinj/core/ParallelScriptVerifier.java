@@ -0,0 +1,229 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Runs the scripts of a block's transactions on a long lived pool of threads. Work is split at the level of
+ * individual inputs rather than whole transactions: inputs of small transactions are batched together into one job and
+ * the inputs of a big transaction are spread across several jobs, so a block that is dominated by one huge
+ * transaction is still checked on all cores. Idle threads take the next job from a shared queue, so uneven jobs
+ * balance out across the pool.</p>
+ *
+ * <p>One {@link BlockVerification} is used per block. The pool survives failed blocks; outstanding jobs of a failed
+ * block are cancelled rather than the pool being shut down.</p>
+ */
+public class ParallelScriptVerifier {
+    private static final Logger log = LoggerFactory.getLogger(ParallelScriptVerifier.class);
+
+    /** Jobs are never made smaller than this many inputs, as the per-job overhead would dominate. */
+    public static final int MIN_INPUTS_PER_JOB = 16;
+    // How many jobs per thread we aim for, so that threads that finish early can pick up the slack.
+    private static final int JOBS_PER_THREAD = 4;
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    private volatile long lastBlockMillis;
+    private volatile int lastBlockInputs;
+
+    /** Creates a verifier that uses as many threads as there are available processors. */
+    public ParallelScriptVerifier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelScriptVerifier(int threads) {
+        checkArgument(threads > 0);
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads, new ContextPropagatingThreadFactory("Script verification"));
+    }
+
+    /**
+     * Starts verifying a new block.
+     * @param totalInputs the number of inputs that will be added, used to pick a job size. It's fine to overestimate.
+     */
+    public BlockVerification begin(int totalInputs) {
+        checkState(!executor.isShutdown(), "Verifier has been shut down");
+        int inputsPerJob = Math.max(MIN_INPUTS_PER_JOB, totalInputs / (threads * JOBS_PER_THREAD) + 1);
+        return new BlockVerification(inputsPerJob);
+    }
+
+    /** Returns how long the script checks of the last completely verified block took, in milliseconds. */
+    public long getLastBlockMillis() {
+        return lastBlockMillis;
+    }
+
+    /** Returns how many inputs the last completely verified block had. */
+    public int getLastBlockInputs() {
+        return lastBlockInputs;
+    }
+
+    /** Stops the threads of this verifier. It can't be used any more afterwards. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** The inputs of one block that are being verified. Not thread safe, should only be used by one thread. */
+    public class BlockVerification {
+        private final int inputsPerJob;
+        private final List<Future<VerificationException>> futures = new ArrayList<Future<VerificationException>>();
+        private final Stopwatch stopwatch = Stopwatch.createStarted();
+        private List<InputRange> pending = new ArrayList<InputRange>();
+        private int pendingInputs;
+        private int inputs;
+
+        private BlockVerification(int inputsPerJob) {
+            this.inputsPerJob = inputsPerJob;
+        }
+
+        /**
+         * Queues all inputs of the given transaction for verification. The transaction must not be modified afterwards
+         * until {@link #awaitResult()} or {@link #cancel()} returned.
+         * @param prevOutScripts the scripts of the outputs spent by the inputs, in input order
+         * @param prevOutValues the values of the outputs spent by the inputs, in input order
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, List<Coin> prevOutValues, Set<VerifyFlag> verifyFlags) {
+            int size = tx.getInputs().size();
+            checkArgument(prevOutScripts.size() == size && prevOutValues.size() == size);
+            // Serialize once here, each job then parses a private copy it can run the scripts on without locking.
+            byte[] txBytes = tx.bitcoinSerialize();
+            int from = 0;
+            while (from < size) {
+                int to = Math.min(size, from + inputsPerJob - pendingInputs);
+                pending.add(new InputRange(tx.getParams(), txBytes, from, to, prevOutScripts.subList(from, to),
+                        prevOutValues.subList(from, to), verifyFlags));
+                pendingInputs += to - from;
+                inputs += to - from;
+                if (pendingInputs >= inputsPerJob)
+                    flush();
+                from = to;
+            }
+        }
+
+        private void flush() {
+            if (pending.isEmpty())
+                return;
+            FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Job(pending));
+            executor.execute(future);
+            futures.add(future);
+            pending = new ArrayList<InputRange>();
+            pendingInputs = 0;
+        }
+
+        /**
+         * Waits for all queued inputs to be verified.
+         * @throws VerificationException the first failure that was found, in which case all remaining jobs are cancelled
+         */
+        public void awaitResult() throws VerificationException {
+            flush();
+            for (Future<VerificationException> future : futures) {
+                VerificationException e;
+                try {
+                    e = future.get();
+                } catch (InterruptedException thrownE) {
+                    cancel();
+                    throw new RuntimeException(thrownE); // Shouldn't happen
+                } catch (ExecutionException thrownE) {
+                    cancel();
+                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+                }
+                if (e != null) {
+                    cancel();
+                    throw e;
+                }
+            }
+            long millis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            lastBlockMillis = millis;
+            lastBlockInputs = inputs;
+            log.debug("Verified scripts of {} inputs in {} jobs in {} ms", inputs, futures.size(), millis);
+        }
+
+        /** Cancels all outstanding jobs, e.g. because the block already failed another check. */
+        public void cancel() {
+            pending.clear();
+            for (Future<VerificationException> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /** A contiguous range of inputs of one transaction. */
+    private static class InputRange {
+        final NetworkParameters params;
+        final byte[] txBytes;
+        final int from, to;
+        final List<Script> prevOutScripts;
+        final List<Coin> prevOutValues;
+        final Set<VerifyFlag> verifyFlags;
+
+        InputRange(NetworkParameters params, byte[] txBytes, int from, int to, List<Script> prevOutScripts,
+                   List<Coin> prevOutValues, Set<VerifyFlag> verifyFlags) {
+            this.params = params;
+            this.txBytes = txBytes;
+            this.from = from;
+            this.to = to;
+            this.prevOutScripts = prevOutScripts;
+            this.prevOutValues = prevOutValues;
+            this.verifyFlags = verifyFlags;
+        }
+    }
+
+    /**
+     * A job submitted to the executor which verifies signatures.
+     */
+    private static class Job implements Callable<VerificationException> {
+        final List<InputRange> ranges;
+
+        Job(List<InputRange> ranges) {
+            this.ranges = ranges;
+        }
+
+        @Nullable
+        @Override
+        public VerificationException call() throws Exception {
+            try {
+                for (InputRange range : ranges) {
+                    Transaction tx = range.params.getDefaultSerializer().makeTransaction(range.txBytes);
+                    for (int index = range.from; index < range.to; index++) {
+                        if (Thread.interrupted())
+                            return null; // Cancelled, the result will never be looked at.
+                        int i = index - range.from;
+                        tx.getInput(index).getScriptSig().unsafeCorrectlySpends(tx, index, range.prevOutScripts.get(i),
+                                range.prevOutValues.get(i), range.verifyFlags);
+                    }
+                }
+            } catch (VerificationException e) {
+                return e;
+            }
+            return null;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletGroup;
 
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
@@ -82,6 +83,10 @@ public class Peer extends PeerSocketHandler {
     // primary peer. This is to avoid redundant work and concurrency problems with downloading the same chain
     // in parallel.
     private volatile boolean vDownloadData;
+    // Set by PeerGroup while it downloads the chain from several peers at once. Blocks and headers go to it instead.
+    @Nullable private volatile HeadersFirstDownload vHeadersFirstDownload;
+    // Where transactions relayed to us are kept, so they are only downloaded once and can be given to others.
+    @Nullable private volatile TxMemoryPool vMemoryPool;
     // The version data to announce to the other side of the connections we make: useful for setting our "user agent"
     // equivalent and other things.
     private final VersionMessage versionMessage;
@@ -93,6 +98,7 @@ public class Peer extends PeerSocketHandler {
     private final AtomicInteger blocksAnnounced = new AtomicInteger();
     // Each wallet added to the peer will be notified of downloaded transaction data.
     private final CopyOnWriteArrayList<Wallet> wallets;
+    private final CopyOnWriteArrayList<WalletGroup> walletGroups = new CopyOnWriteArrayList<WalletGroup>();
     // A time before which we only download block headers, after that point we download block bodies.
     @GuardedBy("lock") private long fastCatchupTimeSecs;
     // Whether we are currently downloading headers only or block bodies. Starts at true. If the fast catchup time is
@@ -635,6 +641,9 @@ public class Peer extends PeerSocketHandler {
         // in the chain).
         //
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
+        HeadersFirstDownload headersFirstDownload = vHeadersFirstDownload;
+        if (headersFirstDownload != null)
+            headersFirstDownload.receiveNotFound(this, m);
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
                 if (item.hash.equals(req.hash)) {
@@ -669,6 +678,11 @@ public class Peer extends PeerSocketHandler {
         // likely when we've requested them as part of chain download using fast catchup. We need to add each block to
         // the chain if it pre-dates the fast catchup time. If we go past it, we can stop processing the headers and
         // request the full blocks from that point on instead.
+        HeadersFirstDownload headersFirstDownload = vHeadersFirstDownload;
+        if (headersFirstDownload != null) {
+            headersFirstDownload.receiveHeaders(this, m);
+            return;
+        }
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
 
@@ -753,6 +767,22 @@ public class Peer extends PeerSocketHandler {
             if (listenerItems == null) continue;
             items.addAll(listenerItems);
         }
+        TxMemoryPool memoryPool = vMemoryPool;
+        if (memoryPool != null) {
+            // Transactions the listeners didn't have may be in the memory pool.
+            Set<Sha256Hash> found = new HashSet<Sha256Hash>();
+            for (Message item : items) {
+                if (item instanceof Transaction)
+                    found.add(((Transaction) item).getHash());
+            }
+            for (InventoryItem item : getdata.getItems()) {
+                if (item.type != InventoryItem.Type.Transaction || found.contains(item.hash))
+                    continue;
+                Transaction tx = memoryPool.get(item.hash);
+                if (tx != null)
+                    items.add(tx);
+            }
+        }
         if (items.isEmpty()) {
             return;
         }
@@ -791,54 +821,16 @@ public class Peer extends PeerSocketHandler {
                 // fully downloaded instead.
                 return;
             }
+            TxMemoryPool memoryPool = vMemoryPool;
+            if (memoryPool != null)
+                memoryPool.add(tx);
             // It's a broadcast transaction. Tell all wallets about this tx so they can check if it's relevant or not.
-            for (final Wallet wallet : wallets) {
-                try {
-                    if (wallet.isPendingTransactionRelevant(tx)) {
-                        if (vDownloadTxDependencyDepth > 0) {
-                            // This transaction seems interesting to us, so let's download its dependencies. This has
-                            // several purposes: we can check that the sender isn't attacking us by engaging in protocol
-                            // abuse games, like depending on a time-locked transaction that will never confirm, or
-                            // building huge chains of unconfirmed transactions (again - so they don't confirm and the
-                            // money can be taken back with a Finney attack). Knowing the dependencies also lets us
-                            // store them in a serialized wallet so we always have enough data to re-announce to the
-                            // network and get the payment into the chain, in case the sender goes away and the network
-                            // starts to forget.
-                            //
-                            // TODO: Not all the above things are implemented.
-                            //
-                            // Note that downloading of dependencies can end up walking around 15 minutes back even
-                            // through transactions that have confirmed, as getdata on the remote peer also checks
-                            // relay memory not only the mempool. Unfortunately we have no way to know that here. In
-                            // practice it should not matter much.
-                            Futures.addCallback(downloadDependencies(tx), new FutureCallback<List<Transaction>>() {
-                                @Override
-                                public void onSuccess(List<Transaction> dependencies) {
-                                    try {
-                                        log.info("{}: Dependency download complete!", getAddress());
-                                        wallet.receivePending(tx, dependencies);
-                                    } catch (VerificationException e) {
-                                        log.error("{}: Wallet failed to process pending transaction {}", getAddress(), tx.getHash());
-                                        log.error("Error was: ", e);
-                                        // Not much more we can do at this point.
-                                    }
-                                }
-
-                                @Override
-                                public void onFailure(Throwable throwable) {
-                                    log.error("Could not download dependencies of tx {}", tx.getHashAsString());
-                                    log.error("Error was: ", throwable);
-                                    // Not much more we can do at this point.
-                                }
-                            });
-                        } else {
-                            wallet.receivePending(tx, null);
-                        }
-                    }
-                } catch (VerificationException e) {
-                    log.error("Wallet failed to verify tx", e);
-                    // Carry on, listeners may still want to know.
-                }
+            for (Wallet wallet : wallets)
+                receivePendingTransaction(wallet, tx);
+            // Wallets in a group are only told if the tx matches them.
+            for (WalletGroup group : walletGroups) {
+                for (Wallet wallet : group.findWalletsForPendingTransaction(tx))
+                    receivePendingTransaction(wallet, tx);
             }
         } finally {
             lock.unlock();
@@ -855,6 +847,55 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    private void receivePendingTransaction(final Wallet wallet, final Transaction tx) {
+        try {
+            if (wallet.isPendingTransactionRelevant(tx)) {
+                if (vDownloadTxDependencyDepth > 0) {
+                    // This transaction seems interesting to us, so let's download its dependencies. This has
+                    // several purposes: we can check that the sender isn't attacking us by engaging in protocol
+                    // abuse games, like depending on a time-locked transaction that will never confirm, or
+                    // building huge chains of unconfirmed transactions (again - so they don't confirm and the
+                    // money can be taken back with a Finney attack). Knowing the dependencies also lets us
+                    // store them in a serialized wallet so we always have enough data to re-announce to the
+                    // network and get the payment into the chain, in case the sender goes away and the network
+                    // starts to forget.
+                    //
+                    // TODO: Not all the above things are implemented.
+                    //
+                    // Note that downloading of dependencies can end up walking around 15 minutes back even
+                    // through transactions that have confirmed, as getdata on the remote peer also checks
+                    // relay memory not only the mempool. Unfortunately we have no way to know that here. In
+                    // practice it should not matter much.
+                    Futures.addCallback(downloadDependencies(tx), new FutureCallback<List<Transaction>>() {
+                        @Override
+                        public void onSuccess(List<Transaction> dependencies) {
+                            try {
+                                log.info("{}: Dependency download complete!", getAddress());
+                                wallet.receivePending(tx, dependencies);
+                            } catch (VerificationException e) {
+                                log.error("{}: Wallet failed to process pending transaction {}", getAddress(), tx.getHash());
+                                log.error("Error was: ", e);
+                                // Not much more we can do at this point.
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable throwable) {
+                            log.error("Could not download dependencies of tx {}", tx.getHashAsString());
+                            log.error("Error was: ", throwable);
+                            // Not much more we can do at this point.
+                        }
+                    });
+                } else {
+                    wallet.receivePending(tx, null);
+                }
+            }
+        } catch (VerificationException e) {
+            log.error("Wallet failed to verify tx", e);
+            // Carry on, listeners may still want to know.
+        }
+    }
+
     /**
      * <p>Returns a future that wraps a list of all transactions that the given transaction depends on, recursively.
      * Only transactions in peers memory pools are included; the recursion stops at transactions that are in the
@@ -917,7 +958,14 @@ public class Peer extends PeerSocketHandler {
             GetDataMessage getdata = new GetDataMessage(params);
             if (needToRequest.size() > 1)
                 log.info("{}: Requesting {} transactions for depth {} dep resolution", getAddress(), needToRequest.size(), depth + 1);
+            TxMemoryPool memoryPool = vMemoryPool;
             for (Sha256Hash hash : needToRequest) {
+                Transaction pooled = memoryPool != null ? memoryPool.get(hash) : null;
+                if (pooled != null) {
+                    // No need to ask for what we already have.
+                    futures.add(Futures.immediateFuture(pooled));
+                    continue;
+                }
                 getdata.addTransaction(hash);
                 GetDataRequest req = new GetDataRequest(hash, SettableFuture.create());
                 futures.add(req.future);
@@ -964,7 +1012,8 @@ public class Peer extends PeerSocketHandler {
                 }
             });
             // Start the operation.
-            sendMessage(getdata);
+            if (!getdata.getItems().isEmpty())
+                sendMessage(getdata);
         } catch (Exception e) {
             log.error("{}: Couldn't send getdata in downloadDependencies({})", this, tx.getHash(), e);
             resultFuture.setException(e);
@@ -985,6 +1034,11 @@ public class Peer extends PeerSocketHandler {
             log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        HeadersFirstDownload headersFirstDownload = vHeadersFirstDownload;
+        if (headersFirstDownload != null) {
+            headersFirstDownload.receiveBlock(this, m, null);
+            return;
+        }
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -1040,6 +1094,11 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        HeadersFirstDownload headersFirstDownload = vHeadersFirstDownload;
+        if (headersFirstDownload != null && blockChain != null) {
+            headersFirstDownload.receiveBlock(this, m.getBlockHeader(), m);
+            return;
+        }
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -1135,11 +1194,14 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
-    private boolean checkForFilterExhaustion(FilteredBlock m) {
+    boolean checkForFilterExhaustion(FilteredBlock m) {
         boolean exhausted = false;
         for (Wallet wallet : wallets) {
             exhausted |= wallet.checkForFilterExhaustion(m);
         }
+        for (WalletGroup group : walletGroups) {
+            exhausted |= group.checkForFilterExhaustion(m);
+        }
         return exhausted;
     }
 
@@ -1157,7 +1219,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1210,6 +1272,7 @@ public class Peer extends PeerSocketHandler {
 
         GetDataMessage getdata = new GetDataMessage(params);
 
+        TxMemoryPool memoryPool = vMemoryPool;
         Iterator<InventoryItem> it = transactions.iterator();
         while (it.hasNext()) {
             InventoryItem item = it.next();
@@ -1228,6 +1291,9 @@ public class Peer extends PeerSocketHandler {
             } else if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
                 // We created this transaction ourselves, so don't download.
                 it.remove();
+            } else if (memoryPool != null && memoryPool.contains(item.hash)) {
+                // Already downloaded, even if the confidence data of it has since been forgotten.
+                it.remove();
             } else {
                 log.debug("{}: getdata on tx {}", getAddress(), item.hash);
                 getdata.addItem(item);
@@ -1242,7 +1308,8 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            // While the chain is downloaded headers first, the download decides which blocks to ask for.
+            if (blocks.size() > 0 && downloadData && blockChain != null && vHeadersFirstDownload == null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1392,6 +1459,19 @@ public class Peer extends PeerSocketHandler {
         wallets.remove(wallet);
     }
 
+    /**
+     * Links the given group of wallets to this peer. As with wallets, use {@link PeerGroup#addWalletGroup(WalletGroup)}
+     * instead if you have multiple peers.
+     */
+    public void addWalletGroup(WalletGroup group) {
+        walletGroups.add(group);
+    }
+
+    /** Unlinks the given group of wallets from peer. See {@link Peer#addWalletGroup(WalletGroup)}. */
+    public void removeWalletGroup(WalletGroup group) {
+        walletGroups.remove(group);
+    }
+
     // Keep track of the last request we made to the peer in blockChainDownloadLocked so we can avoid redundant and harmful
     // getblocks requests.
     @GuardedBy("lock")
@@ -1456,11 +1536,12 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled())
             log.debug("{}: blockChainDownloadLocked({}) current head = {}",
                     this, toHash, chainHead.getHeader().getHashAsString());
+        ChainIndex chainIndex = blockChain.getChainIndex();
         StoredBlock cursor = chainHead;
         for (int i = 100; cursor != null && i > 0; i--) {
             blockLocator.add(cursor.getHeader().getHash());
             try {
-                cursor = cursor.getPrev(store);
+                cursor = chainIndex.getPrev(cursor, store);
             } catch (BlockStoreException e) {
                 log.error("Failed to walk the block chain whilst constructing a locator");
                 throw new RuntimeException(e);
@@ -1503,6 +1584,11 @@ public class Peer extends PeerSocketHandler {
                     }
                 });
             }
+            HeadersFirstDownload headersFirstDownload = vHeadersFirstDownload;
+            if (headersFirstDownload != null) {
+                headersFirstDownload.start(this);
+                return;
+            }
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1513,6 +1599,29 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Hands the blocks and headers this peer receives to the given download rather than to the chain, or stops doing
+     * so if null. Used by {@link PeerGroup} to download the chain from several peers at once.
+     */
+    void setHeadersFirstDownload(@Nullable HeadersFirstDownload headersFirstDownload) {
+        vHeadersFirstDownload = headersFirstDownload;
+    }
+
+    /**
+     * Sets the pool that transactions relayed by this peer are added to, which is also used to answer getdata requests
+     * and to avoid downloading transactions and dependencies again. Use
+     * {@link PeerGroup#setTxMemoryPool(TxMemoryPool)} instead if you have multiple peers.
+     */
+    public void setTxMemoryPool(@Nullable TxMemoryPool memoryPool) {
+        vMemoryPool = memoryPool;
+    }
+
+    /** Returns the pool set by {@link #setTxMemoryPool(TxMemoryPool)}, or null if there is none. */
+    @Nullable
+    public TxMemoryPool getTxMemoryPool() {
+        return vMemoryPool;
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
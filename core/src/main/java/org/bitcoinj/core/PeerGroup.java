@@ -34,6 +34,7 @@ import org.bitcoinj.script.*;
 import org.bitcoinj.utils.*;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletGroup;
 import org.bitcoinj.wallet.listeners.KeyChainEventListener;
 import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
 import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
@@ -119,6 +120,10 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private Peer downloadPeer;
     // Callback for events related to chain download.
     @Nullable @GuardedBy("lock") private PeerDataEventListener downloadListener;
+    // Whether to download the chain headers first, with the blocks coming from all peers, and the download doing so.
+    @GuardedBy("lock") private boolean headersFirst;
+    @Nullable @GuardedBy("lock") private HeadersFirstDownload headersFirstDownload;
+    @Nullable @GuardedBy("lock") private TxMemoryPool txMemoryPool;
     private final CopyOnWriteArrayList<ListenerRegistration<BlocksDownloadedEventListener>> peersBlocksDownloadedEventListeners
         = new CopyOnWriteArrayList<ListenerRegistration<BlocksDownloadedEventListener>>();
     private final CopyOnWriteArrayList<ListenerRegistration<ChainDownloadStartedEventListener>> peersChainDownloadStartedEventListeners
@@ -160,6 +165,7 @@ public class PeerGroup implements TransactionBroadcaster {
 
     @GuardedBy("lock") private long fastCatchupTimeSecs;
     private final CopyOnWriteArrayList<Wallet> wallets;
+    private final CopyOnWriteArrayList<WalletGroup> walletGroups = new CopyOnWriteArrayList<WalletGroup>();
     private final CopyOnWriteArrayList<PeerFilterProvider> peerFilterProviders;
 
     // This event listener is added to every peer. It's here so when we announce transactions via an "inv", every
@@ -239,6 +245,12 @@ public class PeerGroup implements TransactionBroadcaster {
         @Override
         public void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
             if (chain == null) return;
+            // The block chain would only hand the pool copies of the transactions, so it's given them from here. A
+            // block that isn't the chain head is on a side chain, or had orphans connected after it; either way its
+            // transactions stay until they expire.
+            TxMemoryPool pool = peer.getTxMemoryPool();
+            if (pool != null && chain.getChainHead().getHeader().getHash().equals(block.getHash()))
+                pool.removeConfirmed(block, filteredBlock);
             final double rate = chain.getFalsePositiveRate();
             final double target = bloomFilterMerger.getBloomFilterFPRate() * MAX_FP_RATE_INCREASE;
             if (rate > target) {
@@ -623,13 +635,18 @@ public class PeerGroup implements TransactionBroadcaster {
             while (it.hasNext()) {
                 InventoryItem item = it.next();
                 // Check the wallets.
+                Transaction tx = null;
                 for (Wallet w : wallets) {
-                    Transaction tx = w.getTransaction(item.hash);
-                    if (tx == null) continue;
-                    transactions.add(tx);
-                    it.remove();
-                    break;
+                    tx = w.getTransaction(item.hash);
+                    if (tx != null) break;
                 }
+                for (WalletGroup group : walletGroups) {
+                    if (tx != null) break;
+                    tx = group.getTransaction(item.hash);
+                }
+                if (tx == null) continue;
+                transactions.add(tx);
+                it.remove();
             }
             return transactions;
         } finally {
@@ -1172,6 +1189,13 @@ public class PeerGroup implements TransactionBroadcaster {
     public ListenableFuture stopAsync() {
         checkState(vRunning);
         vRunning = false;
+        lock.lock();
+        try {
+            if (headersFirstDownload != null)
+                headersFirstDownload.cancel();
+        } finally {
+            lock.unlock();
+        }
         ListenableFuture future = executor.submit(new Runnable() {
             @Override
             public void run() {
@@ -1322,6 +1346,44 @@ public class PeerGroup implements TransactionBroadcaster {
         }        
     }
 
+    /**
+     * <p>Link the given group of wallets to this PeerGroup. The group becomes a {@link PeerFilterProvider}, this
+     * PeerGroup becomes the {@link TransactionBroadcaster} of its wallets, and transactions broadcast on the network
+     * are passed on to the wallets in the group they match.</p>
+     *
+     * <p>As with {@link PeerGroup#addWallet(Wallet)}, this should be done before chain download commences.</p>
+     */
+    public void addWalletGroup(WalletGroup group) {
+        lock.lock();
+        try {
+            checkNotNull(group);
+            checkState(!walletGroups.contains(group));
+            walletGroups.add(group);
+            group.setPeerGroup(this);
+            addPeerFilterProvider(group);
+            for (Peer peer : peers) {
+                peer.addWalletGroup(group);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Unlinks the given group of wallets from this PeerGroup. */
+    public void removeWalletGroup(WalletGroup group) {
+        lock.lock();
+        try {
+            walletGroups.remove(checkNotNull(group));
+            peerFilterProviders.remove(group);
+            group.setPeerGroup(null);
+            for (Peer peer : peers) {
+                peer.removeWalletGroup(group);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public enum FilterRecalculateMode {
         SEND_IF_CHANGED,
         FORCE_SEND_FOR_REFRESH,
@@ -1616,6 +1678,13 @@ public class PeerGroup implements TransactionBroadcaster {
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            for (WalletGroup group : walletGroups)
+                peer.addWalletGroup(group);
+            peer.setTxMemoryPool(txMemoryPool);
+            if (headersFirstDownload != null) {
+                peer.setHeadersFirstDownload(headersFirstDownload);
+                headersFirstDownload.peerConnected(peer);
+            }
             if (downloadPeer == null) {
                 // Kick off chain download if we aren't already doing it.
                 setDownloadPeer(selectDownloadPeer(peers));
@@ -1721,6 +1790,33 @@ public class PeerGroup implements TransactionBroadcaster {
         return Context.get().getConfidenceTable();
     }
 
+    /**
+     * Sets a pool to keep the transactions relayed by connected peers in, or null for none (the default). The peers
+     * then answer getdata requests from it and don't download transactions in it again. If this PeerGroup has a block
+     * chain, transactions are removed from the pool as the peers download the blocks confirming them.
+     */
+    public void setTxMemoryPool(@Nullable TxMemoryPool pool) {
+        lock.lock();
+        try {
+            txMemoryPool = pool;
+            for (Peer peer : peers)
+                peer.setTxMemoryPool(pool);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the pool set by {@link #setTxMemoryPool(TxMemoryPool)}, or null if there is none. */
+    @Nullable
+    public TxMemoryPool getTxMemoryPool() {
+        lock.lock();
+        try {
+            return txMemoryPool;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Tells the PeerGroup to download only block headers before a certain time and bodies after that. Call this
      * before starting block chain download.
@@ -1768,6 +1864,8 @@ public class PeerGroup implements TransactionBroadcaster {
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            if (headersFirstDownload != null)
+                headersFirstDownload.peerDisconnected(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -1808,6 +1906,9 @@ public class PeerGroup implements TransactionBroadcaster {
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
+        for (WalletGroup group : walletGroups) {
+            peer.removeWalletGroup(group);
+        }
 
         final int fNumConnectedPeers = numConnectedPeers;
 
@@ -1985,6 +2086,15 @@ public class PeerGroup implements TransactionBroadcaster {
             }
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
+            if (headersFirst && headersFirstDownload == null && chain != null && peer.getPeerBlockHeightDifference() > 0) {
+                // Blocks are fetched from all peers, the download peer just provides the headers.
+                headersFirstDownload = new HeadersFirstDownload(params, this, chain, executor, fastCatchupTimeSecs,
+                        !chain.shouldVerifyTransactions() && bloomFilterMerger.getLastFilter() != null);
+                for (Peer p : peers) {
+                    p.setHeadersFirstDownload(headersFirstDownload);
+                    headersFirstDownload.peerConnected(p);
+                }
+            }
             // startBlockChainDownload will setDownloadData(true) on itself automatically.
             peer.startBlockChainDownload();
         } finally {
@@ -1992,6 +2102,52 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * <p>Sets whether the block chain is downloaded headers first. If so, the headers are fetched from the download
+     * peer, and the blocks themselves are requested from all connected peers in parallel, a window at a time, with
+     * requests that stall handed over to other peers. Once caught up, new blocks are downloaded as usual. Defaults to
+     * false.</p>
+     *
+     * <p>Call this before starting the block chain download.</p>
+     */
+    public void setHeadersFirstDownload(boolean headersFirst) {
+        lock.lock();
+        try {
+            this.headersFirst = headersFirst;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the block chain is downloaded headers first. See {@link #setHeadersFirstDownload(boolean)}. */
+    public boolean isHeadersFirstDownload() {
+        lock.lock();
+        try {
+            return headersFirst;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called once the headers first download is through, to go back to downloading from the download peer. If it gave
+    // up, the rest of the chain is downloaded the usual way.
+    void headersFirstDownloadDone(HeadersFirstDownload download, boolean gaveUp) {
+        lock.lock();
+        try {
+            if (headersFirstDownload != download)
+                return;
+            headersFirstDownload = null;
+            if (gaveUp)
+                headersFirst = false;
+            for (Peer peer : peers)
+                peer.setHeadersFirstDownload(null);
+            if (downloadPeer != null && downloadListener != null)
+                startBlockChainDownloadFromPeer(downloadPeer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns a future that is triggered when the number of connected peers is equal to the given number of
      * peers. By using this with {@link org.bitcoinj.core.PeerGroup#getMaxConnections()} you can wait until the
@@ -2186,6 +2342,15 @@ public class PeerGroup implements TransactionBroadcaster {
                         throw new RuntimeException(e);   // Cannot fail to verify a tx we created ourselves.
                     }
                 }
+                for (WalletGroup group : walletGroups) {
+                    for (Wallet wallet : group.findWalletsForPendingTransaction(transaction)) {
+                        try {
+                            wallet.receivePending(transaction, null);
+                        } catch (VerificationException e) {
+                            throw new RuntimeException(e);   // Cannot fail to verify a tx we created ourselves.
+                        }
+                    }
+                }
             }
 
             @Override
@@ -51,7 +51,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. Unless the
+    // serializer retains payloads, it comes from a pool and may be larger than the message.
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
@@ -133,15 +134,21 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // This can only happen in the first iteration
                     checkState(firstMessage);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
+                    int bytesToGet = Math.min(buff.remaining(), header.size - largeReadBufferPos);
                     buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (largeReadBufferPos == header.size) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
+                        Message message;
+                        try {
+                            message = serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer, 0, header.size));
+                        } finally {
+                            // The parsed message doesn't refer to the buffer, see BitcoinSerializer.deserializePayload.
+                            releaseLargeReadBuffer();
+                        }
                         header = null;
+                        processMessage(message);
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
@@ -161,7 +168,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             header = serializer.deserializeHeader(buff);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
+                            largeReadBuffer = serializer.isParseRetainMode() ? new byte[header.size] :
+                                    BitcoinSerializer.PAYLOAD_POOL.take(header.size);
                             largeReadBufferPos = buff.remaining();
                             buff.get(largeReadBuffer, 0, largeReadBufferPos);
                         } catch (BufferUnderflowException e1) {
@@ -188,6 +196,12 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    private void releaseLargeReadBuffer() {
+        if (!serializer.isParseRetainMode())
+            BitcoinSerializer.PAYLOAD_POOL.give(largeReadBuffer);
+        largeReadBuffer = null;
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link org.bitcoinj.net.NioClient} or
@@ -137,6 +137,11 @@ public class Transaction extends ChildMessage {
     // This is an in memory helper only.
     private Sha256Hash hash;
 
+    // BIP143 hash components shared by all inputs, built on first use and dropped by unCache(). The object itself is
+    // immutable, so it can be read without locking once published. Package private so that TransactionInput can keep
+    // it across input script changes, which these hashes don't commit to.
+    @Nullable volatile SigHashCache sigHashCache;
+
     // Data about how confirmed this tx is. Serialized, may be null.
     @Nullable private TransactionConfidence confidence;
 
@@ -514,6 +519,7 @@ public class Transaction extends ChildMessage {
     protected void unCache() {
         super.unCache();
         hash = null;
+        sigHashCache = null;
     }
 
     protected static int calcLength(byte[] buf, int offset) {
@@ -1198,7 +1204,7 @@ public class Transaction extends ChildMessage {
      * @param type Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashForSignatureWitness(
+    public Sha256Hash hashForSignatureWitness(
             int inputIndex,
             Script scriptCode,
             Coin prevValue,
@@ -1209,7 +1215,12 @@ public class Transaction extends ChildMessage {
         return hashForSignatureWitness(inputIndex, connectedScript, prevValue, type, anyoneCanPay);
     }
 
-    public synchronized Sha256Hash hashForSignatureWitness(
+    /**
+     * Like {@link #hashForSignatureWitness(int, Script, Coin, SigHash, boolean)} but takes the raw script code. The
+     * parts of the preimage that are shared by all inputs are computed once and cached until the transaction is next
+     * modified, so hashing every input of a transaction costs linear rather than quadratic time.
+     */
+    public Sha256Hash hashForSignatureWitness(
             int inputIndex,
             byte[] connectedScript,
             Coin prevValue,
@@ -1223,43 +1234,21 @@ public class Transaction extends ChildMessage {
             byte[] hashSequence = new byte[32];
             byte[] hashOutputs = new byte[32];
             anyoneCanPay = (sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE;
+            SigHashCache cache = getSigHashCache();
 
             if (!anyoneCanPay) {
-                ByteArrayOutputStream bosHashPrevouts = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.inputs.size(); ++i) {
-                    bosHashPrevouts.write(this.inputs.get(i).getOutpoint().getHash().getReversedBytes());
-                    uint32ToByteStreamLE(this.inputs.get(i).getOutpoint().getIndex(), bosHashPrevouts);
-                }
-                hashPrevouts = Sha256Hash.hashTwice(bosHashPrevouts.toByteArray());
+                hashPrevouts = cache.hashPrevouts;
             }
 
             if (!anyoneCanPay && type != SigHash.SINGLE && type != SigHash.NONE) {
-                ByteArrayOutputStream bosSequence = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.inputs.size(); ++i) {
-                    uint32ToByteStreamLE(this.inputs.get(i).getSequenceNumber(), bosSequence);
-                }
-                hashSequence = Sha256Hash.hashTwice(bosSequence.toByteArray());
+                hashSequence = cache.hashSequence;
             }
 
             if (type != SigHash.SINGLE && type != SigHash.NONE) {
-                ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.outputs.size(); ++i) {
-                    uint64ToByteStreamLE(
-                            BigInteger.valueOf(this.outputs.get(i).getValue().getValue()),
-                            bosHashOutputs
-                    );
-                    bosHashOutputs.write(new VarInt(this.outputs.get(i).getScriptBytes().length).encode());
-                    bosHashOutputs.write(this.outputs.get(i).getScriptBytes());
-                }
-                hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
+                hashOutputs = cache.hashOutputs;
             } else if (type == SigHash.SINGLE && inputIndex < outputs.size()) {
                 ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
-                uint64ToByteStreamLE(
-                        BigInteger.valueOf(this.outputs.get(inputIndex).getValue().getValue()),
-                        bosHashOutputs
-                );
-                bosHashOutputs.write(new VarInt(this.outputs.get(inputIndex).getScriptBytes().length).encode());
-                bosHashOutputs.write(this.outputs.get(inputIndex).getScriptBytes());
+                writeOutputForSigHash(outputs.get(inputIndex), bosHashOutputs);
                 hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
             }
             uint32ToByteStreamLE(version, bos);
@@ -1281,6 +1270,50 @@ public class Transaction extends ChildMessage {
         return Sha256Hash.twiceOf(bos.toByteArray());
     }
 
+    /**
+     * Returns the BIP143 hashPrevouts, hashSequence and hashOutputs of this transaction, computing them if they aren't
+     * cached. Concurrent callers may race to compute them, which is harmless as they will come up with the same result.
+     */
+    private SigHashCache getSigHashCache() throws IOException {
+        SigHashCache cache = sigHashCache;
+        if (cache != null)
+            return cache;
+        ByteArrayOutputStream bosHashPrevouts = new UnsafeByteArrayOutputStream(inputs.size() * 36);
+        ByteArrayOutputStream bosSequence = new UnsafeByteArrayOutputStream(inputs.size() * 4);
+        for (TransactionInput input : inputs) {
+            bosHashPrevouts.write(input.getOutpoint().getHash().getReversedBytes());
+            uint32ToByteStreamLE(input.getOutpoint().getIndex(), bosHashPrevouts);
+            uint32ToByteStreamLE(input.getSequenceNumber(), bosSequence);
+        }
+        ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
+        for (TransactionOutput output : outputs)
+            writeOutputForSigHash(output, bosHashOutputs);
+        cache = new SigHashCache(Sha256Hash.hashTwice(bosHashPrevouts.toByteArray()),
+                Sha256Hash.hashTwice(bosSequence.toByteArray()), Sha256Hash.hashTwice(bosHashOutputs.toByteArray()));
+        sigHashCache = cache;
+        return cache;
+    }
+
+    private static void writeOutputForSigHash(TransactionOutput output, OutputStream stream) throws IOException {
+        uint64ToByteStreamLE(BigInteger.valueOf(output.getValue().getValue()), stream);
+        byte[] scriptBytes = output.getScriptBytes();
+        stream.write(new VarInt(scriptBytes.length).encode());
+        stream.write(scriptBytes);
+    }
+
+    /** Immutable holder for the parts of the BIP143 signature hash preimage that are shared by all inputs. */
+    static final class SigHashCache {
+        final byte[] hashPrevouts;
+        final byte[] hashSequence;
+        final byte[] hashOutputs;
+
+        SigHashCache(byte[] hashPrevouts, byte[] hashSequence, byte[] hashOutputs) {
+            this.hashPrevouts = hashPrevouts;
+            this.hashSequence = hashSequence;
+            this.hashOutputs = hashOutputs;
+        }
+    }
+
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         uint32ToByteStreamLE(version, stream);
@@ -1366,6 +1399,7 @@ public class Transaction extends ChildMessage {
 
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
+        unCache();
         Collections.shuffle(outputs);
     }
 
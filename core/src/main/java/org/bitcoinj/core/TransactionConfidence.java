@@ -28,8 +28,6 @@ import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
-// TODO: Modify the getDepthInBlocks method to require the chain height to be specified, in preparation for ceasing to touch every tx on every block.
-
 /**
  * <p>A TransactionConfidence object tracks data you can use to make a confidence decision about a transaction.
  * It also contains some pre-canned rules for common scenarios: if you aren't really sure what level of confidence
@@ -54,8 +52,9 @@ import static com.google.common.base.Preconditions.*;
  * <p>Alternatively, you may know that the transaction is "dead", that is, one or more of its inputs have
  * been double spent and will never confirm unless there is another re-org.</p>
  *
- * <p>TransactionConfidence is updated via the {@link org.bitcoinj.core.TransactionConfidence#incrementDepthInBlocks()}
- * method to ensure the block depth is up to date.</p>
+ * <p>The block depth is kept up to date either by calling
+ * {@link org.bitcoinj.core.TransactionConfidence#incrementDepthInBlocks()} on every new block, or by attaching a
+ * {@link DepthTracker} that counts the blocks for many confidence objects at once, as the wallet does.</p>
  * To make a copy that won't be changed, use {@link org.bitcoinj.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence {
@@ -73,8 +72,13 @@ public class TransactionConfidence {
     // Lazily created listeners array.
     private CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
 
-    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
+    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0. With a depth tracker,
+    // this is the depth as of depthBlocksSeen, and grows with the blocks the tracker sees while BUILDING.
     private int depth;
+    @Nullable private DepthTracker depthTracker;
+    private int depthBlocksSeen;
+    // Depths waited for by futures, so that the depth tracker notifies them.
+    @Nullable private TreeSet<Integer> wantedDepths;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -186,6 +190,9 @@ public class TransactionConfidence {
         void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason);
     }
 
+    // Delivers the events of all confidence objects, so that depth changes still waiting for a listener are coalesced.
+    private static volatile CoalescingEventDispatcher eventDispatcher = new CoalescingEventDispatcher();
+
     // This is used to ensure that confidence objects which aren't referenced from anywhere but which have an event
     // listener set on them don't become eligible for garbage collection. Otherwise the TxConfidenceTable, which only
     // has weak references to these objects, would not be enough to keep the event listeners working as transactions
@@ -250,8 +257,8 @@ public class TransactionConfidence {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
         this.appearedAtChainHeight = appearedAtChainHeight;
-        this.depth = 1;
         setConfidenceType(ConfidenceType.BUILDING);
+        setDepthInBlocks(1);
     }
 
     /**
@@ -268,6 +275,8 @@ public class TransactionConfidence {
     public synchronized void setConfidenceType(ConfidenceType confidenceType) {
         if (confidenceType == this.confidenceType)
             return;
+        // Depth only grows with the tracker's blocks while BUILDING.
+        syncDepth();
         this.confidenceType = confidenceType;
         if (confidenceType != ConfidenceType.DEAD) {
             overridingTransaction = null;
@@ -276,6 +285,7 @@ public class TransactionConfidence {
             depth = 0;
             appearedAtChainHeight = -1;
         }
+        scheduleDepthNotification();
     }
 
 
@@ -369,7 +379,8 @@ public class TransactionConfidence {
      * @return the new depth
      */
     public synchronized int incrementDepthInBlocks() {
-        return ++this.depth;
+        setDepthInBlocks(getDepthInBlocks() + 1);
+        return depth;
     }
 
     /**
@@ -383,6 +394,8 @@ public class TransactionConfidence {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        if (depthTracker != null && confidenceType == ConfidenceType.BUILDING)
+            return depth + depthTracker.getBlocksSeen() - depthBlocksSeen;
         return depth;
     }
 
@@ -391,6 +404,55 @@ public class TransactionConfidence {
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
+        if (depthTracker != null)
+            depthBlocksSeen = depthTracker.getBlocksSeen();
+        scheduleDepthNotification();
+    }
+
+    /**
+     * Attaches the depth tracker that from now on keeps the depth of this transaction up to date, replacing any other
+     * one, or detaches it if null. The current depth is kept as it is. Don't call {@link #incrementDepthInBlocks()}
+     * while a depth tracker is attached.
+     */
+    public synchronized void setDepthTracker(@Nullable DepthTracker depthTracker) {
+        if (depthTracker == this.depthTracker)
+            return;
+        syncDepth();
+        if (this.depthTracker != null)
+            this.depthTracker.unschedule(this);
+        this.depthTracker = depthTracker;
+        if (depthTracker != null)
+            depthBlocksSeen = depthTracker.getBlocksSeen();
+        scheduleDepthNotification();
+    }
+
+    @Nullable
+    public synchronized DepthTracker getDepthTracker() {
+        return depthTracker;
+    }
+
+    // Fixes the depth as it is now, as the base the tracked depth grows from.
+    private void syncDepth() {
+        depth = getDepthInBlocks();
+        if (depthTracker != null)
+            depthBlocksSeen = depthTracker.getBlocksSeen();
+    }
+
+    /** Tells the depth tracker, if any, when this transaction next needs to be notified. */
+    synchronized void scheduleDepthNotification() {
+        if (depthTracker == null)
+            return;
+        if (confidenceType != ConfidenceType.BUILDING) {
+            depthTracker.unschedule(this);
+            return;
+        }
+        int wantedDepth = 0;
+        if (wantedDepths != null) {
+            wantedDepths.headSet(getDepthInBlocks(), true).clear();
+            if (!wantedDepths.isEmpty())
+                wantedDepth = wantedDepths.first();
+        }
+        depthTracker.schedule(this, depth, depthBlocksSeen, wantedDepth);
     }
 
     /**
@@ -450,7 +512,7 @@ public class TransactionConfidence {
      */
     public void queueListeners(final Listener.ChangeReason reason) {
         for (final ListenerRegistration<Listener> registration : listeners) {
-            registration.executor.execute(new Runnable() {
+            eventDispatcher.dispatch(registration.executor, coalescingKey(registration, this, reason), new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onConfidenceChanged(TransactionConfidence.this, reason);
@@ -459,6 +521,32 @@ public class TransactionConfidence {
         }
     }
 
+    /**
+     * Returns the key under which a confidence event for the given listener is coalesced with the ones still waiting to
+     * be delivered to it, or null if it must not be. Depth and seen peers changes are coalesced: the listener can read
+     * the latest of either. Type changes are always delivered, as listeners tend to act on each transition.
+     */
+    @Nullable
+    public static Object coalescingKey(Object registration, Object source, Listener.ChangeReason reason) {
+        if (reason != Listener.ChangeReason.DEPTH && reason != Listener.ChangeReason.SEEN_PEERS)
+            return null;
+        return Arrays.asList(registration, source, reason);
+    }
+
+    /** Returns the dispatcher confidence events are delivered through. */
+    public static CoalescingEventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    /**
+     * Sets the dispatcher confidence events are delivered through, by this class and by the {@link Wallet}. Use this to
+     * share one between apps, or to give it a batch interval so that listeners hear about depth changes at most that
+     * often.
+     */
+    public static void setEventDispatcher(CoalescingEventDispatcher dispatcher) {
+        eventDispatcher = checkNotNull(dispatcher);
+    }
+
     /**
      * The source of a transaction tries to identify where it came from originally. For instance, did we download it
      * from the peer to peer network, or make it ourselves, or receive it via Bluetooth, or import it from another app,
@@ -488,6 +576,11 @@ public class TransactionConfidence {
         final SettableFuture<TransactionConfidence> result = SettableFuture.create();
         if (getDepthInBlocks() >= depth) {
             result.set(this);
+        } else {
+            if (wantedDepths == null)
+                wantedDepths = new TreeSet<Integer>();
+            wantedDepths.add(depth);
+            scheduleDepthNotification();
         }
         addEventListener(executor, new Listener() {
             @Override public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
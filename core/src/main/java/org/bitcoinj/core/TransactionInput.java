@@ -82,6 +82,10 @@ public class TransactionInput extends ChildMessage {
         super(params);
         this.scriptBytes = scriptBytes;
         this.outpoint = outpoint;
+        // Changes to the outpoint have to reach our transaction. Don't take over an outpoint shared with another
+        // input though, as that would invalidate the other transaction for no reason.
+        if (outpoint.parent == null)
+            outpoint.setParent(this);
         this.sequence = NO_SEQUENCE;
         this.value = value;
         setParent(parentTransaction);
@@ -99,6 +103,7 @@ public class TransactionInput extends ChildMessage {
         } else {
             outpoint = new TransactionOutPoint(params, output);
         }
+        outpoint.setParent(this);
         scriptBytes = EMPTY_ARRAY;
         sequence = NO_SEQUENCE;
         setParent(parentTransaction);
@@ -239,7 +244,12 @@ public class TransactionInput extends ChildMessage {
      * @param scriptBytes the scriptBytes to set
      */
     void setScriptBytes(byte[] scriptBytes) {
+        Transaction tx = getParentTransaction();
+        Transaction.SigHashCache sigHashCache = tx != null ? tx.sigHashCache : null;
         unCache();
+        // Input scripts aren't covered by the BIP143 hash components, so signing one input after another can keep them.
+        if (sigHashCache != null)
+            tx.sigHashCache = sigHashCache;
         this.scriptSig = null;
         int oldLength = length;
         this.scriptBytes = scriptBytes;
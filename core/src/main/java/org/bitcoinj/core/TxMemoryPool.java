@@ -0,0 +1,392 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Keeps the transactions relayed to us by the network, up to a total size, so that they are downloaded only once,
+ * can be given to peers asking for them and can be looked up when a transaction spending them arrives. Typically one
+ * is given to a {@link PeerGroup} with {@link PeerGroup#setTxMemoryPool(TxMemoryPool)}, which passes it on to its
+ * peers. Unlike {@link TxConfidenceTable}, which only tracks confidence, the transactions themselves are kept.</p>
+ *
+ * <p>Transactions are indexed by their hash and by the outputs they spend. A transaction spending an output already
+ * spent by one in the pool is a conflict and is not added: the first one seen is kept. When the pool grows beyond
+ * its size, the transactions paying the lowest fee per kilobyte are evicted, together with the transactions that
+ * spend them. The fee of a transaction can only be worked out when the values of the outputs it spends are known,
+ * which is when they come from transactions in the pool or are given by the inputs themselves. Transactions with an
+ * unknown fee are evicted first.</p>
+ *
+ * <p>Transactions are removed when they confirm, which a {@link PeerGroup} with a block chain tells the pool about as
+ * blocks are added to the best chain, or when they become too old. Transactions are not put back when their block is
+ * reorganized away. This class is thread safe.</p>
+ */
+public class TxMemoryPool {
+    private static final Logger log = LoggerFactory.getLogger(TxMemoryPool.class);
+
+    /** The total size of the transactions kept by a pool created with the no-args constructor, in bytes. */
+    public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+    /** How long transactions are kept by default, in seconds. The same as Bitcoin Core. */
+    public static final long DEFAULT_MAX_AGE_SECS = 14 * 24 * 60 * 60;
+
+    private final ReentrantLock lock = Threading.lock("txmemorypool");
+
+    private static class Entry {
+        final Transaction tx;
+        final Sha256Hash hash;
+        final int size;
+        // Satoshis per kilobyte, or -1 if the fee isn't known.
+        final long feeRate;
+        final long sequence;
+        final long timeSeconds;
+
+        Entry(Transaction tx, int size, long feeRate, long sequence, long timeSeconds) {
+            this.tx = tx;
+            this.hash = tx.getHash();
+            this.size = size;
+            this.feeRate = feeRate;
+            this.sequence = sequence;
+            this.timeSeconds = timeSeconds;
+        }
+    }
+
+    // Lowest fee rate first, and of those the oldest first.
+    private static final Comparator<Entry> BY_FEE_RATE = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.feeRate != b.feeRate)
+                return a.feeRate < b.feeRate ? -1 : 1;
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    // In the order they were added, so the oldest can be expired from the front.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Entry> byHash = new LinkedHashMap<Sha256Hash, Entry>();
+    @GuardedBy("lock") private final Map<TransactionOutPoint, Entry> bySpentOutPoint =
+            new HashMap<TransactionOutPoint, Entry>();
+    @GuardedBy("lock") private final TreeSet<Entry> byFeeRate = new TreeSet<Entry>(BY_FEE_RATE);
+    @GuardedBy("lock") private long totalSize;
+    @GuardedBy("lock") private long nextSequence;
+    @GuardedBy("lock") private long evictionCount;
+
+    private volatile long maxSize;
+    private volatile long maxAgeSecs = DEFAULT_MAX_AGE_SECS;
+
+    /** Creates a pool that keeps up to {@link #DEFAULT_MAX_SIZE} bytes of transactions. */
+    public TxMemoryPool() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /** Creates a pool that keeps up to the given total size of transactions, in bytes. */
+    public TxMemoryPool(long maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /** Sets the total size of the transactions kept, in bytes. Takes effect when the next transaction is added. */
+    public void setMaxSize(long maxSize) {
+        checkArgument(maxSize > 0);
+        this.maxSize = maxSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /** Sets how long transactions are kept for, in seconds. Takes effect when the next transaction is added. */
+    public void setMaxAge(long maxAgeSecs) {
+        checkArgument(maxAgeSecs > 0);
+        this.maxAgeSecs = maxAgeSecs;
+    }
+
+    /**
+     * Adds a transaction relayed by the network. Returns whether it's in the pool afterwards: it's not if it conflicts
+     * with a transaction already there, or was evicted straight away for paying too little.
+     */
+    public boolean add(Transaction tx) {
+        if (tx.isCoinBase())
+            return false;
+        lock.lock();
+        try {
+            Sha256Hash hash = tx.getHash();
+            if (byHash.containsKey(hash))
+                return true;
+            if (!getConflictsLocked(tx).isEmpty()) {
+                log.debug("Not adding {} to the memory pool, as it conflicts with a transaction already there", hash);
+                return false;
+            }
+            long now = Utils.currentTimeSeconds();
+            Entry entry = new Entry(tx, tx.getMessageSize(), getFeeRateLocked(tx), nextSequence++, now);
+            byHash.put(hash, entry);
+            for (TransactionInput input : tx.getInputs())
+                bySpentOutPoint.put(input.getOutpoint(), entry);
+            byFeeRate.add(entry);
+            totalSize += entry.size;
+            expireLocked(now);
+            while (totalSize > maxSize && !byFeeRate.isEmpty()) {
+                Entry lowest = byFeeRate.first();
+                evictionCount++;
+                removeWithDescendantsLocked(lowest);
+            }
+            return byHash.containsKey(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the fee rate in satoshis per kilobyte, or -1 if the value of an output spent isn't known.
+    @GuardedBy("lock")
+    private long getFeeRateLocked(Transaction tx) {
+        long fee = 0;
+        for (TransactionInput input : tx.getInputs()) {
+            Coin value = input.getValue();
+            if (value == null) {
+                Entry parent = byHash.get(input.getOutpoint().getHash());
+                long index = input.getOutpoint().getIndex();
+                if (parent == null || index >= parent.tx.getOutputs().size())
+                    return -1;
+                value = parent.tx.getOutput(index).getValue();
+            }
+            fee += value.value;
+        }
+        for (TransactionOutput output : tx.getOutputs())
+            fee -= output.getValue().value;
+        if (fee < 0)
+            return -1;
+        return fee * 1000 / tx.getMessageSize();
+    }
+
+    @GuardedBy("lock")
+    private void expireLocked(long now) {
+        Iterator<Entry> it = byHash.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (now - entry.timeSeconds <= maxAgeSecs)
+                break;
+            it.remove();
+            unindexLocked(entry);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void unindexLocked(Entry entry) {
+        for (TransactionInput input : entry.tx.getInputs()) {
+            if (bySpentOutPoint.get(input.getOutpoint()) == entry)
+                bySpentOutPoint.remove(input.getOutpoint());
+        }
+        byFeeRate.remove(entry);
+        totalSize -= entry.size;
+    }
+
+    @GuardedBy("lock")
+    private void removeLocked(Entry entry) {
+        byHash.remove(entry.hash);
+        unindexLocked(entry);
+    }
+
+    // Removes the entry and everything in the pool that spends its outputs, as those can't confirm without it.
+    @GuardedBy("lock")
+    private void removeWithDescendantsLocked(Entry root) {
+        LinkedList<Entry> toRemove = new LinkedList<Entry>();
+        toRemove.add(root);
+        while (!toRemove.isEmpty()) {
+            Entry entry = toRemove.poll();
+            if (byHash.get(entry.hash) != entry)
+                continue;
+            removeLocked(entry);
+            for (TransactionOutput output : entry.tx.getOutputs()) {
+                Entry child = bySpentOutPoint.get(new TransactionOutPoint(entry.tx.getParams(), output.getIndex(),
+                        entry.hash));
+                if (child != null)
+                    toRemove.add(child);
+            }
+        }
+    }
+
+    /** Returns whether the transaction with the given hash is in the pool. */
+    public boolean contains(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return byHash.containsKey(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transaction with the given hash, or null if it isn't in the pool. */
+    @Nullable
+    public Transaction get(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = byHash.get(hash);
+            return entry != null ? entry.tx : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transaction in the pool that spends the given output, or null if there is none. */
+    @Nullable
+    public Transaction getSpender(TransactionOutPoint outPoint) {
+        lock.lock();
+        try {
+            Entry entry = bySpentOutPoint.get(outPoint);
+            return entry != null ? entry.tx : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transactions in the pool that spend any of the outputs the given transaction spends. */
+    public Set<Transaction> getConflicts(Transaction tx) {
+        lock.lock();
+        try {
+            return getConflictsLocked(tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private Set<Transaction> getConflictsLocked(Transaction tx) {
+        Set<Transaction> conflicts = new HashSet<Transaction>();
+        Sha256Hash hash = tx.getHash();
+        for (TransactionInput input : tx.getInputs()) {
+            Entry entry = bySpentOutPoint.get(input.getOutpoint());
+            if (entry != null && !entry.hash.equals(hash))
+                conflicts.add(entry.tx);
+        }
+        return conflicts;
+    }
+
+    /**
+     * Removes the transaction with the given hash, and the transactions in the pool that spend it. Returns whether it
+     * was there.
+     */
+    public boolean remove(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = byHash.get(hash);
+            if (entry == null)
+                return false;
+            removeWithDescendantsLocked(entry);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the given transaction, which was confirmed in a block, and the transactions in the pool that conflict
+     * with it, together with the ones that spend those. Transactions spending the confirmed one stay.
+     */
+    public void removeConfirmed(Transaction tx) {
+        lock.lock();
+        try {
+            removeConfirmedLocked(tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the transactions of a block added to the best chain as {@link #removeConfirmed(Transaction)} does. Of a
+     * filtered block, the transactions not sent along with it are only known by their hash, so the ones in the pool
+     * are used to find their conflicts.
+     */
+    public void removeConfirmed(Block block, @Nullable FilteredBlock filteredBlock) {
+        lock.lock();
+        try {
+            if (filteredBlock != null) {
+                Map<Sha256Hash, Transaction> associated = filteredBlock.getAssociatedTransactions();
+                for (Sha256Hash hash : filteredBlock.getTransactionHashes()) {
+                    Transaction tx = associated.get(hash);
+                    if (tx != null) {
+                        removeConfirmedLocked(tx);
+                    } else {
+                        Entry entry = byHash.get(hash);
+                        if (entry != null)
+                            removeConfirmedLocked(entry.tx);
+                    }
+                }
+            } else if (block.getTransactions() != null) {
+                for (Transaction tx : block.getTransactions())
+                    if (!tx.isCoinBase())
+                        removeConfirmedLocked(tx);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeConfirmedLocked(Transaction tx) {
+        Entry entry = byHash.get(tx.getHash());
+        if (entry != null)
+            removeLocked(entry);
+        for (Transaction conflict : getConflictsLocked(tx)) {
+            Entry conflicting = byHash.get(conflict.getHash());
+            if (conflicting != null) // Unless it spent another conflict.
+                removeWithDescendantsLocked(conflicting);
+        }
+    }
+
+    /** Returns how many transactions are in the pool. */
+    public int size() {
+        lock.lock();
+        try {
+            return byHash.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the total size of the transactions in the pool, in bytes. */
+    public long getTotalSize() {
+        lock.lock();
+        try {
+            return totalSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times transactions were evicted to make room, each time with the ones spending them. */
+    public long getEvictionCount() {
+        lock.lock();
+        try {
+            return evictionCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "TxMemoryPool{" + byHash.size() + " transactions, " + totalSize + " of " + maxSize + " bytes}";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Looks up the outputs spent by a block on a pool of threads, before the block is connected, so that a
+ * {@link FullPrunedBlockChain} doesn't wait for its store once per input. Outputs created earlier in the same block
+ * aren't looked up, as they aren't in the store until the block is connected.</p>
+ *
+ * <p>The store is read from the threads of the pool while the chain has a batch write open. Those threads don't see
+ * the changes of the batch, so the chain only prefetches while it has none: not for the blocks connected after others
+ * were disconnected or connected in a reorg. The store must allow reads from other threads during a batch write:
+ * {@link org.bitcoinj.store.MemoryFullPrunedBlockStore},
+ * {@link org.bitcoinj.store.CachingFullPrunedBlockStore} and the SQL database stores do, but
+ * {@link org.bitcoinj.store.LevelDBFullPrunedBlockStore} doesn't.</p>
+ */
+public class UTXOPrefetcher {
+    private static final Logger log = LoggerFactory.getLogger(UTXOPrefetcher.class);
+
+    /** Jobs are never made smaller than this many outputs, as the per-job overhead would dominate. */
+    public static final int MIN_OUTPUTS_PER_JOB = 32;
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    /** Creates a prefetcher with the given number of threads. As they mostly wait for the store, more threads than
+     * there are processors can make sense. */
+    public UTXOPrefetcher(int threads) {
+        checkArgument(threads > 0);
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads, new ContextPropagatingThreadFactory("UTXO prefetch"));
+    }
+
+    /**
+     * Looks up the outputs the given transactions spend, apart from those created by the transactions themselves.
+     * Returns the ones that were found, by outpoint.
+     */
+    public Map<TransactionOutPoint, UTXO> prefetch(final FullPrunedBlockStore store, List<Transaction> transactions)
+            throws BlockStoreException {
+        checkState(!executor.isShutdown(), "Prefetcher has been shut down");
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        List<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>();
+        Set<Sha256Hash> created = new HashSet<Sha256Hash>();
+        for (Transaction tx : transactions) {
+            if (!tx.isCoinBase()) {
+                for (TransactionInput in : tx.getInputs()) {
+                    if (!created.contains(in.getOutpoint().getHash()))
+                        outPoints.add(in.getOutpoint());
+                }
+            }
+            created.add(tx.getHash());
+        }
+
+        int perJob = Math.max(MIN_OUTPUTS_PER_JOB, outPoints.size() / threads + 1);
+        List<Future<Map<TransactionOutPoint, UTXO>>> futures = new ArrayList<Future<Map<TransactionOutPoint, UTXO>>>();
+        for (int from = 0; from < outPoints.size(); from += perJob) {
+            final List<TransactionOutPoint> job = outPoints.subList(from, Math.min(outPoints.size(), from + perJob));
+            futures.add(executor.submit(new Callable<Map<TransactionOutPoint, UTXO>>() {
+                @Override
+                public Map<TransactionOutPoint, UTXO> call() throws BlockStoreException {
+                    Map<TransactionOutPoint, UTXO> found = new HashMap<TransactionOutPoint, UTXO>();
+                    for (TransactionOutPoint outPoint : job) {
+                        if (Thread.interrupted())
+                            break; // Cancelled, the result will never be looked at.
+                        UTXO out = store.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+                        if (out != null)
+                            found.put(outPoint, out);
+                    }
+                    return found;
+                }
+            }));
+        }
+
+        Map<TransactionOutPoint, UTXO> found = new HashMap<TransactionOutPoint, UTXO>();
+        try {
+            for (Future<Map<TransactionOutPoint, UTXO>> future : futures)
+                found.putAll(future.get());
+        } catch (InterruptedException e) {
+            cancel(futures);
+            throw new RuntimeException(e); // Shouldn't happen
+        } catch (ExecutionException e) {
+            cancel(futures);
+            if (e.getCause() instanceof BlockStoreException)
+                throw (BlockStoreException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        log.debug("Prefetched {} of {} outputs in {} jobs in {}", found.size(), outPoints.size(), futures.size(),
+                stopwatch);
+        return found;
+    }
+
+    private static void cancel(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures)
+            future.cancel(true);
+    }
+
+    /** Stops the threads of this prefetcher. It can't be used any more afterwards. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
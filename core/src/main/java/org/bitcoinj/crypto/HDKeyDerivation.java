@@ -18,6 +18,7 @@ package org.bitcoinj.crypto;
 
 import com.google.common.collect.*;
 import org.bitcoinj.core.*;
+import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.math.ec.*;
 
 import java.math.*;
@@ -123,6 +124,58 @@ public final class HDKeyDerivation {
 
     }
 
+    /**
+     * <p>Derives the public keys of a range of non-hardened children in one go. This gives the same keys as calling
+     * {@link #deriveThisOrNextChildKey(DeterministicKey, int)} for each child and dropping the private key bytes, but
+     * is much faster for big ranges such as a lookahead zone: the parent's public key and chain code are only
+     * prepared once, the scalar multiplications use the precomputed tables of the generator and the resulting points
+     * are converted to affine form together, at the cost of a single field inversion for the whole range.</p>
+     *
+     * <p>Children that can't be derived are skipped, so the returned list always holds {@code count} keys with
+     * increasing child numbers starting at {@code firstChild}, which may have gaps. The keys have no private key
+     * even if the parent has one, but keep the parent so that it can be derived again when needed.</p>
+     */
+    public static List<DeterministicKey> deriveChildKeys(DeterministicKey parent, int firstChild, int count) {
+        checkArgument(count >= 0, "Negative count: %s", count);
+        checkArgument(firstChild >= 0, "Can't derive hardened children in bulk: %s", firstChild);
+        final BigInteger N = ECKey.CURVE.getN();
+        final ECPoint G = ECKey.CURVE.getG();
+        final ECPoint parentPoint = parent.getPubKeyPoint().normalize();
+        final byte[] parentPublicKey = parentPoint.getEncoded(true);
+        final HMac hmac = HDUtils.createHmacSha512Digest(parent.getChainCode());
+        final ECMultiplier multiplier = new FixedPointCombMultiplier();
+        ECPoint[] points = new ECPoint[count];
+        byte[][] chainCodes = new byte[count][];
+        ChildNumber[] childNumbers = new ChildNumber[count];
+        int child = firstChild;
+        int failures = 0;
+        for (int k = 0; k < count; child++) {
+            ByteBuffer data = ByteBuffer.allocate(37);
+            data.put(parentPublicKey);
+            data.putInt(child);
+            byte[] i = HDUtils.hmacSha512(hmac, data.array());
+            BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(i, 0, 32));
+            ECPoint Ki = ilInt.compareTo(N) < 0 ? multiplier.multiply(G, ilInt).add(parentPoint) : null;
+            if (Ki == null || Ki.isInfinity()) {
+                if (++failures >= MAX_CHILD_DERIVATION_ATTEMPTS)
+                    throw new HDDerivationException("Maximum number of child derivation attempts reached, this is probably an indication of a bug.");
+                continue;
+            }
+            points[k] = Ki;
+            chainCodes[k] = Arrays.copyOfRange(i, 32, 64);
+            childNumbers[k] = new ChildNumber(child, false);
+            k++;
+        }
+        // Montgomery's trick: one inversion for the whole batch instead of one per point.
+        ECKey.CURVE.getCurve().normalizeAll(points);
+        List<DeterministicKey> keys = new ArrayList<DeterministicKey>(count);
+        for (int k = 0; k < count; k++) {
+            keys.add(new DeterministicKey(HDUtils.append(parent.getPath(), childNumbers[k]), chainCodes[k],
+                    points[k], null, parent));
+        }
+        return keys;
+    }
+
     /**
      * @throws HDDerivationException if private derivation is attempted for a public-only parent key, or
      * if the resulting derived key is invalid (eg. private key == 0).
@@ -17,6 +17,7 @@
 
 package org.bitcoinj.params;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.concurrent.TimeUnit;
 
@@ -64,9 +65,10 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
     public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
     	final BlockStore blockStore, AbstractBlockChain blockChain) throws VerificationException, BlockStoreException {
         Block prev = storedPrev.getHeader();
+        final ChainIndex chainIndex = getChainIndex(blockChain);
 
         if (storedPrev.getHeight() +1 >= daaHeight) {
-            checkNextCashWorkRequired(storedPrev, nextBlock, blockStore);
+            checkNextCashWorkRequired(storedPrev, nextBlock, blockStore, chainIndex);
             return;
         }
 
@@ -84,19 +86,16 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
             }
             // If producing the last 6 block took less than 12h, we keep the same
             // difficulty.
-            StoredBlock cursor = blockStore.get(prev.getHash());
-            for (int i = 0; i < 6; i++) {
-                if (cursor == null) {
-                    return;
-                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                    //throw new VerificationException(
-                      //      "We did not find a way back to the genesis block.");
-                }
-                cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            StoredBlock cursor = chainIndex.getAncestor(storedPrev, storedPrev.getHeight() - 6, blockStore);
+            if (cursor == null) {
+                return;
+                // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                //throw new VerificationException(
+                  //      "We did not find a way back to the genesis block.");
             }
             long mpt6blocks = 0;
             try {
-                mpt6blocks = blockChain.getMedianTimestampOfRecentBlocks(storedPrev, blockStore) - blockChain.getMedianTimestampOfRecentBlocks(cursor, blockStore);
+                mpt6blocks = chainIndex.getMedianTimestamp(storedPrev, blockStore) - chainIndex.getMedianTimestamp(cursor, blockStore);
             } catch (NullPointerException x)
             {
                 return;
@@ -134,14 +133,12 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         final Stopwatch watch = Stopwatch.createStarted();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < this.getInterval() - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        StoredBlock cursor = chainIndex.getAncestor(storedPrev, storedPrev.getHeight() - (this.getInterval() - 1),
+                blockStore);
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
         }
         watch.stop();
         if (watch.elapsed(TimeUnit.MILLISECONDS) > 50)
@@ -181,6 +178,11 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
                     Long.toHexString(newTargetCompact) + " vs " + Long.toHexString(receivedTargetCompact));
                     */
     }
+    /** Returns the chain's index of recent blocks, or an empty one if there is no chain. */
+    static ChainIndex getChainIndex(@Nullable AbstractBlockChain blockChain) {
+        return blockChain != null ? blockChain.getChainIndex() : new ChainIndex();
+    }
+
     void verifyDifficulty(BigInteger newTarget, Block nextBlock)
     {
         if (newTarget.compareTo(this.getMaxTarget()) > 0) {
@@ -253,7 +255,7 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
  * To reduce the impact of timestamp manipulation, we select the block we are
  * basing our computation on via a median of 3.
  */
-    StoredBlock GetSuitableBlock(StoredBlock pindex, BlockStore blockStore) throws BlockStoreException{
+    StoredBlock GetSuitableBlock(StoredBlock pindex, BlockStore blockStore, ChainIndex chainIndex) throws BlockStoreException{
         //assert(pindex->nHeight >= 3);
 
         /**
@@ -263,8 +265,8 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
          */
         StoredBlock blocks[] = new StoredBlock[3];
         blocks[2] = pindex;
-        blocks[1] = pindex.getPrev(blockStore);
-        blocks[0] = blocks[1].getPrev(blockStore);
+        blocks[1] = chainIndex.getPrev(pindex, blockStore);
+        blocks[0] = chainIndex.getPrev(blocks[1], blockStore);
 
         // Sorting network.
         if (blocks[0].getHeader().getTimeSeconds() > blocks[2].getHeader().getTimeSeconds()) {
@@ -302,7 +304,7 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
      * input, this ensures the algorithm is more resistant to malicious inputs.
      */
     protected void checkNextCashWorkRequired(StoredBlock pindexPrev,
-                                   Block pblock, BlockStore blockStore) {
+                                   Block pblock, BlockStore blockStore, ChainIndex chainIndex) {
         // This cannot handle the genesis block and early blocks in general.
         //assert(pindexPrev);
 
@@ -321,22 +323,17 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
 
         // Get the last suitable block of the difficulty interval.
         try {
-            StoredBlock pindexLast = GetSuitableBlock(pindexPrev, blockStore);
+            StoredBlock pindexLast = GetSuitableBlock(pindexPrev, blockStore, chainIndex);
             //assert (pindexLast);
 
             // Get the first suitable block of the difficulty interval.
             int nHeightFirst = nHeight - 144;
 
-            StoredBlock pindexFirst = pindexPrev;
-
-            for (int i = 144; i > 0; --i)
-            {
-                pindexFirst = pindexFirst.getPrev(blockStore);
-                if(pindexFirst == null)
-                    return;
-            }
+            StoredBlock pindexFirst = chainIndex.getAncestor(pindexPrev, nHeightFirst, blockStore);
+            if(pindexFirst == null)
+                return;
 
-            pindexFirst = GetSuitableBlock(pindexFirst, blockStore);
+            pindexFirst = GetSuitableBlock(pindexFirst, blockStore, chainIndex);
             //assert (pindexFirst);
 
             // Compute the target based on time and work done during the interval.
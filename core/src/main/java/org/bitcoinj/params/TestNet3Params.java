@@ -23,6 +23,7 @@ import java.util.Date;
 import com.google.common.base.Preconditions;
 import org.bitcoinj.core.AbstractBlockChain;
 import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ChainIndex;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Utils;
@@ -119,7 +120,7 @@ public class TestNet3Params extends AbstractBitcoinNetParams {
         	while (!cursor.getHeader().equals(getGenesisBlock()) &&
                        cursor.getHeight() % getInterval() != 0 &&
                        cursor.getHeader().getDifficultyTargetAsInteger().equals(getMaxTarget()))
-                    cursor = cursor.getPrev(blockStore);
+                    cursor = getChainIndex(blockChain).getPrev(cursor, blockStore);
         	BigInteger cursorTarget = cursor.getHeader().getDifficultyTargetAsInteger();
         	BigInteger newTarget = nextBlock.getDifficultyTargetAsInteger();
         	if (!cursorTarget.equals(newTarget))
@@ -133,7 +134,7 @@ public class TestNet3Params extends AbstractBitcoinNetParams {
     }
     @Override
     protected void checkNextCashWorkRequired(StoredBlock storedPrev,
-                                   Block nextBlock, BlockStore blockStore) {
+                                   Block nextBlock, BlockStore blockStore, ChainIndex chainIndex) {
         // This cannot handle the genesis block and early blocks in general.
         //assert(pindexPrev);
 
@@ -162,22 +163,17 @@ public class TestNet3Params extends AbstractBitcoinNetParams {
                     return;
                 }
 
-            StoredBlock pindexLast = GetSuitableBlock(storedPrev, blockStore);
+            StoredBlock pindexLast = GetSuitableBlock(storedPrev, blockStore, chainIndex);
             //assert (pindexLast);
 
             // Get the first suitable block of the difficulty interval.
             int nHeightFirst = nHeight - 144;
 
-            StoredBlock pindexFirst = storedPrev;
+            StoredBlock pindexFirst = chainIndex.getAncestor(storedPrev, nHeightFirst, blockStore);
+            if(pindexFirst == null)
+                return;
 
-            for (int i = 144; i > 0; --i)
-            {
-                pindexFirst = pindexFirst.getPrev(blockStore);
-                if(pindexFirst == null)
-                    return;
-            }
-
-            pindexFirst = GetSuitableBlock(pindexFirst, blockStore);
+            pindexFirst = GetSuitableBlock(pindexFirst, blockStore, chainIndex);
             //assert (pindexFirst);
 
             // Compute the target based on time and work done during the interval.
@@ -86,6 +86,10 @@ public class Script {
     /** Max number of sigops allowed in a standard p2sh redeem script */
     public static final int MAX_P2SH_SIGOPS = 15;
 
+    // Shared by all scripts, so that signatures checked when a transaction is relayed needn't be checked again when
+    // its block is connected. May be null to always check signatures.
+    @Nullable private static volatile SignatureCache signatureCache = new SignatureCache();
+
     // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]
     protected List<ScriptChunk> chunks;
     // Unfortunately, scripts are not ever re-serialized or canonicalized when used in signature hashing. Thus we
@@ -1461,7 +1465,7 @@ public class Script {
             Sha256Hash hash = sig.useForkId() ?
                                 txContainingThis.hashForSignatureWitness(index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()) :
                                 txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            sigValid = verifySignature(hash, sig, pubKey);
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1479,6 +1483,28 @@ public class Script {
                 throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
     }
 
+    private static boolean verifySignature(Sha256Hash hash, TransactionSignature sig, byte[] pubKey) {
+        SignatureCache cache = signatureCache;
+        return cache != null ? cache.verify(hash, sig, pubKey) : ECKey.verify(hash.getBytes(), sig, pubKey);
+    }
+
+    /**
+     * Returns the cache of valid signatures that is consulted by OP_CHECKSIG(VERIFY) and OP_CHECKMULTISIG(VERIFY),
+     * or null if signatures are always checked.
+     */
+    @Nullable
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Sets the cache of valid signatures that is consulted by OP_CHECKSIG(VERIFY) and OP_CHECKMULTISIG(VERIFY). Pass
+     * null to always check signatures, e.g. on memory constrained devices that don't verify many scripts anyway.
+     */
+    public static void setSignatureCache(@Nullable SignatureCache cache) {
+        signatureCache = cache;
+    }
+
     private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
                                        int opCount, int lastCodeSepLocation, int opcode, Coin value,
                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
@@ -1537,7 +1563,7 @@ public class Script {
                 Sha256Hash hash = sig.useForkId() ?
                         txContainingThis.hashForSignatureWitness(index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()):
                         txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
+                if (verifySignature(hash, sig, pubKey))
                     sigs.pollFirst();
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -1605,6 +1631,17 @@ public class Script {
         } catch (ProtocolException e) {
             throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
         }
+        unsafeCorrectlySpends(txContainingThis, scriptSigIndex, scriptPubKey, value, verifyFlags);
+    }
+
+    /**
+     * Like {@link #correctlySpends(Transaction, long, Script, Coin, Set)} but executes directly against the given
+     * transaction instead of a private copy of it. Only use this if no other thread can access txContainingThis while
+     * this method runs, e.g. when verifying many inputs of a transaction that was parsed just for that purpose. This
+     * avoids re-parsing the transaction for every input and lets the inputs share its cached signature hash data.
+     */
+    public void unsafeCorrectlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey, Coin value,
+                                      Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
         
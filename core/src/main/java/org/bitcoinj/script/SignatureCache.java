@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.primitives.Ints;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers which (signature hash, public key, signature) triples have already been found to be valid, so that a
+ * transaction which is verified once when it is relayed and again when its block is connected only pays for the ECDSA
+ * work once. This is consulted by {@link Script} when executing OP_CHECKSIG(VERIFY) and OP_CHECKMULTISIG(VERIFY).</p>
+ *
+ * <p>Only valid signatures are stored: otherwise anybody could fill the cache by sending us garbage. Entries are keyed
+ * by a hash of the triple mixed with a random salt that is chosen per instance, so a peer can't construct triples that
+ * collide in the cache. The cache is bounded by entry count and is safe to use from many threads at once.</p>
+ */
+public class SignatureCache {
+    /** Enough for a few full blocks worth of signatures, at roughly 100 bytes per entry. */
+    public static final int DEFAULT_MAX_ENTRIES = 200000;
+
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    private final byte[] salt = new byte[32];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache that holds up to {@link #DEFAULT_MAX_ENTRIES} signatures. */
+    public SignatureCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public SignatureCache(int maxEntries) {
+        checkArgument(maxEntries > 0);
+        new SecureRandom().nextBytes(salt);
+        validSignatures = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * Verifies the given signature like {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} does, unless it has
+     * already been found to be valid before.
+     */
+    public boolean verify(Sha256Hash hash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        if (ECKey.FAKE_SIGNATURES)
+            return ECKey.verify(hash.getBytes(), signature, pubKey);
+        Sha256Hash entry = entryFor(hash, signature, pubKey);
+        if (validSignatures.getIfPresent(entry) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        if (!ECKey.verify(hash.getBytes(), signature, pubKey))
+            return false;
+        validSignatures.put(entry, Boolean.TRUE);
+        return true;
+    }
+
+    /**
+     * Like {@link #verify(Sha256Hash, ECKey.ECDSASignature, byte[])} for many signatures at once. The signatures that
+     * aren't cached are checked in one go with {@link ECKey#verifyBatch(byte[][], ECKey.ECDSASignature[], byte[][])}.
+     * @return whether each of the signatures is valid
+     */
+    public boolean[] verifyBatch(Sha256Hash[] hashes, ECKey.ECDSASignature[] signatures, byte[][] pubKeys) {
+        checkArgument(hashes.length == signatures.length && hashes.length == pubKeys.length);
+        boolean[] results = new boolean[hashes.length];
+        Sha256Hash[] entries = new Sha256Hash[hashes.length];
+        int[] missing = new int[hashes.length];
+        int numMissing = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (!ECKey.FAKE_SIGNATURES) {
+                entries[i] = entryFor(hashes[i], signatures[i], pubKeys[i]);
+                if (validSignatures.getIfPresent(entries[i]) != null) {
+                    hits.incrementAndGet();
+                    results[i] = true;
+                    continue;
+                }
+            }
+            misses.incrementAndGet();
+            missing[numMissing++] = i;
+        }
+        if (numMissing == 0)
+            return results;
+        byte[][] batchData = new byte[numMissing][];
+        ECKey.ECDSASignature[] batchSignatures = new ECKey.ECDSASignature[numMissing];
+        byte[][] batchPubKeys = new byte[numMissing][];
+        for (int j = 0; j < numMissing; j++) {
+            batchData[j] = hashes[missing[j]].getBytes();
+            batchSignatures[j] = signatures[missing[j]];
+            batchPubKeys[j] = pubKeys[missing[j]];
+        }
+        boolean[] batchResults = ECKey.verifyBatch(batchData, batchSignatures, batchPubKeys);
+        for (int j = 0; j < numMissing; j++) {
+            int i = missing[j];
+            results[i] = batchResults[j];
+            if (batchResults[j] && entries[i] != null)
+                validSignatures.put(entries[i], Boolean.TRUE);
+        }
+        return results;
+    }
+
+    private Sha256Hash entryFor(Sha256Hash hash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        digest.update(hash.getBytes());
+        // Length prefix the variable length parts so that no two different triples can serialize the same way.
+        digest.update(Ints.toByteArray(pubKey.length));
+        digest.update(pubKey);
+        digest.update(signature.encodeToDER());
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    /** Returns how many lookups were answered from the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many lookups had to fall back to actually checking the signature. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the approximate number of signatures held. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Forgets all signatures, but not the hit and miss counters. */
+    public void clear() {
+        validSignatures.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureCache of " + size() + " entries, " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+}
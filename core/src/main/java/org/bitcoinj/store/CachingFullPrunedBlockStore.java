@@ -0,0 +1,643 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps a cache of unspent outputs in front of another one, so that any of them
+ * can be used without caring how it caches outputs itself. Everything but the outputs and the verified chain head is
+ * passed straight through.</p>
+ *
+ * <p>The cache is split into a number of stripes by outpoint, each with its own lock, so that threads looking up
+ * outputs rarely wait on each other. Outputs that are in the underlying store are kept as compact byte arrays rather
+ * than {@link UTXO} objects, and the least recently used ones are dropped once they take more than the given size.</p>
+ *
+ * <p>Changes to the outputs are written back: committed batch writes are kept in the cache, and written to the
+ * underlying store together with the verified chain head that goes with them every so many batch writes, see
+ * {@link #setOutputFlushInterval(int)}. Outputs that are spent soon after they were created never reach the
+ * underlying store at all. As with other stores, only the thread that began a batch write sees its changes until it
+ * is committed.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default size of the cache, in bytes. */
+    public static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+    /** The default number of stripes the cache is split into. */
+    public static final int DEFAULT_STRIPES = 16;
+    /** The default for {@link #setMaxUnflushedOutputChanges(int)}. */
+    public static final int DEFAULT_MAX_UNFLUSHED_OUTPUT_CHANGES = 100000;
+
+    // Roughly what an entry takes besides its encoded output: the key, the map entry and the array header.
+    private static final int ENTRY_OVERHEAD = 112;
+
+    private static final int FLAG_COINBASE = 1;
+
+    // The key of an output, without the objects a Sha256Hash and a Long would take.
+    private static final class OutPointKey {
+        final long hash0, hash1, hash2, hash3;
+        final int index;
+
+        OutPointKey(Sha256Hash hash, long index) {
+            ByteBuffer buf = ByteBuffer.wrap(hash.getBytes());
+            hash0 = buf.getLong();
+            hash1 = buf.getLong();
+            hash2 = buf.getLong();
+            hash3 = buf.getLong();
+            this.index = (int) index;
+        }
+
+        Sha256Hash getHash() {
+            ByteBuffer buf = ByteBuffer.allocate(32);
+            buf.putLong(hash0).putLong(hash1).putLong(hash2).putLong(hash3);
+            return Sha256Hash.wrap(buf.array());
+        }
+
+        long getIndex() {
+            return index & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            OutPointKey other = (OutPointKey) o;
+            return index == other.index && hash0 == other.hash0 && hash1 == other.hash1 && hash2 == other.hash2
+                    && hash3 == other.hash3;
+        }
+
+        @Override
+        public int hashCode() {
+            // The hash is random enough that any part of it will do.
+            return (int) (hash0 ^ (hash0 >>> 32)) * 31 + index;
+        }
+    }
+
+    // Encodes an output as flags, height, value, script and address. The hash and index are in the key.
+    private static byte[] encode(UTXO out) {
+        byte[] script = out.getScript().getProgram();
+        byte[] address = out.getAddress() != null ? out.getAddress().getBytes(Charsets.UTF_8) : new byte[0];
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 8 + VarInt.sizeOf(script.length) + script.length
+                + VarInt.sizeOf(address.length) + address.length).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put((byte) (out.isCoinbase() ? FLAG_COINBASE : 0));
+        buf.putInt(out.getHeight());
+        buf.putLong(out.getValue().value);
+        buf.put(new VarInt(script.length).encode()).put(script);
+        buf.put(new VarInt(address.length).encode()).put(address);
+        return buf.array();
+    }
+
+    private static UTXO decode(OutPointKey key, byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        boolean coinbase = (buf.get() & FLAG_COINBASE) != 0;
+        int height = buf.getInt();
+        Coin value = Coin.valueOf(buf.getLong());
+        byte[] script = readBytes(buf);
+        String address = new String(readBytes(buf), Charsets.UTF_8);
+        return new UTXO(key.getHash(), key.getIndex(), value, height, coinbase, new Script(script), address);
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) {
+        VarInt length = new VarInt(buf.array(), buf.position());
+        buf.position(buf.position() + length.getOriginalSizeInBytes());
+        byte[] bytes = new byte[(int) length.value];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    // An output that was added or spent. These are kept as they are, as they're about to be used or written anyway.
+    private static class Change {
+        final UTXO out;
+        final boolean spent;
+
+        Change(UTXO out, boolean spent) {
+            this.out = out;
+            this.spent = spent;
+        }
+    }
+
+    // Applies a change on top of the given ones. A spent output is only recorded when it is there in the layer below,
+    // so an output that is created and spent again leaves nothing behind.
+    private static void applyChange(Map<OutPointKey, Change> changes, OutPointKey key, Change change) {
+        Change previous = changes.remove(key);
+        if (previous == null || previous.spent == change.spent)
+            changes.put(key, change);
+    }
+
+    private static class Stripe {
+        // Committed changes that haven't been written to the underlying store yet. These are never evicted.
+        @GuardedBy("this") final Map<OutPointKey, Change> dirty = new HashMap<OutPointKey, Change>();
+        // Outputs that are in the underlying store, encoded, least recently used first.
+        @GuardedBy("this") final LinkedHashMap<OutPointKey, byte[]> clean =
+                new LinkedHashMap<OutPointKey, byte[]>(16, 0.75f, true);
+        @GuardedBy("this") long cleanBytes;
+        // Bumped whenever the underlying store is written, so that outputs read from it before can be told apart.
+        @GuardedBy("this") long writes;
+        @GuardedBy("this") long hits, misses, evictions;
+
+        @GuardedBy("this")
+        void putClean(OutPointKey key, UTXO out, long maxBytes) {
+            byte[] bytes = encode(out);
+            // Outputs that would push out a good part of the stripe aren't worth it.
+            if (bytes.length + ENTRY_OVERHEAD > maxBytes / 4) {
+                removeClean(key);
+                return;
+            }
+            byte[] previous = clean.put(key, bytes);
+            if (previous != null)
+                cleanBytes -= previous.length + ENTRY_OVERHEAD;
+            cleanBytes += bytes.length + ENTRY_OVERHEAD;
+            for (Iterator<byte[]> it = clean.values().iterator(); cleanBytes > maxBytes && it.hasNext();) {
+                cleanBytes -= it.next().length + ENTRY_OVERHEAD;
+                it.remove();
+                evictions++;
+            }
+        }
+
+        @GuardedBy("this")
+        void removeClean(OutPointKey key) {
+            byte[] previous = clean.remove(key);
+            if (previous != null)
+                cleanBytes -= previous.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    private final FullPrunedBlockStore store;
+    private final Stripe[] stripes;
+    private final long maxStripeBytes;
+
+    @GuardedBy("this") @Nullable private StoredBlock unflushedVerifiedChainHead;
+    @GuardedBy("this") private int unflushedChanges;
+    @GuardedBy("this") private int commitsSinceFlush;
+    @GuardedBy("this") private int flushInterval = 1;
+    @GuardedBy("this") private int maxUnflushedChanges = DEFAULT_MAX_UNFLUSHED_OUTPUT_CHANGES;
+
+    // The batch write going on, if any. Its changes are only touched by the thread doing it.
+    @Nullable private volatile Thread batchThread;
+    private final Map<OutPointKey, Change> batch = new HashMap<OutPointKey, Change>();
+    @Nullable private StoredBlock batchVerifiedChainHead;
+
+    /** Wraps the given store with a cache of {@link #DEFAULT_CACHE_SIZE} bytes. */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) {
+        this(store, DEFAULT_CACHE_SIZE, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Wraps the given store.
+     *
+     * @param store The store to cache the outputs of.
+     * @param cacheSize Roughly how many bytes the outputs that were written to the underlying store may take.
+     * @param stripes How many parts the cache is split into, each with its own lock. Must be a power of two.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long cacheSize, int stripes) {
+        checkArgument(cacheSize >= 0);
+        checkArgument(stripes > 0 && Integer.bitCount(stripes) == 1, "Stripes must be a power of two: %s", stripes);
+        this.store = checkNotNull(store);
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++)
+            this.stripes[i] = new Stripe();
+        this.maxStripeBytes = cacheSize / stripes;
+    }
+
+    private Stripe getStripe(OutPointKey key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    private boolean inBatch() {
+        return batchThread == Thread.currentThread();
+    }
+
+    @Override
+    public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        OutPointKey key = new OutPointKey(hash, index);
+        if (inBatch()) {
+            Change change = batch.get(key);
+            if (change != null)
+                return change.spent ? null : change.out;
+        }
+        Stripe stripe = getStripe(key);
+        long writes;
+        synchronized (stripe) {
+            Change change = stripe.dirty.get(key);
+            if (change != null) {
+                stripe.hits++;
+                return change.spent ? null : change.out;
+            }
+            byte[] bytes = stripe.clean.get(key);
+            if (bytes != null) {
+                stripe.hits++;
+                return decode(key, bytes);
+            }
+            stripe.misses++;
+            writes = stripe.writes;
+        }
+        UTXO out = store.getTransactionOutput(hash, index);
+        if (out != null) {
+            synchronized (stripe) {
+                // Unless the underlying store was written in the meantime, in which case this may be stale already.
+                if (stripe.writes == writes && !stripe.dirty.containsKey(key))
+                    stripe.putClean(key, out, maxStripeBytes);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        change(new OutPointKey(out.getHash(), out.getIndex()), new Change(out, false));
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+            throw new BlockStoreException("Tried to remove a UTXO from CachingFullPrunedBlockStore that it didn't have!");
+        change(new OutPointKey(out.getHash(), out.getIndex()), new Change(out, true));
+    }
+
+    private void change(OutPointKey key, Change change) throws BlockStoreException {
+        if (inBatch()) {
+            applyChange(batch, key, change);
+            return;
+        }
+        synchronized (this) {
+            commitChange(key, change);
+            if (batchThread == null)
+                flush();
+        }
+    }
+
+    @GuardedBy("this")
+    private void commitChange(OutPointKey key, Change change) {
+        Stripe stripe = getStripe(key);
+        synchronized (stripe) {
+            int before = stripe.dirty.size();
+            applyChange(stripe.dirty, key, change);
+            unflushedChanges += stripe.dirty.size() - before;
+            stripe.removeClean(key);
+        }
+    }
+
+    @Override
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        // Outputs that the cache knows about settle it, otherwise ask the underlying store. If some of the outputs
+        // have been spent since it was written, it can't be asked about the transaction as a whole.
+        List<Long> unknown = new ArrayList<Long>();
+        boolean spent = false;
+        for (int index = 0; index < numOutputs; index++) {
+            OutPointKey key = new OutPointKey(hash, index);
+            Change change = inBatch() ? batch.get(key) : null;
+            boolean cached = false;
+            if (change == null) {
+                Stripe stripe = getStripe(key);
+                synchronized (stripe) {
+                    change = stripe.dirty.get(key);
+                    cached = stripe.clean.containsKey(key);
+                }
+            }
+            if (cached || (change != null && !change.spent))
+                return true;
+            if (change != null)
+                spent = true;
+            else
+                unknown.add((long) index);
+        }
+        if (unknown.isEmpty() || !store.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        if (!spent)
+            return true;
+        for (long index : unknown)
+            if (getTransactionOutput(hash, index) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        Set<String> wanted = new HashSet<String>();
+        for (Address address : addresses)
+            wanted.add(address.toString());
+        // Apply the changes that haven't been written on top of what the underlying store has.
+        Map<OutPointKey, UTXO> outputs = new LinkedHashMap<OutPointKey, UTXO>();
+        for (UTXO out : store.getOpenTransactionOutputs(addresses))
+            outputs.put(new OutPointKey(out.getHash(), out.getIndex()), out);
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Map.Entry<OutPointKey, Change> entry : stripe.dirty.entrySet()) {
+                    Change change = entry.getValue();
+                    if (change.spent)
+                        outputs.remove(entry.getKey());
+                    else if (wanted.contains(change.out.getAddress()))
+                        outputs.put(entry.getKey(), change.out);
+                }
+            }
+        }
+        return new ArrayList<UTXO>(outputs.values());
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        if (inBatch() && batchVerifiedChainHead != null)
+            return batchVerifiedChainHead;
+        synchronized (this) {
+            if (unflushedVerifiedChainHead != null)
+                return unflushedVerifiedChainHead;
+        }
+        return store.getVerifiedChainHead();
+    }
+
+    @Override
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        // Written along with the outputs, but the chain head can move on already.
+        if (store.getChainHead().getHeight() < chainHead.getHeight())
+            store.setChainHead(chainHead);
+        if (inBatch()) {
+            batchVerifiedChainHead = chainHead;
+            return;
+        }
+        synchronized (this) {
+            unflushedVerifiedChainHead = chainHead;
+            if (batchThread == null)
+                flush();
+        }
+    }
+
+    @Override
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        synchronized (this) {
+            if (!inBatch()) {
+                checkState(batchThread == null, "Batch write already going on in %s", batchThread);
+                batchThread = Thread.currentThread();
+            }
+        }
+        store.beginDatabaseBatchWrite();
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        synchronized (this) {
+            try {
+                if (inBatch()) {
+                    for (Map.Entry<OutPointKey, Change> entry : batch.entrySet())
+                        commitChange(entry.getKey(), entry.getValue());
+                    if (batchVerifiedChainHead != null)
+                        unflushedVerifiedChainHead = batchVerifiedChainHead;
+                }
+                boolean flush = inBatch()
+                        && (++commitsSinceFlush >= flushInterval || unflushedChanges > maxUnflushedChanges);
+                if (flush)
+                    writeUnflushed();
+                store.commitDatabaseBatchWrite();
+                if (flush)
+                    flushed();
+            } finally {
+                clearBatch();
+            }
+        }
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        synchronized (this) {
+            if (inBatch())
+                clearBatch();
+        }
+        store.abortDatabaseBatchWrite();
+    }
+
+    @GuardedBy("this")
+    private void clearBatch() {
+        batch.clear();
+        batchVerifiedChainHead = null;
+        batchThread = null;
+    }
+
+    /**
+     * Sets after how many committed batch writes, which are blocks when used by a
+     * {@link org.bitcoinj.core.FullPrunedBlockChain}, the changes to the outputs are written to the underlying store,
+     * along with the verified chain head. Defaults to 1, which writes the changes with every batch write.
+     */
+    public synchronized void setOutputFlushInterval(int batchWrites) {
+        checkArgument(batchWrites > 0);
+        this.flushInterval = batchWrites;
+    }
+
+    /**
+     * Sets how many changes to the outputs may be kept before they are written to the underlying store, regardless of
+     * the flush interval. Defaults to {@link #DEFAULT_MAX_UNFLUSHED_OUTPUT_CHANGES}.
+     */
+    public synchronized void setMaxUnflushedOutputChanges(int maxChanges) {
+        checkArgument(maxChanges >= 0);
+        this.maxUnflushedChanges = maxChanges;
+    }
+
+    /** Returns how many changes to the outputs are waiting to be written to the underlying store. */
+    public synchronized int getUnflushedOutputChanges() {
+        return unflushedChanges;
+    }
+
+    /**
+     * Writes the committed changes to the outputs, and the verified chain head that goes with them, to the underlying
+     * store. Must not be called while a batch write is going on.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        if (unflushedChanges == 0 && unflushedVerifiedChainHead == null)
+            return;
+        checkState(batchThread == null, "Batch write going on in %s", batchThread);
+        store.beginDatabaseBatchWrite();
+        boolean done = false;
+        try {
+            writeUnflushed();
+            store.commitDatabaseBatchWrite();
+            done = true;
+        } finally {
+            if (!done)
+                store.abortDatabaseBatchWrite();
+        }
+        flushed();
+    }
+
+    @GuardedBy("this")
+    private void writeUnflushed() throws BlockStoreException {
+        if (log.isDebugEnabled())
+            log.debug("Writing {} output changes", unflushedChanges);
+        for (Stripe stripe : stripes) {
+            List<Change> changes;
+            synchronized (stripe) {
+                changes = new ArrayList<Change>(stripe.dirty.values());
+            }
+            for (Change change : changes) {
+                if (change.spent)
+                    store.removeUnspentTransactionOutput(change.out);
+                else
+                    store.addUnspentTransactionOutput(change.out);
+            }
+        }
+        if (unflushedVerifiedChainHead != null)
+            store.setVerifiedChainHead(unflushedVerifiedChainHead);
+    }
+
+    // Called once the changes have been committed to the underlying store. Only now can the cache stop overlaying
+    // them, as lookups that miss go to the underlying store.
+    @GuardedBy("this")
+    private void flushed() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.writes++;
+                for (Map.Entry<OutPointKey, Change> entry : stripe.dirty.entrySet())
+                    if (!entry.getValue().spent)
+                        stripe.putClean(entry.getKey(), entry.getValue().out, maxStripeBytes);
+                stripe.dirty.clear();
+            }
+        }
+        unflushedChanges = 0;
+        unflushedVerifiedChainHead = null;
+        commitsSinceFlush = 0;
+    }
+
+    /** Returns how many output lookups were answered by the cache. */
+    public long getHitCount() {
+        long hits = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        return hits;
+    }
+
+    /** Returns how many output lookups had to go to the underlying store. */
+    public long getMissCount() {
+        long misses = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        return misses;
+    }
+
+    /** Returns the share of output lookups that were answered by the cache, or 0 if there were none yet. */
+    public double getHitRatio() {
+        long hits = getHitCount();
+        long lookups = hits + getMissCount();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /** Returns how many outputs were dropped from the cache to keep it within its size. */
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                evictions += stripe.evictions;
+            }
+        return evictions;
+    }
+
+    /** Returns how many outputs, spent or not, the cache holds. */
+    public int getCachedOutputCount() {
+        int count = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                count += stripe.clean.size() + stripe.dirty.size();
+            }
+        return count;
+    }
+
+    /** Returns the underlying store. */
+    public FullPrunedBlockStore getStore() {
+        return store;
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Override
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Override
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        return store.getChainHeadHeight();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        flush();
+        store.close();
+    }
+}
@@ -25,6 +25,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -32,6 +33,9 @@ import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * <p>A generic full pruned block store for a relational database.  This generic class requires
  * certain table structures for the block store.</p>
@@ -148,6 +152,94 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String password;
     protected String schemaName;
 
+    /** The default for {@link #setMaxUnflushedOutputChanges(int)}. */
+    public static final int DEFAULT_MAX_UNFLUSHED_OUTPUT_CHANGES = 100000;
+    // How many rows go into one JDBC batch.
+    private static final int MAX_BATCH_ROWS = 1000;
+
+    // Changes to the open outputs that haven't been written to the database yet. An output can be both deleted and
+    // inserted, when it was spent and then put back by a reorg, in which case the delete is written first. Deletes are
+    // only recorded for outputs that are in the layer below, so that counting works out.
+    private static class OutputChanges {
+        final Map<Sha256Hash, Map<Long, UTXO>> inserts = new HashMap<Sha256Hash, Map<Long, UTXO>>();
+        final Map<Sha256Hash, Set<Long>> deletes = new HashMap<Sha256Hash, Set<Long>>();
+        int size;
+
+        @Nullable
+        UTXO getInsert(Sha256Hash hash, long index) {
+            Map<Long, UTXO> outputs = inserts.get(hash);
+            return outputs != null ? outputs.get(index) : null;
+        }
+
+        boolean isDeleted(Sha256Hash hash, long index) {
+            Set<Long> indexes = deletes.get(hash);
+            return indexes != null && indexes.contains(index);
+        }
+
+        void add(UTXO out) {
+            Map<Long, UTXO> outputs = inserts.get(out.getHash());
+            if (outputs == null)
+                inserts.put(out.getHash(), outputs = new HashMap<Long, UTXO>());
+            if (outputs.put(out.getIndex(), out) == null)
+                size++;
+        }
+
+        // Drops a pending insert, or records a delete if there is none.
+        void remove(Sha256Hash hash, long index) {
+            Map<Long, UTXO> outputs = inserts.get(hash);
+            if (outputs != null && outputs.remove(index) != null) {
+                size--;
+                if (outputs.isEmpty())
+                    inserts.remove(hash);
+                return;
+            }
+            Set<Long> indexes = deletes.get(hash);
+            if (indexes == null)
+                deletes.put(hash, indexes = new HashSet<Long>());
+            if (indexes.add(index))
+                size++;
+        }
+
+        // Returns how many outputs of the given transaction these changes add.
+        int countChange(Sha256Hash hash) {
+            Map<Long, UTXO> outputs = inserts.get(hash);
+            Set<Long> indexes = deletes.get(hash);
+            return (outputs != null ? outputs.size() : 0) - (indexes != null ? indexes.size() : 0);
+        }
+
+        // Applies changes that were made on top of these.
+        void addAll(OutputChanges changes) {
+            for (Map.Entry<Sha256Hash, Set<Long>> entry : changes.deletes.entrySet())
+                for (long index : entry.getValue())
+                    remove(entry.getKey(), index);
+            for (Map<Long, UTXO> outputs : changes.inserts.values())
+                for (UTXO out : outputs.values())
+                    add(out);
+        }
+
+        boolean isEmpty() {
+            return inserts.isEmpty() && deletes.isEmpty();
+        }
+
+        void clear() {
+            inserts.clear();
+            deletes.clear();
+            size = 0;
+        }
+    }
+
+    // Output changes that were committed but not written yet, and the verified chain head that goes with them. They
+    // are written together, so that the database always holds the open outputs as of its verified chain head.
+    @GuardedBy("this") private final OutputChanges unflushed = new OutputChanges();
+    @GuardedBy("this") @Nullable private StoredBlock unflushedVerifiedChainHead;
+    @GuardedBy("this") private int commitsSinceFlush;
+    @GuardedBy("this") private int flushInterval = 1;
+    @GuardedBy("this") private int maxUnflushedChanges = DEFAULT_MAX_UNFLUSHED_OUTPUT_CHANGES;
+    // The changes made in the batch write that is going on, if any, by the thread doing it.
+    @GuardedBy("this") private final OutputChanges batch = new OutputChanges();
+    @GuardedBy("this") @Nullable private StoredBlock batchVerifiedChainHead;
+    @GuardedBy("this") @Nullable private Thread batchThread;
+
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
      * and optionally allowing a schema to be specified.</p>
@@ -451,6 +543,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public synchronized void close() {
+        try {
+            flush();
+        } catch (BlockStoreException e) {
+            log.error("Failed to write the open output changes", e);
+        }
         for (Connection conn : allConnections) {
             try {
                 if (!conn.getAutoCommit()) {
@@ -881,19 +978,31 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.verifiedChainHeadHash = hash;
         this.verifiedChainHeadBlock = chainHead;
+        if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        // Written along with the open outputs.
+        synchronized (this) {
+            if (batchThread == Thread.currentThread()) {
+                batchVerifiedChainHead = chainHead;
+            } else {
+                unflushedVerifiedChainHead = chainHead;
+                flush();
+            }
+        }
+    }
+
+    private void writeVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
         maybeConnect();
         try {
             PreparedStatement s = conn.get()
                     .prepareStatement(getUpdateSettingsSLQ());
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
-            s.setBytes(1, hash.getBytes());
+            s.setBytes(1, chainHead.getHeader().getHash().getBytes());
             s.executeUpdate();
             s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
-        if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
-            setChainHead(chainHead);
         removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
     }
 
@@ -913,6 +1022,21 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        synchronized (this) {
+            // The changes of the batch write going on are only seen by the thread doing it.
+            if (batchThread == Thread.currentThread()) {
+                UTXO out = batch.getInsert(hash, index);
+                if (out != null || batch.isDeleted(hash, index))
+                    return out;
+            }
+            UTXO out = unflushed.getInsert(hash, index);
+            if (out != null || unflushed.isDeleted(hash, index))
+                return out;
+        }
+        return getTransactionOutputFromDatabase(hash, index);
+    }
+
+    private UTXO getTransactionOutputFromDatabase(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
         PreparedStatement s = null;
         try {
@@ -954,52 +1078,173 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
-        maybeConnect();
-        PreparedStatement s = null;
-        try {
-            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            s.setInt(7, out.getScript().getScriptType().ordinal());
-            s.setBoolean(8, out.isCoinbase());
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
+        synchronized (this) {
+            if (batchThread == Thread.currentThread()) {
+                batch.add(out);
+            } else {
+                unflushed.add(out);
+                flush();
             }
         }
     }
 
+    // Sets the parameters of the insert statement for the given output.
+    private void setInsertOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScript().getProgram());
+        s.setString(6, out.getAddress());
+        s.setInt(7, out.getScript().getScriptType().ordinal());
+        s.setBoolean(8, out.isCoinbase());
+    }
+
     @Override
     public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        synchronized (this) {
+            if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+            if (batchThread == Thread.currentThread()) {
+                batch.remove(out.getHash(), out.getIndex());
+            } else {
+                unflushed.remove(out.getHash(), out.getIndex());
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Sets after how many committed batch writes, which are blocks when used by a
+     * {@link org.bitcoinj.core.FullPrunedBlockChain}, the changes to the open outputs are written to the database.
+     * Until then they are kept in memory, so that outputs that are spent soon after they were created never make it to
+     * the database at all. The verified chain head is written along with them, so after a crash the chain picks up
+     * from there. Defaults to 1, which writes the changes of every batch write in one go.
+     */
+    public synchronized void setOutputFlushInterval(int batchWrites) {
+        checkArgument(batchWrites > 0);
+        this.flushInterval = batchWrites;
+    }
+
+    /**
+     * Sets how many changes to the open outputs may be kept in memory before they are written to the database,
+     * regardless of the flush interval. Defaults to {@link #DEFAULT_MAX_UNFLUSHED_OUTPUT_CHANGES}.
+     */
+    public synchronized void setMaxUnflushedOutputChanges(int maxChanges) {
+        checkArgument(maxChanges >= 0);
+        this.maxUnflushedChanges = maxChanges;
+    }
+
+    /** Returns how many changes to the open outputs are waiting to be written to the database. */
+    public synchronized int getUnflushedOutputChanges() {
+        return unflushed.size;
+    }
+
+    /**
+     * Writes the committed changes to the open outputs, and the verified chain head that goes with them, to the
+     * database. Changes made by a batch write that is still going on are not written.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        if (unflushed.isEmpty() && unflushedVerifiedChainHead == null)
+            return;
         maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
-            throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+        Connection connection = conn.get();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
+            // Join the batch write of this thread if there is one, otherwise write in a transaction of our own.
+            boolean autoCommit = connection.getAutoCommit();
+            if (autoCommit)
+                connection.setAutoCommit(false);
+            boolean done = false;
+            try {
+                writeOutputChanges(connection, unflushed, unflushedVerifiedChainHead);
+                if (autoCommit)
+                    connection.commit();
+                done = true;
+            } finally {
+                if (autoCommit) {
+                    if (!done)
+                        connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            }
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        unflushed.clear();
+        unflushedVerifiedChainHead = null;
+        commitsSinceFlush = 0;
+    }
+
+    private void writeOutputChanges(Connection connection, OutputChanges changes,
+                                    @Nullable StoredBlock verifiedChainHead) throws SQLException, BlockStoreException {
+        if (log.isDebugEnabled())
+            log.debug("Writing {} open output changes", changes.size);
+        if (!changes.deletes.isEmpty()) {
+            PreparedStatement s = connection.prepareStatement(getDeleteOpenoutputsSQL());
+            try {
+                int rows = 0;
+                for (Map.Entry<Sha256Hash, Set<Long>> entry : changes.deletes.entrySet()) {
+                    for (long index : entry.getValue()) {
+                        s.setBytes(1, entry.getKey().getBytes());
+                        // index is actually an unsigned int
+                        s.setInt(2, (int) index);
+                        s.addBatch();
+                        if (++rows % MAX_BATCH_ROWS == 0)
+                            s.executeBatch();
+                    }
+                }
+                s.executeBatch();
+            } finally {
+                s.close();
+            }
+        }
+        if (!changes.inserts.isEmpty()) {
+            PreparedStatement s = connection.prepareStatement(getInsertOpenoutputsSQL());
+            try {
+                List<UTXO> rows = new ArrayList<UTXO>(MAX_BATCH_ROWS);
+                for (Map<Long, UTXO> outputs : changes.inserts.values()) {
+                    for (UTXO out : outputs.values()) {
+                        rows.add(out);
+                        if (rows.size() == MAX_BATCH_ROWS)
+                            insertOpenoutputs(s, rows);
+                    }
+                }
+                insertOpenoutputs(s, rows);
+            } finally {
+                s.close();
+            }
+        }
+        if (verifiedChainHead != null)
+            writeVerifiedChainHead(verifiedChainHead);
+    }
+
+    private void insertOpenoutputs(PreparedStatement s, List<UTXO> rows) throws SQLException {
+        if (rows.isEmpty())
+            return;
+        try {
+            for (UTXO out : rows) {
+                setInsertOpenoutputsParameters(s, out);
+                s.addBatch();
+            }
+            s.executeBatch();
+        } catch (BatchUpdateException e) {
+            if (!getDuplicateKeyErrorCode().equals(e.getSQLState()))
+                throw e;
+            // An output that is already there, which can happen for duplicated transactions. Do them one by one and
+            // skip those, as used to be done.
+            s.clearBatch();
+            for (UTXO out : rows) {
+                try {
+                    setInsertOpenoutputsParameters(s, out);
+                    s.executeUpdate();
+                } catch (SQLException e2) {
+                    if (!getDuplicateKeyErrorCode().equals(e2.getSQLState()))
+                        throw e2;
+                }
+            }
+        }
+        rows.clear();
     }
 
     @Override
@@ -1012,6 +1257,12 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        synchronized (this) {
+            if (batchThread != Thread.currentThread()) {
+                checkState(batchThread == null, "Batch write already going on in %s", batchThread);
+                batchThread = Thread.currentThread();
+            }
+        }
     }
 
     @Override
@@ -1019,19 +1270,58 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
-        try {
-            conn.get().commit();
-            conn.get().setAutoCommit(true);
-        } catch (SQLException e) {
-            throw new BlockStoreException(e);
+        synchronized (this) {
+            try {
+                // The changes of the batch only become part of the committed ones once the commit went through, so
+                // that they are gone along with the rest of the batch if it doesn't.
+                StoredBlock verifiedChainHead =
+                        batchVerifiedChainHead != null ? batchVerifiedChainHead : unflushedVerifiedChainHead;
+                boolean flush = commitsSinceFlush + 1 >= flushInterval
+                        || unflushed.size + batch.size > maxUnflushedChanges;
+                if (flush) {
+                    OutputChanges changes = batch;
+                    if (!unflushed.isEmpty()) {
+                        changes = new OutputChanges();
+                        changes.addAll(unflushed);
+                        changes.addAll(batch);
+                    }
+                    writeOutputChanges(conn.get(), changes, verifiedChainHead);
+                }
+                conn.get().commit();
+                conn.get().setAutoCommit(true);
+                if (flush) {
+                    unflushed.clear();
+                    unflushedVerifiedChainHead = null;
+                    commitsSinceFlush = 0;
+                } else {
+                    unflushed.addAll(batch);
+                    unflushedVerifiedChainHead = verifiedChainHead;
+                    commitsSinceFlush++;
+                }
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            } finally {
+                clearBatch();
+            }
         }
     }
 
+    @GuardedBy("this")
+    private void clearBatch() {
+        batch.clear();
+        batchVerifiedChainHead = null;
+        batchThread = null;
+    }
+
     @Override
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        synchronized (this) {
+            if (batchThread == Thread.currentThread())
+                clearBatch();
+        }
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1046,6 +1336,12 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        int change;
+        synchronized (this) {
+            change = unflushed.countChange(hash);
+            if (batchThread == Thread.currentThread())
+                change += batch.countChange(hash);
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
@@ -1056,7 +1352,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
             int count = results.getInt(1);
-            return count != 0;
+            return count + change > 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
@@ -1105,6 +1401,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public void deleteStore() throws BlockStoreException {
         maybeConnect();
+        synchronized (this) {
+            unflushed.clear();
+            unflushedVerifiedChainHead = null;
+            commitsSinceFlush = 0;
+        }
         try {
             Statement s = conn.get().createStatement();
             for(String sql : getDropTablesSQL()) {
@@ -1131,7 +1432,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      * @throws BlockStoreException If there is an error getting the balance.
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
-        maybeConnect();
+        flush();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getBalanceSelectSQL());
@@ -1160,7 +1461,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         PreparedStatement s = null;
         List<UTXO> outputs = new ArrayList<UTXO>();
         try {
-            maybeConnect();
+            flush();
             s = conn.get().prepareStatement(getTrasactionOutputSelectSQL());
             for (Address address : addresses) {
                 s.setString(1, address.toString());
@@ -1204,7 +1505,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      * This does not take database indexes into account.
      */
     public void dumpSizes() throws SQLException, BlockStoreException {
-        maybeConnect();
+        flush();
         Statement s = conn.get().createStatement();
         long size = 0;
         long totalSize = 0;
@@ -0,0 +1,363 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.utils.*;
+import org.slf4j.*;
+
+import com.google.common.primitives.Ints;
+
+import javax.annotation.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.concurrent.locks.*;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>A HeaderChainBlockStore keeps every block header it is given, in a memory mapped file that is only ever appended
+ * to. Unlike {@link SPVBlockStore} it doesn't forget old headers, so it can serve deep re-orgs and lookups by height,
+ * and unlike {@link MemoryBlockStore} it survives a restart without downloading the headers again.</p>
+ *
+ * <p>Blocks are found by hash through an open addressing hash table of record numbers, and blocks on the best chain
+ * by height through an array of record numbers, so {@link #get(Sha256Hash)}, {@link #get(int)} and
+ * {@link #getChainHead()} take constant time. Both indexes are kept in memory and built when the store is opened,
+ * from a single pass over the hashes in the file.</p>
+ */
+public class HeaderChainBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(HeaderChainBlockStore.class);
+
+    public static final String HEADER_MAGIC = "HDRC";
+    /** The number of records the file has room for when it's created. It grows as needed. */
+    public static final int INITIAL_CAPACITY = 1 << 16;
+
+    protected volatile MappedByteBuffer buffer;
+    protected NetworkParameters params;
+
+    protected ReentrantLock lock = Threading.lock("HeaderChainBlockStore");
+
+    // The number of records the mapped file has room for, and the number of records in it.
+    private int capacity;
+    private int numRecords;
+    // Record number plus one for each slot, zero for empty slots. The length is a power of two.
+    private int[] hashIndex;
+    // Record number plus one of the block at each height of the best chain, zero where the store doesn't have the
+    // block, for example below the checkpoint the chain was started from.
+    private int[] heightIndex = new int[0];
+    private StoredBlock chainHead;
+
+    // Used to stop other applications/processes from opening the store.
+    protected FileLock fileLock = null;
+    protected RandomAccessFile randomAccessFile = null;
+
+    /**
+     * Creates and initializes a header chain block store. Will create the given file if it's missing. This operation
+     * will block on disk.
+     */
+    public HeaderChainBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        checkNotNull(file);
+        this.params = checkNotNull(params);
+        try {
+            boolean exists = file.exists();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            if (!exists) {
+                log.info("Creating new header chain file " + file);
+                randomAccessFile.setLength(getFileSize(INITIAL_CAPACITY));
+            } else if (randomAccessFile.length() < FILE_PROLOGUE_BYTES
+                    || (randomAccessFile.length() - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0) {
+                throw new BlockStoreException("File size on disk is not a whole number of records: " +
+                        randomAccessFile.length());
+            }
+
+            FileChannel channel = randomAccessFile.getChannel();
+            fileLock = channel.tryLock();
+            if (fileLock == null)
+                throw new ChainFileLockedException("Store file is already locked by another process");
+            capacity = (int) ((randomAccessFile.length() - FILE_PROLOGUE_BYTES) / RECORD_SIZE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getFileSize(capacity));
+
+            if (exists) {
+                byte[] header = new byte[4];
+                buffer.get(header);
+                if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
+                    throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                load();
+            } else {
+                initNewStore(params);
+            }
+        } catch (Exception e) {
+            try {
+                if (randomAccessFile != null) randomAccessFile.close();
+            } catch (IOException e2) {
+                throw new BlockStoreException(e2);
+            }
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void initNewStore(NetworkParameters params) throws Exception {
+        buffer.put(HEADER_MAGIC.getBytes("US-ASCII"));
+        buffer.putInt(4, 0);
+        hashIndex = new int[indexSizeFor(capacity)];
+        // Insert the genesis block.
+        Block genesis = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+        put(storedGenesis);
+        setChainHead(storedGenesis);
+    }
+
+    private void load() throws BlockStoreException {
+        lock.lock();
+        try {
+            numRecords = buffer.getInt(4);
+            if (numRecords < 0 || numRecords > capacity)
+                throw new BlockStoreException("Corrupted block store: bad number of records: " + numRecords);
+            hashIndex = new int[indexSizeFor(Math.max(capacity, numRecords))];
+            byte[] hash = new byte[32];
+            for (int record = 0; record < numRecords; record++) {
+                readRecordHash(record, hash);
+                indexPut(hash, record);
+            }
+            buffer.position(8);
+            buffer.get(hash);
+            int head = indexFind(hash);
+            if (head < 0)
+                throw new BlockStoreException("Corrupted block store: could not find chain head: " + Sha256Hash.wrap(hash));
+            chainHead = readRecord(head);
+            updateHeightIndex(head, chainHead.getHeight());
+            log.info("Loaded {} headers, chain head at height {}", numRecords, chainHead.getHeight());
+        } finally { lock.unlock(); }
+    }
+
+    /** Returns the size in bytes of a file with room for the given number of records. */
+    private static long getFileSize(int capacity) {
+        return FILE_PROLOGUE_BYTES + (long) capacity * RECORD_SIZE;
+    }
+
+    private static int indexSizeFor(int records) {
+        return Integer.highestOneBit(Math.max(2 * records - 1, 1)) << 1;
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            byte[] hash = block.getHeader().getHash().getBytes();
+            // A block hash fixes the header, and with it the height and chain work, so it's stored only once.
+            if (indexFind(hash) >= 0)
+                return;
+            if (numRecords == capacity)
+                grow();
+            int record = numRecords;
+            buffer.position(recordOffset(record));
+            buffer.put(hash);
+            block.serializeCompact(buffer);
+            // The record only counts once it's completely written.
+            numRecords++;
+            buffer.putInt(4, numRecords);
+            if (2 * numRecords > hashIndex.length)
+                rehash(hashIndex.length * 2);
+            indexPut(hash, record);
+        } finally { lock.unlock(); }
+    }
+
+    // Doubles the room in the file. The old mapping is left to the garbage collector.
+    private void grow() throws BlockStoreException {
+        checkState(lock.isHeldByCurrentThread());
+        int newCapacity = capacity * 2;
+        if (getFileSize(newCapacity) > Integer.MAX_VALUE)
+            throw new BlockStoreException("Header chain file is full");
+        try {
+            buffer.force();
+            // Windows won't resize a file that's still mapped.
+            if (System.getProperty("os.name").toLowerCase().contains("win"))
+                WindowsMMapHack.forceRelease(buffer);
+            randomAccessFile.setLength(getFileSize(newCapacity));
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, getFileSize(newCapacity));
+            capacity = newCapacity;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void rehash(int size) {
+        hashIndex = new int[size];
+        byte[] hash = new byte[32];
+        for (int record = 0; record < numRecords - 1; record++) {
+            readRecordHash(record, hash);
+            indexPut(hash, record);
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            int record = indexFind(hash.getBytes());
+            return record < 0 ? null : readRecord(record);
+        } finally { lock.unlock(); }
+    }
+
+    /**
+     * Returns the block at the given height of the chain that ends at the chain head, or null if the store doesn't
+     * have it, for example because the height is above the chain head or below the checkpoint the chain started from.
+     */
+    @Nullable
+    public StoredBlock get(int height) throws BlockStoreException {
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            if (height < 0 || height > chainHead.getHeight() || heightIndex[height] == 0)
+                return null;
+            return readRecord(heightIndex[height] - 1);
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            return chainHead;
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            byte[] hash = chainHead.getHeader().getHash().getBytes();
+            int record = indexFind(hash);
+            if (record < 0) {
+                put(chainHead);
+                record = indexFind(hash);
+            }
+            this.chainHead = chainHead;
+            buffer.position(8);
+            buffer.put(hash);
+            updateHeightIndex(record, chainHead.getHeight());
+        } finally { lock.unlock(); }
+    }
+
+    // Points the height index at the chain ending in the given record, stopping where it already agrees.
+    private void updateHeightIndex(int record, int height) {
+        if (height >= heightIndex.length)
+            heightIndex = Arrays.copyOf(heightIndex, Math.max(height + 1, heightIndex.length * 3 / 2));
+        byte[] prevHash = new byte[32];
+        while (record >= 0 && height >= 0 && heightIndex[height] != record + 1) {
+            heightIndex[height] = record + 1;
+            // The previous block hash is at offset 4 of the header, in wire byte order.
+            buffer.position(recordOffset(record) + 32 + StoredBlock.CHAIN_WORK_BYTES + 4 + 4);
+            buffer.get(prevHash);
+            record = indexFind(Utils.reverseBytes(prevHash));
+            height--;
+        }
+        // The rest of the chain is missing, so is anything left there from another branch.
+        if (record < 0) {
+            while (height >= 0 && heightIndex[height] != 0)
+                heightIndex[height--] = 0;
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        try {
+            buffer.force();
+            if (System.getProperty("os.name").toLowerCase().contains("win")) {
+                log.info("Windows mmap hack: Forcing buffer cleaning");
+                WindowsMMapHack.forceRelease(buffer);
+            }
+            buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            randomAccessFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    protected static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+    // File format:
+    //   4 header bytes = "HDRC"
+    //   4 bytes number of records
+    //   32 bytes hash of chain head
+    //   24 unused bytes
+    //
+    // For each record (128 bytes)
+    //   32 bytes hash of the header
+    //   12 bytes chain work
+    //    4 bytes height
+    //   80 bytes header
+    protected static final int FILE_PROLOGUE_BYTES = 64;
+
+    private static int recordOffset(int record) {
+        return FILE_PROLOGUE_BYTES + record * RECORD_SIZE;
+    }
+
+    private void readRecordHash(int record, byte[] hash) {
+        buffer.position(recordOffset(record));
+        buffer.get(hash);
+    }
+
+    private StoredBlock readRecord(int record) {
+        buffer.position(recordOffset(record) + 32);
+        try {
+            return StoredBlock.deserializeCompact(params, buffer);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private int homeSlot(byte[] hash) {
+        return Ints.fromBytes(hash[28], hash[29], hash[30], hash[31]) & (hashIndex.length - 1);
+    }
+
+    /** Returns the number of the record with the given hash, or -1 if there is none. */
+    private int indexFind(byte[] hash) {
+        byte[] scratch = new byte[32];
+        int mask = hashIndex.length - 1;
+        for (int slot = homeSlot(hash); hashIndex[slot] != 0; slot = (slot + 1) & mask) {
+            int record = hashIndex[slot] - 1;
+            readRecordHash(record, scratch);
+            if (Arrays.equals(scratch, hash))
+                return record;
+        }
+        return -1;
+    }
+
+    private void indexPut(byte[] hash, int record) {
+        int mask = hashIndex.length - 1;
+        int slot = homeSlot(hash);
+        while (hashIndex[slot] != 0)
+            slot = (slot + 1) & mask;
+        hashIndex[slot] = record + 1;
+    }
+}
@@ -229,7 +229,111 @@ class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
 }
 
 /**
- * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link org.bitcoinj.core.UTXO}s in memory.
+ * An {@link OffHeapUTXOTable} that is DB per-thread-transaction-aware, like {@link TransactionalHashMap}. Changes made
+ * in a transaction are kept as objects until it is committed.
+ * This class is not thread-safe.
+ */
+class TransactionalUTXOTable {
+    ThreadLocal<HashMap<StoredTransactionOutPoint, UTXO>> tempMap;
+    ThreadLocal<HashSet<StoredTransactionOutPoint>> tempSetRemoved;
+    private ThreadLocal<Boolean> inTransaction;
+
+    OffHeapUTXOTable table;
+
+    public TransactionalUTXOTable(NetworkParameters params) {
+        tempMap = new ThreadLocal<HashMap<StoredTransactionOutPoint, UTXO>>();
+        tempSetRemoved = new ThreadLocal<HashSet<StoredTransactionOutPoint>>();
+        inTransaction = new ThreadLocal<Boolean>();
+        table = new OffHeapUTXOTable(params);
+    }
+
+    public void beginDatabaseBatchWrite() {
+        inTransaction.set(true);
+    }
+
+    public void commitDatabaseBatchWrite() {
+        if (tempSetRemoved.get() != null)
+            for (StoredTransactionOutPoint key : tempSetRemoved.get())
+                table.remove(key.getHash(), key.getIndex());
+        if (tempMap.get() != null)
+            for (UTXO out : tempMap.get().values())
+                table.put(out);
+        abortDatabaseBatchWrite();
+    }
+
+    public void abortDatabaseBatchWrite() {
+        inTransaction.set(false);
+        tempSetRemoved.remove();
+        tempMap.remove();
+    }
+
+    @Nullable
+    public UTXO get(StoredTransactionOutPoint key) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            if (tempMap.get() != null) {
+                UTXO value = tempMap.get().get(key);
+                if (value != null)
+                    return value;
+            }
+            if (tempSetRemoved.get() != null && tempSetRemoved.get().contains(key))
+                return null;
+        }
+        return table.get(key.getHash(), key.getIndex());
+    }
+
+    public boolean contains(StoredTransactionOutPoint key) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            if (tempMap.get() != null && tempMap.get().containsKey(key))
+                return true;
+            if (tempSetRemoved.get() != null && tempSetRemoved.get().contains(key))
+                return false;
+        }
+        return table.contains(key.getHash(), key.getIndex());
+    }
+
+    public List<UTXO> getByAddress(Set<String> addresses) {
+        List<UTXO> outputs = new ArrayList<UTXO>();
+        for (UTXO out : table.getByAddress(addresses)) {
+            UTXO value = get(new StoredTransactionOutPoint(out));
+            if (value != null)
+                outputs.add(value);
+        }
+        return outputs;
+    }
+
+    public void put(UTXO out) {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            if (tempSetRemoved.get() != null)
+                tempSetRemoved.get().remove(key);
+            if (tempMap.get() == null)
+                tempMap.set(new HashMap<StoredTransactionOutPoint, UTXO>());
+            tempMap.get().put(key, out);
+        } else {
+            table.put(out);
+        }
+    }
+
+    public boolean remove(StoredTransactionOutPoint key) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            boolean found = table.contains(key.getHash(), key.getIndex());
+            if (found) {
+                if (tempSetRemoved.get() == null)
+                    tempSetRemoved.set(new HashSet<StoredTransactionOutPoint>());
+                tempSetRemoved.get().add(key);
+            }
+            if (tempMap.get() != null && tempMap.get().remove(key) != null)
+                return true;
+            return found;
+        } else {
+            return table.remove(key.getHash(), key.getIndex());
+        }
+    }
+}
+
+/**
+ * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link org.bitcoinj.core.UTXO}s in memory. The
+ * unspent outputs are kept compactly outside of the Java heap, see {@link OffHeapUTXOTable}.
  * Used primarily for unit testing.
  */
 public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
@@ -240,8 +344,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
-    //TODO: Use something more suited to remove-heavy use?
-    private TransactionalHashMap<StoredTransactionOutPoint, UTXO> transactionOutputMap;
+    private TransactionalUTXOTable transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
     private int fullStoreDepth;
@@ -255,7 +358,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
         blockMap = new TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
         fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
-        transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, UTXO>();
+        transactionOutputMap = new TransactionalUTXOTable(params);
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
@@ -358,13 +461,13 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     @Override
     public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        transactionOutputMap.put(new StoredTransactionOutPoint(out), out);
+        transactionOutputMap.put(out);
     }
 
     @Override
     public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        if (transactionOutputMap.remove(new StoredTransactionOutPoint(out)) == null)
+        if (!transactionOutputMap.remove(new StoredTransactionOutPoint(out)))
             throw new BlockStoreException("Tried to remove a UTXO from MemoryFullPrunedBlockStore that it didn't have!");
     }
 
@@ -391,8 +494,9 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
         for (int i = 0; i < numOutputs; i++)
-            if (getTransactionOutput(hash, i) != null)
+            if (transactionOutputMap.contains(new StoredTransactionOutPoint(hash, i)))
                 return true;
         return false;
     }
@@ -415,15 +519,9 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
         // This is *NOT* optimal: We go through all the outputs and select the ones we are looking for.
         // If someone uses this store for production then they have a lot more to worry about than an inefficient impl :)
-        List<UTXO> foundOutputs = new ArrayList<UTXO>();
-        List<UTXO> outputsList = transactionOutputMap.values();
-        for (UTXO output : outputsList) {
-            for (Address address : addresses) {
-                if (output.getAddress().equals(address.toString())) {
-                    foundOutputs.add(output);
-                }
-            }
-        }
-        return foundOutputs;
+        Set<String> wanted = new HashSet<String>();
+        for (Address address : addresses)
+            wanted.add(address.toString());
+        return transactionOutputMap.getByAddress(wanted);
     }
 }
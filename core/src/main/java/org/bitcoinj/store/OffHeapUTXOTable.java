@@ -0,0 +1,349 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A set of unspent outputs kept outside of the Java heap, keyed by outpoint. Outputs are stored as encoded by
+ * {@link UTXOCompressor}, which takes some 30 to 40 bytes for a typical one, and {@link UTXO} objects are only made
+ * when they are asked for. Held as objects, the same output takes several hundred bytes of heap, which for the whole
+ * set of a big chain is more than most machines have, and a lot of work for the garbage collector.</p>
+ *
+ * <p>The table is split into segments by outpoint, each with its own lock. A segment is an open addressing hash
+ * table with linear probing in one direct buffer, with the encoded outputs appended to another. Space left by
+ * removed outputs is reclaimed once it makes up half of the latter. This class is thread safe.</p>
+ */
+public class OffHeapUTXOTable {
+    private static final int SEGMENTS = 64;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int INITIAL_DATA = 32 * 1024;
+
+    // A slot holds the hash, the index, and the length and offset of the encoded output. A length of 0 marks an empty
+    // slot, as no output is encoded to nothing.
+    private static final int SLOT_SIZE = 32 + 4 + 4 + 4;
+    private static final int LENGTH_OFFSET = 36;
+    private static final int DATA_OFFSET = 40;
+
+    private final NetworkParameters params;
+    private final Segment[] segments;
+
+    // The parts of an outpoint that are looked at, worked out once per operation.
+    private static class Key {
+        final long hash0, hash1, hash2, hash3;
+        final int index;
+        final long mixed;
+
+        Key(Sha256Hash hash, long index) {
+            ByteBuffer buf = ByteBuffer.wrap(hash.getBytes());
+            this.hash0 = buf.getLong();
+            this.hash1 = buf.getLong();
+            this.hash2 = buf.getLong();
+            this.hash3 = buf.getLong();
+            this.index = (int) index;
+            this.mixed = mix(hash0, this.index);
+        }
+    }
+
+    private static long mix(long hash0, int index) {
+        // The hash is random already, but the outputs of one transaction share it.
+        long h = hash0 ^ (index * 0x9E3779B97F4A7C15L);
+        return h ^ (h >>> 31);
+    }
+
+    private static class Segment {
+        @GuardedBy("this") ByteBuffer slots;
+        @GuardedBy("this") int mask;
+        @GuardedBy("this") int size;
+        @GuardedBy("this") ByteBuffer data;
+        @GuardedBy("this") int dataEnd;
+        @GuardedBy("this") int deadBytes;
+
+        Segment() {
+            slots = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_SIZE);
+            mask = INITIAL_SLOTS - 1;
+            data = ByteBuffer.allocateDirect(INITIAL_DATA);
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        boolean isEmpty(int slot) {
+            return slots.getInt(slot * SLOT_SIZE + LENGTH_OFFSET) == 0;
+        }
+
+        boolean matches(int slot, Key key) {
+            int pos = slot * SLOT_SIZE;
+            return slots.getLong(pos) == key.hash0 && slots.getLong(pos + 8) == key.hash1
+                    && slots.getLong(pos + 16) == key.hash2 && slots.getLong(pos + 24) == key.hash3
+                    && slots.getInt(pos + 32) == key.index;
+        }
+
+        int home(int slot) {
+            int pos = slot * SLOT_SIZE;
+            return (int) mix(slots.getLong(pos), slots.getInt(pos + 32)) & mask;
+        }
+
+        // Returns the slot holding the key, or the empty slot where it would go, as ~slot.
+        int find(Key key) {
+            int slot = (int) key.mixed & mask;
+            while (true) {
+                if (isEmpty(slot))
+                    return ~slot;
+                if (matches(slot, key))
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        ByteBuffer get(int slot) {
+            int pos = slot * SLOT_SIZE;
+            int length = slots.getInt(pos + LENGTH_OFFSET);
+            int offset = slots.getInt(pos + DATA_OFFSET);
+            ByteBuffer value = data.duplicate();
+            value.limit(offset + length).position(offset);
+            return value;
+        }
+
+        void put(Key key, byte[] value) {
+            int slot = find(key);
+            if (slot >= 0) {
+                deadBytes += slots.getInt(slot * SLOT_SIZE + LENGTH_OFFSET);
+            } else {
+                if (size + 1 > capacity() / 4 * 3) {
+                    resize(capacity() * 2);
+                    slot = find(key);
+                }
+                slot = ~slot;
+                int pos = slot * SLOT_SIZE;
+                slots.putLong(pos, key.hash0).putLong(pos + 8, key.hash1).putLong(pos + 16, key.hash2)
+                        .putLong(pos + 24, key.hash3).putInt(pos + 32, key.index);
+                size++;
+            }
+            int offset = append(value);
+            slots.putInt(slot * SLOT_SIZE + LENGTH_OFFSET, value.length);
+            slots.putInt(slot * SLOT_SIZE + DATA_OFFSET, offset);
+        }
+
+        boolean remove(Key key) {
+            int slot = find(key);
+            if (slot < 0)
+                return false;
+            deadBytes += slots.getInt(slot * SLOT_SIZE + LENGTH_OFFSET);
+            size--;
+            // Move later slots of the same run back, so that lookups needn't step over removed ones.
+            int hole = slot;
+            int next = hole;
+            while (true) {
+                next = (next + 1) & mask;
+                if (isEmpty(next))
+                    break;
+                int home = home(next);
+                boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+                if (!stays) {
+                    copySlot(next, hole);
+                    hole = next;
+                }
+            }
+            slots.putInt(hole * SLOT_SIZE + LENGTH_OFFSET, 0);
+            return true;
+        }
+
+        private void copySlot(int from, int to) {
+            ByteBuffer src = slots.duplicate();
+            src.limit(from * SLOT_SIZE + SLOT_SIZE).position(from * SLOT_SIZE);
+            ByteBuffer dst = slots.duplicate();
+            dst.position(to * SLOT_SIZE);
+            dst.put(src);
+        }
+
+        private void resize(int newCapacity) {
+            checkState(newCapacity <= Integer.MAX_VALUE / SLOT_SIZE, "Too many outputs in one segment");
+            ByteBuffer old = slots;
+            int oldCapacity = capacity();
+            slots = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+            mask = newCapacity - 1;
+            for (int i = 0; i < oldCapacity; i++) {
+                int pos = i * SLOT_SIZE;
+                if (old.getInt(pos + LENGTH_OFFSET) == 0)
+                    continue;
+                int slot = (int) mix(old.getLong(pos), old.getInt(pos + 32)) & mask;
+                while (!isEmpty(slot))
+                    slot = (slot + 1) & mask;
+                ByteBuffer src = old.duplicate();
+                src.limit(pos + SLOT_SIZE).position(pos);
+                ByteBuffer dst = slots.duplicate();
+                dst.position(slot * SLOT_SIZE);
+                dst.put(src);
+            }
+        }
+
+        // Appends the value to the data buffer, first making room by dropping removed values or growing it.
+        private int append(byte[] value) {
+            if (dataEnd + value.length > data.capacity()) {
+                int live = dataEnd - deadBytes;
+                long needed = (long) live + value.length;
+                long newCapacity = data.capacity();
+                if (deadBytes < data.capacity() / 2 || needed > newCapacity / 2)
+                    newCapacity = Math.max(newCapacity * 2, needed);
+                checkState(newCapacity <= Integer.MAX_VALUE, "Too much data in one segment");
+                compact((int) newCapacity);
+            }
+            ByteBuffer dst = data.duplicate();
+            dst.position(dataEnd);
+            dst.put(value);
+            int offset = dataEnd;
+            dataEnd += value.length;
+            return offset;
+        }
+
+        // Copies the live values into a new buffer of the given capacity.
+        private void compact(int newCapacity) {
+            ByteBuffer newData = ByteBuffer.allocateDirect(newCapacity);
+            for (int slot = 0; slot < capacity(); slot++) {
+                if (isEmpty(slot))
+                    continue;
+                int offset = newData.position();
+                newData.put(get(slot));
+                slots.putInt(slot * SLOT_SIZE + DATA_OFFSET, offset);
+            }
+            data = newData;
+            dataEnd = newData.position();
+            deadBytes = 0;
+        }
+    }
+
+    /**
+     * Creates an empty table.
+     *
+     * @param params The network parameters, used to work out the addresses of outputs.
+     */
+    public OffHeapUTXOTable(NetworkParameters params) {
+        this.params = params;
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment();
+    }
+
+    private Segment getSegment(Key key) {
+        return segments[(int) (key.mixed >>> 58)];
+    }
+
+    /** Returns the output with the given hash and index, or null if there is none. */
+    @Nullable
+    public UTXO get(Sha256Hash hash, long index) {
+        Key key = new Key(hash, index);
+        Segment segment = getSegment(key);
+        ByteBuffer value;
+        synchronized (segment) {
+            int slot = segment.find(key);
+            if (slot < 0)
+                return null;
+            // Copied out, as the segment may move its data once the lock is released.
+            ByteBuffer stored = segment.get(slot);
+            value = ByteBuffer.allocate(stored.remaining());
+            value.put(stored).flip();
+        }
+        return UTXOCompressor.decode(params, hash, index, value);
+    }
+
+    /** Returns whether there is an output with the given hash and index. */
+    public boolean contains(Sha256Hash hash, long index) {
+        Key key = new Key(hash, index);
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            return segment.find(key) >= 0;
+        }
+    }
+
+    /** Adds the given output, replacing one with the same hash and index if there is one. */
+    public void put(UTXO out) {
+        byte[] value = UTXOCompressor.encode(out);
+        Key key = new Key(out.getHash(), out.getIndex());
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    /** Removes the output with the given hash and index. Returns whether there was one. */
+    public boolean remove(Sha256Hash hash, long index) {
+        Key key = new Key(hash, index);
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            return segment.remove(key);
+        }
+    }
+
+    /** Returns how many outputs there are. */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /** Returns how many bytes of memory outside the heap the table takes. */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.slots.capacity() + segment.data.capacity();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the outputs paying to any of the given addresses, as {@link UTXO#getAddress()} has them. This goes
+     * through all outputs, so it is slow for a big set.
+     */
+    public List<UTXO> getByAddress(Set<String> addresses) {
+        List<UTXO> found = new ArrayList<UTXO>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.capacity(); slot++) {
+                    if (segment.isEmpty(slot))
+                        continue;
+                    int pos = slot * SLOT_SIZE;
+                    byte[] hash = new byte[32];
+                    ByteBuffer src = segment.slots.duplicate();
+                    src.position(pos);
+                    src.get(hash);
+                    long index = segment.slots.getInt(pos + 32) & 0xFFFFFFFFL;
+                    UTXO out = UTXOCompressor.decode(params, Sha256Hash.wrap(hash), index, segment.get(slot));
+                    if (addresses.contains(out.getAddress()))
+                        found.add(out);
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -20,11 +20,15 @@ import org.bitcoinj.core.*;
 import org.bitcoinj.utils.*;
 import org.slf4j.*;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.primitives.Ints;
+
 import javax.annotation.*;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
-import java.util.*;
+import java.util.Arrays;
 import java.util.concurrent.locks.*;
 
 import static com.google.common.base.Preconditions.*;
@@ -32,9 +36,14 @@ import static com.google.common.base.Preconditions.*;
 // TODO: Lose the mmap in this class. There are too many platform bugs that require odd workarounds.
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>Headers are found by hash through an open addressing hash table of ring positions, which is memory mapped from a
+ * second file next to the ring (see {@link #getIndexFile(File)}) so that it doesn't have to be rebuilt on every start.
+ * If the index file is missing or doesn't match the ring, it's rebuilt from the ring. Lookups don't take the store's
+ * lock: they only share a read lock on the ring and the index, so they wait for puts but not for each other.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -42,12 +51,18 @@ public class SPVBlockStore implements BlockStore {
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_NUM_HEADERS = 5000;
     public static final String HEADER_MAGIC = "SPVB";
+    public static final String INDEX_HEADER_MAGIC = "SPVI";
 
     protected volatile MappedByteBuffer buffer;
+    protected volatile MappedByteBuffer indexBuffer;
     protected int numHeaders;
+    // The number of slots in the index, a power of two at least twice the number of headers.
+    protected int indexSlots;
     protected NetworkParameters params;
 
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
+    // Held for writing while a put changes the ring and the index, and for reading by lookups. Taken after lock.
+    private final ReentrantReadWriteLock ringLock = Threading.readWriteLock("SPVBlockStore ring");
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -56,38 +71,36 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
-    // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
-    // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
-    // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
-    protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    // Misses don't need a cache, as the index answers them without looking at the ring.
+    protected Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
+    protected RandomAccessFile indexRandomAccessFile = null;
 
     /**
-     * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
-     * will block on disk.
+     * Creates and initializes an SPV block store that holds {@link #DEFAULT_NUM_HEADERS} headers. Will create the given
+     * file if it's missing. This operation will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers. Will create the given file,
+     * and the index file next to it, if they're missing. An existing file must have been created with the same number
+     * of headers. This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(capacity > 0, "Capacity must be positive");
         this.params = checkNotNull(params);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = capacity;
+            this.indexSlots = Integer.highestOneBit(2 * capacity - 1) << 1;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
@@ -120,11 +133,17 @@ public class SPVBlockStore implements BlockStore {
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
             } else {
-                initNewStore(params);
+                header = HEADER_MAGIC.getBytes("US-ASCII");
+                buffer.put(header);
+                setRingCursor(buffer, FILE_PROLOGUE_BYTES);
             }
+            openIndex(getIndexFile(file));
+            if (!exists)
+                initNewStore(params);
         } catch (Exception e) {
             try {
                 if (randomAccessFile != null) randomAccessFile.close();
+                if (indexRandomAccessFile != null) indexRandomAccessFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
             }
@@ -132,17 +151,60 @@ public class SPVBlockStore implements BlockStore {
         }
     }
 
+    /** Returns the file the index of the store in the given file is kept in. */
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + ".index");
+    }
+
+    private void openIndex(File indexFile) throws IOException {
+        boolean exists = indexFile.exists();
+        indexRandomAccessFile = new RandomAccessFile(indexFile, "rw");
+        long indexFileSize = getIndexFileSize();
+        boolean valid = exists && indexRandomAccessFile.length() == indexFileSize;
+        if (!valid)
+            indexRandomAccessFile.setLength(indexFileSize);
+        indexBuffer = indexRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexFileSize);
+        if (valid) {
+            byte[] header = new byte[4];
+            indexBuffer.get(header);
+            // The index remembers the ring cursor it was last updated for, so we notice if only the ring got written.
+            valid = new String(header, "US-ASCII").equals(INDEX_HEADER_MAGIC) && indexBuffer.getInt(4) == numHeaders
+                    && indexBuffer.getInt(8) == buffer.getInt(4);
+        }
+        if (!valid) {
+            lock.lock();
+            try {
+                rebuildIndex();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void rebuildIndex() throws UnsupportedEncodingException {
+        checkState(lock.isHeldByCurrentThread());
+        log.info("Building index of SPV block chain file");
+        final MappedByteBuffer indexBuffer = this.indexBuffer;
+        for (int slot = 0; slot < indexSlots; slot++)
+            indexBuffer.putInt(slotOffset(slot), 0);
+        int cursor = getRingCursor(buffer);
+        // Add the records from the oldest to the newest, so that the newest wins if a header was put more than once.
+        int oldest = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        byte[] hash = new byte[32];
+        for (int i = 0; i < numHeaders; i++) {
+            int record = (oldest + i) % numHeaders;
+            readRecordHash(buffer, record, hash);
+            if (!isEmptyHash(hash))
+                indexPut(hash, record);
+        }
+        indexBuffer.position(0);
+        indexBuffer.put(INDEX_HEADER_MAGIC.getBytes("US-ASCII"));
+        indexBuffer.putInt(4, numHeaders);
+        indexBuffer.putInt(8, cursor);
+    }
+
     private void initNewStore(NetworkParameters params) throws Exception {
-        byte[] header;
-        header = HEADER_MAGIC.getBytes("US-ASCII");
-        buffer.put(header);
         // Insert the genesis block.
-        lock.lock();
-        try {
-            setRingCursor(buffer, FILE_PROLOGUE_BYTES);
-        } finally {
-            lock.unlock();
-        }
         Block genesis = params.getGenesisBlock().cloneAsHeader();
         StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
         put(storedGenesis);
@@ -154,26 +216,43 @@ public class SPVBlockStore implements BlockStore {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
+    /** Returns the size in bytes of the index file with the current parameters. */
+    public final long getIndexFileSize() {
+        return 4L * indexSlots + INDEX_PROLOGUE_BYTES;
+    }
+
     @Override
     public void put(StoredBlock block) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        ringLock.writeLock().lock();
         try {
             int cursor = getRingCursor(buffer);
             if (cursor == getFileSize()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            int record = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            // Forget the header we are about to overwrite, while the ring still has its hash.
+            byte[] oldHash = new byte[32];
+            readRecordHash(buffer, record, oldHash);
+            if (!isEmptyHash(oldHash))
+                indexRemove(oldHash, record);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
-            setRingCursor(buffer, buffer.position());
+            cursor = buffer.position();
+            indexPut(hash.getBytes(), record);
+            setRingCursor(buffer, cursor);
+            indexBuffer.putInt(8, cursor);
             blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+        } finally {
+            ringLock.writeLock().unlock();
+            lock.unlock();
+        }
     }
 
     @Override
@@ -182,43 +261,36 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        final MappedByteBuffer indexBuffer = this.indexBuffer;
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+
+        StoredBlock storedBlock;
+        ringLock.readLock().lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
+            // The position of the ring is shared, so work on a duplicate of it.
+            storedBlock = find(buffer.duplicate(), indexBuffer, hash);
+        } finally {
+            ringLock.readLock().unlock();
+        }
+        if (storedBlock != null)
+            blockCache.put(hash, storedBlock);
+        return storedBlock;
+    }
+
+    @Nullable
+    private StoredBlock find(ByteBuffer ring, ByteBuffer indexBuffer, Sha256Hash hash) {
+        byte[] target = hash.getBytes();
+        int slot = indexFind(ring, indexBuffer, target);
+        if (slot < 0)
             return null;
+        ring.position(recordOffset(indexBuffer.getInt(slotOffset(slot)) - 1) + 32);
+        try {
+            return StoredBlock.deserializeCompact(params, ring);
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        }
     }
 
     protected StoredBlock lastChainHead = null;
@@ -262,12 +334,16 @@ public class SPVBlockStore implements BlockStore {
     public void close() throws BlockStoreException {
         try {
             buffer.force();
+            indexBuffer.force();
             if (System.getProperty("os.name").toLowerCase().contains("win")) {
                 log.info("Windows mmap hack: Forcing buffer cleaning");
                 WindowsMMapHack.forceRelease(buffer);
+                WindowsMMapHack.forceRelease(indexBuffer);
             }
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            indexBuffer = null;
             randomAccessFile.close();
+            indexRandomAccessFile.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
@@ -292,6 +368,106 @@ public class SPVBlockStore implements BlockStore {
     //   80 bytes of block header data
     protected static final int FILE_PROLOGUE_BYTES = 1024;
 
+    // Index file format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes number of headers in the ring
+    //   4 bytes ring cursor the index is up to date with
+    //   4 unused bytes
+    //
+    // For each slot (4 bytes)
+    //   the number of the record in the ring plus one, or zero if the slot is empty
+    //
+    // A hash goes into the slot given by its last four bytes, or if that's taken into the next free one after it.
+    protected static final int INDEX_PROLOGUE_BYTES = 16;
+
+    private static int recordOffset(int record) {
+        return FILE_PROLOGUE_BYTES + record * RECORD_SIZE;
+    }
+
+    private static int slotOffset(int slot) {
+        return INDEX_PROLOGUE_BYTES + slot * 4;
+    }
+
+    private int homeSlot(byte[] hash) {
+        return Ints.fromBytes(hash[28], hash[29], hash[30], hash[31]) & (indexSlots - 1);
+    }
+
+    private static void readRecordHash(ByteBuffer ring, int record, byte[] hash) {
+        ring.position(recordOffset(record));
+        ring.get(hash);
+    }
+
+    private static boolean isEmptyHash(byte[] hash) {
+        for (byte b : hash) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns the slot holding the record with the given hash, or -1 if there is none. */
+    private int indexFind(ByteBuffer ring, ByteBuffer indexBuffer, byte[] target) {
+        byte[] scratch = new byte[32];
+        int mask = indexSlots - 1;
+        int slot = homeSlot(target);
+        // Bounded in case the index file is corrupt.
+        for (int i = 0; i < indexSlots; i++, slot = (slot + 1) & mask) {
+            int value = indexBuffer.getInt(slotOffset(slot));
+            if (value == 0)
+                return -1;
+            if (value > numHeaders)
+                throw new IllegalStateException("Bad index entry: " + value);
+            readRecordHash(ring, value - 1, scratch);
+            if (Arrays.equals(scratch, target))
+                return slot;
+        }
+        return -1;
+    }
+
+    private void indexPut(byte[] hash, int record) {
+        int mask = indexSlots - 1;
+        int slot = homeSlot(hash);
+        byte[] scratch = new byte[32];
+        while (true) {
+            int value = indexBuffer.getInt(slotOffset(slot));
+            if (value != 0) {
+                readRecordHash(buffer, value - 1, scratch);
+                if (!Arrays.equals(scratch, hash)) {
+                    slot = (slot + 1) & mask;
+                    continue;
+                }
+                // The header was put again, the newer record replaces the older one.
+            }
+            indexBuffer.putInt(slotOffset(slot), record + 1);
+            return;
+        }
+    }
+
+    private void indexRemove(byte[] hash, int record) {
+        int slot = indexFind(buffer, indexBuffer, hash);
+        if (slot < 0 || indexBuffer.getInt(slotOffset(slot)) != record + 1)
+            return;   // Replaced by a newer record of the same header.
+        // Move entries after the removed one back as needed, so that lookups don't stop at the gap too early.
+        int mask = indexSlots - 1;
+        byte[] scratch = new byte[32];
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            int value = indexBuffer.getInt(slotOffset(next));
+            if (value == 0)
+                break;
+            readRecordHash(buffer, value - 1, scratch);
+            int home = homeSlot(scratch);
+            // Can the entry stay where it is, that is, does its home lie cyclically in (slot, next]?
+            boolean stays = slot <= next ? (slot < home && home <= next) : (slot < home || home <= next);
+            if (!stays) {
+                indexBuffer.putInt(slotOffset(slot), value);
+                slot = next;
+            }
+        }
+        indexBuffer.putInt(slotOffset(slot), 0);
+    }
+
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
         int c = buffer.getInt(4);
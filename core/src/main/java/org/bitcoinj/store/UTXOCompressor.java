@@ -0,0 +1,311 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.script.Script;
+import org.spongycastle.math.ec.ECPoint;
+
+import com.google.common.base.Charsets;
+
+import javax.annotation.Nullable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+/**
+ * <p>Encodes unspent outputs compactly, the way Bitcoin Core does in its chainstate database. Amounts lose their
+ * trailing zeroes, and scripts paying to a key hash, a script hash or a public key are replaced by the 20 or 32 bytes
+ * that make them up. Numbers are written as variable length integers, 7 bits to a byte.</p>
+ *
+ * <p>The hash and index of the output aren't encoded, as they are expected to be the key the encoding is stored
+ * under. Neither is the address, for outputs with such a standard script, as it can be worked out from the script
+ * again. See {@link #encode(UTXO)}.</p>
+ */
+public final class UTXOCompressor {
+    private UTXOCompressor() {}
+
+    // The encoded script types, followed by 20 or 32 bytes. Other scripts are written as their size plus this.
+    private static final int SCRIPT_P2PKH = 0;
+    private static final int SCRIPT_P2SH = 1;
+    private static final int SCRIPT_SPECIAL = 6;
+
+    private static final int FLAG_COINBASE = 1;
+    private static final int FLAG_ADDRESS = 2;
+
+    /** Returns the amount with its trailing zeroes taken out, which makes for a shorter variable length integer. */
+    public static long compressAmount(long n) {
+        checkArgument(n >= 0, "Negative amount: %s", n);
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while (n % 10 == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            int d = (int) (n % 10);
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        } else {
+            return 1 + (n - 1) * 10 + 9;
+        }
+    }
+
+    /** Reverses {@link #compressAmount(long)}. */
+    public static long decompressAmount(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            int d = (int) (x % 9) + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        while (e-- > 0)
+            n *= 10;
+        return n;
+    }
+
+    /** Writes the given number as an unsigned variable length integer, 7 bits to a byte, lowest first. */
+    public static void writeVarLong(ByteBuffer buf, long n) {
+        while ((n & ~0x7FL) != 0) {
+            buf.put((byte) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        buf.put((byte) n);
+    }
+
+    /** Reads a number written by {@link #writeVarLong(ByteBuffer, long)}. */
+    public static long readVarLong(ByteBuffer buf) {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            n |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return n;
+        }
+        throw new IllegalArgumentException("Variable length integer too long");
+    }
+
+    /** Returns how many bytes {@link #writeVarLong(ByteBuffer, long)} writes for the given number. */
+    public static int sizeOfVarLong(long n) {
+        int size = 1;
+        while ((n & ~0x7FL) != 0) {
+            n >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Returns the key hash, script hash or public key x coordinate the script is made of, with its type in front, or
+    // null if it's not one of those.
+    @Nullable
+    private static byte[] compressTemplate(byte[] script) {
+        if (script.length == 25 && script[0] == (byte) OP_DUP && script[1] == (byte) OP_HASH160 && script[2] == 20
+                && script[23] == (byte) OP_EQUALVERIFY && script[24] == (byte) OP_CHECKSIG) {
+            byte[] out = new byte[21];
+            out[0] = SCRIPT_P2PKH;
+            System.arraycopy(script, 3, out, 1, 20);
+            return out;
+        }
+        if (script.length == 23 && script[0] == (byte) OP_HASH160 && script[1] == 20
+                && script[22] == (byte) OP_EQUAL) {
+            byte[] out = new byte[21];
+            out[0] = SCRIPT_P2SH;
+            System.arraycopy(script, 2, out, 1, 20);
+            return out;
+        }
+        if (script.length == 35 && script[0] == 33 && script[34] == (byte) OP_CHECKSIG
+                && (script[1] == 0x02 || script[1] == 0x03)) {
+            return Arrays.copyOfRange(script, 1, 34);
+        }
+        if (script.length == 67 && script[0] == 65 && script[66] == (byte) OP_CHECKSIG && script[1] == 0x04) {
+            // Only keys that are on the curve can be worked out from their x coordinate again.
+            try {
+                ECPoint point = ECKey.CURVE.getCurve().decodePoint(Arrays.copyOfRange(script, 1, 66));
+                if (!point.isValid())
+                    return null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            byte[] out = Arrays.copyOfRange(script, 1, 34);
+            out[0] = (byte) (0x04 | (script[65] & 0x01));
+            return out;
+        }
+        return null;
+    }
+
+    private static int templateLength(int type) {
+        return type < 2 ? 20 : 32;
+    }
+
+    /** Returns how many bytes {@link #writeScript(ByteBuffer, byte[])} writes for the given script. */
+    public static int sizeOfScript(byte[] script) {
+        byte[] template = compressTemplate(script);
+        if (template != null)
+            return template.length;
+        return sizeOfVarLong(script.length + SCRIPT_SPECIAL) + script.length;
+    }
+
+    /** Writes the given script program, compressed if it is one of the standard ones. */
+    public static void writeScript(ByteBuffer buf, byte[] script) {
+        byte[] template = compressTemplate(script);
+        if (template != null) {
+            buf.put(template);
+        } else {
+            writeVarLong(buf, script.length + SCRIPT_SPECIAL);
+            buf.put(script);
+        }
+    }
+
+    /** Reads a script program written by {@link #writeScript(ByteBuffer, byte[])}. */
+    public static byte[] readScript(ByteBuffer buf) {
+        int type = (int) readVarLong(buf);
+        if (type >= SCRIPT_SPECIAL) {
+            byte[] script = new byte[type - SCRIPT_SPECIAL];
+            buf.get(script);
+            return script;
+        }
+        byte[] data = new byte[templateLength(type)];
+        buf.get(data);
+        switch (type) {
+            case SCRIPT_P2PKH: {
+                byte[] script = new byte[25];
+                script[0] = (byte) OP_DUP;
+                script[1] = (byte) OP_HASH160;
+                script[2] = 20;
+                System.arraycopy(data, 0, script, 3, 20);
+                script[23] = (byte) OP_EQUALVERIFY;
+                script[24] = (byte) OP_CHECKSIG;
+                return script;
+            }
+            case SCRIPT_P2SH: {
+                byte[] script = new byte[23];
+                script[0] = (byte) OP_HASH160;
+                script[1] = 20;
+                System.arraycopy(data, 0, script, 2, 20);
+                script[22] = (byte) OP_EQUAL;
+                return script;
+            }
+            case 2:
+            case 3: {
+                byte[] script = new byte[35];
+                script[0] = 33;
+                script[1] = (byte) type;
+                System.arraycopy(data, 0, script, 2, 32);
+                script[34] = (byte) OP_CHECKSIG;
+                return script;
+            }
+            default: {
+                byte[] compressed = new byte[33];
+                compressed[0] = (byte) (type - 2);
+                System.arraycopy(data, 0, compressed, 1, 32);
+                byte[] key = ECKey.CURVE.getCurve().decodePoint(compressed).getEncoded(false);
+                byte[] script = new byte[67];
+                script[0] = 65;
+                System.arraycopy(key, 0, script, 1, 65);
+                script[66] = (byte) OP_CHECKSIG;
+                return script;
+            }
+        }
+    }
+
+    // The address of outputs to standard scripts is left out, see encode.
+    @Nullable
+    private static byte[] getStoredAddress(UTXO out, byte[] script) {
+        String address = out.getAddress();
+        if (address == null || address.isEmpty() || compressTemplate(script) != null)
+            return null;
+        return address.getBytes(Charsets.UTF_8);
+    }
+
+    /**
+     * Returns the given output encoded. The address of outputs to standard scripts isn't kept, and is worked out from
+     * the script again when decoding, the way {@link org.bitcoinj.core.FullPrunedBlockChain} does.
+     */
+    public static byte[] encode(UTXO out) {
+        byte[] script = out.getScript().getProgram();
+        byte[] address = getStoredAddress(out, script);
+        long code = (long) out.getHeight() << 2 | (out.isCoinbase() ? FLAG_COINBASE : 0)
+                | (address != null ? FLAG_ADDRESS : 0);
+        long amount = compressAmount(out.getValue().value);
+        int size = sizeOfVarLong(code) + sizeOfVarLong(amount) + sizeOfScript(script);
+        if (address != null)
+            size += sizeOfVarLong(address.length) + address.length;
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        writeVarLong(buf, code);
+        writeVarLong(buf, amount);
+        writeScript(buf, script);
+        if (address != null) {
+            writeVarLong(buf, address.length);
+            buf.put(address);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Decodes an output encoded by {@link #encode(UTXO)}, with the given hash and index.
+     *
+     * @throws IllegalArgumentException if the encoding is truncated or corrupt.
+     */
+    public static UTXO decode(NetworkParameters params, Sha256Hash hash, long index, ByteBuffer buf) {
+        try {
+            long code = readVarLong(buf);
+            Coin value = Coin.valueOf(decompressAmount(readVarLong(buf)));
+            Script script = getScript(readScript(buf));
+            String address;
+            if ((code & FLAG_ADDRESS) != 0) {
+                byte[] bytes = new byte[(int) readVarLong(buf)];
+                buf.get(bytes);
+                address = new String(bytes, Charsets.UTF_8);
+            } else {
+                address = getScriptAddress(params, script);
+            }
+            return new UTXO(hash, index, value, (int) (code >>> 2), (code & FLAG_COINBASE) != 0, script, address);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    // The same as in FullPrunedBlockChain, which the outputs come from.
+    private static Script getScript(byte[] scriptBytes) {
+        try {
+            return new Script(scriptBytes);
+        } catch (Exception e) {
+            return new Script(new byte[0]);
+        }
+    }
+
+    private static String getScriptAddress(NetworkParameters params, Script script) {
+        try {
+            return script.getToAddress(params, true).toString();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+}
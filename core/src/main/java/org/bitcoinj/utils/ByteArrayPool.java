@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of byte arrays for short lived buffers, such as the payload of a message while it's being parsed. Arrays
+ * come in power of two sizes, so the array you take may be larger than what you asked for. Once you're done with an
+ * array and nothing refers to it any more, give it back so it can be taken again.</p>
+ *
+ * <p>The pool keeps at most a given number of bytes around; arrays given back beyond that are left to the garbage
+ * collector. This class is thread safe.</p>
+ */
+public class ByteArrayPool {
+    private static final int MIN_SIZE_CLASS = 10;   // 1 kilobyte
+    private static final int MAX_SIZE_CLASS = 30;   // 1 gigabyte
+
+    private final long maxPooledBytes;
+    @GuardedBy("this") private final ArrayDeque<byte[]>[] pools;
+    @GuardedBy("this") private long pooledBytes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ByteArrayPool(long maxPooledBytes) {
+        checkArgument(maxPooledBytes >= 0);
+        this.maxPooledBytes = maxPooledBytes;
+        this.pools = new ArrayDeque[MAX_SIZE_CLASS + 1];
+    }
+
+    private static int sizeClass(int size) {
+        return Math.max(MIN_SIZE_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+    }
+
+    /** Returns an array of at least the given size. Its contents are undefined. */
+    public byte[] take(int size) {
+        checkArgument(size >= 0 && size <= 1 << MAX_SIZE_CLASS, "Bad size: %s", size);
+        int sizeClass = sizeClass(size);
+        synchronized (this) {
+            ArrayDeque<byte[]> pool = pools[sizeClass];
+            if (pool != null && !pool.isEmpty()) {
+                byte[] array = pool.pop();
+                pooledBytes -= array.length;
+                return array;
+            }
+        }
+        return new byte[1 << sizeClass];
+    }
+
+    /**
+     * Gives back an array taken from this pool. The array mustn't be used by anything after this. Arrays whose size
+     * isn't one the pool hands out are ignored.
+     */
+    public void give(byte[] array) {
+        int length = array.length;
+        if (Integer.bitCount(length) != 1 || length < 1 << MIN_SIZE_CLASS)
+            return;
+        int sizeClass = sizeClass(length);
+        synchronized (this) {
+            if (pooledBytes + length > maxPooledBytes)
+                return;
+            ArrayDeque<byte[]> pool = pools[sizeClass];
+            if (pool == null)
+                pool = pools[sizeClass] = new ArrayDeque<byte[]>();
+            pool.push(array);
+            pooledBytes += length;
+        }
+    }
+
+    /** Returns how many bytes are currently kept in the pool. */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+}
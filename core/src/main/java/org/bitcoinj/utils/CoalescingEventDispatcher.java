@@ -0,0 +1,240 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Runs event listeners on their executors, dropping events that are still waiting to be run when an equal one is
+ * dispatched again. This is meant for events that tell a listener something changed, after which it looks at the
+ * current state: e.g. a transaction getting deeper in the chain with every block. However many times that happens
+ * before the listener gets to run, it only needs to be told once.</p>
+ *
+ * <p>Every event that isn't dropped is its own task on the executor, so it runs in the order it was dispatched in,
+ * also relative to other tasks on that executor. Events for {@link Threading#SAME_THREAD} are run straight away. A
+ * minimum interval between events on the same executor can be set with {@link #setBatchInterval(long)}, for listeners
+ * that don't need to hear about changes more often than that. This class is thread safe.</p>
+ */
+public class CoalescingEventDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(CoalescingEventDispatcher.class);
+
+    private final ReentrantLock lock = Threading.lock("CoalescingEventDispatcher");
+
+    // The keys of the events waiting to be run on each executor.
+    @GuardedBy("lock") private final Map<Executor, Set<Object>> pendingKeys = new HashMap<Executor, Set<Object>>();
+    // The events held back by the batch interval for each executor, which are handed to it together once it's over.
+    @GuardedBy("lock") private final Map<Executor, List<Event>> waiting = new HashMap<Executor, List<Event>>();
+    @GuardedBy("lock") private final Map<Executor, Long> lastRunTimes = new HashMap<Executor, Long>();
+    @GuardedBy("lock") private int pending;
+    @GuardedBy("lock") private long coalesced;
+    @GuardedBy("lock") private long delivered;
+    @GuardedBy("lock") @Nullable private ScheduledExecutorService scheduler;
+
+    private volatile long batchIntervalMillis;
+
+    private class Event implements Runnable {
+        final Executor executor;
+        @Nullable final Object key;
+        final Runnable event;
+
+        Event(Executor executor, @Nullable Object key, Runnable event) {
+            this.executor = executor;
+            this.key = key;
+            this.event = event;
+        }
+
+        // From now on, an equal event is no longer dropped.
+        private void release() {
+            checkState(lock.isHeldByCurrentThread());
+            if (key != null) {
+                Set<Object> keys = pendingKeys.get(executor);
+                keys.remove(key);
+                if (keys.isEmpty())
+                    pendingKeys.remove(executor);
+            }
+            pending--;
+        }
+
+        // Called when the executor wouldn't take the event, so it will never run.
+        void rejected() {
+            lock.lock();
+            try {
+                release();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                release();
+                lastRunTimes.put(executor, Utils.currentTimeMillis());
+                delivered++;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                event.run();
+            } catch (Throwable throwable) {
+                log.warn("Exception in event listener", throwable);
+                Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                if (handler != null)
+                    handler.uncaughtException(Thread.currentThread(), throwable);
+            }
+        }
+    }
+
+    /**
+     * Sets the minimum time between events on the same executor, in milliseconds. Events dispatched in between wait
+     * until it's over, and more of them are coalesced. Zero, the default, runs an event as soon as the executor gets
+     * to it.
+     */
+    public void setBatchInterval(long millis) {
+        checkArgument(millis >= 0);
+        this.batchIntervalMillis = millis;
+    }
+
+    public long getBatchInterval() {
+        return batchIntervalMillis;
+    }
+
+    /**
+     * Runs the event on the given executor, unless an event with an equal key is still waiting to be run on it, in
+     * which case this one is dropped. A null key means the event is never dropped.
+     */
+    public void dispatch(final Executor executor, @Nullable Object key, Runnable event) {
+        if (executor == Threading.SAME_THREAD) {
+            event.run();
+            return;
+        }
+        Event task = new Event(executor, key, event);
+        long delay = 0;
+        ScheduledExecutorService scheduler;
+        lock.lock();
+        try {
+            if (key != null) {
+                Set<Object> keys = pendingKeys.get(executor);
+                if (keys == null) {
+                    keys = new HashSet<Object>();
+                    pendingKeys.put(executor, keys);
+                }
+                if (!keys.add(key)) {
+                    coalesced++;
+                    return;
+                }
+            }
+            pending++;
+            List<Event> held = waiting.get(executor);
+            if (held != null) {
+                // Queue up behind the events already waiting out the interval.
+                held.add(task);
+                return;
+            }
+            Long lastRunTime = lastRunTimes.get(executor);
+            if (batchIntervalMillis > 0 && lastRunTime != null)
+                delay = lastRunTime + batchIntervalMillis - Utils.currentTimeMillis();
+            if (delay > 0) {
+                held = new ArrayList<Event>();
+                held.add(task);
+                waiting.put(executor, held);
+                if (this.scheduler == null)
+                    this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("Event batches"));
+            }
+            scheduler = this.scheduler;
+        } finally {
+            lock.unlock();
+        }
+        if (delay > 0) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    List<Event> held;
+                    lock.lock();
+                    try {
+                        held = waiting.remove(executor);
+                    } finally {
+                        lock.unlock();
+                    }
+                    for (Event next : held) {
+                        try {
+                            executor.execute(next);
+                        } catch (RuntimeException e) {
+                            next.rejected();
+                            log.warn("Executor didn't take held event", e);
+                        }
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } else {
+            try {
+                executor.execute(task);
+            } catch (RuntimeException e) {
+                task.rejected();
+                throw e;
+            }
+        }
+    }
+
+    /** Returns how many events are waiting to be run. */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many events were dropped because an equal one was still waiting to be run. */
+    public long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many events were handed to their listeners. */
+    public long getDeliveredCount() {
+        lock.lock();
+        try {
+            return delivered;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -45,8 +45,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
     private final ReentrantLock lock = Threading.lock("BasicKeyChain");
 
     // Maps used to let us quickly look up a key given data we find in transcations or the block chain.
-    private final LinkedHashMap<ByteString, ECKey> hashToKeys;
-    private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
+    private final ByteArrayMap<ECKey> hashToKeys;
+    private final ByteArrayMap<ECKey> pubkeyToKeys;
     @Nullable private final KeyCrypter keyCrypter;
     private boolean isWatching;
 
@@ -58,8 +58,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     public BasicKeyChain(@Nullable KeyCrypter crypter) {
         this.keyCrypter = crypter;
-        hashToKeys = new LinkedHashMap<ByteString, ECKey>();
-        pubkeyToKeys = new LinkedHashMap<ByteString, ECKey>();
+        hashToKeys = new ByteArrayMap<ECKey>();
+        pubkeyToKeys = new ByteArrayMap<ECKey>();
         listeners = new CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>>();
     }
 
@@ -177,8 +177,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (!key.isWatching() && isWatching)
                 throw new IllegalArgumentException("Key is not watching but chain is");
         }
-        ECKey previousKey = pubkeyToKeys.put(ByteString.copyFrom(key.getPubKey()), key);
-        hashToKeys.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+        ECKey previousKey = pubkeyToKeys.put(key.getPubKey(), key);
+        hashToKeys.put(key.getPubKeyHash(), key);
         checkState(previousKey == null);
     }
 
@@ -206,7 +206,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            return hashToKeys.get(ByteString.copyFrom(pubkeyHash));
+            return hashToKeys.get(pubkeyHash);
         } finally {
             lock.unlock();
         }
@@ -215,7 +215,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            return pubkeyToKeys.get(ByteString.copyFrom(pubkey));
+            return pubkeyToKeys.get(pubkey);
         } finally {
             lock.unlock();
         }
@@ -261,8 +261,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            boolean a = hashToKeys.remove(ByteString.copyFrom(key.getPubKeyHash())) != null;
-            boolean b = pubkeyToKeys.remove(ByteString.copyFrom(key.getPubKey())) != null;
+            boolean a = hashToKeys.remove(key.getPubKeyHash()) != null;
+            boolean b = pubkeyToKeys.remove(key.getPubKey()) != null;
             checkState(a == b);   // Should be in both maps or neither.
             return a;
         } finally {
@@ -576,6 +576,19 @@ public class BasicKeyChain implements EncryptableKeyChain {
         return numKeys() * 2;
     }
 
+    /** Adds the data items {@link #getFilter(int, double, long)} would insert into a filter to the given set. */
+    void addFilterElements(Set<ByteString> elements) {
+        lock.lock();
+        try {
+            for (ECKey key : hashToKeys.values()) {
+                elements.add(ByteString.copyFrom(key.getPubKey()));
+                elements.add(ByteString.copyFrom(key.getPubKeyHash()));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //
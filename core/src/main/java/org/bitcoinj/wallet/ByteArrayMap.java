@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import javax.annotation.Nullable;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A map from byte arrays, such as public keys and their hashes, to values. Unlike a map keyed by
+ * {@link com.google.protobuf.ByteString}, a lookup doesn't have to copy or wrap the array it's given, so looking up the
+ * keys a transaction pays to doesn't allocate anything.</p>
+ *
+ * <p>The entries are kept in arrays in the order they were added, the way a {@link java.util.LinkedHashMap} iterates,
+ * and an open addressing table with linear probing holds their positions. Arrays given to {@link #put(byte[], Object)}
+ * are copied. This class is not thread safe.</p>
+ */
+final class ByteArrayMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    // The entries, in the order they were added. Removed entries leave a null key behind until the next resize.
+    private byte[][] keys;
+    private Object[] values;
+    private int[] hashes;
+    private int used;
+    private int size;
+    // Positions of entries plus one, or zero for free slots. At most half full, as it grows with the entries.
+    private int[] table;
+    private int mask;
+
+    ByteArrayMap() {
+        resize(MIN_CAPACITY);
+    }
+
+    private static int hash(byte[] key) {
+        int h = 1;
+        for (byte b : key)
+            h = 31 * h + b;
+        return h ^ (h >>> 16);
+    }
+
+    // Returns the table slot holding the given key, or -1.
+    private int find(byte[] key, int h) {
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (entry < 0)
+                return -1;
+            if (hashes[entry] == h && Arrays.equals(keys[entry], key))
+                return slot;
+        }
+    }
+
+    /** Returns the value for the given key, or null if there is none. */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V get(byte[] key) {
+        int slot = find(key, hash(key));
+        return slot < 0 ? null : (V) values[table[slot] - 1];
+    }
+
+    public boolean containsKey(byte[] key) {
+        return find(key, hash(key)) >= 0;
+    }
+
+    /**
+     * Sets the value for the given key and returns the previous one, or null if there was none. A key that is already
+     * there keeps its place in the iteration order.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V put(byte[] key, V value) {
+        checkNotNull(value);
+        int h = hash(key);
+        int slot = find(key, h);
+        if (slot >= 0) {
+            int entry = table[slot] - 1;
+            V previous = (V) values[entry];
+            values[entry] = value;
+            return previous;
+        }
+        if (used == keys.length)
+            resize(Math.max(MIN_CAPACITY, size * 2));
+        int entry = used++;
+        keys[entry] = Arrays.copyOf(key, key.length);
+        values[entry] = value;
+        hashes[entry] = h;
+        insert(entry, h);
+        size++;
+        return null;
+    }
+
+    /** Removes the given key and returns its value, or null if it wasn't there. */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V remove(byte[] key) {
+        int slot = find(key, hash(key));
+        if (slot < 0)
+            return null;
+        int entry = table[slot] - 1;
+        V previous = (V) values[entry];
+        keys[entry] = null;
+        values[entry] = null;
+        size--;
+        // Move later entries of the same run back, so that lookups don't stop early at the freed slot.
+        int free = slot;
+        for (int next = (slot + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            int home = hashes[table[next] - 1] & mask;
+            boolean stays = free <= next ? (home > free && home <= next) : (home > free || home <= next);
+            if (!stays) {
+                table[free] = table[next];
+                free = next;
+            }
+        }
+        table[free] = 0;
+        return previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void insert(int entry, int h) {
+        int slot = h & mask;
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        table[slot] = entry + 1;
+    }
+
+    // Moves the entries into arrays of the given capacity, dropping removed ones, and rebuilds the table.
+    private void resize(int capacity) {
+        byte[][] newKeys = new byte[capacity][];
+        Object[] newValues = new Object[capacity];
+        int[] newHashes = new int[capacity];
+        int count = 0;
+        for (int i = 0; i < used; i++) {
+            if (keys[i] != null) {
+                newKeys[count] = keys[i];
+                newValues[count] = values[i];
+                newHashes[count] = hashes[i];
+                count++;
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+        hashes = newHashes;
+        used = count;
+        table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        mask = table.length - 1;
+        for (int i = 0; i < used; i++)
+            insert(i, hashes[i]);
+    }
+
+    /** Returns the keys in the order they were added. The arrays must not be modified. */
+    public Collection<byte[]> keys() {
+        return new View<byte[]>() {
+            @Override
+            byte[] get(int entry) {
+                return keys[entry];
+            }
+        };
+    }
+
+    /** Returns the values in the order their keys were added. */
+    public Collection<V> values() {
+        return new View<V>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            V get(int entry) {
+                return (V) values[entry];
+            }
+        };
+    }
+
+    private abstract class View<T> extends AbstractCollection<T> {
+        abstract T get(int entry);
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                private int next = skipRemoved(0);
+
+                private int skipRemoved(int entry) {
+                    while (entry < used && keys[entry] == null)
+                        entry++;
+                    return entry;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next < used;
+                }
+
+                @Override
+                public T next() {
+                    if (next >= used)
+                        throw new NoSuchElementException();
+                    T result = get(next);
+                    next = skipRemoved(next + 1);
+                    return result;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
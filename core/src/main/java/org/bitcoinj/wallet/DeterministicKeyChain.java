@@ -23,10 +23,13 @@ import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.crypto.*;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.KeyChainLookaheadListener;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.PeekingIterator;
@@ -39,7 +42,11 @@ import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -131,6 +138,12 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     // is an efficiency tradeoff.
     protected int lookaheadThreshold = calcDefaultLookaheadThreshold();
 
+    // Lookahead is only spread over several threads once there are at least this many keys per thread to derive.
+    private static final int LOOKAHEAD_KEYS_PER_JOB = 50;
+
+    private final CopyOnWriteArrayList<ListenerRegistration<KeyChainLookaheadListener>> lookaheadListeners
+            = new CopyOnWriteArrayList<ListenerRegistration<KeyChainLookaheadListener>>();
+
     private int calcDefaultLookaheadThreshold() {
         return lookaheadSize / 3;
     }
@@ -640,9 +653,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     public int numKeys() {
         // We need to return here the total number of keys including the lookahead zone, not the number of keys we
         // have issued via getKey/freshReceiveKey.
+        maybeLookAhead();
         lock.lock();
         try {
-            maybeLookAhead();
             return basicKeyChain.numKeys();
         } finally {
             lock.unlock();
@@ -686,6 +699,21 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         return basicKeyChain.removeEventListener(listener);
     }
 
+    /** Adds a listener for the progress of lookahead, which runs on the user thread. */
+    public void addLookaheadListener(KeyChainLookaheadListener listener) {
+        addLookaheadListener(listener, Threading.USER_THREAD);
+    }
+
+    /** Adds a listener for the progress of lookahead, which runs on the given executor. */
+    public void addLookaheadListener(KeyChainLookaheadListener listener, Executor executor) {
+        lookaheadListeners.add(new ListenerRegistration<KeyChainLookaheadListener>(listener, executor));
+    }
+
+    /** Removes the given lookahead listener, returning true if it was registered. */
+    public boolean removeLookaheadListener(KeyChainLookaheadListener listener) {
+        return ListenerRegistration.removeFromList(listener, lookaheadListeners);
+    }
+
     /** Returns a list of words that represent the seed or null if this chain is a watching chain. */
     @Nullable
     public List<String> getMnemonicCode() {
@@ -1040,10 +1068,10 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
     @Override
     public BloomFilter getFilter(int size, double falsePositiveRate, long tweak) {
+        maybeLookAhead();
         lock.lock();
         try {
             checkArgument(size >= numBloomFilterEntries());
-            maybeLookAhead();
             return basicKeyChain.getFilter(size, falsePositiveRate, tweak);
         } finally {
             lock.unlock();
@@ -1051,6 +1079,12 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
     }
 
+    /** Adds the data items {@link #getFilter(int, double, long)} would insert into a filter to the given set. */
+    void addFilterElements(Set<ByteString> elements) {
+        maybeLookAhead();
+        basicKeyChain.addFilterElements(elements);
+    }
+
     /**
      * <p>The number of public keys we should pre-generate on each path before they are requested by the app. This is
      * required so that when scanning through the chain given only a seed, we can give enough keys to the remote node
@@ -1121,12 +1155,42 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     /**
      * Pre-generate enough keys to reach the lookahead size. You can call this if you need to explicitly invoke
      * the lookahead procedure, but it's normally unnecessary as it will be done automatically when needed.
+     *
+     * <p>The keys are derived in parallel on {@link Threading#THREAD_POOL} and without holding the lock of this chain,
+     * unless the caller already holds it, so other users of the chain aren't held up by a big lookahead zone. Only
+     * adding the new keys to the chain happens under the lock. Progress is reported to the
+     * {@link KeyChainLookaheadListener}s.</p>
      */
     public void maybeLookAhead() {
+        final int externalFirst, externalNeeded, internalFirst, internalNeeded;
+        lock.lock();
+        try {
+            externalFirst = hierarchy.getNumChildren(externalParentKey.getPath());
+            externalNeeded = lookaheadNeeded(externalParentKey, issuedExternalKeys, externalFirst);
+            internalFirst = hierarchy.getNumChildren(internalParentKey.getPath());
+            internalNeeded = lookaheadNeeded(internalParentKey, issuedInternalKeys, internalFirst);
+        } finally {
+            lock.unlock();
+        }
+        if (externalNeeded == 0 && internalNeeded == 0)
+            return;
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        LookaheadProgress progress = new LookaheadProgress(externalNeeded + internalNeeded);
+        List<FutureTask<List<DeterministicKey>>> externalJobs = startLookahead(externalParentKey, externalFirst, externalNeeded);
+        List<FutureTask<List<DeterministicKey>>> internalJobs = startLookahead(internalParentKey, internalFirst, internalNeeded);
+        List<DeterministicKey> externalKeys =
+                finishLookahead(externalParentKey, externalFirst, externalNeeded, externalJobs, progress);
+        List<DeterministicKey> internalKeys =
+                finishLookahead(internalParentKey, internalFirst, internalNeeded, internalJobs, progress);
+        watch.stop();
+        log.info("Took {}", watch);
+
         lock.lock();
         try {
-            List<DeterministicKey> keys = maybeLookAhead(externalParentKey, issuedExternalKeys);
-            keys.addAll(maybeLookAhead(internalParentKey, issuedInternalKeys));
+            // Another thread may have extended the chain while we weren't holding the lock.
+            List<DeterministicKey> keys = publishLookahead(externalParentKey, externalKeys);
+            keys.addAll(publishLookahead(internalParentKey, internalKeys));
             if (keys.isEmpty())
                 return;
             keyLookaheadEpoch++;
@@ -1139,9 +1203,113 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         }
     }
 
-    private List<DeterministicKey> maybeLookAhead(DeterministicKey parent, int issued) {
+    // Returns how many keys the lookahead zone of the given parent is missing, or zero if that's not above the threshold.
+    private int lookaheadNeeded(DeterministicKey parent, int issued, int numChildren) {
         checkState(lock.isHeldByCurrentThread());
-        return maybeLookAhead(parent, issued, getLookaheadSize(), getLookaheadThreshold());
+        final int lookaheadSize = getLookaheadSize();
+        final int lookaheadThreshold = getLookaheadThreshold();
+        final int needed = issued + lookaheadSize + lookaheadThreshold - numChildren;
+        if (needed <= lookaheadThreshold)
+            return 0;
+        log.info("{} keys needed for {} = {} issued + {} lookahead size + {} lookahead threshold - {} num children",
+                needed, parent.getPathAsString(), issued, lookaheadSize, lookaheadThreshold, numChildren);
+        return needed;
+    }
+
+    // Splits the range into one job per core at most. A single job is simply run on the calling thread.
+    private List<FutureTask<List<DeterministicKey>>> startLookahead(final DeterministicKey parent, int firstChild,
+                                                                    int count) {
+        List<FutureTask<List<DeterministicKey>>> jobs = new ArrayList<FutureTask<List<DeterministicKey>>>();
+        if (count == 0)
+            return jobs;
+        final int numJobs = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), count / LOOKAHEAD_KEYS_PER_JOB));
+        final int keysPerJob = (count + numJobs - 1) / numJobs;
+        for (int from = firstChild; from < firstChild + count; from += keysPerJob) {
+            final int jobFirstChild = from;
+            final int jobCount = Math.min(keysPerJob, firstChild + count - from);
+            FutureTask<List<DeterministicKey>> job = new FutureTask<List<DeterministicKey>>(new Callable<List<DeterministicKey>>() {
+                @Override
+                public List<DeterministicKey> call() throws Exception {
+                    return HDKeyDerivation.deriveChildKeys(parent, jobFirstChild, jobCount);
+                }
+            });
+            if (numJobs == 1)
+                job.run();
+            else
+                Threading.THREAD_POOL.execute(job);
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    // Collects the keys of the jobs in order, reporting progress from the calling thread as each job is done.
+    private List<DeterministicKey> finishLookahead(DeterministicKey parent, int firstChild, int count,
+                                                   List<FutureTask<List<DeterministicKey>>> jobs,
+                                                   LookaheadProgress progress) {
+        List<DeterministicKey> keys = new ArrayList<DeterministicKey>(count);
+        int nextChild = firstChild;
+        try {
+            for (FutureTask<List<DeterministicKey>> job : jobs) {
+                int before = keys.size();
+                for (DeterministicKey key : job.get()) {
+                    // A job that had to skip an invalid child overlaps with the next job by one key.
+                    if (key.getChildNumber().num() < nextChild)
+                        continue;
+                    keys.add(key);
+                    nextChild = key.getChildNumber().num() + 1;
+                }
+                progress.add(keys.size() - before);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        if (keys.size() < count) {
+            int missing = count - keys.size();
+            keys.addAll(HDKeyDerivation.deriveChildKeys(parent, nextChild, missing));
+            progress.add(missing);
+        }
+        return keys;
+    }
+
+    // Adds those of the given keys to the hierarchy that it doesn't have yet, returning them.
+    private List<DeterministicKey> publishLookahead(DeterministicKey parent, List<DeterministicKey> derived) {
+        checkState(lock.isHeldByCurrentThread());
+        final int numChildren = hierarchy.getNumChildren(parent.getPath());
+        List<DeterministicKey> result = new ArrayList<DeterministicKey>(derived.size());
+        for (DeterministicKey key : derived) {
+            if (key.getChildNumber().num() < numChildren)
+                continue;
+            hierarchy.putKey(key);
+            result.add(key);
+        }
+        return result;
+    }
+
+    // Only used by the thread doing the lookahead, so listeners hear about progress in order.
+    private class LookaheadProgress {
+        private final int keysNeeded;
+        private int keysDerived;
+
+        LookaheadProgress(int keysNeeded) {
+            this.keysNeeded = keysNeeded;
+        }
+
+        void add(int keys) {
+            if (keys == 0)
+                return;
+            keysDerived += keys;
+            final int derived = keysDerived;
+            for (final ListenerRegistration<KeyChainLookaheadListener> registration : lookaheadListeners) {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onLookaheadProgress(DeterministicKeyChain.this, derived, keysNeeded);
+                    }
+                });
+            }
+        }
     }
 
     /**
@@ -1161,21 +1329,53 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         log.info("{} keys needed for {} = {} issued + {} lookahead size + {} lookahead threshold - {} num children",
                 needed, parent.getPathAsString(), issued, lookaheadSize, lookaheadThreshold, numChildren);
 
-        List<DeterministicKey> result  = new ArrayList<DeterministicKey>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
-            key = key.dropPrivateBytes();
+        List<DeterministicKey> result = HDKeyDerivation.deriveChildKeys(parent, numChildren, needed);
+        for (DeterministicKey key : result)
             hierarchy.putKey(key);
-            result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
-        }
         watch.stop();
         log.info("Took {}", watch);
         return result;
     }
 
+    /**
+     * Returns the public keys of the given branch with child numbers from {@code firstChild} on, without issuing them
+     * or adding them to the chain. Keys this chain already knows about are returned as they are and the rest are
+     * derived in bulk with {@link HDKeyDerivation#deriveChildKeys(DeterministicKey, int, int)}, which makes this
+     * suitable for things like exporting or scanning for many addresses beyond the lookahead zone.
+     */
+    public List<DeterministicKey> deriveKeyRange(KeyPurpose purpose, int firstChild, int count) {
+        checkArgument(firstChild >= 0 && count >= 0);
+        DeterministicKey parentKey;
+        List<DeterministicKey> keys = new ArrayList<DeterministicKey>(count);
+        int child = firstChild;
+        lock.lock();
+        try {
+            switch (purpose) {
+                case RECEIVE_FUNDS:
+                case REFUND:
+                    parentKey = externalParentKey;
+                    break;
+                case AUTHENTICATION:
+                case CHANGE:
+                    parentKey = internalParentKey;
+                    break;
+                default:
+                    throw new UnsupportedOperationException();
+            }
+            final int numChildren = hierarchy.getNumChildren(parentKey.getPath());
+            for (; child < numChildren && keys.size() < count; child++) {
+                ImmutableList<ChildNumber> path = HDUtils.append(parentKey.getPath(), new ChildNumber(child, false));
+                keys.add(hierarchy.get(path, false, false));
+            }
+        } finally {
+            lock.unlock();
+        }
+        // The derivation only needs the parent key, so don't hold up other users of the chain while doing it.
+        keys.addAll(HDKeyDerivation.deriveChildKeys(parentKey, child, count - keys.size()));
+        return keys;
+    }
+
     /** Housekeeping call to call when lookahead might be needed.  Normally called automatically by KeychainGroup. */
     public void maybeLookAheadScripts() {
     }
@@ -1359,4 +1559,10 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     public RedeemData findRedeemDataByScriptHash(ByteString bytes) {
         return null;
     }
+
+    /** Returns the redeem script by its hash or null if this keychain did not generate the script. */
+    @Nullable
+    public RedeemData findRedeemDataByScriptHash(byte[] scriptHash) {
+        return findRedeemDataByScriptHash(ByteString.copyFrom(scriptHash));
+    }
 }
@@ -74,6 +74,21 @@ public class KeyChainGroup implements KeyBag {
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
 
+    // Every key in the group by its hash and by its public key, so finding one doesn't have to ask each chain in turn.
+    // The chains tell keyIndexer about keys they add. When chains are replaced or a key is removed the index is
+    // dropped, and built again on next use.
+    @Nullable private ByteArrayMap<ECKey> keysByPubHash;
+    @Nullable private ByteArrayMap<ECKey> keysByPubKey;
+    private final KeyChainEventListener keyIndexer = new KeyChainEventListener() {
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            if (keysByPubHash == null)
+                return;
+            for (ECKey key : keys)
+                indexKey(key);
+        }
+    };
+
     /** Creates a keychain group with no basic chain, and a single, lazily created HD chain. */
     public KeyChainGroup(NetworkParameters params) {
         this(params, null, new ArrayList<DeterministicKeyChain>(1), null, null);
@@ -103,6 +118,9 @@ public class KeyChainGroup implements KeyBag {
                 ? new EnumMap<KeyChain.KeyPurpose, DeterministicKey>(KeyChain.KeyPurpose.class)
                 : currentKeys;
         this.currentAddresses = new EnumMap<KeyChain.KeyPurpose, Address>(KeyChain.KeyPurpose.class);
+        listenForKeys(this.basic);
+        for (DeterministicKeyChain chain : this.chains)
+            listenForKeys(chain);
         maybeLookaheadScripts();
 
         if (isMarried()) {
@@ -140,6 +158,7 @@ public class KeyChainGroup implements KeyBag {
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
         chains.add(chain);
+        dropKeyIndex();
     }
 
     /**
@@ -341,7 +360,10 @@ public class KeyChainGroup implements KeyBag {
         // Iterate in reverse order, since the active keychain is the one most likely to have the hit
         for (Iterator<DeterministicKeyChain> iter = chains.descendingIterator() ; iter.hasNext() ; ) {
             DeterministicKeyChain chain = iter.next();
-            RedeemData redeemData = chain.findRedeemDataByScriptHash(ByteString.copyFrom(scriptHash));
+            // Only married chains make P2SH scripts.
+            if (!chain.isMarried())
+                continue;
+            RedeemData redeemData = chain.findRedeemDataByScriptHash(scriptHash);
             if (redeemData != null)
                 return redeemData;
         }
@@ -366,14 +388,8 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubHash(pubkeyHash)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubHash(pubkeyHash)) != null)
-                return result;
-        }
-        return null;
+        maybeBuildKeyIndex();
+        return keysByPubHash.get(pubkeyHash);
     }
 
     /**
@@ -427,14 +443,37 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubKey(pubkey)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubKey(pubkey)) != null)
-                return result;
+        maybeBuildKeyIndex();
+        return keysByPubKey.get(pubkey);
+    }
+
+    private void maybeBuildKeyIndex() {
+        if (keysByPubHash != null)
+            return;
+        keysByPubHash = new ByteArrayMap<ECKey>();
+        keysByPubKey = new ByteArrayMap<ECKey>();
+        for (ECKey key : basic.getKeys())
+            indexKey(key);
+        for (DeterministicKeyChain chain : chains)
+            for (ECKey key : chain.getKeys(true))
+                indexKey(key);
+    }
+
+    private void indexKey(ECKey key) {
+        // If several chains hold the same key, keep the first one seen, as asking the chains in order would.
+        if (!keysByPubKey.containsKey(key.getPubKey())) {
+            keysByPubKey.put(key.getPubKey(), key);
+            keysByPubHash.put(key.getPubKeyHash(), key);
         }
-        return null;
+    }
+
+    private void dropKeyIndex() {
+        keysByPubHash = null;
+        keysByPubKey = null;
+    }
+
+    private void listenForKeys(KeyChain chain) {
+        chain.addEventListener(keyIndexer, Threading.SAME_THREAD);
     }
 
     /**
@@ -466,7 +505,10 @@ public class KeyChainGroup implements KeyBag {
     public boolean removeImportedKey(ECKey key) {
         checkNotNull(key);
         checkArgument(!(key instanceof DeterministicKey));
-        return basic.removeKey(key);
+        if (!basic.removeKey(key))
+            return false;
+        dropKeyIndex();
+        return true;
     }
 
     /**
@@ -500,9 +542,7 @@ public class KeyChainGroup implements KeyBag {
         for (DeterministicKeyChain chain : chains)
             newChains.add(chain.toEncrypted(keyCrypter, aesKey));
         this.keyCrypter = keyCrypter;
-        basic = newBasic;
-        chains.clear();
-        chains.addAll(newChains);
+        replaceChains(newBasic, newChains);
     }
 
     /**
@@ -520,9 +560,17 @@ public class KeyChainGroup implements KeyBag {
             newChains.add(chain.toDecrypted(aesKey));
 
         this.keyCrypter = null;
+        replaceChains(newBasic, newChains);
+    }
+
+    private void replaceChains(BasicKeyChain newBasic, List<DeterministicKeyChain> newChains) {
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        listenForKeys(basic);
+        for (DeterministicKeyChain chain : chains)
+            listenForKeys(chain);
+        dropKeyIndex();
     }
 
     /** Returns true if the group is encrypted. */
@@ -594,6 +642,13 @@ public class KeyChainGroup implements KeyBag {
         return filter;
     }
 
+    /** Adds the data items {@link #getBloomFilter(int, double, long)} would insert into a filter to the given set. */
+    void addBloomFilterElements(Set<ByteString> elements) {
+        basic.addFilterElements(elements);
+        for (DeterministicKeyChain chain : chains)
+            chain.addFilterElements(elements);
+    }
+
     /** {@inheritDoc} */
     public boolean isRequiringUpdateAllBloomFilter() {
         throw new UnsupportedOperationException();   // Unused.
@@ -734,7 +789,9 @@ public class KeyChainGroup implements KeyBag {
         if (aesKey != null) {
             chain = chain.toEncrypted(checkNotNull(basic.getKeyCrypter()), aesKey);
         }
+        listenForKeys(chain);
         chains.add(chain);
+        dropKeyIndex();
         return chain;
     }
 
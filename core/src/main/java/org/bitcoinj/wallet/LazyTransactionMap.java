@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+import com.google.common.collect.Iterators;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * A map of transactions by hash as kept by the {@link Wallet}, some of which may not have been loaded yet but are still
+ * in a {@link LazyTransactionStore}. Those count as being in the map, and are loaded when they are looked up, removed
+ * or iterated over. Looking at the keys or the size doesn't load anything.
+ */
+class LazyTransactionMap extends AbstractMap<Sha256Hash, Transaction> {
+    private final Map<Sha256Hash, Transaction> loaded = new HashMap<Sha256Hash, Transaction>();
+    // The pool this map holds, or null if it holds the transactions of all pools.
+    @Nullable private final WalletTransaction.Pool pool;
+    @Nullable private LazyTransactionStore store;
+
+    LazyTransactionMap(@Nullable WalletTransaction.Pool pool) {
+        this.pool = pool;
+    }
+
+    void setStore(@Nullable LazyTransactionStore store) {
+        this.store = store;
+    }
+
+    /** Returns the part of this map that has been loaded, without loading anything. */
+    Map<Sha256Hash, Transaction> getLoaded() {
+        return Collections.unmodifiableMap(loaded);
+    }
+
+    private boolean isLazy(Object hash) {
+        return store != null && hash instanceof Sha256Hash && store.contains((Sha256Hash) hash, pool);
+    }
+
+    @Override
+    public Transaction get(Object hash) {
+        Transaction tx = loaded.get(hash);
+        if (tx == null && isLazy(hash)) {
+            // Loading puts the transaction into this map.
+            store.load((Sha256Hash) hash);
+            tx = loaded.get(hash);
+        }
+        return tx;
+    }
+
+    @Override
+    public boolean containsKey(Object hash) {
+        return loaded.containsKey(hash) || isLazy(hash);
+    }
+
+    @Override
+    public Transaction put(Sha256Hash hash, Transaction tx) {
+        if (isLazy(hash))
+            store.load(hash);
+        return loaded.put(hash, tx);
+    }
+
+    @Override
+    public Transaction remove(Object hash) {
+        if (isLazy(hash))
+            store.load((Sha256Hash) hash);
+        return loaded.remove(hash);
+    }
+
+    @Override
+    public int size() {
+        return loaded.size() + (store != null ? store.size(pool) : 0);
+    }
+
+    @Override
+    public void clear() {
+        loaded.clear();
+    }
+
+    @Override
+    public Set<Sha256Hash> keySet() {
+        return new AbstractSet<Sha256Hash>() {
+            @Override
+            public Iterator<Sha256Hash> iterator() {
+                Iterator<Sha256Hash> it = Iterators.unmodifiableIterator(loaded.keySet().iterator());
+                return store != null ? Iterators.concat(it, store.getHashes(pool).iterator()) : it;
+            }
+
+            @Override
+            public boolean contains(Object hash) {
+                return containsKey(hash);
+            }
+
+            @Override
+            public int size() {
+                return LazyTransactionMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<Sha256Hash, Transaction>> entrySet() {
+        if (store != null && store.size(pool) > 0)
+            store.loadAll(pool);
+        return loaded.entrySet();
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.bitcoinj.wallet.WalletProtobufSerializer.byteStringToHash;
+
+/**
+ * <p>Keeps the spent and dead transactions of a wallet that was loaded with
+ * {@link WalletProtobufSerializer#setLoadTransactionsLazily(boolean)} in their serialized form, in a temporary file
+ * indexed by transaction hash, until they are needed. Big wallets spend most of their loading time and memory on such
+ * historical transactions, which are rarely looked at again.</p>
+ *
+ * <p>The wallet sees these transactions through {@link LazyTransactionMap}s: they count as part of the wallet, and they
+ * are loaded (and connected to the rest of the wallet) when looked up. Anything that iterates over all transactions,
+ * like {@link Wallet#getTransactions(boolean)}, loads all of them.</p>
+ *
+ * <p>To keep the spent flags of the outputs of loaded transactions right, every transaction that spends an output of
+ * a loaded transaction is loaded too: the transactions in the unspent and pending pools, the ones that spend them and
+ * so on are loaded straight away, and loading any other transaction loads the ones that spend it. Loaded transactions
+ * that spend an output of a transaction that is still in the store have that input connected once it is loaded.</p>
+ *
+ * <p>Lazy transactions don't see new blocks. Their depth is brought up to date when they are loaded or saved, from how
+ * much the height of the last block the wallet has seen changed since the wallet was loaded. Instances are only used
+ * while holding the wallet lock.</p>
+ *
+ * <p>The file is only kept open while the store is filled. After that it's opened for each load or save, so a wallet
+ * that is just dropped doesn't keep it open.</p>
+ */
+class LazyTransactionStore {
+    private static final Logger log = LoggerFactory.getLogger(LazyTransactionStore.class);
+
+    private static class Entry {
+        final long offset;
+        final int length;
+        final WalletTransaction.Pool pool;
+        // The transactions spending our outputs. Only needed until we know which transactions to load straight away.
+        @Nullable List<Sha256Hash> spentBy;
+
+        Entry(long offset, int length, WalletTransaction.Pool pool, List<Sha256Hash> spentBy) {
+            this.offset = offset;
+            this.length = length;
+            this.pool = pool;
+            this.spentBy = spentBy;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final File file;
+    // Open while the store is filled and during a batch of reads, see beginReads().
+    @Nullable private RandomAccessFile data;
+    private final Map<Sha256Hash, Entry> entries = new HashMap<Sha256Hash, Entry>();
+    private final int[] sizes = new int[WalletTransaction.Pool.values().length];
+    // The transactions in the store that have an input spending an output of the transaction with the given hash.
+    private final Multimap<Sha256Hash, Sha256Hash> spenders = HashMultimap.create();
+    private final WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+    @Nullable private Wallet wallet;
+    private int lastBlockSeenHeight;
+
+    LazyTransactionStore(NetworkParameters params) throws IOException {
+        this.params = checkNotNull(params);
+        this.file = File.createTempFile("wallet", ".lazy");
+        this.file.deleteOnExit();
+        this.data = new RandomAccessFile(file, "rw");
+    }
+
+    /** Appends the given serialized transaction to the store. Used while loading the wallet. */
+    void add(ByteString txBytes) throws IOException, UnreadableWalletException {
+        Protos.Transaction txProto = Protos.Transaction.parseFrom(txBytes);
+        Sha256Hash hash = byteStringToHash(txProto.getHash());
+        if (entries.containsKey(hash))
+            throw new UnreadableWalletException("Wallet contained duplicate transaction " + hash);
+        List<Sha256Hash> spentBy = Lists.newArrayList();
+        for (Protos.TransactionOutput output : txProto.getTransactionOutputList())
+            if (output.hasSpentByTransactionHash())
+                spentBy.add(byteStringToHash(output.getSpentByTransactionHash()));
+        RandomAccessFile data = checkNotNull(this.data, "Store already filled");
+        long offset = data.length();
+        data.seek(offset);
+        data.write(txBytes.toByteArray());
+        Entry entry = new Entry(offset, txBytes.size(), WalletProtobufSerializer.readPool(txProto), spentBy);
+        entries.put(hash, entry);
+        sizes[entry.pool.ordinal()]++;
+        for (Protos.TransactionInput input : txProto.getTransactionInputList())
+            spenders.put(byteStringToHash(input.getTransactionOutPointHash()), hash);
+    }
+
+    /**
+     * Takes the transactions that have to be loaded straight away out of the store: the ones in the unspent and pending
+     * pools, the ones paying to any of the given scripts, which the Bloom filter needs, and all transactions that spend
+     * any of those, recursively. Used while loading the wallet.
+     */
+    List<Protos.Transaction> removeEagerTransactions(Set<ByteString> watchedScripts) throws IOException {
+        Deque<Sha256Hash> todo = new ArrayDeque<Sha256Hash>();
+        for (Map.Entry<Sha256Hash, Entry> entry : entries.entrySet()) {
+            WalletTransaction.Pool pool = entry.getValue().pool;
+            if (pool == WalletTransaction.Pool.UNSPENT || pool == WalletTransaction.Pool.PENDING)
+                todo.add(entry.getKey());
+            else if (!watchedScripts.isEmpty() && paysTo(read(entry.getValue()), watchedScripts))
+                todo.add(entry.getKey());
+        }
+        Set<Sha256Hash> eager = new HashSet<Sha256Hash>();
+        while (!todo.isEmpty()) {
+            Sha256Hash hash = todo.poll();
+            Entry entry = entries.get(hash);
+            if (entry != null && eager.add(hash))
+                todo.addAll(checkNotNull(entry.spentBy));
+        }
+        List<Protos.Transaction> result = new ArrayList<Protos.Transaction>(eager.size());
+        for (Sha256Hash hash : eager)
+            result.add(remove(hash));
+        for (Entry entry : entries.values())
+            entry.spentBy = null;
+        return result;
+    }
+
+    private static boolean paysTo(Protos.Transaction txProto, Set<ByteString> scripts) {
+        for (Protos.TransactionOutput output : txProto.getTransactionOutputList())
+            if (scripts.contains(output.getScriptBytes()))
+                return true;
+        return false;
+    }
+
+    /** Starts serving the given wallet, which must have seen the blocks the transactions in the store were saved at. */
+    void setWallet(Wallet wallet) {
+        closeData();
+        this.wallet = checkNotNull(wallet);
+        this.lastBlockSeenHeight = wallet.getLastBlockSeenHeight();
+        log.info("{} spent and dead transactions will be loaded when needed", entries.size());
+    }
+
+    /** Returns whether the transaction is in the store, and in the given pool if not null. */
+    boolean contains(Sha256Hash hash, @Nullable WalletTransaction.Pool pool) {
+        Entry entry = entries.get(hash);
+        return entry != null && (pool == null || entry.pool == pool);
+    }
+
+    /** Returns how many transactions are in the store, in the given pool if not null. */
+    int size(@Nullable WalletTransaction.Pool pool) {
+        return pool == null ? entries.size() : sizes[pool.ordinal()];
+    }
+
+    /** Returns a live view of the hashes of the transactions in the store, in the given pool if not null. */
+    Set<Sha256Hash> getHashes(@Nullable final WalletTransaction.Pool pool) {
+        if (pool == null)
+            return Collections.unmodifiableSet(entries.keySet());
+        return Sets.filter(entries.keySet(), new Predicate<Sha256Hash>() {
+            @Override
+            public boolean apply(Sha256Hash hash) {
+                return entries.get(hash).pool == pool;
+            }
+        });
+    }
+
+    /**
+     * Loads the given transaction into the wallet, connecting it to the loaded transactions it spends and that spend
+     * it. The latter are loaded first if needed. Does nothing if the transaction isn't in the store.
+     */
+    void load(Sha256Hash hash) {
+        Wallet wallet = checkNotNull(this.wallet);
+        checkState(wallet.lock.isHeldByCurrentThread());
+        if (!entries.containsKey(hash))
+            return;
+        boolean opened = false;
+        try {
+            opened = beginReads();
+            Protos.Transaction txProto = remove(hash);
+            Transaction tx = serializer.parseTransaction(txProto, params);
+            for (int i = 0; i < tx.getOutputs().size(); i++) {
+                Protos.TransactionOutput outputProto = txProto.getTransactionOutput(i);
+                if (!outputProto.hasSpentByTransactionHash())
+                    continue;
+                Sha256Hash spenderHash = byteStringToHash(outputProto.getSpentByTransactionHash());
+                load(spenderHash);
+                Transaction spender = wallet.transactions.get(spenderHash);
+                if (spender == null)
+                    throw new UnreadableWalletException(String.format(Locale.US, "Could not connect %s to %s",
+                            hash, spenderHash));
+                TransactionInput input = checkNotNull(spender.getInput(outputProto.getSpentByTransactionIndex()));
+                input.connect(tx.getOutput(i));
+            }
+            if (txProto.hasConfidence()) {
+                TransactionConfidence confidence = tx.getConfidence();
+                serializer.readConfidence(params, tx, txProto.getConfidence(), confidence);
+                int blocksSinceLoad = wallet.getLastBlockSeenHeight() - lastBlockSeenHeight;
+                if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING && blocksSinceLoad > 0)
+                    confidence.setDepthInBlocks(confidence.getDepthInBlocks() + blocksSinceLoad);
+            }
+            wallet.addLoadedTransaction(new WalletTransaction(WalletProtobufSerializer.readPool(txProto), tx));
+        } catch (UnreadableWalletException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            endReads(opened);
+        }
+    }
+
+    /** Loads all transactions in the given pool, or in all pools if null. */
+    void loadAll(@Nullable WalletTransaction.Pool pool) {
+        if (size(pool) == 0)
+            return;
+        boolean opened = beginReadsUnchecked();
+        try {
+            for (Sha256Hash hash : new ArrayList<Sha256Hash>(getHashes(pool)))
+                load(hash);
+        } finally {
+            endReads(opened);
+        }
+    }
+
+    /** Loads all transactions in the store that spend an output of a transaction with one of the given hashes. */
+    void loadSpendersOf(Collection<Sha256Hash> parents) {
+        boolean opened = false;
+        try {
+            for (Sha256Hash parent : parents) {
+                if (!spenders.containsKey(parent))
+                    continue;
+                if (!opened)
+                    opened = beginReadsUnchecked();
+                for (Sha256Hash hash : new ArrayList<Sha256Hash>(spenders.get(parent)))
+                    load(hash);
+            }
+        } finally {
+            endReads(opened);
+        }
+    }
+
+    /** Returns the transactions in the store as they'd be saved now, with their depth brought up to date. */
+    List<Protos.Transaction> readAll() {
+        int blocksSinceLoad = checkNotNull(wallet).getLastBlockSeenHeight() - lastBlockSeenHeight;
+        List<Protos.Transaction> result = new ArrayList<Protos.Transaction>(entries.size());
+        if (entries.isEmpty())
+            return result;
+        boolean opened = false;
+        try {
+            opened = beginReads();
+            for (Entry entry : entries.values()) {
+                Protos.Transaction txProto = read(entry);
+                Protos.TransactionConfidence confidence = txProto.getConfidence();
+                if (blocksSinceLoad > 0 && confidence.getType() == Protos.TransactionConfidence.Type.BUILDING
+                        && confidence.hasDepth()) {
+                    txProto = txProto.toBuilder()
+                            .setConfidence(confidence.toBuilder().setDepth(confidence.getDepth() + blocksSinceLoad))
+                            .build();
+                }
+                result.add(txProto);
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            endReads(opened);
+        }
+        return result;
+    }
+
+    /** Forgets all transactions and deletes the file. */
+    void close() {
+        entries.clear();
+        spenders.clear();
+        Arrays.fill(sizes, 0);
+        closeData();
+        if (!file.delete())
+            log.warn("Failed to delete {}", file);
+    }
+
+    @VisibleForTesting
+    boolean isFileOpen() {
+        return data != null;
+    }
+
+    // Opens the file for reading until the matching endReads(), unless it's open already. Returns whether it opened it.
+    private boolean beginReads() throws IOException {
+        if (data != null)
+            return false;
+        data = new RandomAccessFile(file, "r");
+        return true;
+    }
+
+    private boolean beginReadsUnchecked() {
+        try {
+            return beginReads();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void endReads(boolean opened) {
+        if (opened)
+            closeData();
+    }
+
+    private void closeData() {
+        if (data == null)
+            return;
+        try {
+            data.close();
+        } catch (IOException e) {
+            log.warn("Failed to close {}", file, e);
+        }
+        data = null;
+    }
+
+    private Protos.Transaction read(Entry entry) throws IOException {
+        RandomAccessFile data = checkNotNull(this.data);
+        byte[] bytes = new byte[entry.length];
+        data.seek(entry.offset);
+        data.readFully(bytes);
+        return Protos.Transaction.parseFrom(bytes);
+    }
+
+    private Protos.Transaction remove(Sha256Hash hash) throws IOException {
+        Entry entry = checkNotNull(entries.remove(hash));
+        sizes[entry.pool.ordinal()]--;
+        Protos.Transaction txProto = read(entry);
+        for (Protos.TransactionInput input : txProto.getTransactionInputList())
+            spenders.remove(byteStringToHash(input.getTransactionOutPointHash()), hash);
+        return txProto;
+    }
+}
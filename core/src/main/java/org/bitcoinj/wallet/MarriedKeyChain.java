@@ -30,9 +30,8 @@ import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
 
 import java.security.SecureRandom;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -57,7 +56,7 @@ import static com.google.common.collect.Lists.newArrayList;
 public class MarriedKeyChain extends DeterministicKeyChain {
     // The map holds P2SH redeem script and corresponding ECKeys issued by this KeyChainGroup (including lookahead)
     // mapped to redeem script hashes.
-    private LinkedHashMap<ByteString, RedeemData> marriedKeysRedeemData = new LinkedHashMap<ByteString, RedeemData>();
+    private ByteArrayMap<RedeemData> marriedKeysRedeemData = new ByteArrayMap<RedeemData>();
 
     private List<DeterministicKeyChain> followingKeyChains;
 
@@ -266,14 +265,20 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         for (DeterministicKey followedKey : getLeafKeys()) {
             RedeemData redeemData = getRedeemData(followedKey);
             Script scriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemData.redeemScript);
-            marriedKeysRedeemData.put(ByteString.copyFrom(scriptPubKey.getPubKeyHash()), redeemData);
+            marriedKeysRedeemData.put(scriptPubKey.getPubKeyHash(), redeemData);
         }
     }
 
     @Nullable
     @Override
     public RedeemData findRedeemDataByScriptHash(ByteString bytes) {
-        return marriedKeysRedeemData.get(bytes);
+        return marriedKeysRedeemData.get(bytes.toByteArray());
+    }
+
+    @Nullable
+    @Override
+    public RedeemData findRedeemDataByScriptHash(byte[] scriptHash) {
+        return marriedKeysRedeemData.get(scriptHash);
     }
 
     @Override
@@ -282,16 +287,30 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         BloomFilter filter;
         try {
             filter = new BloomFilter(size, falsePositiveRate, tweak);
-            for (Map.Entry<ByteString, RedeemData> entry : marriedKeysRedeemData.entrySet()) {
-                filter.insert(entry.getKey().toByteArray());
-                filter.insert(entry.getValue().redeemScript.getProgram());
-            }
+            for (byte[] scriptHash : marriedKeysRedeemData.keys())
+                filter.insert(scriptHash);
+            for (RedeemData redeemData : marriedKeysRedeemData.values())
+                filter.insert(redeemData.redeemScript.getProgram());
         } finally {
             lock.unlock();
         }
         return filter;
     }
 
+    @Override
+    void addFilterElements(Set<ByteString> elements) {
+        maybeLookAhead();
+        lock.lock();
+        try {
+            for (byte[] scriptHash : marriedKeysRedeemData.keys())
+                elements.add(ByteString.copyFrom(scriptHash));
+            for (RedeemData redeemData : marriedKeysRedeemData.values())
+                elements.add(ByteString.copyFrom(redeemData.redeemScript.getProgram()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public int numBloomFilterEntries() {
         maybeLookAhead();
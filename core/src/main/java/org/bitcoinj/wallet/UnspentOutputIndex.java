@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+
+import javax.annotation.Nullable;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>The set of unspent outputs a {@link Wallet} is tracking, indexed by what the wallet keeps asking about them when it
+ * selects coins or calculates its balance: their value, whether they come from a coinbase and whether the wallet can
+ * sign for them. The totals are updated as outputs are added and removed, so that e.g. the estimated balance doesn't
+ * have to look at every output, and coin selection doesn't have to look up the keys of every output each time.</p>
+ *
+ * <p>Whether the wallet can sign for an output is worked out the first time it's needed and then remembered until
+ * {@link #keysChanged()} is called. This class is not thread safe and is only used while holding the wallet lock, with
+ * the exception of {@link #keysChanged()}, which may be called from any thread.</p>
+ */
+public class UnspentOutputIndex extends AbstractSet<TransactionOutput> {
+    private final Wallet wallet;
+    private final Map<TransactionOutput, Entry> entries = new HashMap<TransactionOutput, Entry>();
+    private final Set<TransactionOutput> coinbaseOutputs = new HashSet<TransactionOutput>();
+    private long value;
+    // The total value of the outputs we know we can sign for, and how many outputs haven't been checked yet.
+    private long signableValue;
+    private int unknownSignable;
+    // Bumped whenever keys change, which makes us forget what we know about signing.
+    private final AtomicInteger keysEpoch = new AtomicInteger();
+    private int signableEpoch;
+
+    private static class Entry {
+        // The value at the time the output was added, so that the totals stay right if the output is modified.
+        final long value;
+        final boolean coinbase;
+        @Nullable Boolean signable;
+
+        Entry(long value, boolean coinbase) {
+            this.value = value;
+            this.coinbase = coinbase;
+        }
+    }
+
+    public UnspentOutputIndex(Wallet wallet) {
+        this.wallet = checkNotNull(wallet);
+    }
+
+    @Override
+    public boolean add(TransactionOutput output) {
+        if (entries.containsKey(output))
+            return false;
+        Transaction parent = output.getParentTransaction();
+        Entry entry = new Entry(output.getValue().value, parent != null && parent.isCoinBase());
+        entries.put(output, entry);
+        value += entry.value;
+        unknownSignable++;
+        if (entry.coinbase)
+            coinbaseOutputs.add(output);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object output) {
+        Entry entry = entries.remove(output);
+        if (entry == null)
+            return false;
+        forget(output, entry);
+        return true;
+    }
+
+    private void forget(Object output, Entry entry) {
+        value -= entry.value;
+        if (entry.signable == null)
+            unknownSignable--;
+        else if (entry.signable)
+            signableValue -= entry.value;
+        if (entry.coinbase)
+            coinbaseOutputs.remove(output);
+    }
+
+    @Override
+    public boolean contains(Object output) {
+        return entries.containsKey(output);
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+        coinbaseOutputs.clear();
+        value = 0;
+        signableValue = 0;
+        unknownSignable = 0;
+    }
+
+    @Override
+    public Iterator<TransactionOutput> iterator() {
+        final Iterator<Map.Entry<TransactionOutput, Entry>> it = entries.entrySet().iterator();
+        return new Iterator<TransactionOutput>() {
+            @Nullable private Map.Entry<TransactionOutput, Entry> current;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public TransactionOutput next() {
+                current = it.next();
+                return current.getKey();
+            }
+
+            @Override
+            public void remove() {
+                checkState(current != null);
+                it.remove();
+                forget(current.getKey(), current.getValue());
+                current = null;
+            }
+        };
+    }
+
+    /**
+     * Returns whether the wallet can sign for the given output, as {@link Wallet#canSignFor(org.bitcoinj.script.Script)}
+     * would. The answer is remembered for outputs in this set.
+     */
+    public boolean canSignFor(TransactionOutput output) {
+        maybeForgetSignable();
+        Entry entry = entries.get(output);
+        if (entry == null)
+            return wallet.canSignFor(output.getScriptPubKey());
+        if (entry.signable == null) {
+            entry.signable = wallet.canSignFor(output.getScriptPubKey());
+            unknownSignable--;
+            if (entry.signable)
+                signableValue += entry.value;
+        }
+        return entry.signable;
+    }
+
+    /** Returns whether the given output comes from a coinbase transaction that can't be spent yet. */
+    public boolean isImmatureCoinbase(TransactionOutput output) {
+        Entry entry = entries.get(output);
+        if (entry != null && !entry.coinbase)
+            return false;
+        return !checkNotNull(output.getParentTransaction()).isMature();
+    }
+
+    /** Returns the outputs in this set that come from coinbase transactions, whether they're mature or not. */
+    public Set<TransactionOutput> getCoinbaseOutputs() {
+        return Collections.unmodifiableSet(coinbaseOutputs);
+    }
+
+    /** Returns the total value of all outputs in this set. */
+    public Coin getValue() {
+        return Coin.valueOf(value);
+    }
+
+    /** Returns the total value of the outputs in this set that the wallet can sign for. */
+    public Coin getSignableValue() {
+        maybeForgetSignable();
+        if (unknownSignable > 0) {
+            for (TransactionOutput output : entries.keySet())
+                canSignFor(output);
+        }
+        return Coin.valueOf(signableValue);
+    }
+
+    /**
+     * Tells the index that keys have been added to or removed from the wallet, so whether the wallet can sign for an
+     * output has to be worked out again. Can be called from any thread.
+     */
+    public void keysChanged() {
+        keysEpoch.incrementAndGet();
+    }
+
+    private void maybeForgetSignable() {
+        int epoch = keysEpoch.get();
+        if (epoch == signableEpoch)
+            return;
+        for (Entry entry : entries.values())
+            entry.signable = null;
+        signableValue = 0;
+        unknownSignable = entries.size();
+        signableEpoch = epoch;
+    }
+}
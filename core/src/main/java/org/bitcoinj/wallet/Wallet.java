@@ -32,6 +32,7 @@ import org.bitcoinj.core.BlockChain;
 import org.bitcoinj.core.BloomFilter;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.Context;
+import org.bitcoinj.core.DepthTracker;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.FilteredBlock;
 import org.bitcoinj.core.InsufficientMoneyException;
@@ -153,15 +154,19 @@ public class Wallet extends BaseTaggableObject
 
     private final Map<Sha256Hash, Transaction> pending;
     private final Map<Sha256Hash, Transaction> unspent;
-    private final Map<Sha256Hash, Transaction> spent;
-    private final Map<Sha256Hash, Transaction> dead;
+    private final LazyTransactionMap spent;
+    private final LazyTransactionMap dead;
 
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // Spent and dead transactions that haven't been loaded yet, if the wallet was loaded lazily. They are part of the
+    // maps above all the same, see LazyTransactionStore.
+    @Nullable private LazyTransactionStore lazyTransactions;
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // Used to speed up various calculations, such as coin selection and the balance.
+    protected final UnspentOutputIndex myUnspents = new UnspentOutputIndex(this);
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -212,6 +217,15 @@ public class Wallet extends BaseTaggableObject
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private HashSet<Sha256Hash> ignoreNextNewBlock;
+    // Keeps the depth of our transactions up to date, so that new blocks don't have to touch every one of them. The
+    // transactions are found by their confidence, as its hash is stale if the transaction was changed after it.
+    private DepthTracker depthTracker;
+    private HashMap<TransactionConfidence, Transaction> depthTrackedTransactions;
+    private int[] confidenceNotificationDepths = { 1, 2, 3, 4, 5, 6 };
+    // Counts the changes to our transactions and balances. The last snapshot taken is handed out without waiting for
+    // the lock as long as nothing changed since, or while another thread is busy changing things.
+    private final AtomicLong changes = new AtomicLong();
+    @Nullable private volatile WalletSnapshot snapshot;
     // Whether or not to ignore pending transactions that are considered risky by the configured risk analyzer.
     private boolean acceptRiskyTransactions;
     // Object that performs risk analysis of pending transactions. We might reject transactions that seem like
@@ -318,12 +332,18 @@ public class Wallet extends BaseTaggableObject
         // we're probably being deserialized so leave things alone: the API user can upgrade later.
         if (this.keyChainGroup.numKeys() == 0)
             this.keyChainGroup.createAndActivateNewHDChain();
+        this.keyChainGroup.addEventListener(new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                keysChanged();
+            }
+        }, Threading.SAME_THREAD);
         watchedScripts = Sets.newHashSet();
         unspent = new HashMap<Sha256Hash, Transaction>();
-        spent = new HashMap<Sha256Hash, Transaction>();
+        spent = new LazyTransactionMap(Pool.SPENT);
         pending = new HashMap<Sha256Hash, Transaction>();
-        dead = new HashMap<Sha256Hash, Transaction>();
-        transactions = new HashMap<Sha256Hash, Transaction>();
+        dead = new LazyTransactionMap(Pool.DEAD);
+        transactions = new LazyTransactionMap(null);
         extensions = new HashMap<String, WalletExtension>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<Transaction, TransactionConfidence.Listener.ChangeReason>();
@@ -334,6 +354,8 @@ public class Wallet extends BaseTaggableObject
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        depthTracker = new DepthTracker(depthTrackerNotificationDepths());
+        depthTrackedTransactions = new HashMap<TransactionConfidence, Transaction>();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
@@ -343,12 +365,14 @@ public class Wallet extends BaseTaggableObject
                 // doesn't necessarily know at that point which wallets contain which transactions, so it's up
                 // to us to listen for that. Other types of confidence changes (type, etc) are triggered by us,
                 // so we'll queue up a wallet change event in other parts of the code.
+                if (reason != ChangeReason.DEPTH)
+                    markDirty(confidence.getTransactionHash());
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
                         checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
-                        queueOnTransactionConfidenceChanged(tx);
+                        queueOnTransactionConfidenceChanged(tx, reason);
                         maybeQueueOnWalletChanged();
                     } finally {
                         lock.unlock();
@@ -549,6 +573,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.upgradeToDeterministic(vKeyRotationTimestamp, aesKey);
+            keysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -607,12 +632,23 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
+            keysChanged();
             return keyChainGroup.removeImportedKey(key);
         } finally {
             keyChainGroupLock.unlock();
         }
     }
 
+    /**
+     * Makes the wallet work out again which of its outputs it can sign for. The key chains only tell their listeners
+     * about new keys, and encrypting or decrypting replaces them with copies that have none, so this is called
+     * from everywhere keys or watched scripts are changed. The spendable balances of the snapshot change with it.
+     */
+    private void keysChanged() {
+        myUnspents.keysChanged();
+        changes.incrementAndGet();
+    }
+
     /**
      * Returns the number of keys in the key chain group, including lookahead keys.
      */
@@ -699,6 +735,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             result = keyChainGroup.importKeys(keys);
+            keysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -729,7 +766,9 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             checkNoDeterministicKeys(keys);
-            return keyChainGroup.importKeysAndEncrypt(keys, aesKey);
+            int result = keyChainGroup.importKeysAndEncrypt(keys, aesKey);
+            keysChanged();
+            return result;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -750,6 +789,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.addAndActivateHDChain(chain);
+            keysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -897,6 +937,7 @@ public class Wallet extends BaseTaggableObject
                 watchedScripts.add(script);
                 added++;
             }
+            keysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -946,6 +987,7 @@ public class Wallet extends BaseTaggableObject
 
                 watchedScripts.remove(script);
             }
+            keysChanged();
 
             queueOnScriptsChanged(scripts, false);
             saveNow();
@@ -1127,6 +1169,7 @@ public class Wallet extends BaseTaggableObject
         try {
             final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
             keyChainGroup.encrypt(scrypt, scrypt.deriveKey(password));
+            keysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1145,6 +1188,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.encrypt(keyCrypter, aesKey);
+            keysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1161,6 +1205,7 @@ public class Wallet extends BaseTaggableObject
             final KeyCrypter crypter = keyChainGroup.getKeyCrypter();
             checkState(crypter != null, "Not encrypted");
             keyChainGroup.decrypt(crypter.deriveKey(password));
+            keysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1177,6 +1222,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.decrypt(aesKey);
+            keysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1294,6 +1340,8 @@ public class Wallet extends BaseTaggableObject
         FileOutputStream stream = null;
         lock.lock();
         try {
+            // If this overwrites a journaled file, its journal no longer applies.
+            markAllDirty();
             stream = new FileOutputStream(temp);
             saveToFileStream(stream);
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
@@ -1357,6 +1405,41 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * <p>Sets the depths in the chain at which confidence listeners are told about transactions getting deeper, the
+     * first six confirmations by default. New blocks don't cost anything for transactions that are deeper than all of
+     * them, however many the wallet has. The depth of a transaction is always up to date when asked for, and
+     * {@link TransactionConfidence#getDepthFuture(int)} completes at the requested depth regardless.</p>
+     *
+     * <p>Note that this property is not serialized.</p>
+     */
+    public void setConfidenceNotificationDepths(int... depths) {
+        lock.lock();
+        try {
+            confidenceNotificationDepths = depths.clone();
+            depthTracker.setNotificationDepths(depthTrackerNotificationDepths());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** See {@link Wallet#setConfidenceNotificationDepths(int...)} for an explanation of this property. */
+    public int[] getConfidenceNotificationDepths() {
+        lock.lock();
+        try {
+            return confidenceNotificationDepths.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The tracker also tells us about transactions passing the event horizon, to forget who broadcast them.
+    private int[] depthTrackerNotificationDepths() {
+        int[] depths = Arrays.copyOf(confidenceNotificationDepths, confidenceNotificationDepths.length + 1);
+        depths[depths.length - 1] = context.getEventHorizon() + 1;
+        return depths;
+    }
+
     /**
      * See {@link Wallet#setAcceptRiskyTransactions(boolean)} for an explanation of this property.
      */
@@ -1419,10 +1502,21 @@ public class Wallet extends BaseTaggableObject
      */
     public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
                                       @Nullable WalletFiles.Listener eventListener) {
+        return autosaveToFile(f, delayTime, timeUnit, eventListener, false);
+    }
+
+    /**
+     * Like {@link #autosaveToFile(File, long, TimeUnit, WalletFiles.Listener)}, but optionally in journaled mode: rather
+     * than rewriting the whole file each time, changed transactions are appended to a journal next to it, and the file
+     * is only rewritten from time to time. This is much cheaper for big wallets. See {@link WalletFiles} for details.
+     * {@link #loadFromFile(File, WalletExtension...)} reads the journal too.
+     */
+    public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
+                                      @Nullable WalletFiles.Listener eventListener, boolean journaled) {
         lock.lock();
         try {
             checkState(vFileManager == null, "Already auto saving this wallet.");
-            WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit);
+            WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit, journaled);
             if (eventListener != null)
                 manager.setListener(eventListener);
             vFileManager = manager;
@@ -1501,10 +1595,14 @@ public class Wallet extends BaseTaggableObject
      * <p>Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
      * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}</p>
      *
+     * <p>If the wallet was auto saved in journaled mode, its journal is applied as well.</p>
+     *
      * @param file the wallet file to read
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        if (WalletFiles.getJournalFile(file).exists())
+            return WalletFiles.loadJournaled(file, walletExtensions);
         try {
             FileInputStream stream = null;
             try {
@@ -1544,7 +1642,8 @@ public class Wallet extends BaseTaggableObject
     public void isConsistentOrThrow() throws IllegalStateException {
         lock.lock();
         try {
-            Set<Transaction> transactions = getTransactions(true);
+            // Transactions that haven't been loaded yet can't have changed since the wallet was loaded.
+            Set<Transaction> transactions = getLoadedTransactions();
 
             Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
             for (Transaction tx : transactions) {
@@ -1555,6 +1654,8 @@ public class Wallet extends BaseTaggableObject
             if (size1 != hashes.size()) {
                 throw new IllegalStateException("Two transactions with same hash");
             }
+            if (lazyTransactions != null)
+                size1 += lazyTransactions.size(null);
 
             int size2 = unspent.size() + spent.size() + pending.size() + dead.size();
             if (size1 != size2) {
@@ -1567,7 +1668,7 @@ public class Wallet extends BaseTaggableObject
                 }
             }
 
-            for (Transaction tx : spent.values()) {
+            for (Transaction tx : spent.getLoaded().values()) {
                 if (!isTxConsistent(tx, true)) {
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getHashAsString());
                 }
@@ -1814,12 +1915,19 @@ public class Wallet extends BaseTaggableObject
         if (tx.isCoinBase()) return Sets.newHashSet();
         // Compile a set of outpoints that are spent by tx.
         HashSet<TransactionOutPoint> outpoints = new HashSet<TransactionOutPoint>();
+        Set<Sha256Hash> parents = new HashSet<Sha256Hash>();
         for (TransactionInput input : tx.getInputs()) {
             outpoints.add(input.getOutpoint());
+            parents.add(input.getOutpoint().getHash());
         }
+        // Only transactions that spend the same outputs can be double spends, so that's all we need to load.
+        if (lazyTransactions != null)
+            lazyTransactions.loadSpendersOf(parents);
+        Collection<Transaction> loaded = candidates instanceof LazyTransactionMap ?
+                ((LazyTransactionMap) candidates).getLoaded().values() : candidates.values();
         // Now for each pending transaction, see if it shares any outpoints with this tx.
         Set<Transaction> doubleSpendTxns = Sets.newHashSet();
-        for (Transaction p : candidates.values()) {
+        for (Transaction p : loaded) {
             for (TransactionInput input : p.getInputs()) {
                 // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
                 // level - outpoints from two different inputs that point to the same output compare the same.
@@ -1900,6 +2008,7 @@ public class Wallet extends BaseTaggableObject
 
         Coin prevBalance = getBalance();
         Sha256Hash txHash = tx.getHash();
+        markDirty(txHash);
         boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
         boolean sideChain = blockType == BlockChain.NewBlockType.SIDE_CHAIN;
 
@@ -2087,7 +2196,7 @@ public class Wallet extends BaseTaggableObject
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
             tx.getConfidence().queueListeners(entry.getValue());
-            queueOnTransactionConfidenceChanged(tx);
+            queueOnTransactionConfidenceChanged(tx, entry.getValue());
         }
         confidenceChanged.clear();
     }
@@ -2109,34 +2218,43 @@ public class Wallet extends BaseTaggableObject
             return;
         lock.lock();
         try {
+            // Depths, and so the spendable balance, change with every block.
+            changes.incrementAndGet();
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // increment the tx confidence depth twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else {
-                    TransactionConfidence confidence = tx.getConfidence();
-                    if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
-                        // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
-                        // pending again. We could clear this data the moment a tx is seen in the block chain, but
-                        // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
-                        // pending tx has zero confidence at all, which would not be right: we expect it to be
-                        // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
-                        // but this way is backwards compatible with existing software, and the new state probably
-                        // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
-                            confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                    }
+            // The depth tracker adds the block to the depth of all the BUILDING transactions, and tells us which
+            // ones reached a depth that listeners are notified of. Transactions that haven't been loaded yet catch up
+            // when they are.
+            for (TransactionConfidence confidence : depthTracker.onNewBestBlock()) {
+                Transaction tx = depthTrackedTransactions.get(confidence);
+                if (tx == null || ignoreNextNewBlock.contains(tx.getHash()))
+                    continue;
+                if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
+                    // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
+                    // pending again. We could clear this data the moment a tx is seen in the block chain, but
+                    // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
+                    // pending tx has zero confidence at all, which would not be right: we expect it to be
+                    // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
+                    // but this way is backwards compatible with existing software, and the new state probably
+                    // wouldn't mean anything different to just remembering peers anyway.
+                    if (confidence.getDepthInBlocks() > context.getEventHorizon())
+                        confidence.clearBroadcastBy();
+                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                 }
             }
+            for (Sha256Hash hash : ignoreNextNewBlock) {
+                // tx was already processed in receive() due to it appearing in this block, so we don't want to
+                // count the block twice, it'd result in miscounting.
+                Transaction tx = transactions.get(hash);
+                if (tx == null)
+                    continue;
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() == ConfidenceType.BUILDING)
+                    confidence.setDepthInBlocks(confidence.getDepthInBlocks() - 1);
+            }
+            ignoreNextNewBlock.clear();
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -2375,6 +2493,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        markDirty(tx.getHash());
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2719,19 +2838,18 @@ public class Wallet extends BaseTaggableObject
         return ListenerRegistration.removeFromList(listener, transactionConfidenceListeners);
     }
 
-    private void queueOnTransactionConfidenceChanged(final Transaction tx) {
+    private void queueOnTransactionConfidenceChanged(final Transaction tx,
+                                                     TransactionConfidence.Listener.ChangeReason reason) {
         checkState(lock.isHeldByCurrentThread());
+        CoalescingEventDispatcher dispatcher = TransactionConfidence.getEventDispatcher();
         for (final ListenerRegistration<TransactionConfidenceEventListener> registration : transactionConfidenceListeners) {
-            if (registration.executor == Threading.SAME_THREAD) {
-                registration.listener.onTransactionConfidenceChanged(this, tx);
-            } else {
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onTransactionConfidenceChanged(Wallet.this, tx);
-                    }
-                });
-            }
+            dispatcher.dispatch(registration.executor, TransactionConfidence.coalescingKey(registration, tx, reason),
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            registration.listener.onTransactionConfidenceChanged(Wallet.this, tx);
+                        }
+                    });
         }
     }
 
@@ -2805,6 +2923,58 @@ public class Wallet extends BaseTaggableObject
 
     //region Vending transactions and other internal state
 
+    /**
+     * <p>Returns the balances and transactions of the wallet as an immutable {@link WalletSnapshot}. Unlike the other
+     * methods, this doesn't wait while another thread is changing the wallet, e.g. receiving a block or committing a
+     * transaction, but returns the snapshot taken before that change instead. So it suits code serving lots of reads,
+     * like a user interface or a server, that can live with being a change behind for a moment.</p>
+     *
+     * <p>A new snapshot is taken when one is asked for after the wallet changed. Of a lazily loaded wallet, it only
+     * knows the hashes of the transactions that weren't loaded yet, see {@link WalletSnapshot}.</p>
+     */
+    public WalletSnapshot getSnapshot() {
+        WalletSnapshot snapshot = this.snapshot;
+        if (snapshot != null && snapshot.getVersion() == changes.get())
+            return snapshot;
+        // Inside a change, e.g. from a listener running on the same thread, the wallet may be half way done.
+        boolean changing = lock.isHeldByCurrentThread();
+        if (snapshot == null || changing)
+            lock.lock();
+        else if (!lock.tryLock())
+            return snapshot;
+        try {
+            if (changing)
+                return snapshot != null ? snapshot : takeSnapshot();
+            snapshot = this.snapshot;
+            if (snapshot == null || snapshot.getVersion() != changes.get()) {
+                snapshot = takeSnapshot();
+                this.snapshot = snapshot;
+            }
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private WalletSnapshot takeSnapshot() {
+        // Read the count first, so that a change made meanwhile without the lock, like a confidence change, makes the
+        // snapshot stale rather than getting lost.
+        long version = changes.get();
+        EnumMap<BalanceType, Coin> balances = new EnumMap<BalanceType, Coin>(BalanceType.class);
+        for (BalanceType type : BalanceType.values())
+            balances.put(type, getBalance(type));
+        Map<Sha256Hash, Transaction> all = new HashMap<Sha256Hash, Transaction>();
+        all.putAll(unspent);
+        all.putAll(spent.getLoaded());
+        all.putAll(pending);
+        all.putAll(dead.getLoaded());
+        Set<Sha256Hash> notLoaded = lazyTransactions != null
+                ? lazyTransactions.getHashes(null) : Collections.<Sha256Hash>emptySet();
+        return new WalletSnapshot(this, version, balances, all, notLoaded, dead.keySet(), lastBlockSeenHash,
+                lastBlockSeenHeight);
+    }
+
     /**
      * Returns a set of all transactions in the wallet.
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
@@ -2841,6 +3011,78 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** Like {@link #getTransactions(boolean)} with dead transactions, but without loading any transactions. */
+    private Set<Transaction> getLoadedTransactions() {
+        Set<Transaction> all = new HashSet<Transaction>(unspent.values());
+        all.addAll(spent.getLoaded().values());
+        all.addAll(pending.values());
+        all.addAll(dead.getLoaded().values());
+        return all;
+    }
+
+    /** Like {@link #getWalletTransactions()}, but without loading any transactions. */
+    Iterable<WalletTransaction> getLoadedWalletTransactions() {
+        lock.lock();
+        try {
+            Set<WalletTransaction> all = new HashSet<WalletTransaction>();
+            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
+            addWalletTransactionsToSet(all, Pool.SPENT, spent.getLoaded().values());
+            addWalletTransactionsToSet(all, Pool.DEAD, dead.getLoaded().values());
+            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
+            return all;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transactions that haven't been loaded yet, if the wallet was loaded lazily. */
+    @Nullable
+    LazyTransactionStore getLazyTransactions() {
+        lock.lock();
+        try {
+            return lazyTransactions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Makes the transactions in the given store part of this wallet. Used when loading the wallet. */
+    void setLazyTransactions(LazyTransactionStore lazyTransactions) {
+        lock.lock();
+        try {
+            checkState(this.lazyTransactions == null);
+            this.lazyTransactions = lazyTransactions;
+            lazyTransactions.setWallet(this);
+            spent.setStore(lazyTransactions);
+            dead.setStore(lazyTransactions);
+            ((LazyTransactionMap) transactions).setStore(lazyTransactions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by the {@link LazyTransactionStore} when it loads a transaction. */
+    void addLoadedTransaction(WalletTransaction wtx) {
+        checkState(lock.isHeldByCurrentThread());
+        Transaction tx = wtx.getTransaction();
+        transactions.put(tx.getHash(), tx);
+        checkState(getTransactionPool(wtx.getPool()).put(tx.getHash(), tx) == null);
+        tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+        trackDepth(tx);
+    }
+
+    private void trackDepth(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.setDepthTracker(depthTracker);
+        depthTrackedTransactions.put(confidence, tx);
+    }
+
+    private void untrackDepth(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (depthTrackedTransactions.remove(confidence) != null && confidence.getDepthTracker() == depthTracker)
+            confidence.setDepthTracker(null);
+    }
+
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
                                                    Pool poolType, Collection<Transaction> pool) {
         for (Transaction tx : pool) {
@@ -2868,6 +3110,7 @@ public class Wallet extends BaseTaggableObject
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getHash(), tx);
+        markDirty(tx.getHash());
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -2893,6 +3136,7 @@ public class Wallet extends BaseTaggableObject
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+        trackDepth(tx);
     }
 
     /**
@@ -2946,6 +3190,38 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** Returns the transaction with the given hash together with the pool it's in, or null if there is none. */
+    @Nullable
+    WalletTransaction getWalletTransaction(Sha256Hash hash) {
+        lock.lock();
+        try {
+            for (Pool pool : new Pool[] { Pool.UNSPENT, Pool.SPENT, Pool.PENDING, Pool.DEAD }) {
+                Transaction tx = getTransactionPool(pool).get(hash);
+                if (tx != null)
+                    return new WalletTransaction(pool, tx);
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Tells the file manager that the transaction has to be saved again, if it cares.
+    private void markDirty(Sha256Hash hash) {
+        changes.incrementAndGet();
+        WalletFiles files = vFileManager;
+        if (files != null)
+            files.transactionChanged(hash);
+    }
+
+    // Tells the file manager that the whole wallet has to be saved again, if it cares.
+    private void markAllDirty() {
+        changes.incrementAndGet();
+        WalletFiles files = vFileManager;
+        if (files != null)
+            files.everythingChanged();
+    }
+
     /** {@inheritDoc} */
     @Override
     public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
@@ -3007,6 +3283,16 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        markAllDirty();
+        for (Transaction tx : getLoadedTransactions())
+            untrackDepth(tx);
+        if (lazyTransactions != null) {
+            lazyTransactions.close();
+            lazyTransactions = null;
+            spent.setStore(null);
+            dead.setStore(null);
+            ((LazyTransactionMap) transactions).setStore(null);
+        }
         unspent.clear();
         spent.clear();
         pending.clear();
@@ -3071,6 +3357,8 @@ public class Wallet extends BaseTaggableObject
 
                         i.remove();
                         transactions.remove(tx.getHash());
+                        untrackDepth(tx);
+                        markAllDirty();
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -3503,7 +3791,11 @@ public class Wallet extends BaseTaggableObject
                 CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
                 return selection.valueGathered;
             } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+                boolean excludeUnsignable = balanceType == BalanceType.ESTIMATED_SPENDABLE;
+                // The index keeps running totals, so there's no need to look at every output.
+                if (vUTXOProvider == null)
+                    return excludeUnsignable ? myUnspents.getSignableValue() : myUnspents.getValue();
+                List<TransactionOutput> all = calculateAllSpendCandidates(false, excludeUnsignable);
                 Coin value = Coin.ZERO;
                 for (TransactionOutput out : all) value = value.add(out.getValue());
                 return value;
@@ -4132,9 +4424,8 @@ public class Wallet extends BaseTaggableObject
             if (vUTXOProvider == null) {
                 candidates = new ArrayList<TransactionOutput>(myUnspents.size());
                 for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
-                    Transaction transaction = checkNotNull(output.getParentTransaction());
-                    if (excludeImmatureCoinbases && !transaction.isMature())
+                    if (excludeUnsignable && !myUnspents.canSignFor(output)) continue;
+                    if (excludeImmatureCoinbases && myUnspents.isImmatureCoinbase(output))
                         continue;
                     candidates.add(output);
                 }
@@ -4265,6 +4556,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            changes.incrementAndGet();
         } finally {
             lock.unlock();
         }
@@ -4306,6 +4598,7 @@ public class Wallet extends BaseTaggableObject
         try {
             checkArgument(provider == null || provider.getParams().equals(params));
             this.vUTXOProvider = provider;
+            changes.incrementAndGet();
         } finally {
             lock.unlock();
         }
@@ -4399,6 +4692,8 @@ public class Wallet extends BaseTaggableObject
     public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
         lock.lock();
         try {
+            // Moves transactions about in ways that are simpler to save as a whole.
+            markAllDirty();
             // This runs on any peer thread with the block chain locked.
             //
             // The reorganize functionality of the wallet is tested in ChainSplitTest.java
@@ -4579,7 +4874,8 @@ public class Wallet extends BaseTaggableObject
         bloomOutPoints.clear();
         Set<Transaction> all = new HashSet<Transaction>();
         all.addAll(unspent.values());
-        all.addAll(spent.values());
+        // Lazily loaded transactions have no outputs that go into the filter, see LazyTransactionStore.
+        all.addAll(spent.getLoaded().values());
         all.addAll(pending.values());
         for (Transaction tx : all) {
             for (TransactionOutput out : tx.getOutputs()) {
@@ -4686,6 +4982,27 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Adds the data items {@link #getBloomFilter(int, double, long)} would insert into a filter to the given set, so
+     * that a {@link WalletGroup} can index them.
+     */
+    void addBloomFilterElements(Set<ByteString> elements) {
+        beginBloomFilterCalculation();
+        try {
+            keyChainGroup.addBloomFilterElements(elements);
+            for (Script script : watchedScripts) {
+                for (ScriptChunk chunk : script.getChunks()) {
+                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH)
+                        elements.add(ByteString.copyFrom(chunk.data));
+                }
+            }
+            for (TransactionOutPoint point : bloomOutPoints)
+                elements.add(ByteString.copyFrom(point.unsafeBitcoinSerialize()));
+        } finally {
+            endBloomFilterCalculation();
+        }
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
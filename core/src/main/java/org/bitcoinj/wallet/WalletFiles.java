@@ -22,12 +22,19 @@ import org.bitcoinj.utils.*;
 import org.slf4j.*;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 import javax.annotation.*;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
-import java.util.Date;
+import java.security.SecureRandom;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -36,6 +43,14 @@ import static com.google.common.base.Preconditions.*;
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
  * can come to dominate the chain processing speed, i.e. on Android phones. By coalescing writes and doing serialization
  * and disk IO on a background thread performance can be improved.
+ *
+ * <p>For big wallets, rewriting the whole file on every change can come to dominate IO even so. In journaled mode the
+ * wallet file is only written from time to time, as a snapshot, and in between the transactions that changed are
+ * appended to a journal file next to it (see {@link #getJournalFile(File)}), together with the rest of the wallet if
+ * that changed too. Once the journal has grown big compared to the snapshot, a new snapshot is written in the
+ * background and the journal starts over. {@link Wallet#loadFromFile(File, WalletExtension...)} applies the journal
+ * when loading. Changes to the depth of transactions aren't journaled as they'd touch every transaction on each block;
+ * they are worked out again from the last seen block height when loading.</p>
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
@@ -50,6 +65,43 @@ public class WalletFiles {
 
     private volatile Listener vListener;
 
+    // The id of the wallet extension by which a snapshot and the journal that belongs to it are tied together.
+    private static final String JOURNAL_EXTENSION_ID = "org.bitcoinj.wallet.WalletFiles.journal";
+    // A new snapshot is written once the journal is bigger than this fraction of the snapshot, or this many bytes.
+    private static final int COMPACTION_DIVISOR = 2;
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private final boolean journaled;
+    private final File journalFile;
+    private final WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+    private final Callable<Void> compactor;
+    // Transactions that changed since they were last written. Can be added to from any thread.
+    private final Set<Sha256Hash> dirtyTransactions = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+    private volatile boolean snapshotNeeded = true;
+    // Only accessed while holding the wallet lock.
+    private Set<Sha256Hash> journaledTransactions = new HashSet<Sha256Hash>();
+    // Journal records are made in order while holding the wallet lock, then written and synced after it's released, so
+    // the wallet isn't held up by the disk. Whoever gets the journal lock writes all the records queued so far. The
+    // journal lock is taken after the wallet lock, never before.
+    private final Queue<JournalRecord> journalQueue = new ConcurrentLinkedQueue<JournalRecord>();
+    private final ReentrantLock journalLock = Threading.lock("walletfiles-journal");
+    @GuardedBy("journalLock") @Nullable private FileOutputStream journalStream;
+    @GuardedBy("journalLock") @Nullable private Sha256Hash lastHeaderHash;
+    @GuardedBy("journalLock") private long snapshotBytes, journalBytes;
+
+    private static class JournalRecord {
+        final Protos.Wallet header;
+        final List<Protos.Transaction> transactions;
+        // Set under the journal lock once the record, or a snapshot that includes it, is safely on disk.
+        boolean written;
+
+        JournalRecord(Protos.Wallet header, List<Protos.Transaction> transactions) {
+            this.header = header;
+            this.transactions = transactions;
+        }
+    }
+
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
      */
@@ -72,6 +124,14 @@ public class WalletFiles {
      * depending on the urgency of the changes.
      */
     public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit) {
+        this(wallet, file, delay, delayTimeUnit, false);
+    }
+
+    /**
+     * Like {@link #WalletFiles(Wallet, File, long, TimeUnit)}, optionally in journaled mode (see the class docs). The
+     * first save in journaled mode always writes a snapshot.
+     */
+    public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit, boolean journaled) {
         // An executor that starts up threads when needed and shuts them down later.
         this.executor = new ScheduledThreadPoolExecutor(1, new ContextPropagatingThreadFactory("Wallet autosave thread", Thread.MIN_PRIORITY));
         this.executor.setKeepAliveTime(5, TimeUnit.SECONDS);
@@ -100,6 +160,31 @@ public class WalletFiles {
                 return null;
             }
         };
+        this.journaled = journaled;
+        this.journalFile = getJournalFile(file);
+        this.compactor = new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                // Runs in an auto save thread.
+                compactionPending.set(false);
+                try {
+                    saveJournaled(true);
+                } catch (IOException e) {
+                    log.error("Failed to compact wallet journal", e);
+                    throw e;
+                }
+                return null;
+            }
+        };
+    }
+
+    /** Returns the file the journal of the given wallet file is kept in, when saving in journaled mode. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /** Returns whether this instance saves in journaled mode. */
+    public boolean isJournaled() {
+        return journaled;
     }
 
     /**
@@ -121,6 +206,10 @@ public class WalletFiles {
     }
 
     private void saveNowInternal() throws IOException {
+        if (journaled) {
+            saveJournaled(false);
+            return;
+        }
         final Stopwatch watch = Stopwatch.createStarted();
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
@@ -149,5 +238,353 @@ public class WalletFiles {
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
         }
+        wallet.lock.lock();
+        journalLock.lock();
+        try {
+            closeJournal();
+        } catch (IOException e) {
+            log.error("Failed to close wallet journal", e);
+        } finally {
+            journalLock.unlock();
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Called by the wallet when the given transaction has to be written again. */
+    void transactionChanged(Sha256Hash hash) {
+        if (journaled)
+            dirtyTransactions.add(hash);
+    }
+
+    /** Called by the wallet after changes that can't be expressed in the journal, e.g. removing transactions. */
+    void everythingChanged() {
+        snapshotNeeded = true;
+    }
+
+    private void saveJournaled(boolean compact) throws IOException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        JournalRecord record = null;
+        wallet.lock.lock();
+        try {
+            if (!compact && !snapshotNeeded)
+                record = queueJournalRecord();
+            if (record == null)
+                writeSnapshot();
+        } finally {
+            wallet.lock.unlock();
+        }
+        boolean compactLater;
+        journalLock.lock();
+        try {
+            if (record != null) {
+                writeJournalRecords();
+                if (!record.written)
+                    throw new IOException("Failed to append to wallet journal " + journalFile);
+            }
+            compactLater = journalBytes > Math.max(snapshotBytes / COMPACTION_DIVISOR, MIN_COMPACTION_BYTES);
+        } finally {
+            journalLock.unlock();
+        }
+        watch.stop();
+        log.info("Save completed in {}", watch);
+        if (compactLater && !executor.isShutdown() && !compactionPending.getAndSet(true))
+            executor.submit(compactor);
+    }
+
+    private void writeSnapshot() throws IOException {
+        checkState(wallet.lock.isHeldByCurrentThread());
+        dirtyTransactions.clear();
+        journalLock.lock();
+        try {
+            // The snapshot covers the records still waiting to be written.
+            List<JournalRecord> covered = new ArrayList<JournalRecord>();
+            for (JournalRecord record; (record = journalQueue.poll()) != null; )
+                covered.add(record);
+            closeJournal();
+            final long generation = new SecureRandom().nextLong();
+            Protos.Wallet walletProto = serializer.walletToProto(wallet);
+            File directory = file.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile("wallet", null, directory);
+            final Listener listener = vListener;
+            if (listener != null)
+                listener.onBeforeAutoSave(temp);
+            writeAndRename(walletProto.toBuilder().addExtension(makeJournalExtension(generation)).build(), false, temp, file);
+            snapshotBytes = file.length();
+            // Until this rename an old journal may still be around, but it belongs to another snapshot so won't be used.
+            Protos.Wallet journalHeader = Protos.Wallet.newBuilder()
+                    .setNetworkIdentifier(walletProto.getNetworkIdentifier())
+                    .addExtension(makeJournalExtension(generation))
+                    .build();
+            writeAndRename(journalHeader, true, File.createTempFile("journal", null, directory), journalFile);
+            journalStream = new FileOutputStream(journalFile, true);
+            journalBytes = journalFile.length();
+            journaledTransactions = new HashSet<Sha256Hash>(wallet.transactions.keySet());
+            lastHeaderHash = hashHeader(walletProto.toBuilder().clearTransaction().build());
+            snapshotNeeded = false;
+            for (JournalRecord record : covered)
+                record.written = true;
+            if (listener != null)
+                listener.onAfterAutoSave(file);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    // Makes a record of what changed and queues it to be written. Returns null if the changes can't be journaled,
+    // because transactions went away.
+    @Nullable
+    private JournalRecord queueJournalRecord() {
+        checkState(wallet.lock.isHeldByCurrentThread());
+        Set<Sha256Hash> changed = new HashSet<Sha256Hash>();
+        for (Iterator<Sha256Hash> it = dirtyTransactions.iterator(); it.hasNext(); ) {
+            Sha256Hash hash = it.next();
+            it.remove();
+            Transaction tx = wallet.transactions.get(hash);
+            if (tx == null)
+                return null;
+            changed.add(hash);
+            // Spending a transaction changes its outputs and possibly its pool, without any event for it.
+            for (TransactionInput input : tx.getInputs()) {
+                Sha256Hash parent = input.getOutpoint().getHash();
+                if (wallet.transactions.containsKey(parent))
+                    changed.add(parent);
+            }
+        }
+        int added = 0;
+        for (Sha256Hash hash : changed)
+            if (!journaledTransactions.contains(hash))
+                added++;
+        if (journaledTransactions.size() + added != wallet.transactions.size())
+            return null;
+
+        List<Protos.Transaction> transactions = new ArrayList<Protos.Transaction>(changed.size());
+        for (Sha256Hash hash : changed)
+            transactions.add(WalletProtobufSerializer.makeTxProto(checkNotNull(wallet.getWalletTransaction(hash))));
+        JournalRecord record = new JournalRecord(serializer.walletToProto(wallet, false), transactions);
+        journaledTransactions.addAll(changed);
+        journalQueue.add(record);
+        return record;
+    }
+
+    // Appends the queued records to the journal and syncs it once for all of them.
+    private void writeJournalRecords() throws IOException {
+        checkState(journalLock.isHeldByCurrentThread());
+        if (journalQueue.isEmpty())
+            return;
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        try {
+            FileOutputStream stream = journalStream;
+            if (stream == null)
+                throw new IOException("Wallet journal " + journalFile + " is closed");
+            for (JournalRecord record; (record = journalQueue.poll()) != null; ) {
+                records.add(record);
+                Protos.Wallet recordProto = makeRecordProto(record);
+                recordProto.writeDelimitedTo(stream);
+                int size = recordProto.getSerializedSize();
+                journalBytes += CodedOutputStream.computeRawVarint32Size(size) + size;
+            }
+            stream.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            // The journal may end in a partial record now, so nothing more can go after it.
+            snapshotNeeded = true;
+            journalQueue.clear();
+            try {
+                closeJournal();
+            } catch (IOException e1) {
+                log.error("Failed to close wallet journal", e1);
+            }
+            throw e;
+        }
+        for (JournalRecord record : records)
+            record.written = true;
+    }
+
+    private Protos.Wallet makeRecordProto(JournalRecord record) {
+        checkState(journalLock.isHeldByCurrentThread());
+        Protos.Wallet header = record.header;
+        Sha256Hash headerHash = hashHeader(header);
+        Protos.Wallet.Builder builder;
+        if (headerHash.equals(lastHeaderHash)) {
+            // Only the last seen block. Records without keys don't replace the rest of the wallet when replayed.
+            builder = Protos.Wallet.newBuilder().setNetworkIdentifier(header.getNetworkIdentifier());
+            if (header.hasLastSeenBlockHash())
+                builder.setLastSeenBlockHash(header.getLastSeenBlockHash());
+            if (header.hasLastSeenBlockHeight())
+                builder.setLastSeenBlockHeight(header.getLastSeenBlockHeight());
+            if (header.hasLastSeenBlockTimeSecs())
+                builder.setLastSeenBlockTimeSecs(header.getLastSeenBlockTimeSecs());
+        } else {
+            builder = header.toBuilder();
+        }
+        lastHeaderHash = headerHash;
+        return builder.addAllTransaction(record.transactions).build();
+    }
+
+    private void closeJournal() throws IOException {
+        if (journalStream != null) {
+            journalStream.close();
+            journalStream = null;
+        }
+    }
+
+    // The last seen block is left out, as it changes all the time and is journaled separately.
+    private static Sha256Hash hashHeader(Protos.Wallet header) {
+        return Sha256Hash.of(header.toBuilder()
+                .clearLastSeenBlockHash()
+                .clearLastSeenBlockHeight()
+                .clearLastSeenBlockTimeSecs()
+                .build().toByteArray());
+    }
+
+    private static Protos.Extension makeJournalExtension(long generation) {
+        return Protos.Extension.newBuilder()
+                .setId(JOURNAL_EXTENSION_ID)
+                .setMandatory(false)
+                .setData(ByteString.copyFrom(Longs.toByteArray(generation)))
+                .build();
+    }
+
+    @Nullable
+    private static Long getJournalGeneration(Protos.Wallet walletProto) {
+        for (Protos.Extension extension : walletProto.getExtensionList())
+            if (extension.getId().equals(JOURNAL_EXTENSION_ID) && extension.getData().size() == 8)
+                return Longs.fromByteArray(extension.getData().toByteArray());
+        return null;
+    }
+
+    private static void writeAndRename(Protos.Wallet walletProto, boolean delimited, File temp, File destFile)
+            throws IOException {
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            if (delimited)
+                walletProto.writeDelimitedTo(stream);
+            else
+                walletProto.writeTo(stream);
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = destFile.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical + " for replacement");
+            destFile = canonical;
+        }
+        if (!temp.renameTo(destFile))
+            throw new IOException("Failed to rename " + temp + " to " + destFile);
+    }
+
+    /**
+     * Reads the given wallet file and applies its journal, if it has one that belongs to it, as written in journaled
+     * mode. Used by {@link Wallet#loadFromFile(File, WalletExtension...)}.
+     */
+    static Protos.Wallet readJournaled(File file) throws IOException {
+        Protos.Wallet snapshot;
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            snapshot = WalletProtobufSerializer.parseToProto(stream);
+        } finally {
+            stream.close();
+        }
+        File journal = getJournalFile(file);
+        Long generation = getJournalGeneration(snapshot);
+        if (generation == null || !journal.exists())
+            return snapshot;
+        InputStream input = new BufferedInputStream(new FileInputStream(journal));
+        try {
+            Protos.Wallet journalHeader = Protos.Wallet.parseDelimitedFrom(input);
+            if (journalHeader == null || !generation.equals(getJournalGeneration(journalHeader))) {
+                log.info("Ignoring journal {} as it belongs to another snapshot", journal);
+                return snapshot;
+            }
+            Protos.Wallet.Builder walletBuilder = snapshot.toBuilder();
+            Map<ByteString, Integer> positions = new HashMap<ByteString, Integer>();
+            for (int i = 0; i < walletBuilder.getTransactionCount(); i++)
+                positions.put(walletBuilder.getTransaction(i).getHash(), i);
+            int records = 0;
+            while (true) {
+                Protos.Wallet record;
+                try {
+                    record = Protos.Wallet.parseDelimitedFrom(input);
+                } catch (InvalidProtocolBufferException e) {
+                    // We must have crashed halfway through appending it, so it was never acknowledged as saved.
+                    log.warn("Ignoring incomplete last record of wallet journal {}", journal);
+                    break;
+                }
+                if (record == null)
+                    break;
+                applyJournalRecord(walletBuilder, positions, record);
+                records++;
+            }
+            if (records > 0)
+                updateDepths(walletBuilder);
+            log.info("Applied {} records from wallet journal {}", records, journal);
+            return walletBuilder.build();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void applyJournalRecord(Protos.Wallet.Builder walletBuilder, Map<ByteString, Integer> positions,
+                                           Protos.Wallet record) {
+        if (record.getKeyCount() > 0) {
+            // The record holds everything but the transactions, which stay as they are.
+            List<Protos.Transaction> transactions = new ArrayList<Protos.Transaction>(walletBuilder.getTransactionList());
+            walletBuilder.clear()
+                    .mergeFrom(record.toBuilder().clearTransaction().build())
+                    .addAllTransaction(transactions);
+        } else {
+            if (record.hasLastSeenBlockHash())
+                walletBuilder.setLastSeenBlockHash(record.getLastSeenBlockHash());
+            if (record.hasLastSeenBlockHeight())
+                walletBuilder.setLastSeenBlockHeight(record.getLastSeenBlockHeight());
+            if (record.hasLastSeenBlockTimeSecs())
+                walletBuilder.setLastSeenBlockTimeSecs(record.getLastSeenBlockTimeSecs());
+        }
+        for (Protos.Transaction tx : record.getTransactionList()) {
+            Integer position = positions.get(tx.getHash());
+            if (position != null) {
+                walletBuilder.setTransaction(position, tx);
+            } else {
+                positions.put(tx.getHash(), walletBuilder.getTransactionCount());
+                walletBuilder.addTransaction(tx);
+            }
+        }
+    }
+
+    // Depth changes aren't journaled, so work them out from the height of the last seen block.
+    private static void updateDepths(Protos.Wallet.Builder walletBuilder) {
+        if (!walletBuilder.hasLastSeenBlockHeight())
+            return;
+        final int height = walletBuilder.getLastSeenBlockHeight();
+        for (int i = 0; i < walletBuilder.getTransactionCount(); i++) {
+            Protos.Transaction tx = walletBuilder.getTransaction(i);
+            Protos.TransactionConfidence confidence = tx.getConfidence();
+            if (!tx.hasConfidence() || confidence.getType() != Protos.TransactionConfidence.Type.BUILDING
+                    || !confidence.hasAppearedAtHeight())
+                continue;
+            int depth = height - confidence.getAppearedAtHeight() + 1;
+            if (depth > 0 && depth != confidence.getDepth())
+                walletBuilder.setTransaction(i, tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build());
+        }
+    }
+
+    /** Loads a wallet written in journaled mode, see {@link Wallet#loadFromFile(File, WalletExtension...)}. */
+    static Wallet loadJournaled(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        try {
+            Protos.Wallet walletProto = readJournaled(file);
+            NetworkParameters params = NetworkParameters.fromID(walletProto.getNetworkIdentifier());
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + walletProto.getNetworkIdentifier());
+            Wallet wallet = new WalletProtobufSerializer().readWallet(params, walletExtensions, walletProto);
+            if (!wallet.isConsistent())
+                log.error("Loaded an inconsistent wallet");
+            return wallet;
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not read wallet file or its journal", e);
+        }
     }
 }
@@ -0,0 +1,511 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Hosts many {@link Wallet}s behind a single {@link AbstractBlockChain} and {@link PeerGroup}. Instead of each
+ * wallet being registered as a block chain listener and {@link PeerFilterProvider} of its own, the group is registered
+ * once, using {@link AbstractBlockChain#addWalletGroup(WalletGroup)} and {@link PeerGroup#addWalletGroup(WalletGroup)}.</p>
+ *
+ * <p>The group keeps one index from the data items the wallets would put into a Bloom filter (keys, key hashes,
+ * watched script data and outpoints) to the wallets that want them. Transactions from blocks and from the network are
+ * matched against this index the same way a remote peer matches them against a filter, and only handed to the wallets
+ * they match, rather than every wallet checking every transaction. The same index backs the group's Bloom filter, which
+ * is updated incrementally as wallets gain keys, scripts and outputs, and only rebuilt when items go away or a filter
+ * with different parameters is asked for. Transactions spending the same outputs as a pending transaction of a wallet
+ * are handed to that wallet too, so that it notices the pending transaction was double spent.</p>
+ *
+ * <p>The index is brought up to date lazily: wallet events only mark the wallet as changed, and the changed wallets are
+ * looked at again the next time a transaction is dispatched or a filter is calculated. New best blocks and re-orgs are
+ * passed to all wallets, as every wallet needs to update the depth of its transactions.</p>
+ */
+public class WalletGroup implements PeerFilterProvider, TransactionReceivedInBlockListener, NewBestBlockListener,
+        ReorganizeListener {
+    private static final Logger log = LoggerFactory.getLogger(WalletGroup.class);
+    // How many transaction hashes we remember the wallets of, for when a block only tells us the hash.
+    private static final int MAX_REMEMBERED_TRANSACTIONS = 100000;
+
+    private final ReentrantLock lock = Threading.lock("walletgroup");
+
+    private final CopyOnWriteArrayList<Wallet> wallets = new CopyOnWriteArrayList<Wallet>();
+    @GuardedBy("lock") private final Map<Wallet, Set<ByteString>> walletElements = new HashMap<Wallet, Set<ByteString>>();
+    @GuardedBy("lock") private final SetMultimap<ByteString, Wallet> index = HashMultimap.create();
+    // Wallets whose elements may have changed. Only touched by wallet listeners, so it must not need our lock.
+    private final Set<Wallet> changedWallets = Collections.newSetFromMap(new ConcurrentHashMap<Wallet, Boolean>());
+    // The outpoints spent by the pending transactions of each wallet, which aren't part of the filter. Wallet listeners
+    // put the latest ones of a wallet into changedPendingSpends, from where they are taken into the index.
+    @GuardedBy("lock") private final Map<Wallet, Set<ByteString>> walletPendingSpends =
+            new HashMap<Wallet, Set<ByteString>>();
+    @GuardedBy("lock") private final SetMultimap<ByteString, Wallet> pendingSpends = HashMultimap.create();
+    private final Map<Wallet, Set<ByteString>> changedPendingSpends = new ConcurrentHashMap<Wallet, Set<ByteString>>();
+
+    // The wallets that were told about a transaction, so that a block containing only its hash can be passed on. This
+    // is updated from wallet listeners, so it's guarded by its own monitor rather than our lock.
+    @GuardedBy("transactionWallets") private final Map<Sha256Hash, Set<Wallet>> transactionWallets =
+            new LinkedHashMap<Sha256Hash, Set<Wallet>>() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Set<Wallet>> eldest) {
+                    return size() > MAX_REMEMBERED_TRANSACTIONS;
+                }
+            };
+
+    // The last filter we handed out, what it was asked for with, and the elements added to the index since then.
+    @GuardedBy("lock") @Nullable private BloomFilter filter;
+    @GuardedBy("lock") private int filterSize;
+    @GuardedBy("lock") private double filterFalsePositiveRate;
+    @GuardedBy("lock") private long filterTweak;
+    @GuardedBy("lock") private final List<ByteString> addedSinceFilter = new ArrayList<ByteString>();
+    @GuardedBy("lock") private boolean filterNeedsRebuild;
+
+    @Nullable private volatile PeerGroup vPeerGroup;
+    @Nullable private volatile TransactionBroadcaster vTransactionBroadcaster;
+
+    // One per wallet, as key chain events don't say which wallet they come from.
+    private class WalletListener implements KeyChainEventListener, ScriptsChangeEventListener,
+            WalletCoinsReceivedEventListener, WalletCoinsSentEventListener, WalletChangeEventListener {
+        private final Wallet wallet;
+
+        WalletListener(Wallet wallet) {
+            this.wallet = wallet;
+        }
+
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            walletChanged(wallet, PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+        }
+
+        @Override
+        public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+            walletChanged(wallet, PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+        }
+
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            rememberTransaction(tx.getHash(), wallet);
+            // As in PeerGroup, only pay to pubkey outputs need the filter to be sent again, but the outpoints of all
+            // our outputs go into the index so that spends get dispatched.
+            PeerGroup.FilterRecalculateMode mode = PeerGroup.FilterRecalculateMode.DONT_SEND;
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (output.getScriptPubKey().isSentToRawPubKey() && output.isMine(wallet)
+                        && tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING) {
+                    mode = PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED;
+                    break;
+                }
+            }
+            walletChanged(wallet, mode);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            rememberTransaction(tx.getHash(), wallet);
+        }
+
+        @Override
+        public void onWalletChanged(Wallet wallet) {
+            // Transactions may have come into or left the pending pool.
+            changedPendingSpends.put(wallet, getPendingSpends(wallet));
+        }
+    }
+
+    private final Map<Wallet, WalletListener> listeners = new ConcurrentHashMap<Wallet, WalletListener>();
+
+    /**
+     * Adds a wallet to the group. As with {@link AbstractBlockChain#addWallet(Wallet)}, the wallet is unaffected by
+     * blocks received while it was not part of the group.
+     */
+    public void addWallet(Wallet wallet) {
+        checkNotNull(wallet);
+        WalletListener listener = new WalletListener(wallet);
+        lock.lock();
+        try {
+            checkState(!wallets.contains(wallet), "Wallet is already in the group");
+            wallets.add(wallet);
+            walletElements.put(wallet, new HashSet<ByteString>());
+            walletPendingSpends.put(wallet, new HashSet<ByteString>());
+            listeners.put(wallet, listener);
+        } finally {
+            lock.unlock();
+        }
+        for (Sha256Hash hash : wallet.getTransactionPool(WalletTransaction.Pool.PENDING).keySet())
+            rememberTransaction(hash, wallet);
+        changedPendingSpends.put(wallet, getPendingSpends(wallet));
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, listener);
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, listener);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, listener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, listener);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, listener);
+        TransactionBroadcaster broadcaster = vTransactionBroadcaster;
+        if (broadcaster != null)
+            wallet.setTransactionBroadcaster(broadcaster);
+        walletChanged(wallet, PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+    }
+
+    /** Removes a wallet from the group. Returns false if the wallet wasn't in it. */
+    public boolean removeWallet(Wallet wallet) {
+        checkNotNull(wallet);
+        WalletListener listener = listeners.remove(wallet);
+        if (listener == null)
+            return false;
+        wallet.removeKeyChainEventListener(listener);
+        wallet.removeScriptChangeEventListener(listener);
+        wallet.removeCoinsReceivedEventListener(listener);
+        wallet.removeCoinsSentEventListener(listener);
+        wallet.removeChangeEventListener(listener);
+        lock.lock();
+        try {
+            wallets.remove(wallet);
+            changedWallets.remove(wallet);
+            changedPendingSpends.remove(wallet);
+            for (ByteString outpoint : walletPendingSpends.remove(wallet))
+                pendingSpends.remove(outpoint, wallet);
+            Set<ByteString> elements = walletElements.remove(wallet);
+            for (ByteString element : elements)
+                index.remove(element, wallet);
+            if (!elements.isEmpty())
+                filterNeedsRebuild = true;
+        } finally {
+            lock.unlock();
+        }
+        synchronized (transactionWallets) {
+            for (Set<Wallet> txWallets : transactionWallets.values())
+                txWallets.remove(wallet);
+        }
+        if (vTransactionBroadcaster != null)
+            wallet.setTransactionBroadcaster(null);
+        PeerGroup peerGroup = vPeerGroup;
+        if (peerGroup != null)
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+        return true;
+    }
+
+    /** Returns the wallets in this group, in the order they were added. */
+    public List<Wallet> getWallets() {
+        return Collections.unmodifiableList(wallets);
+    }
+
+    /**
+     * Called by {@link PeerGroup#addWalletGroup(WalletGroup)}: the group asks the peer group to recalculate the filter
+     * when its wallets change, and sets it as the transaction broadcaster of all its wallets.
+     */
+    public void setPeerGroup(@Nullable PeerGroup peerGroup) {
+        vPeerGroup = peerGroup;
+        vTransactionBroadcaster = peerGroup;
+        for (Wallet wallet : wallets)
+            wallet.setTransactionBroadcaster(peerGroup);
+    }
+
+    private void walletChanged(Wallet wallet, PeerGroup.FilterRecalculateMode mode) {
+        // Called with the wallet lock held, so we mustn't take our lock here: we call into wallets while holding it.
+        changedWallets.add(wallet);
+        PeerGroup peerGroup = vPeerGroup;
+        if (peerGroup != null)
+            peerGroup.recalculateFastCatchupAndFilter(mode);
+    }
+
+    private void rememberTransaction(Sha256Hash hash, Wallet wallet) {
+        synchronized (transactionWallets) {
+            Set<Wallet> txWallets = transactionWallets.get(hash);
+            if (txWallets == null) {
+                txWallets = new HashSet<Wallet>();
+                transactionWallets.put(hash, txWallets);
+            }
+            txWallets.add(wallet);
+        }
+    }
+
+    @Nullable
+    private Set<Wallet> getRememberedWallets(Sha256Hash hash) {
+        synchronized (transactionWallets) {
+            Set<Wallet> txWallets = transactionWallets.get(hash);
+            return txWallets != null ? new HashSet<Wallet>(txWallets) : null;
+        }
+    }
+
+    private static Set<ByteString> getPendingSpends(Wallet wallet) {
+        Set<ByteString> outpoints = new HashSet<ByteString>();
+        for (Transaction tx : wallet.getPendingTransactions())
+            for (TransactionInput input : tx.getInputs())
+                outpoints.add(ByteString.copyFrom(input.getOutpoint().unsafeBitcoinSerialize()));
+        return outpoints;
+    }
+
+    private void updateChangedWalletsLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        // Looking at a wallet may generate lookahead keys, which marks it as changed again, hence the loop.
+        while (!changedWallets.isEmpty()) {
+            for (Wallet wallet : new ArrayList<Wallet>(changedWallets)) {
+                changedWallets.remove(wallet);
+                Set<ByteString> oldElements = walletElements.get(wallet);
+                if (oldElements == null)
+                    continue;   // Removed in the meantime.
+                Set<ByteString> newElements = new HashSet<ByteString>();
+                wallet.addBloomFilterElements(newElements);
+                for (ByteString element : oldElements) {
+                    if (!newElements.contains(element)) {
+                        index.remove(element, wallet);
+                        if (!index.containsKey(element))
+                            filterNeedsRebuild = true;
+                    }
+                }
+                for (ByteString element : newElements) {
+                    if (!oldElements.contains(element) && index.put(element, wallet) && index.get(element).size() == 1)
+                        addedSinceFilter.add(element);
+                }
+                walletElements.put(wallet, newElements);
+            }
+        }
+        for (Wallet wallet : new ArrayList<Wallet>(changedPendingSpends.keySet())) {
+            Set<ByteString> newSpends = changedPendingSpends.remove(wallet);
+            Set<ByteString> oldSpends = walletPendingSpends.get(wallet);
+            if (newSpends == null || oldSpends == null)
+                continue;   // Removed in the meantime.
+            for (ByteString outpoint : oldSpends)
+                if (!newSpends.contains(outpoint))
+                    pendingSpends.remove(outpoint, wallet);
+            for (ByteString outpoint : newSpends)
+                pendingSpends.put(outpoint, wallet);
+            walletPendingSpends.put(wallet, newSpends);
+        }
+    }
+
+    /**
+     * Returns the wallets in this group the given transaction matches, the way a remote peer would match it against
+     * the group's Bloom filter: by the data pushed in its output scripts and input scripts, and by the outputs it
+     * spends. Wallets with a pending transaction that spends the same outputs are included as well. The wallets still
+     * decide for themselves whether the transaction is relevant.
+     */
+    public Set<Wallet> findWallets(Transaction tx) {
+        lock.lock();
+        try {
+            updateChangedWalletsLocked();
+            Set<Wallet> result = new LinkedHashSet<Wallet>();
+            for (TransactionOutput output : tx.getOutputs()) {
+                try {
+                    addMatches(output.getScriptPubKey(), result);
+                } catch (ScriptException e) {
+                    // Can't be one of ours.
+                }
+            }
+            for (TransactionInput input : tx.getInputs()) {
+                ByteString outpoint = ByteString.copyFrom(input.getOutpoint().unsafeBitcoinSerialize());
+                result.addAll(index.get(outpoint));
+                result.addAll(pendingSpends.get(outpoint));
+                try {
+                    addMatches(input.getScriptSig(), result);
+                } catch (ScriptException e) {
+                    // The outpoint was checked above.
+                }
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addMatches(Script script, Set<Wallet> result) {
+        for (ScriptChunk chunk : script.getChunks()) {
+            if (!chunk.isOpCode() && chunk.data != null)
+                result.addAll(index.get(ByteString.copyFrom(chunk.data)));
+        }
+    }
+
+    /**
+     * Called by {@link Peer} for transactions broadcast on the network: returns the wallets that should be given the
+     * transaction, and remembers them in case the transaction turns up in a block later.
+     */
+    public Set<Wallet> findWalletsForPendingTransaction(Transaction tx) {
+        Set<Wallet> result = findWallets(tx);
+        for (Wallet wallet : result)
+            rememberTransaction(tx.getHash(), wallet);
+        return result;
+    }
+
+    /** Looks up a transaction in the wallets of this group, for answering getdata requests. */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        Set<Wallet> candidates = getRememberedWallets(hash);
+        for (Wallet wallet : candidates != null ? candidates : wallets) {
+            Transaction tx = wallet.getTransaction(hash);
+            if (tx != null)
+                return tx;
+        }
+        return null;
+    }
+
+    /**
+     * Used by {@link Peer} to decide whether the filter was exhausted by the given block, see
+     * {@link Wallet#checkForFilterExhaustion(FilteredBlock)}. Only the wallets the block's transactions match are asked.
+     */
+    public boolean checkForFilterExhaustion(FilteredBlock block) {
+        Set<Wallet> candidates = new LinkedHashSet<Wallet>();
+        for (Transaction tx : block.getAssociatedTransactions().values())
+            candidates.addAll(findWallets(tx));
+        boolean exhausted = false;
+        for (Wallet wallet : candidates)
+            exhausted |= wallet.checkForFilterExhaustion(block);
+        return exhausted;
+    }
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, AbstractBlockChain.NewBlockType blockType,
+                                 int relativityOffset) throws VerificationException {
+        boolean first = true;
+        for (Wallet wallet : findWallets(tx)) {
+            // As with several wallets registered with the block chain, wallets must not share the transaction object.
+            Transaction walletTx = first ? tx : tx.getParams().getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+            first = false;
+            wallet.receiveFromBlock(walletTx, block, blockType, relativityOffset);
+        }
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
+                                              AbstractBlockChain.NewBlockType blockType,
+                                              int relativityOffset) throws VerificationException {
+        Set<Wallet> candidates = getRememberedWallets(txHash);
+        if (candidates == null) {
+            // We forgot about it, or never heard of it: fall back to asking everyone.
+            log.debug("Don't know which wallets have {}, asking all of them", txHash);
+            candidates = new HashSet<Wallet>(wallets);
+        }
+        boolean found = false;
+        for (Wallet wallet : wallets) {
+            if (candidates.contains(wallet))
+                found |= wallet.notifyTransactionIsInBlock(txHash, block, blockType, relativityOffset);
+        }
+        return found;
+    }
+
+    @Override
+    public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+        for (Wallet wallet : wallets)
+            wallet.notifyNewBestBlock(block);
+    }
+
+    @Override
+    public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks,
+                           List<StoredBlock> newBlocks) throws VerificationException {
+        for (Wallet wallet : wallets)
+            wallet.reorganize(splitPoint, oldBlocks, newBlocks);
+    }
+
+    /** Returns the number of distinct data items in the group's index. */
+    public int getElementCount() {
+        lock.lock();
+        try {
+            updateChangedWalletsLocked();
+            return index.keySet().size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getEarliestKeyCreationTime() {
+        long earliest = Long.MAX_VALUE;
+        for (Wallet wallet : wallets)
+            earliest = Math.min(earliest, wallet.getEarliestKeyCreationTime());
+        return earliest;
+    }
+
+    @Override
+    public void beginBloomFilterCalculation() {
+        lock.lock();
+        updateChangedWalletsLocked();
+    }
+
+    @Override
+    public int getBloomFilterElementCount() {
+        lock.lock();
+        try {
+            return index.keySet().size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        lock.lock();
+        try {
+            updateChangedWalletsLocked();
+            BloomFilter newFilter = new BloomFilter(size, falsePositiveRate, nTweak);
+            if (filter == null || filterNeedsRebuild || size != filterSize
+                    || falsePositiveRate != filterFalsePositiveRate || nTweak != filterTweak) {
+                for (ByteString element : index.keySet())
+                    newFilter.insert(element.toByteArray());
+                filterNeedsRebuild = false;
+            } else {
+                // Copy the last filter rather than changing it, as it may have been handed out already.
+                newFilter.merge(filter);
+                for (ByteString element : addedSinceFilter)
+                    newFilter.insert(element.toByteArray());
+            }
+            addedSinceFilter.clear();
+            filter = newFilter;
+            filterSize = size;
+            filterFalsePositiveRate = falsePositiveRate;
+            filterTweak = nTweak;
+            return newFilter;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isRequiringUpdateAllBloomFilter() {
+        for (Wallet wallet : wallets) {
+            if (wallet.isRequiringUpdateAllBloomFilter())
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void endBloomFilterCalculation() {
+        lock.unlock();
+    }
+}
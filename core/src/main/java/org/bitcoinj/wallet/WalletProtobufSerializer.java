@@ -31,6 +31,7 @@ import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.WireFormat;
 
@@ -74,10 +75,14 @@ public class WalletProtobufSerializer {
     public static final int CURRENT_WALLET_VERSION = Protos.Wallet.getDefaultInstance().getVersion();
     // 512 MB
     private static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+    // The tag of the repeated transaction field of the wallet message, as read by CodedInputStream.
+    private static final int TRANSACTION_TAG =
+            (Protos.Wallet.TRANSACTION_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
+    private boolean loadTransactionsLazily = false;
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
@@ -114,6 +119,16 @@ public class WalletProtobufSerializer {
         requireMandatoryExtensions = value;
     }
 
+    /**
+     * If this property is set to true, only the keys and the transactions that matter for the balance and for spending
+     * are loaded straight away when reading a wallet. Spent and dead transactions are kept in a temporary file and only
+     * loaded when they are needed, see {@link LazyTransactionStore}. This makes big wallets load much faster and use
+     * much less memory, as long as nothing asks for all transactions. The wallet behaves the same either way.
+     */
+    public void setLoadTransactionsLazily(boolean value) {
+        loadTransactionsLazily = value;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -141,15 +156,29 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(wallet, true);
+    }
+
+    /**
+     * Like {@link #walletToProto(Wallet)}, but optionally leaves out the transactions. Used by {@link WalletFiles} to
+     * journal the rest of the wallet separately from the transactions.
+     */
+    Protos.Wallet walletToProto(Wallet wallet, boolean includeTransactions) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
+        if (includeTransactions) {
+            for (WalletTransaction wtx : wallet.getLoadedWalletTransactions()) {
+                Protos.Transaction txProto = makeTxProto(wtx);
+                walletBuilder.addTransaction(txProto);
+            }
+            // Transactions that were never loaded haven't changed, so are written back as they were read.
+            LazyTransactionStore lazyTransactions = wallet.getLazyTransactions();
+            if (lazyTransactions != null)
+                walletBuilder.addAllTransaction(lazyTransactions.readAll());
         }
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
@@ -228,7 +257,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -409,6 +438,8 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
         try {
+            if (loadTransactionsLazily && !forceReset)
+                return readWalletLazily(input, extensions);
             Protos.Wallet walletProto = parseToProto(input);
             final String paramsID = walletProto.getNetworkIdentifier();
             NetworkParameters params = NetworkParameters.fromID(paramsID);
@@ -458,6 +489,88 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        if (loadTransactionsLazily && !forceReset) {
+            try {
+                LazyTransactionStore lazyTransactions = new LazyTransactionStore(params);
+                for (Protos.Transaction txProto : walletProto.getTransactionList())
+                    lazyTransactions.add(txProto.toByteString());
+                return readWallet(params, extensions, walletProto.toBuilder().clearTransaction(), lazyTransactions);
+            } catch (IOException e) {
+                throw new UnreadableWalletException("Could not store transactions for loading later", e);
+            }
+        }
+        return readWallet(params, extensions, walletProto, forceReset, null);
+    }
+
+    // Reads the wallet from the stream without ever holding all of it in memory: transactions go to the lazy store.
+    private Wallet readWalletLazily(InputStream input, @Nullable WalletExtension[] extensions)
+            throws IOException, UnreadableWalletException {
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        ByteString.Output headerBytes = ByteString.newOutput();
+        CodedOutputStream headerOutput = CodedOutputStream.newInstance(headerBytes);
+        List<ByteString> transactions = Lists.newArrayList();
+        LazyTransactionStore lazyTransactions = null;
+        while (true) {
+            int tag = codedInput.readTag();
+            if (tag == 0)
+                break;
+            if (tag == TRANSACTION_TAG) {
+                ByteString txBytes = codedInput.readBytes();
+                if (lazyTransactions != null)
+                    lazyTransactions.add(txBytes);
+                else
+                    transactions.add(txBytes); // Network ID comes first, but we need the params to make the store.
+            } else if (!codedInput.skipField(tag, headerOutput)) {
+                break;
+            }
+            if (lazyTransactions == null && !transactions.isEmpty()) {
+                headerOutput.flush();
+                Protos.Wallet header = Protos.Wallet.parseFrom(headerBytes.toByteString());
+                lazyTransactions = new LazyTransactionStore(getParams(header));
+                for (ByteString txBytes : transactions)
+                    lazyTransactions.add(txBytes);
+                transactions.clear();
+            }
+        }
+        headerOutput.flush();
+        Protos.Wallet.Builder header = Protos.Wallet.newBuilder().mergeFrom(headerBytes.toByteString());
+        NetworkParameters params = getParams(header.build());
+        if (lazyTransactions == null)
+            lazyTransactions = new LazyTransactionStore(params);
+        return readWallet(params, extensions, header, lazyTransactions);
+    }
+
+    private static NetworkParameters getParams(Protos.Wallet walletProto) throws UnreadableWalletException {
+        final String paramsID = walletProto.getNetworkIdentifier();
+        NetworkParameters params = NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+        return params;
+    }
+
+    // Loads the transactions that are needed straight away from the store and the rest when needed.
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet.Builder header, LazyTransactionStore lazyTransactions)
+            throws IOException, UnreadableWalletException {
+        Set<ByteString> watchedScripts = new HashSet<ByteString>();
+        for (Protos.Script script : header.getWatchedScriptList())
+            watchedScripts.add(script.getProgram());
+        header.addAllTransaction(lazyTransactions.removeEagerTransactions(watchedScripts));
+        try {
+            return readWallet(params, extensions, header.build(), false, lazyTransactions);
+        } catch (UnreadableWalletException e) {
+            lazyTransactions.close();
+            throw e;
+        } catch (RuntimeException e) {
+            lazyTransactions.close();
+            throw e;
+        }
+    }
+
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet walletProto, boolean forceReset,
+                              @Nullable LazyTransactionStore lazyTransactions) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
@@ -526,6 +639,13 @@ public class WalletProtobufSerializer {
             if (walletProto.hasKeyRotationTime()) {
                 wallet.setKeyRotationTime(new Date(walletProto.getKeyRotationTime() * 1000));
             }
+
+            if (lazyTransactions != null) {
+                if (lazyTransactions.size(null) > 0)
+                    wallet.setLazyTransactions(lazyTransactions);
+                else
+                    lazyTransactions.close();
+            }
         }
 
         loadExtensions(wallet, extensions != null ? extensions : new WalletExtension[0], walletProto);
@@ -599,6 +719,14 @@ public class WalletProtobufSerializer {
     }
 
     private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+        Transaction tx = parseTransaction(txProto, params);
+        if (txMap.containsKey(txProto.getHash()))
+            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
+        txMap.put(txProto.getHash(), tx);
+    }
+
+    /** Turns the given protobuf into a transaction, without its confidence and not connected to anything. */
+    Transaction parseTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -668,31 +796,13 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
                                                         final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
-        final WalletTransaction.Pool pool;
-        switch (txProto.getPool()) {
-            case DEAD: pool = WalletTransaction.Pool.DEAD; break;
-            case PENDING: pool = WalletTransaction.Pool.PENDING; break;
-            case SPENT: pool = WalletTransaction.Pool.SPENT; break;
-            case UNSPENT: pool = WalletTransaction.Pool.UNSPENT; break;
-            // Upgrade old wallets: inactive pool has been merged with the pending pool.
-            // Remove this some time after 0.9 is old and everyone has upgraded.
-            // There should not be any spent outputs in this tx as old wallets would not allow them to be spent
-            // in this state.
-            case INACTIVE:
-            case PENDING_INACTIVE:
-                pool = WalletTransaction.Pool.PENDING;
-                break;
-            default:
-                throw new UnreadableWalletException("Unknown transaction pool: " + txProto.getPool());
-        }
+        final WalletTransaction.Pool pool = readPool(txProto);
         for (int i = 0 ; i < tx.getOutputs().size() ; i++) {
             TransactionOutput output = tx.getOutputs().get(i);
             final Protos.TransactionOutput transactionOutput = txProto.getTransactionOutput(i);
@@ -718,7 +828,25 @@ public class WalletProtobufSerializer {
         return new WalletTransaction(pool, tx);
     }
 
-    private void readConfidence(final NetworkParameters params, final Transaction tx,
+    static WalletTransaction.Pool readPool(Protos.Transaction txProto) throws UnreadableWalletException {
+        switch (txProto.getPool()) {
+            case DEAD: return WalletTransaction.Pool.DEAD;
+            case PENDING: return WalletTransaction.Pool.PENDING;
+            case SPENT: return WalletTransaction.Pool.SPENT;
+            case UNSPENT: return WalletTransaction.Pool.UNSPENT;
+            // Upgrade old wallets: inactive pool has been merged with the pending pool.
+            // Remove this some time after 0.9 is old and everyone has upgraded.
+            // There should not be any spent outputs in this tx as old wallets would not allow them to be spent
+            // in this state.
+            case INACTIVE:
+            case PENDING_INACTIVE:
+                return WalletTransaction.Pool.PENDING;
+            default:
+                throw new UnreadableWalletException("Unknown transaction pool: " + txProto.getPool());
+        }
+    }
+
+    void readConfidence(final NetworkParameters params, final Transaction tx,
                                 final Protos.TransactionConfidence confidenceProto,
                                 final TransactionConfidence confidence) throws UnreadableWalletException {
         // We are lenient here because tx confidence is not an essential part of the wallet.
@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+import javax.annotation.Nullable;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>The balances and transactions of a {@link Wallet} as they were after some change to it, returned by
+ * {@link Wallet#getSnapshot()}. Reading from a snapshot never waits for the wallet, so many threads can do so while
+ * the wallet is busy receiving a block or committing a transaction.</p>
+ *
+ * <p>The snapshot itself doesn't change, but the {@link Transaction} objects in it are the wallet's own, and their
+ * confidence keeps changing with the wallet. This class is thread safe.</p>
+ *
+ * <p>Taking a snapshot doesn't load the transactions of a lazily loaded wallet, see
+ * {@link WalletProtobufSerializer#setLoadTransactionsLazily(boolean)}. Only their hashes are kept, and those still
+ * held lazily are looked up in the wallet when asked for. That waits for the wallet, loads them, and returns them as
+ * they are in the wallet by then.</p>
+ */
+public class WalletSnapshot {
+    private final Wallet wallet;
+    private final long version;
+    private final EnumMap<Wallet.BalanceType, Coin> balances;
+    // The loaded transactions, the hashes of the ones that weren't, and the hashes of the dead ones among either.
+    private final ImmutableMap<Sha256Hash, Transaction> transactions;
+    private final ImmutableSet<Sha256Hash> notLoaded;
+    private final ImmutableSet<Sha256Hash> dead;
+    @Nullable private final Sha256Hash lastBlockSeenHash;
+    private final int lastBlockSeenHeight;
+
+    WalletSnapshot(Wallet wallet, long version, Map<Wallet.BalanceType, Coin> balances,
+                   Map<Sha256Hash, Transaction> transactions, Set<Sha256Hash> notLoaded, Set<Sha256Hash> dead,
+                   @Nullable Sha256Hash lastBlockSeenHash, int lastBlockSeenHeight) {
+        this.wallet = wallet;
+        this.version = version;
+        this.balances = new EnumMap<Wallet.BalanceType, Coin>(balances);
+        this.transactions = ImmutableMap.copyOf(transactions);
+        this.notLoaded = ImmutableSet.copyOf(notLoaded);
+        this.dead = ImmutableSet.copyOf(dead);
+        this.lastBlockSeenHash = lastBlockSeenHash;
+        this.lastBlockSeenHeight = lastBlockSeenHeight;
+    }
+
+    /** Returns the number of changes to the wallet this snapshot was taken after. */
+    long getVersion() {
+        return version;
+    }
+
+    /** Returns the balance of the wallet as calculated by the given balance type, see {@link Wallet#getBalance(Wallet.BalanceType)}. */
+    public Coin getBalance(Wallet.BalanceType balanceType) {
+        return balances.get(balanceType);
+    }
+
+    /** Returns the {@link Wallet.BalanceType#ESTIMATED} balance, see {@link Wallet#getBalance()}. */
+    public Coin getBalance() {
+        return getBalance(Wallet.BalanceType.ESTIMATED);
+    }
+
+    /**
+     * Returns the transactions in the wallet. Of a lazily loaded wallet, this loads all transactions.
+     * @param includeDead If true, transactions that were overridden by a double spend are included.
+     */
+    public Set<Transaction> getTransactions(boolean includeDead) {
+        ImmutableSet.Builder<Transaction> builder = ImmutableSet.builder();
+        for (Map.Entry<Sha256Hash, Transaction> entry : transactions.entrySet())
+            if (includeDead || !dead.contains(entry.getKey()))
+                builder.add(entry.getValue());
+        for (Sha256Hash hash : notLoaded) {
+            if (!includeDead && dead.contains(hash))
+                continue;
+            Transaction tx = wallet.getTransaction(hash);
+            if (tx != null)
+                builder.add(tx);
+        }
+        return builder.build();
+    }
+
+    /** Returns the transaction with the given hash, or null if there was none in the wallet. */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        Transaction tx = transactions.get(hash);
+        if (tx == null && notLoaded.contains(hash))
+            tx = wallet.getTransaction(hash);
+        return tx;
+    }
+
+    /** Returns the number of transactions in the wallet, including dead ones. */
+    public int getTransactionCount() {
+        return transactions.size() + notLoaded.size();
+    }
+
+    /** Returns the hash of the last seen best-chain block, or null if the wallet is too old to store this data. */
+    @Nullable
+    public Sha256Hash getLastBlockSeenHash() {
+        return lastBlockSeenHash;
+    }
+
+    /** Returns the height of the last seen best-chain block, or -1 if none was seen. */
+    public int getLastBlockSeenHeight() {
+        return lastBlockSeenHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "Wallet snapshot at height " + lastBlockSeenHeight + ", " + getTransactionCount() + " transactions, balance "
+                + getBalance().toFriendlyString();
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet.listeners;
+
+import org.bitcoinj.wallet.DeterministicKeyChain;
+
+public interface KeyChainLookaheadListener {
+    /**
+     * Called while a {@link DeterministicKeyChain} is deriving keys to fill up its lookahead zone, each time another
+     * batch of keys is done. The keys only become part of the chain once all of them have been derived, at which
+     * point the usual {@link KeyChainEventListener#onKeysAdded(java.util.List)} event is sent.
+     *
+     * @param keysDerived how many keys have been derived so far in this round of lookahead
+     * @param keysNeeded how many keys this round of lookahead derives in total
+     */
+    void onLookaheadProgress(DeterministicKeyChain chain, int keysDerived, int keysNeeded);
+}
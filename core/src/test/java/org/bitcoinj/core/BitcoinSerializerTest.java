@@ -235,4 +235,43 @@ public class BitcoinSerializerTest {
         ByteArrayOutputStream bos = new ByteArrayOutputStream(ADDRESS_MESSAGE_BYTES.length);
         serializer.serialize(unknownMessage, bos);
     }
+
+    @Test
+    public void testParseFromLargerArray() throws Exception {
+        Context.propagate(new Context(MainNetParams.get()));
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        Block genesis = MainNetParams.get().getGenesisBlock();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(genesis, bos);
+        // The block is followed by a message that isn't complete yet.
+        byte[] bytes = Arrays.copyOf(bos.toByteArray(), bos.size() + ADDRESS_MESSAGE_BYTES.length - 1);
+        System.arraycopy(ADDRESS_MESSAGE_BYTES, 0, bytes, bos.size(), ADDRESS_MESSAGE_BYTES.length - 1);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Block block = (Block) serializer.deserialize(buffer);
+        assertEquals(bos.size(), buffer.position());
+        // The block must not depend on the array it was parsed from.
+        Arrays.fill(bytes, (byte) 0);
+        assertEquals(genesis, block);
+        assertEquals(genesis.getTransactions(), block.getTransactions());
+        assertArrayEquals(genesis.bitcoinSerialize(), block.bitcoinSerialize());
+    }
+
+    @Test
+    public void testParseFromDirectBuffer() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        Transaction expected = (Transaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSACTION_MESSAGE_BYTES.length);
+        buffer.put(TRANSACTION_MESSAGE_BYTES).flip();
+        Transaction tx = (Transaction) serializer.deserialize(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(expected.getHash(), tx.getHash());
+        assertArrayEquals(expected.bitcoinSerialize(), tx.bitcoinSerialize());
+        assertTrue(BitcoinSerializer.PAYLOAD_POOL.getPooledBytes() > 0);
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void testPayloadTooShort() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        serializer.deserialize(ByteBuffer.wrap(Arrays.copyOf(TRANSACTION_MESSAGE_BYTES, TRANSACTION_MESSAGE_BYTES.length - 1)));
+    }
 }
@@ -17,6 +17,7 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.core.listeners.NewBestBlockListener;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet2Params;
 import org.bitcoinj.params.UnitTestParams;
@@ -24,6 +25,7 @@ import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.MemoryBlockStore;
 import org.bitcoinj.testing.FakeTxBuilder;
 import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 
@@ -35,7 +37,9 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import static org.bitcoinj.core.Coin.*;
@@ -153,6 +157,79 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void orphansConnectInReverse() throws Exception {
+        // A chain that arrives backwards, plus an orphan on a side branch, all connect once the first block comes in.
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = PARAMS.getGenesisBlock();
+        for (int i = 0; i < 9; i++)
+            blocks.add(prev = prev.createNextBlock(coinbaseTo));
+        Block side = blocks.get(4).createNextBlock(coinbaseTo);
+        assertFalse(chain.add(side));
+        for (int i = blocks.size() - 1; i > 0; i--)
+            assertFalse(chain.add(blocks.get(i)));
+        assertEquals(9, chain.getOrphanBlockCount());
+        assertTrue(chain.getOrphanBlocksBytes() > 0);
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(blocks.get(8).cloneAsHeader(), chain.getChainHead().getHeader());
+        assertNotNull(blockStore.get(side.getHash()));
+        assertEquals(0, chain.getOrphanBlockCount());
+        assertEquals(0, chain.getOrphanBlocksBytes());
+        assertEquals(0, chain.getEvictedOrphanBlockCount());
+    }
+
+    @Test
+    public void orphanEviction() throws Exception {
+        Block b1 = PARAMS.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        // Room for two orphans.
+        chain.setMaxOrphanBlocksBytes(b2.getOptimalEncodingMessageSize() * 2 + 1);
+        assertFalse(chain.add(b2));
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(b4));
+        assertEquals(2, chain.getOrphanBlockCount());
+        assertEquals(1, chain.getEvictedOrphanBlockCount());
+        assertEquals(b2.getOptimalEncodingMessageSize(), chain.getEvictedOrphanBlocksBytes());
+        assertFalse(chain.isOrphan(b2.getHash()));
+        assertEquals(b3, chain.getOrphanRoot(b4.getHash()));
+        // b2 was thrown away, so b3 and b4 stay put until it comes again.
+        assertTrue(chain.add(b1));
+        assertEquals(b1.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertTrue(chain.add(b2));
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(0, chain.getOrphanBlockCount());
+    }
+
+    @Test
+    public void orphanSiblingsConnectAfterFailure() throws Exception {
+        // An orphan that fails to connect doesn't leave its siblings, or their children, behind.
+        Block b1 = PARAMS.getGenesisBlock().createNextBlock(coinbaseTo);
+        final Block bad = b1.createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo, Block.BLOCK_VERSION_GENESIS, b1.getTimeSeconds() + 10, 2);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                if (block.getHeader().getHash().equals(bad.getHash()))
+                    throw new VerificationException("bad block");
+            }
+        });
+        assertFalse(chain.add(bad));
+        assertFalse(chain.add(b2));
+        assertFalse(chain.add(b3));
+        try {
+            chain.add(b1);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(b3.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(0, chain.getOrphanBlockCount());
+        assertEquals(0, chain.getOrphanBlocksBytes());
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CachingFullPrunedBlockStore;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * A CachingFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest, with a cache small enough to evict
+ * outputs and changes that are written every few blocks.
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private int flushInterval = 3;
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        CachingFullPrunedBlockStore store =
+                new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockCount), 16 * 1024, 4);
+        store.setOutputFlushInterval(flushInterval);
+        return store;
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        //No-op for memory store, because it's not persistent
+    }
+
+    @Override
+    @Test
+    public void testFinalizedBlocks() throws Exception {
+        // Old undo blocks are pruned when the verified chain head is written, which this test expects at every block.
+        flushInterval = 1;
+        super.testFinalizedBlocks();
+    }
+
+    @Test
+    public void writeBack() throws Exception {
+        CachingFullPrunedBlockStore store = (CachingFullPrunedBlockStore) createStore(PARAMS, 10);
+        this.store = store;
+        FullPrunedBlockStore underlying = store.getStore();
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ECKey outKey = new ECKey();
+        Block rollingBlock = PARAMS.getGenesisBlock();
+        for (int height = 1; height <= 2; height++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height);
+            chain.add(rollingBlock);
+        }
+        // Not written yet, but there all the same.
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        assertTrue(store.getUnflushedOutputChanges() > 0);
+        assertNull(underlying.getTransactionOutput(coinbase.getHash(), 0));
+        assertEquals(coinbase.getOutput(0).getValue(), store.getTransactionOutput(coinbase.getHash(), 0).getValue());
+        assertTrue(store.hasUnspentOutputs(coinbase.getHash(), 1));
+        assertEquals(rollingBlock.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertEquals(PARAMS.getGenesisBlock().getHash(), underlying.getVerifiedChainHead().getHeader().getHash());
+
+        rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), 3);
+        chain.add(rollingBlock);
+        assertEquals(0, store.getUnflushedOutputChanges());
+        assertNotNull(underlying.getTransactionOutput(coinbase.getHash(), 0));
+        assertEquals(rollingBlock.getHash(), underlying.getVerifiedChainHead().getHeader().getHash());
+
+        // Outputs that were written are served from the cache from then on.
+        long hits = store.getHitCount();
+        assertNotNull(store.getTransactionOutput(coinbase.getHash(), 0));
+        assertEquals(hits + 1, store.getHitCount());
+        assertTrue(store.getHitRatio() > 0);
+        store.close();
+    }
+
+    @Test
+    public void eviction() throws Exception {
+        CachingFullPrunedBlockStore store = new CachingFullPrunedBlockStore(
+                new MemoryFullPrunedBlockStore(PARAMS, 10), 1024, 1);
+        this.store = store;
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ECKey outKey = new ECKey();
+        Block rollingBlock = PARAMS.getGenesisBlock();
+        Transaction first = null;
+        for (int height = 1; height <= 9; height++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height);
+            chain.add(rollingBlock);
+            if (first == null)
+                first = rollingBlock.getTransactions().get(0);
+        }
+        assertTrue(store.getEvictionCount() > 0);
+        assertTrue(store.getCachedOutputCount() < 9);
+        // Evicted outputs are read from the underlying store again.
+        long misses = store.getMissCount();
+        assertNotNull(store.getTransactionOutput(first.getHash(), 0));
+        assertEquals(misses + 1, store.getMissCount());
+        store.close();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChainIndexTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private CountingBlockStore store;
+
+    private static class CountingBlockStore extends MemoryBlockStore {
+        int gets;
+
+        CountingBlockStore() {
+            super(PARAMS);
+        }
+
+        @Override
+        public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            gets++;
+            return super.get(hash);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        store = new CountingBlockStore();
+    }
+
+    // Builds a chain of the given length on top of the given block. The first element is the given block.
+    private List<StoredBlock> buildChain(StoredBlock prev, int length, int seed) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        blocks.add(prev);
+        for (int i = 0; i < length; i++) {
+            Block header = new Block(PARAMS, Block.BLOCK_VERSION_GENESIS, prev.getHeader().getHash(),
+                    Sha256Hash.ZERO_HASH, i, Block.EASIEST_DIFFICULTY_TARGET, seed, new ArrayList<Transaction>());
+            StoredBlock block = prev.build(header);
+            store.put(block);
+            blocks.add(block);
+            prev = block;
+        }
+        return blocks;
+    }
+
+    @Test
+    public void ancestors() throws Exception {
+        List<StoredBlock> chain = buildChain(store.getChainHead(), 1000, 0);
+        ChainIndex index = new ChainIndex();
+        StoredBlock tip = chain.get(1000);
+        assertEquals(chain.get(0), index.getAncestor(tip, 0, store));
+        assertEquals(1000, store.gets);
+        // Now the whole chain is indexed, and walks don't need the store.
+        store.gets = 0;
+        for (int height = 0; height <= 1000; height += 7)
+            assertEquals(chain.get(height), index.getAncestor(tip, height, store));
+        assertEquals(chain.get(999), index.getPrev(tip, store));
+        assertEquals(tip, index.getAncestor(tip, 1000, store));
+        assertNull(index.getAncestor(tip, -1, store));
+        assertNull(index.getPrev(chain.get(0), store));
+        assertEquals(0, store.gets);
+    }
+
+    @Test
+    public void forks() throws Exception {
+        List<StoredBlock> chain = buildChain(store.getChainHead(), 300, 0);
+        List<StoredBlock> fork = buildChain(chain.get(200), 150, 1);
+        ChainIndex index = new ChainIndex();
+        index.getAncestor(chain.get(300), 0, store);
+        index.getAncestor(fork.get(150), 0, store);
+        for (int height = 0; height <= 200; height += 5)
+            assertEquals(chain.get(height), index.getAncestor(fork.get(150), height, store));
+        for (int height = 201; height <= 350; height += 5)
+            assertEquals(fork.get(height - 200), index.getAncestor(fork.get(150), height, store));
+        for (int height = 201; height <= 300; height += 5)
+            assertEquals(chain.get(height), index.getAncestor(chain.get(300), height, store));
+    }
+
+    @Test
+    public void prunes() throws Exception {
+        List<StoredBlock> chain = buildChain(store.getChainHead(), 1000, 0);
+        ChainIndex index = new ChainIndex(100);
+        for (StoredBlock block : chain)
+            index.add(block);
+        assertTrue(index.size() <= 125);
+        StoredBlock tip = chain.get(1000);
+        store.gets = 0;
+        assertEquals(chain.get(950), index.getAncestor(tip, 950, store));
+        assertEquals(0, store.gets);
+        // Further back the store is used.
+        assertEquals(chain.get(10), index.getAncestor(tip, 10, store));
+        assertTrue(store.gets > 0);
+        assertTrue(index.size() <= 125);
+    }
+
+    @Test
+    public void medianTimestamp() throws Exception {
+        List<StoredBlock> chain = buildChain(store.getChainHead(), 20, 0);
+        ChainIndex index = new ChainIndex();
+        for (StoredBlock block : chain)
+            assertEquals(AbstractBlockChain.getMedianTimestampOfRecentBlocks(block, store),
+                    index.getMedianTimestamp(block, store));
+    }
+
+    @Test
+    public void skipHeights() throws Exception {
+        for (int height = 2; height < 100000; height++) {
+            int skip = ChainIndex.getSkipHeight(height);
+            assertTrue(skip >= 0 && skip < height);
+        }
+        assertEquals(0, ChainIndex.getSkipHeight(1));
+    }
+}
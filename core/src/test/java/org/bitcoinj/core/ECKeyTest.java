@@ -236,6 +236,28 @@ public class ECKeyTest {
         assertEquals(expectedAddress, gotAddress);
     }
 
+    @Test
+    public void verifyBatch() throws Exception {
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        byte[][] data = new byte[4][];
+        ECKey.ECDSASignature[] sigs = new ECKey.ECDSASignature[4];
+        for (int i = 0; i < data.length; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            data[i] = hash.getBytes();
+            sigs[i] = (i % 2 == 0 ? key1 : key2).sign(hash);
+        }
+        // Entry 1 claims the wrong key and entry 3 has a public key that isn't on the curve.
+        byte[] badPub = key2.getPubKey().clone();
+        badPub[0] = 5;
+        byte[][] pubs = { key1.getPubKey(), key1.getPubKey(), key1.getPubKey(), badPub };
+        boolean[] results = ECKey.verifyBatch(data, sigs, pubs);
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+        assertTrue(results[2]);
+        assertFalse(results[3]);
+    }
+
     @Test
     public void keyRecovery() throws Exception {
         ECKey key = new ECKey();
@@ -14,13 +14,18 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.H2FullPrunedBlockStore;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
 
+import static org.junit.Assert.*;
+
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
  */
@@ -50,4 +55,82 @@ public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
     public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
         ((H2FullPrunedBlockStore)store).resetStore();
     }
+
+    @Test
+    public void outputFlushInterval() throws Exception {
+        H2FullPrunedBlockStore store = (H2FullPrunedBlockStore) createStore(PARAMS, 10);
+        this.store = store;
+        store.setOutputFlushInterval(4);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ECKey outKey = new ECKey();
+        Block rollingBlock = PARAMS.getGenesisBlock();
+        for (int height = 1; height <= 3; height++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height);
+            chain.add(rollingBlock);
+        }
+        // Not written yet, but there all the same.
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        assertTrue(store.getUnflushedOutputChanges() > 0);
+        assertNotNull(store.getTransactionOutput(coinbase.getHash(), 0));
+        assertTrue(store.hasUnspentOutputs(coinbase.getHash(), 1));
+        assertEquals(rollingBlock.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+
+        rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), 4);
+        chain.add(rollingBlock);
+        assertEquals(0, store.getUnflushedOutputChanges());
+
+        rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), 5);
+        chain.add(rollingBlock);
+        assertTrue(store.getUnflushedOutputChanges() > 0);
+        // Closing writes what is left.
+        store.close();
+        store = new H2FullPrunedBlockStore(PARAMS, "test", "sa", "sa", 10);
+        this.store = store;
+        assertEquals(rollingBlock.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertNotNull(store.getTransactionOutput(rollingBlock.getTransactions().get(0).getHash(), 0));
+        assertNotNull(store.getTransactionOutput(coinbase.getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void failedWriteDropsOutputChanges() throws Exception {
+        deleteFiles();
+        final boolean[] failWrites = new boolean[1];
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(PARAMS, "test", "sa", "sa", 10) {
+            @Override
+            protected String getInsertOpenoutputsSQL() {
+                return failWrites[0] ? "INSERT INTO nosuchtable VALUES (?)" : super.getInsertOpenoutputsSQL();
+            }
+        };
+        this.store = store;
+        store.setOutputFlushInterval(2);
+        Script script = ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS));
+        UTXO first = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false, script);
+        UTXO second = new UTXO(Sha256Hash.of(new byte[] { 2 }), 0, Coin.COIN, 2, false, script);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(first);
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, store.getUnflushedOutputChanges());
+
+        // Writing fails when the second batch is committed, which must take its changes away with it.
+        failWrites[0] = true;
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(second);
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+        }
+        assertEquals(1, store.getUnflushedOutputChanges());
+        assertNull(store.getTransactionOutput(second.getHash(), second.getIndex()));
+
+        // The changes committed before are still written once writing works again.
+        failWrites[0] = false;
+        store.flush();
+        assertEquals(0, store.getUnflushedOutputChanges());
+        assertNotNull(store.getTransactionOutput(first.getHash(), first.getIndex()));
+        assertNull(store.getTransactionOutput(second.getHash(), second.getIndex()));
+        store.close();
+    }
 }
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelScriptVerifierTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int NUM_INPUTS = 100;
+
+    private ParallelScriptVerifier verifier;
+    private ECKey key;
+    private Transaction tx;
+    private List<Script> prevOutScripts;
+    private List<Coin> prevOutValues;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        verifier = new ParallelScriptVerifier(4);
+        key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(PARAMS));
+        tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.COIN, new ECKey().toAddress(PARAMS));
+        prevOutScripts = new ArrayList<Script>();
+        prevOutValues = new ArrayList<Coin>();
+        for (int i = 0; i < NUM_INPUTS; i++) {
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS, i, Sha256Hash.ZERO_HASH)));
+            prevOutScripts.add(scriptPubKey);
+            prevOutValues.add(Coin.COIN);
+        }
+        for (int i = 0; i < NUM_INPUTS; i++) {
+            TransactionSignature sig = tx.calculateSignature(i, key, scriptPubKey, Transaction.SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(sig, key));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        verifier.shutdown();
+    }
+
+    @Test
+    public void bigTransactionIsSplitAcrossJobs() throws Exception {
+        ParallelScriptVerifier.BlockVerification verification = verifier.begin(NUM_INPUTS);
+        verification.add(tx, prevOutScripts, prevOutValues, EnumSet.noneOf(Script.VerifyFlag.class));
+        verification.awaitResult();
+        assertEquals(NUM_INPUTS, verifier.getLastBlockInputs());
+    }
+
+    @Test
+    public void failureIsReportedAndVerifierStaysUsable() throws Exception {
+        List<Script> badScripts = new ArrayList<Script>(prevOutScripts);
+        badScripts.set(NUM_INPUTS - 1, ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS)));
+        ParallelScriptVerifier.BlockVerification verification = verifier.begin(NUM_INPUTS);
+        verification.add(tx, badScripts, prevOutValues, EnumSet.noneOf(Script.VerifyFlag.class));
+        try {
+            verification.awaitResult();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+
+        // The pool must not have been shut down by the failure.
+        verification = verifier.begin(NUM_INPUTS);
+        verification.add(tx, prevOutScripts, prevOutValues, EnumSet.noneOf(Script.VerifyFlag.class));
+        verification.awaitResult();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mismatchedPrevOuts() throws Exception {
+        verifier.begin(NUM_INPUTS).add(tx, Collections.<Script>emptyList(), prevOutValues,
+                EnumSet.noneOf(Script.VerifyFlag.class));
+    }
+}
@@ -23,6 +23,8 @@ import com.google.common.net.*;
 import com.google.common.util.concurrent.*;
 import org.bitcoinj.core.listeners.*;
 import org.bitcoinj.net.discovery.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
 import org.bitcoinj.testing.*;
 import org.bitcoinj.utils.*;
 import org.bitcoinj.wallet.Wallet;
@@ -346,6 +348,231 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertNull(message == null ? "" : message.toString(), message);
     }
 
+    @Test
+    public void txMemoryPoolRemovesConfirmed() throws Exception {
+        TxMemoryPool pool = new TxMemoryPool();
+        peerGroup.setTxMemoryPool(pool);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, new ECKey().toAddress(PARAMS));
+        Transaction other = FakeTxBuilder.createFakeTx(PARAMS, Coin.CENT, new ECKey().toAddress(PARAMS));
+        assertTrue(pool.add(tx));
+        assertTrue(pool.add(other));
+
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(blockStore.getChainHead().getHeader(), tx);
+        inbound(p1, b1);
+        pingAndWait(p1);
+        assertEquals(b1.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertFalse(pool.contains(tx.getHash()));
+        assertTrue(pool.contains(other.getHash()));
+    }
+
+    @Test
+    public void headersFirstDownload() throws Exception {
+        // Check that the headers come from the download peer, and the blocks from all peers.
+        peerGroup.setHeadersFirstDownload(true);
+        peerGroup.start();
+        remoteVersionMessage.bestHeight = 3;
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(blockStore, address);
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1);
+        Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        InboundMessageQueuer download = peerOf(p1) == peerGroup.getDownloadPeer() ? p1 : p2;
+        InboundMessageQueuer other = download == p1 ? p2 : p1;
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(download);
+        assertEquals(blockStore.getChainHead().getHeader().getHash(), getheaders.getLocator().get(0));
+        assertNull(outbound(other));
+        inbound(download, new HeadersMessage(PARAMS, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+
+        // The three blocks are spread over both peers.
+        Map<Sha256Hash, InboundMessageQueuer> requested = requestedBlocks(p1, p2);
+        assertEquals(3, requested.size());
+        assertTrue(requested.containsValue(p1));
+        assertTrue(requested.containsValue(p2));
+
+        // Blocks that come in out of order are handed to the chain in order.
+        for (Block block : new Block[] { b3, b2, b1 }) {
+            InboundMessageQueuer p = requested.get(block.getHash());
+            inbound(p, block);
+            pingAndWait(p);
+        }
+        assertEquals(b3, blockChain.getChainHead().getHeader());
+
+        // Once done, new blocks are downloaded from the download peer as usual.
+        Message m;
+        while ((m = outbound(download)) != null && !(m instanceof GetBlocksMessage)) {
+            // Skip the pings that ended the requests.
+        }
+        assertTrue(m instanceof GetBlocksMessage);
+    }
+
+    // Returns which of the given peers each block was requested from.
+    private Map<Sha256Hash, InboundMessageQueuer> requestedBlocks(InboundMessageQueuer... peers) throws Exception {
+        Map<Sha256Hash, InboundMessageQueuer> requested = new HashMap<Sha256Hash, InboundMessageQueuer>();
+        for (InboundMessageQueuer p : peers) {
+            GetDataMessage getdata = (GetDataMessage) outbound(p);
+            for (InventoryItem item : getdata.getItems())
+                requested.put(item.hash, p);
+        }
+        return requested;
+    }
+
+    // Waits for the next blocks to be requested from the given peer.
+    private List<Sha256Hash> waitForRequestedBlocks(InboundMessageQueuer p) throws Exception {
+        Message m;
+        while (!((m = waitForOutbound(p)) instanceof GetDataMessage)) {
+            // Skip the pings that ended earlier requests.
+        }
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (InventoryItem item : ((GetDataMessage) m).getItems())
+            hashes.add(item.hash);
+        return hashes;
+    }
+
+    @Test
+    public void headersFirstDownloadStall() throws Exception {
+        // Blocks a peer doesn't deliver in time are requested from another peer.
+        Utils.setMockClock();
+        try {
+            peerGroup.setHeadersFirstDownload(true);
+            peerGroup.start();
+            remoteVersionMessage.bestHeight = 3;
+            InboundMessageQueuer p1 = connectPeer(1);
+            InboundMessageQueuer p2 = connectPeer(2);
+
+            Block b1 = FakeTxBuilder.makeSolvedTestBlock(blockStore, address);
+            Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1);
+            Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+            Map<Sha256Hash, Block> blocks = new HashMap<Sha256Hash, Block>();
+            for (Block block : new Block[] { b1, b2, b3 })
+                blocks.put(block.getHash(), block);
+
+            peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+            });
+            InboundMessageQueuer download = peerOf(p1) == peerGroup.getDownloadPeer() ? p1 : p2;
+            InboundMessageQueuer slow = download == p1 ? p2 : p1;
+            assertTrue(outbound(download) instanceof GetHeadersMessage);
+            inbound(download, new HeadersMessage(PARAMS, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+            Map<Sha256Hash, InboundMessageQueuer> requested = requestedBlocks(p1, p2);
+            Set<Sha256Hash> stalled = new HashSet<Sha256Hash>();
+            for (Map.Entry<Sha256Hash, InboundMessageQueuer> entry : requested.entrySet()) {
+                if (entry.getValue() == download)
+                    inbound(download, blocks.get(entry.getKey()));
+                else
+                    stalled.add(entry.getKey());
+            }
+            pingAndWait(download);
+            assertFalse(stalled.isEmpty());
+            assertNotEquals(b3, blockChain.getChainHead().getHeader());
+
+            // The slow peer never answers, so once its time is up the download peer is asked instead.
+            Utils.rollMockClock((int) (HeadersFirstDownload.STALL_TIMEOUT_MSEC / 1000) + 1);
+            List<Sha256Hash> reassigned = waitForRequestedBlocks(download);
+            assertEquals(stalled, new HashSet<Sha256Hash>(reassigned));
+            for (Sha256Hash hash : reassigned)
+                inbound(download, blocks.get(hash));
+            pingAndWait(download);
+            assertEquals(b3, blockChain.getChainHead().getHeader());
+        } finally {
+            Utils.mockTime = null;
+        }
+    }
+
+    @Test
+    public void headersFirstDownloadPeerDisconnect() throws Exception {
+        // Blocks requested from a peer that goes away are requested from the remaining peers.
+        peerGroup.setHeadersFirstDownload(true);
+        peerGroup.start();
+        remoteVersionMessage.bestHeight = 3;
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(blockStore, address);
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1);
+        Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+        Map<Sha256Hash, Block> blocks = new HashMap<Sha256Hash, Block>();
+        for (Block block : new Block[] { b1, b2, b3 })
+            blocks.put(block.getHash(), block);
+
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        InboundMessageQueuer download = peerOf(p1) == peerGroup.getDownloadPeer() ? p1 : p2;
+        InboundMessageQueuer other = download == p1 ? p2 : p1;
+        assertTrue(outbound(download) instanceof GetHeadersMessage);
+        inbound(download, new HeadersMessage(PARAMS, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+        Map<Sha256Hash, InboundMessageQueuer> requested = requestedBlocks(p1, p2);
+        Set<Sha256Hash> lost = new HashSet<Sha256Hash>();
+        for (Map.Entry<Sha256Hash, InboundMessageQueuer> entry : requested.entrySet()) {
+            if (entry.getValue() == other)
+                lost.add(entry.getKey());
+        }
+        assertFalse(lost.isEmpty());
+
+        closePeer(peerOf(other));
+        List<Sha256Hash> reassigned = waitForRequestedBlocks(download);
+        assertEquals(lost, new HashSet<Sha256Hash>(reassigned));
+        for (Block block : new Block[] { b3, b2, b1 })
+            inbound(download, block);
+        pingAndWait(download);
+        assertEquals(b3, blockChain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void headersFirstDownloadFork() throws Exception {
+        // After a full message of headers, the download peer carries on with a branch that forks off below them. The
+        // difficulty of UnitTestParams changes too often for a full message of headers, so use a chain of our own.
+        NetworkParameters params = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        BlockChain chain = new BlockChain(new Context(params), new MemoryBlockStore(params));
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        // All blocks are before the fast catchup time, so the headers are all that's needed.
+        HeadersFirstDownload download = new HeadersFirstDownload(params, peerGroup, chain, executor, Long.MAX_VALUE,
+                false);
+        try {
+            download.peerConnected(peerOf(p1));
+            download.start(peerOf(p1));
+            assertTrue(outbound(p1) instanceof GetHeadersMessage);
+
+            List<Block> headers = new ArrayList<Block>();
+            Block prev = params.getGenesisBlock();
+            for (int height = 1; height <= HeadersMessage.MAX_HEADERS; height++) {
+                prev = prev.createNextBlock(address, Block.BLOCK_VERSION_GENESIS, prev.getTimeSeconds() + 1, height);
+                headers.add(prev.cloneAsHeader());
+            }
+            download.receiveHeaders(peerOf(p1), new HeadersMessage(params, headers));
+            GetHeadersMessage getheaders = (GetHeadersMessage) outbound(p1);
+            assertEquals(prev.getHash(), getheaders.getLocator().get(0));
+            assertEquals(HeadersMessage.MAX_HEADERS, chain.getBestChainHeight());
+
+            // The branch is longer, so it becomes the best chain.
+            List<Block> fork = new ArrayList<Block>();
+            prev = headers.get(HeadersMessage.MAX_HEADERS - 3);
+            for (int height = HeadersMessage.MAX_HEADERS - 1; height <= HeadersMessage.MAX_HEADERS + 1; height++) {
+                prev = prev.createNextBlock(address, Block.BLOCK_VERSION_GENESIS, prev.getTimeSeconds() + 2, height);
+                fork.add(prev.cloneAsHeader());
+            }
+            download.receiveHeaders(peerOf(p1), new HeadersMessage(params, fork));
+            assertEquals(prev, chain.getChainHead().getHeader());
+            assertTrue(download.isDone());
+        } finally {
+            download.cancel();
+            executor.shutdownNow();
+        }
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
@@ -316,6 +316,35 @@ public class PeerTest extends TestWithNetworkConnections {
         assertNull(outbound(writeTarget2));
     }
 
+    @Test
+    public void invDownloadTxMemoryPool() throws Exception {
+        TxMemoryPool pool = new TxMemoryPool();
+        peer.setTxMemoryPool(pool);
+        connect();
+        peer.setDownloadData(true);
+        // A transaction that isn't ours, so its dependencies aren't downloaded.
+        Transaction tx = createFakeTx(PARAMS, COIN, new ECKey().toAddress(PARAMS));
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addItem(new InventoryItem(InventoryItem.Type.Transaction, tx.getHash()));
+        inbound(writeTarget, inv);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(tx.getHash(), getdata.getItems().get(0).hash);
+        inbound(writeTarget, tx);
+        pingAndWait(writeTarget);
+        assertTrue(pool.contains(tx.getHash()));
+
+        // Announced again, it's not downloaded again.
+        inbound(writeTarget, inv);
+        pingAndWait(writeTarget);
+        assertNull(outbound(writeTarget));
+
+        // And it's given to the peer when asked for.
+        GetDataMessage request = new GetDataMessage(PARAMS);
+        request.addTransaction(tx.getHash());
+        inbound(writeTarget, request);
+        assertEquals(tx, outbound(writeTarget));
+    }
+
     // Check that inventory message containing blocks we want is processed correctly.
     @Test
     public void newBlock() throws Exception {
@@ -405,6 +405,67 @@ public class TransactionTest {
         }
     }
 
+    @Test
+    public void testHashForSignatureWitnessCacheInvalidation() {
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 1 }))));
+        byte[] scriptCode = tx.getOutput(0).getScriptBytes();
+        Coin value = Coin.COIN;
+        Sha256Hash before = tx.hashForSignatureWitness(1, scriptCode, value, Transaction.SigHash.ALL, false);
+
+        // Changing an input script doesn't change the hash, as scriptSigs aren't signed.
+        tx.getInput(0).setScriptSig(new ScriptBuilder().data(new byte[] { 1, 2, 3 }).build());
+        assertEquals(before, tx.hashForSignatureWitness(1, scriptCode, value, Transaction.SigHash.ALL, false));
+
+        // Changing a sequence number or an output does, and must not be masked by the cache.
+        tx.getInput(0).setSequenceNumber(1);
+        Sha256Hash afterSequence = tx.hashForSignatureWitness(1, scriptCode, value, Transaction.SigHash.ALL, false);
+        assertNotEquals(before, afterSequence);
+        tx.getOutput(0).setValue(tx.getOutput(0).getValue().subtract(Coin.SATOSHI));
+        Sha256Hash afterOutput = tx.hashForSignatureWitness(1, scriptCode, value, Transaction.SigHash.ALL, false);
+        assertNotEquals(afterSequence, afterOutput);
+
+        // Must match what a freshly parsed copy without any cache state computes.
+        Transaction copy = PARAMS.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+        assertEquals(afterOutput, copy.hashForSignatureWitness(1, scriptCode, value, Transaction.SigHash.ALL, false));
+        assertEquals(tx.hashForSignatureWitness(0, scriptCode, value, Transaction.SigHash.SINGLE, true),
+                copy.hashForSignatureWitness(0, scriptCode, value, Transaction.SigHash.SINGLE, true));
+    }
+
+    @Test
+    public void testWitnessSignatureAfterShuffleAndOutpointChange() {
+        ECKey key = new ECKey();
+        Script outputScript = ScriptBuilder.createOutputScript(key);
+        Coin value = Coin.COIN;
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 1 }))));
+        tx.addOutput(Coin.CENT, new ECKey());
+        tx.addOutput(Coin.CENT.multiply(2), new ECKey());
+        tx.addOutput(Coin.CENT.multiply(3), new ECKey());
+        signWitnessInput(tx, key, outputScript, value);
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, outputScript, value, Script.ALL_VERIFY_FLAGS);
+
+        // Re-signing after the outputs have been re-ordered must not reuse the old hashOutputs.
+        TransactionOutput first = tx.getOutput(0);
+        while (tx.getOutput(0) == first)
+            tx.shuffleOutputs();
+        signWitnessInput(tx, key, outputScript, value);
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, outputScript, value, Script.ALL_VERIFY_FLAGS);
+
+        // Nor must changing which output an input spends reuse the old hashPrevouts.
+        tx.getInput(0).getOutpoint().setIndex(1);
+        signWitnessInput(tx, key, outputScript, value);
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, outputScript, value, Script.ALL_VERIFY_FLAGS);
+        Transaction copy = PARAMS.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+        copy.getInput(0).getScriptSig().correctlySpends(copy, 0, outputScript, value, Script.ALL_VERIFY_FLAGS);
+    }
+
+    private void signWitnessInput(Transaction tx, ECKey key, Script outputScript, Coin value) {
+        TransactionSignature signature = tx.calculateWitnessSignature(0, key, outputScript, value,
+                Transaction.SigHash.ALL, false);
+        tx.getInput(0).setScriptSig(ScriptBuilder.createInputScript(signature));
+    }
+
     @Test
     public void testHashForSignature()
     {
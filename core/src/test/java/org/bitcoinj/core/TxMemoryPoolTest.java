@@ -0,0 +1,196 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TxMemoryPoolTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private TxMemoryPool pool;
+    private Address address;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        Utils.setMockClock();
+        pool = new TxMemoryPool();
+        address = new ECKey().toAddress(PARAMS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.mockTime = null;
+    }
+
+    // Spends an output of the given value, which isn't in the pool, paying the given fee.
+    private Transaction spend(int prevOut, Coin value, Coin fee) {
+        Transaction tx = new Transaction(PARAMS);
+        TransactionOutPoint outPoint = new TransactionOutPoint(PARAMS, 0,
+                Sha256Hash.of(new byte[] { (byte) prevOut, (byte) (prevOut >> 8) }));
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], outPoint, value));
+        tx.addOutput(value.subtract(fee), address);
+        return tx;
+    }
+
+    private Transaction spend(Transaction parent) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(parent.getOutput(0));
+        tx.addOutput(parent.getOutput(0).getValue().subtract(Coin.MILLICOIN), address);
+        return tx;
+    }
+
+    @Test
+    public void addAndLookUp() {
+        Transaction tx = spend(1, Coin.COIN, Coin.MILLICOIN);
+        assertTrue(pool.add(tx));
+        assertTrue(pool.add(tx));
+        assertEquals(1, pool.size());
+        assertEquals(tx.getMessageSize(), pool.getTotalSize());
+        assertTrue(pool.contains(tx.getHash()));
+        assertSame(tx, pool.get(tx.getHash()));
+        assertSame(tx, pool.getSpender(tx.getInput(0).getOutpoint()));
+        assertTrue(pool.remove(tx.getHash()));
+        assertFalse(pool.remove(tx.getHash()));
+        assertNull(pool.get(tx.getHash()));
+        assertNull(pool.getSpender(tx.getInput(0).getOutpoint()));
+        assertEquals(0, pool.getTotalSize());
+    }
+
+    @Test
+    public void firstSeenWinsConflicts() {
+        Transaction tx = spend(1, Coin.COIN, Coin.MILLICOIN);
+        Transaction doubleSpend = spend(1, Coin.COIN, Coin.CENT);
+        assertTrue(pool.add(tx));
+        assertFalse(pool.add(doubleSpend));
+        assertFalse(pool.contains(doubleSpend.getHash()));
+        assertEquals(1, pool.getConflicts(doubleSpend).size());
+        assertTrue(pool.getConflicts(doubleSpend).contains(tx));
+        assertTrue(pool.getConflicts(tx).isEmpty());
+    }
+
+    @Test
+    public void lowestFeeRateIsEvicted() {
+        Transaction high = spend(1, Coin.COIN, Coin.CENT);
+        Transaction low = spend(2, Coin.COIN, Coin.SATOSHI);
+        // The fee of this one is known from its parent in the pool, so it's only evicted along with it.
+        Transaction lowChild = spend(low);
+        Transaction unknownFee = spend(3, Coin.COIN, Coin.CENT);
+        unknownFee.clearInputs();
+        unknownFee.addInput(new TransactionInput(PARAMS, unknownFee, new byte[0],
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 3 }))));
+        Transaction medium = spend(4, Coin.COIN, Coin.MILLICOIN);
+        int size = high.getMessageSize();
+        pool.setMaxSize(size * 4);
+        assertTrue(pool.add(high));
+        assertTrue(pool.add(low));
+        assertTrue(pool.add(lowChild));
+        assertTrue(pool.add(unknownFee));
+        assertEquals(4, pool.size());
+
+        // The fee isn't known, so this one goes first.
+        assertTrue(pool.add(medium));
+        assertFalse(pool.contains(unknownFee.getHash()));
+        assertEquals(1, pool.getEvictionCount());
+
+        // Then the one paying least, with its child.
+        pool.setMaxSize(size * 3);
+        assertTrue(pool.add(spend(5, Coin.COIN, Coin.CENT)));
+        assertFalse(pool.contains(low.getHash()));
+        assertFalse(pool.contains(lowChild.getHash()));
+        assertTrue(pool.contains(high.getHash()));
+        assertTrue(pool.contains(medium.getHash()));
+        assertEquals(3, pool.size());
+
+        // A new transaction paying less than all the others isn't kept.
+        assertFalse(pool.add(spend(6, Coin.COIN, Coin.ZERO)));
+        assertEquals(3, pool.size());
+    }
+
+    @Test
+    public void confirmedAndConflicting() throws Exception {
+        Transaction tx = spend(1, Coin.COIN, Coin.MILLICOIN);
+        Transaction child = spend(tx);
+        Transaction other = spend(2, Coin.COIN, Coin.MILLICOIN);
+        Transaction otherChild = spend(other);
+        assertTrue(pool.add(tx));
+        assertTrue(pool.add(child));
+        assertTrue(pool.add(other));
+        assertTrue(pool.add(otherChild));
+
+        // The child of a confirmed transaction can still confirm.
+        pool.removeConfirmed(tx);
+        assertFalse(pool.contains(tx.getHash()));
+        assertTrue(pool.contains(child.getHash()));
+
+        // A double spend confirming takes out what it conflicts with, and what spends that.
+        Block block = PARAMS.getGenesisBlock().createNextBlock(address);
+        block.addTransaction(spend(2, Coin.COIN, Coin.CENT));
+        pool.removeConfirmed(block, null);
+        assertFalse(pool.contains(other.getHash()));
+        assertFalse(pool.contains(otherChild.getHash()));
+
+        assertEquals(1, pool.size());
+        assertEquals(child.getMessageSize(), pool.getTotalSize());
+    }
+
+    @Test
+    public void confirmedInFilteredBlock() throws Exception {
+        Transaction tx = spend(1, Coin.COIN, Coin.MILLICOIN);
+        Transaction child = spend(tx);
+        Transaction other = spend(2, Coin.COIN, Coin.MILLICOIN);
+        Transaction otherChild = spend(other);
+        assertTrue(pool.add(tx));
+        assertTrue(pool.add(child));
+        assertTrue(pool.add(other));
+        assertTrue(pool.add(otherChild));
+
+        // The peer doesn't send transactions it relayed before along with the block, so tx is only known by its hash.
+        Transaction doubleSpend = spend(2, Coin.COIN, Coin.CENT);
+        Block block = PARAMS.getGenesisBlock().createNextBlock(address);
+        block.addTransaction(tx);
+        block.addTransaction(doubleSpend);
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (Transaction blockTx : block.getTransactions())
+            hashes.add(blockTx.getHash());
+        PartialMerkleTree tree = PartialMerkleTree.buildFromLeaves(PARAMS, new byte[] { 12 }, hashes);
+        FilteredBlock filteredBlock = new FilteredBlock(PARAMS, block.cloneAsHeader(), tree);
+        assertTrue(filteredBlock.provideTransaction(doubleSpend));
+        pool.removeConfirmed(filteredBlock.getBlockHeader(), filteredBlock);
+        assertFalse(pool.contains(tx.getHash()));
+        assertTrue(pool.contains(child.getHash()));
+        assertFalse(pool.contains(other.getHash()));
+        assertFalse(pool.contains(otherChild.getHash()));
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void oldTransactionsExpire() {
+        Transaction old = spend(1, Coin.COIN, Coin.MILLICOIN);
+        assertTrue(pool.add(old));
+        Utils.rollMockClock((int) TxMemoryPool.DEFAULT_MAX_AGE_SECS + 1);
+        assertTrue(pool.add(spend(2, Coin.COIN, Coin.MILLICOIN)));
+        assertFalse(pool.contains(old.getHash()));
+        assertEquals(1, pool.size());
+    }
+}
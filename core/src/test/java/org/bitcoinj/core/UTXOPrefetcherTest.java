@@ -0,0 +1,250 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.bitcoinj.core.Coin.FIFTY_COINS;
+import static org.junit.Assert.*;
+
+public class UTXOPrefetcherTest {
+    private static final NetworkParameters PARAMS = new UnitTestParams() {
+        @Override public int getInterval() {
+            return 10000;
+        }
+    };
+
+    private UTXOPrefetcher prefetcher;
+    private MemoryFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        prefetcher = new UTXOPrefetcher(4);
+        store = new MemoryFullPrunedBlockStore(PARAMS, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        prefetcher.shutdown();
+    }
+
+    @Test
+    public void outputsCreatedInTheBlockAreSkipped() throws Exception {
+        Script script = ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS));
+        Transaction spend = new Transaction(PARAMS);
+        for (int i = 0; i < 100; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            if (i % 10 != 0) // Some of them are missing.
+                store.addUnspentTransactionOutput(new UTXO(hash, 0, Coin.COIN, 1, false, script));
+            spend.addInput(new TransactionInput(PARAMS, spend, new byte[0], new TransactionOutPoint(PARAMS, 0, hash)));
+        }
+        spend.addOutput(Coin.COIN, script);
+        Transaction child = new Transaction(PARAMS);
+        child.addInput(spend.getOutput(0));
+        child.addOutput(Coin.COIN, script);
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        transactions.add(spend);
+        transactions.add(child);
+
+        Map<TransactionOutPoint, UTXO> prefetched = prefetcher.prefetch(store, transactions);
+        assertEquals(90, prefetched.size());
+        for (TransactionInput in : spend.getInputs()) {
+            UTXO out = prefetched.get(in.getOutpoint());
+            assertEquals(store.getTransactionOutput(in.getOutpoint().getHash(), 0), out);
+        }
+        assertFalse(prefetched.containsKey(child.getInput(0).getOutpoint()));
+    }
+
+    @Test
+    public void connectBlocks() throws Exception {
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(PARAMS, store);
+        chain.setUTXOPrefetcher(prefetcher);
+        ECKey outKey = new ECKey();
+        int height = 1;
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS,
+                outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(PARAMS, 0, coinbase.getHash());
+        Script spendableOutputScript = coinbase.getOutput(0).getScriptPubKey();
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(),
+                    height++);
+            chain.add(rollingBlock);
+        }
+
+        // The same output spent twice in one block is caught, although it was only looked up once.
+        Block doubleSpend = rollingBlock.createNextBlock(null);
+        for (int i = 0; i < 2; i++) {
+            Transaction t = new Transaction(PARAMS);
+            t.addOutput(new TransactionOutput(PARAMS, t, FIFTY_COINS.subtract(Coin.valueOf(i)), new byte[] {}));
+            t.addSignedInput(spendableOutput, spendableOutputScript, outKey);
+            doubleSpend.addTransaction(t);
+        }
+        doubleSpend.solve();
+        try {
+            chain.add(doubleSpend);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertNotNull(store.getTransactionOutput(spendableOutput.getHash(), 0));
+
+        // An output spent in the block that creates it.
+        Block block = rollingBlock.createNextBlock(null);
+        Transaction spend = new Transaction(PARAMS);
+        spend.addOutput(FIFTY_COINS, outKey);
+        spend.addSignedInput(spendableOutput, spendableOutputScript, outKey);
+        block.addTransaction(spend);
+        Transaction child = new Transaction(PARAMS);
+        child.addOutput(new TransactionOutput(PARAMS, child, FIFTY_COINS, new byte[] {}));
+        child.addSignedInput(spend.getOutput(0), outKey);
+        block.addTransaction(child);
+        block.solve();
+        assertTrue(chain.add(block));
+        assertNull(store.getTransactionOutput(spendableOutput.getHash(), 0));
+        assertNull(store.getTransactionOutput(spend.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(child.getHash(), 0));
+    }
+
+    @Test
+    public void reorgSpendingOutputOfOldChain() throws Exception {
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(PARAMS, store);
+        chain.setUTXOPrefetcher(prefetcher);
+        ECKey outKey = new ECKey();
+        int height = 1;
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS,
+                outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(PARAMS, 0, coinbase.getHash());
+        Script spendableOutputScript = coinbase.getOutput(0).getScriptPubKey();
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(),
+                    height++);
+            chain.add(rollingBlock);
+        }
+
+        // The old chain creates an output.
+        Block oldBlock = rollingBlock.createNextBlock(null);
+        Transaction spend = new Transaction(PARAMS);
+        spend.addOutput(FIFTY_COINS, outKey);
+        spend.addSignedInput(spendableOutput, spendableOutputScript, outKey);
+        oldBlock.addTransaction(spend);
+        oldBlock.solve();
+        assertTrue(chain.add(oldBlock));
+        Transaction child = new Transaction(PARAMS);
+        child.addOutput(new TransactionOutput(PARAMS, child, FIFTY_COINS, new byte[] {}));
+        child.addSignedInput(spend.getOutput(0), outKey);
+
+        // A new chain spends it, although it's gone once the old chain is disconnected: first in a block connected
+        // after the reorg started...
+        Block newBlock = rollingBlock.createNextBlock(null);
+        newBlock.addTransaction(child);
+        newBlock.solve();
+        chain.add(newBlock);
+        try {
+            chain.add(newBlock.createNextBlock(null));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(oldBlock.getHash(), chain.getChainHead().getHeader().getHash());
+        assertNotNull(store.getTransactionOutput(spend.getHash(), 0));
+
+        // ...then in the block that makes the new chain the best one.
+        Block sideBlock = rollingBlock.createNextBlock(null);
+        chain.add(sideBlock);
+        Block newHead = sideBlock.createNextBlock(null);
+        newHead.addTransaction(child);
+        newHead.solve();
+        try {
+            chain.add(newHead);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(oldBlock.getHash(), chain.getChainHead().getHeader().getHash());
+        assertNotNull(store.getTransactionOutput(spend.getHash(), 0));
+    }
+
+    @Test
+    public void prefetchesAfterFailedReorg() throws Exception {
+        final AtomicInteger prefetches = new AtomicInteger();
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(PARAMS, store);
+        chain.setUTXOPrefetcher(new UTXOPrefetcher(1) {
+            @Override
+            public Map<TransactionOutPoint, UTXO> prefetch(FullPrunedBlockStore store, List<Transaction> transactions)
+                    throws BlockStoreException {
+                prefetches.incrementAndGet();
+                return super.prefetch(store, transactions);
+            }
+        });
+        ECKey outKey = new ECKey();
+        int height = 1;
+        Block forkBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS,
+                outKey.getPubKey(), height++);
+        chain.add(forkBlock);
+        Transaction coinbase = forkBlock.getTransactions().get(0);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(PARAMS, 0, coinbase.getHash());
+        Script spendableOutputScript = coinbase.getOutput(0).getScriptPubKey();
+        Block rollingBlock = forkBlock;
+        for (int i = 0; i < 12; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(),
+                    height++);
+            chain.add(rollingBlock);
+        }
+
+        // A new chain that forks off deeper than the store keeps undo data for can't be reorganized to.
+        Block sideBlock = forkBlock;
+        for (int i = 0; i < 12; i++) {
+            sideBlock = sideBlock.createNextBlock(null);
+            chain.add(sideBlock);
+        }
+        try {
+            chain.add(sideBlock.createNextBlock(null));
+            fail();
+        } catch (PrunedException e) {
+            // Expected.
+        }
+        assertEquals(rollingBlock.getHash(), chain.getChainHead().getHeader().getHash());
+
+        // The batch was thrown away, so the next block on the old chain has its outputs prefetched again.
+        prefetches.set(0);
+        Block next = rollingBlock.createNextBlock(null);
+        Transaction spend = new Transaction(PARAMS);
+        spend.addOutput(FIFTY_COINS, outKey);
+        spend.addSignedInput(spendableOutput, spendableOutputScript, outKey);
+        next.addTransaction(spend);
+        next.solve();
+        assertTrue(chain.add(next));
+        assertEquals(1, prefetches.get());
+        assertNull(store.getTransactionOutput(spendableOutput.getHash(), 0));
+    }
+}
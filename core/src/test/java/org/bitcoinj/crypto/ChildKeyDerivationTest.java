@@ -22,6 +22,8 @@ import org.bitcoinj.params.*;
 import org.junit.*;
 import org.spongycastle.crypto.params.*;
 
+import java.util.List;
+
 import static org.bitcoinj.core.Utils.*;
 import static org.junit.Assert.*;
 
@@ -252,6 +254,24 @@ public class ChildKeyDerivationTest {
         assertEquals(DeterministicKey.deserialize(params, key4.serializePrivate(params)).getPath().size(), 1);
     }
 
+    @Test
+    public void bulkDerivation() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(new byte[32]);
+        DeterministicKey watching = DeterministicKey.deserializeB58(master.serializePubB58(MainNetParams.get()), MainNetParams.get());
+        for (DeterministicKey parent : new DeterministicKey[] { master, watching }) {
+            List<DeterministicKey> keys = HDKeyDerivation.deriveChildKeys(parent, 5, 20);
+            assertEquals(20, keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                DeterministicKey single = HDKeyDerivation.deriveThisOrNextChildKey(parent, 5 + i).dropPrivateBytes();
+                assertEquals(single, keys.get(i));
+                assertEquals(single.getPath(), keys.get(i).getPath());
+                assertEquals(parent, keys.get(i).getParent());
+                assertEquals(parent.hasPrivKey(), keys.get(i).hasPrivKey());
+            }
+        }
+        assertTrue(HDKeyDerivation.deriveChildKeys(master, 0, 0).isEmpty());
+    }
+
     /** Reserializing a deserialized key should yield the original input */
     @Test
     public void reserialization() {
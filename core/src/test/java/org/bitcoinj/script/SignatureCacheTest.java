@@ -0,0 +1,80 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private final ECKey key = new ECKey();
+    private final Sha256Hash hash = Sha256Hash.of(new byte[] { 1, 2, 3 });
+
+    @Test
+    public void validSignatureIsCached() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey.ECDSASignature sig = key.sign(hash);
+        assertTrue(cache.verify(hash, sig, key.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.verify(hash, sig, key.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void invalidSignatureIsNotCached() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey.ECDSASignature sig = key.sign(hash);
+        byte[] otherPubKey = new ECKey().getPubKey();
+        assertFalse(cache.verify(hash, sig, otherPubKey));
+        assertFalse(cache.verify(hash, sig, otherPubKey));
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.size());
+        // The valid triple must not be confused with the invalid one.
+        assertFalse(cache.verify(Sha256Hash.of(new byte[] { 4 }), sig, key.getPubKey()));
+    }
+
+    @Test
+    public void verifyBatch() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        Sha256Hash other = Sha256Hash.of(new byte[] { 4 });
+        assertTrue(cache.verify(hash, key.sign(hash), key.getPubKey()));
+        boolean[] results = cache.verifyBatch(new Sha256Hash[] { hash, other, other },
+                new ECKey.ECDSASignature[] { key.sign(hash), key.sign(other), key.sign(hash) },
+                new byte[][] { key.getPubKey(), key.getPubKey(), key.getPubKey() });
+        assertTrue(results[0]);
+        assertTrue(results[1]);
+        assertFalse(results[2]);
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        SignatureCache cache = new SignatureCache(2);
+        for (int i = 0; i < 5; i++) {
+            Sha256Hash h = Sha256Hash.of(new byte[] { (byte) i });
+            assertTrue(cache.verify(h, key.sign(h), key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 2);
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+}
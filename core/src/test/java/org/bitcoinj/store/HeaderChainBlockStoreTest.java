@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeaderChainBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private File file;
+    private HeaderChainBlockStore store;
+    private Address to = new ECKey().toAddress(PARAMS);
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("headerchain", null);
+        file.delete();
+        file.deleteOnExit();
+        store = new HeaderChainBlockStore(PARAMS, file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private void reopen() throws Exception {
+        store.close();
+        store = new HeaderChainBlockStore(PARAMS, file);
+    }
+
+    // Builds a chain of the given length on top of the given block, and returns it.
+    private List<StoredBlock> buildChain(StoredBlock prev, int length) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (int i = 0; i < length; i++) {
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            blocks.add(block);
+            prev = block;
+        }
+        return blocks;
+    }
+
+    @Test
+    public void basics() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(PARAMS.getGenesisBlock(), genesis.getHeader());
+        assertEquals(genesis, store.get(0));
+        assertNull(store.get(1));
+
+        List<StoredBlock> chain = buildChain(genesis, 10);
+        store.setChainHead(chain.get(9));
+        reopen();
+        assertEquals(chain.get(9), store.getChainHead());
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        for (StoredBlock block : chain) {
+            assertEquals(block, store.get(block.getHeader().getHash()));
+            assertEquals(block, store.get(block.getHeight()));
+        }
+        assertNull(store.get(11));
+        assertNull(store.get(Sha256Hash.ZERO_HASH));
+    }
+
+    @Test
+    public void reorg() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> a = buildChain(genesis, 5);
+        store.setChainHead(a.get(4));
+        List<StoredBlock> b = buildChain(a.get(1), 6);
+        store.setChainHead(b.get(5));
+        assertEquals(a.get(1), store.get(2));
+        assertEquals(b.get(0), store.get(3));
+        assertEquals(b.get(5), store.get(8));
+        // Both branches are kept.
+        assertEquals(a.get(4), store.get(a.get(4).getHeader().getHash()));
+
+        reopen();
+        assertEquals(b.get(0), store.get(3));
+        // Back to the shorter branch.
+        store.setChainHead(a.get(4));
+        assertEquals(a.get(2), store.get(3));
+        assertEquals(a.get(4), store.get(5));
+        assertNull(store.get(6));
+    }
+
+    @Test
+    public void startFromCheckpoint() throws Exception {
+        List<StoredBlock> chain = buildChain(store.getChainHead(), 20);
+        store.close();
+        file.delete();
+        store = new HeaderChainBlockStore(PARAMS, file);
+        // Start from a checkpoint, as CheckpointManager would.
+        StoredBlock checkpoint = chain.get(9);
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+        List<StoredBlock> more = buildChain(checkpoint, 5);
+        store.setChainHead(more.get(4));
+        reopen();
+        assertEquals(more.get(4), store.getChainHead());
+        assertNull(store.get(5));
+        assertEquals(checkpoint, store.get(10));
+        assertEquals(more.get(0), store.get(11));
+    }
+
+    @Test
+    public void grows() throws Exception {
+        store.close();
+        file.delete();
+        store = new HeaderChainBlockStore(PARAMS, file);
+        long initialLength = file.length();
+        // Fake enough blocks to fill the initial capacity.
+        StoredBlock prev = store.getChainHead();
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        for (int i = 0; i < HeaderChainBlockStore.INITIAL_CAPACITY + 10; i++) {
+            Block header = new Block(PARAMS, Block.BLOCK_VERSION_GENESIS, prev.getHeader().getHash(),
+                    Sha256Hash.ZERO_HASH, i, Block.EASIEST_DIFFICULTY_TARGET, 0, new ArrayList<Transaction>());
+            StoredBlock block = new StoredBlock(header, prev.getChainWork().add(header.getWork()), prev.getHeight() + 1);
+            store.put(block);
+            chain.add(block);
+            prev = block;
+        }
+        store.setChainHead(prev);
+        assertTrue(file.length() > initialLength);
+        reopen();
+        assertEquals(prev, store.getChainHead());
+        for (int i = 0; i < chain.size(); i += 1000)
+            assertEquals(chain.get(i), store.get(chain.get(i).getHeader().getHash()));
+        assertEquals(chain.get(12345), store.get(12346));
+    }
+}
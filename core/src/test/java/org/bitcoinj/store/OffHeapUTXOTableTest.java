@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OffHeapUTXOTableTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private OffHeapUTXOTable table;
+    private Address address;
+    private Script script;
+
+    @Before
+    public void setUp() throws Exception {
+        table = new OffHeapUTXOTable(PARAMS);
+        address = new ECKey().toAddress(PARAMS);
+        script = ScriptBuilder.createOutputScript(address);
+    }
+
+    private UTXO createOutput(int tx, long index) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) tx, (byte) (tx >> 8), (byte) (tx >> 16) }), index,
+                Coin.valueOf(tx * 1000 + index), tx, false, script, address.toString());
+    }
+
+    @Test
+    public void basics() {
+        UTXO out = createOutput(1, 0);
+        assertNull(table.get(out.getHash(), 0));
+        table.put(out);
+        assertEquals(1, table.size());
+        UTXO found = table.get(out.getHash(), 0);
+        assertEquals(out, found);
+        assertEquals(out.getValue(), found.getValue());
+        assertEquals(address.toString(), found.getAddress());
+        assertTrue(table.contains(out.getHash(), 0));
+        assertFalse(table.contains(out.getHash(), 1));
+        assertEquals(1, table.getByAddress(ImmutableSet.of(address.toString())).size());
+        assertTrue(table.getByAddress(ImmutableSet.of("elsewhere")).isEmpty());
+        assertTrue(table.remove(out.getHash(), 0));
+        assertFalse(table.remove(out.getHash(), 0));
+        assertNull(table.get(out.getHash(), 0));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void randomOperations() {
+        // Enough to grow and compact the segments a few times, checked against a plain map.
+        Map<String, UTXO> expected = new HashMap<String, UTXO>();
+        List<UTXO> all = new ArrayList<UTXO>();
+        Random random = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            int op = random.nextInt(3);
+            if (op < 2 || all.isEmpty()) {
+                UTXO out = createOutput(random.nextInt(50000), random.nextInt(4));
+                table.put(out);
+                if (expected.put(out.getHash() + ":" + out.getIndex(), out) == null)
+                    all.add(out);
+            } else {
+                UTXO out = all.remove(random.nextInt(all.size()));
+                expected.remove(out.getHash() + ":" + out.getIndex());
+                assertTrue(table.remove(out.getHash(), out.getIndex()));
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (UTXO out : expected.values()) {
+            UTXO found = table.get(out.getHash(), out.getIndex());
+            assertEquals(out, found);
+            assertEquals(out.getValue(), found.getValue());
+        }
+        for (int i = 0; i < 1000; i++) {
+            UTXO out = createOutput(60000 + i, 0);
+            assertNull(table.get(out.getHash(), 0));
+        }
+    }
+}
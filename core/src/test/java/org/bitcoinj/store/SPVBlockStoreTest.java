@@ -19,22 +19,47 @@ package org.bitcoinj.store;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class SPVBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
 
-    @Test
-    public void basics() throws Exception {
-        NetworkParameters params = UnitTestParams.get();
+    private static File createStoreFile() throws Exception {
         File f = File.createTempFile("spvblockstore", null);
         f.delete();
         f.deleteOnExit();
+        SPVBlockStore.getIndexFile(f).deleteOnExit();
+        return f;
+    }
+
+    // Puts a chain of the given length on top of the chain head and returns it.
+    private static List<StoredBlock> putChain(SPVBlockStore store, int length) throws Exception {
+        Address to = new ECKey().toAddress(PARAMS);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < length; i++) {
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            store.setChainHead(block);
+            blocks.add(block);
+            prev = block;
+        }
+        return blocks;
+    }
+
+    @Test
+    public void basics() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = createStoreFile();
         SPVBlockStore store = new SPVBlockStore(params, f);
 
         Address to = new ECKey().toAddress(params);
@@ -58,4 +83,61 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void wrapAround() throws Exception {
+        File f = createStoreFile();
+        SPVBlockStore store = new SPVBlockStore(PARAMS, f, 10);
+        Sha256Hash genesisHash = store.getChainHead().getHeader().getHash();
+        List<StoredBlock> blocks = putChain(store, 25);
+        store.close();
+
+        // A fresh store has no cached blocks, so everything comes from the ring.
+        store = new SPVBlockStore(PARAMS, f, 10);
+        assertNull(store.get(genesisHash));
+        for (int i = 0; i < 15; i++)
+            assertNull(store.get(blocks.get(i).getHeader().getHash()));
+        for (int i = 15; i < 25; i++)
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+        assertEquals(blocks.get(24), store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void rebuildsIndex() throws Exception {
+        File f = createStoreFile();
+        SPVBlockStore store = new SPVBlockStore(PARAMS, f, 10);
+        List<StoredBlock> blocks = putChain(store, 13);
+        store.close();
+        assertTrue(SPVBlockStore.getIndexFile(f).delete());
+
+        store = new SPVBlockStore(PARAMS, f, 10);
+        assertNull(store.get(blocks.get(2).getHeader().getHash()));
+        for (int i = 3; i < 13; i++)
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+        // The rebuilt index is kept up to date with new blocks.
+        List<StoredBlock> more = putChain(store, 5);
+        store.close();
+        store = new SPVBlockStore(PARAMS, f, 10);
+        assertNull(store.get(blocks.get(7).getHeader().getHash()));
+        for (int i = 8; i < 13; i++)
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+        for (StoredBlock block : more)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void largeCapacity() throws Exception {
+        File f = createStoreFile();
+        SPVBlockStore store = new SPVBlockStore(PARAMS, f, 200000);
+        List<StoredBlock> blocks = putChain(store, 500);
+        store.close();
+
+        store = new SPVBlockStore(PARAMS, f, 200000);
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertNull(store.get(Sha256Hash.ZERO_HASH));
+        store.close();
+    }
 }
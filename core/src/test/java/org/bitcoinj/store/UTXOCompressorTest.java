@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UTXOCompressorTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Test
+    public void amounts() {
+        // The same values as Bitcoin Core's tests.
+        assertEquals(0x0, UTXOCompressor.compressAmount(0));
+        assertEquals(0x1, UTXOCompressor.compressAmount(1));
+        assertEquals(0x7, UTXOCompressor.compressAmount(Coin.CENT.value));
+        assertEquals(0x9, UTXOCompressor.compressAmount(Coin.COIN.value));
+        assertEquals(0x32, UTXOCompressor.compressAmount(Coin.FIFTY_COINS.value));
+        assertEquals(0x1406f40, UTXOCompressor.compressAmount(21000000 * Coin.COIN.value));
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            long n = i < 50000 ? i : (long) (random.nextDouble() * 21000000 * Coin.COIN.value);
+            assertEquals(n, UTXOCompressor.decompressAmount(UTXOCompressor.compressAmount(n)));
+        }
+    }
+
+    @Test
+    public void varLongs() {
+        ByteBuffer buf = ByteBuffer.allocate(100);
+        long[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1 };
+        for (long n : values)
+            UTXOCompressor.writeVarLong(buf, n);
+        buf.flip();
+        for (long n : values) {
+            int start = buf.position();
+            assertEquals(n, UTXOCompressor.readVarLong(buf));
+            assertEquals(UTXOCompressor.sizeOfVarLong(n), buf.position() - start);
+        }
+    }
+
+    private void assertScript(Script script, int expectedSize) {
+        byte[] program = script.getProgram();
+        assertEquals(expectedSize, UTXOCompressor.sizeOfScript(program));
+        ByteBuffer buf = ByteBuffer.allocate(expectedSize);
+        UTXOCompressor.writeScript(buf, program);
+        assertFalse(buf.hasRemaining());
+        buf.flip();
+        assertArrayEquals(program, UTXOCompressor.readScript(buf));
+    }
+
+    @Test
+    public void scripts() {
+        ECKey key = new ECKey();
+        assertScript(ScriptBuilder.createOutputScript(key.toAddress(PARAMS)), 21);
+        assertScript(ScriptBuilder.createOutputScript(Address.fromP2SHHash(PARAMS, new byte[20])), 21);
+        assertScript(ScriptBuilder.createOutputScript(key), 33);
+        assertScript(ScriptBuilder.createOutputScript(key.decompress()), 33);
+        assertScript(new Script(new byte[0]), 1);
+        byte[] other = new byte[200];
+        Arrays.fill(other, (byte) 0x51);
+        assertScript(new Script(other), 2 + 200);
+        // A key that isn't on the curve can't be restored from its x coordinate, so is kept whole.
+        byte[] badKey = ScriptBuilder.createOutputScript(key.decompress()).getProgram();
+        badKey[40] ^= 1;
+        assertScript(new Script(badKey), 1 + 67);
+    }
+
+    @Test
+    public void roundTrip() {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        Script script = ScriptBuilder.createOutputScript(key.toAddress(PARAMS));
+        UTXO out = new UTXO(hash, 3, Coin.COIN, 123456, true, script, key.toAddress(PARAMS).toString());
+        byte[] encoded = UTXOCompressor.encode(out);
+        assertTrue(encoded.length < 30);
+        UTXO decoded = UTXOCompressor.decode(PARAMS, hash, 3, ByteBuffer.wrap(encoded));
+        assertEquals(out, decoded);
+        assertEquals(Coin.COIN, decoded.getValue());
+        assertEquals(123456, decoded.getHeight());
+        assertTrue(decoded.isCoinbase());
+        assertEquals(script, decoded.getScript());
+        assertEquals(out.getAddress(), decoded.getAddress());
+
+        // The address of other scripts is kept as it is.
+        Script other = new ScriptBuilder().op(0x51).build();
+        out = new UTXO(hash, 0, Coin.SATOSHI, 1, false, other, "somewhere");
+        decoded = UTXOCompressor.decode(PARAMS, hash, 0, ByteBuffer.wrap(UTXOCompressor.encode(out)));
+        assertEquals("somewhere", decoded.getAddress());
+        assertFalse(decoded.isCoinbase());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncated() {
+        UTXO out = new UTXO(Sha256Hash.ZERO_HASH, 0, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(new ECKey()));
+        byte[] encoded = UTXOCompressor.encode(out);
+        UTXOCompressor.decode(PARAMS, Sha256Hash.ZERO_HASH, 0, ByteBuffer.wrap(encoded, 0, encoded.length - 1));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ByteArrayPoolTest {
+    @Test
+    public void sizes() throws Exception {
+        ByteArrayPool pool = new ByteArrayPool(1 << 20);
+        assertEquals(1024, pool.take(0).length);
+        assertEquals(1024, pool.take(1024).length);
+        assertEquals(2048, pool.take(1025).length);
+        assertEquals(1 << 20, pool.take((1 << 19) + 1).length);
+    }
+
+    @Test
+    public void reuse() throws Exception {
+        ByteArrayPool pool = new ByteArrayPool(1 << 20);
+        byte[] array = pool.take(3000);
+        pool.give(array);
+        assertEquals(4096, pool.getPooledBytes());
+        assertSame(array, pool.take(2049));
+        assertEquals(0, pool.getPooledBytes());
+        assertNotSame(array, pool.take(3000));
+        // Arrays of other sizes are not kept.
+        pool.give(new byte[3000]);
+        pool.give(new byte[512]);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        ByteArrayPool pool = new ByteArrayPool(3 * 1024);
+        pool.give(pool.take(2048));
+        pool.give(pool.take(1024));
+        pool.give(new byte[1024]);
+        assertEquals(3 * 1024, pool.getPooledBytes());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class CoalescingEventDispatcherTest {
+    private CoalescingEventDispatcher dispatcher;
+    private LinkedList<Runnable> tasks;
+    private Executor executor;
+    private List<String> events;
+
+    @Before
+    public void setUp() {
+        dispatcher = new CoalescingEventDispatcher();
+        tasks = new LinkedList<Runnable>();
+        executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        events = new ArrayList<String>();
+    }
+
+    private Runnable event(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                events.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void coalesce() {
+        dispatcher.dispatch(executor, "a", event("a1"));
+        dispatcher.dispatch(executor, "b", event("b1"));
+        dispatcher.dispatch(executor, "a", event("a2"));
+        dispatcher.dispatch(executor, null, event("c1"));
+        dispatcher.dispatch(executor, null, event("c2"));
+        // One task for every event that wasn't dropped.
+        assertEquals(4, tasks.size());
+        assertEquals(4, dispatcher.getPendingCount());
+        assertEquals(1, dispatcher.getCoalescedCount());
+        tasks.poll().run();
+        assertEquals(3, dispatcher.getPendingCount());
+
+        // Once an event has started running, an equal one isn't dropped.
+        dispatcher.dispatch(executor, "a", event("a3"));
+        dispatcher.dispatch(executor, "b", event("b2"));
+        assertEquals(2, dispatcher.getCoalescedCount());
+        while (!tasks.isEmpty())
+            tasks.poll().run();
+        assertEquals(0, dispatcher.getPendingCount());
+        assertEquals(5, dispatcher.getDeliveredCount());
+        assertEquals(Arrays.asList("a1", "b1", "c1", "c2", "a3"), events);
+    }
+
+    @Test
+    public void keepsOrderWithOtherTasks() {
+        // Events run where they were dispatched among the other tasks of the executor.
+        dispatcher.dispatch(executor, "a", event("a1"));
+        executor.execute(event("x"));
+        dispatcher.dispatch(executor, "b", event("b1"));
+        dispatcher.dispatch(executor, "a", event("a2"));
+        while (!tasks.isEmpty())
+            tasks.poll().run();
+        assertEquals(Arrays.asList("a1", "x", "b1"), events);
+    }
+
+    @Test
+    public void sameThread() {
+        dispatcher.dispatch(Threading.SAME_THREAD, "a", event("a1"));
+        dispatcher.dispatch(Threading.SAME_THREAD, "a", event("a2"));
+        assertEquals(Arrays.asList("a1", "a2"), events);
+        assertEquals(0, dispatcher.getPendingCount());
+    }
+
+    @Test
+    public void exceptionIsReported() {
+        final List<Throwable> caught = new ArrayList<Throwable>();
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        Threading.uncaughtExceptionHandler = new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                caught.add(e);
+            }
+        };
+        try {
+            dispatcher.dispatch(executor, null, new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException();
+                }
+            });
+            dispatcher.dispatch(executor, null, event("b"));
+            tasks.poll().run();
+            tasks.poll().run();
+            assertEquals(1, caught.size());
+            assertEquals(Arrays.asList("b"), events);
+        } finally {
+            Threading.uncaughtExceptionHandler = handler;
+        }
+    }
+
+    @Test
+    public void rejectedEventIsForgotten() {
+        final AtomicBoolean reject = new AtomicBoolean(true);
+        Executor rejecting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (reject.get())
+                    throw new RejectedExecutionException();
+                tasks.add(command);
+            }
+        };
+        try {
+            dispatcher.dispatch(rejecting, "a", event("a1"));
+            fail();
+        } catch (RejectedExecutionException e) {
+            // Expected.
+        }
+        assertEquals(0, dispatcher.getPendingCount());
+        // An equal event isn't dropped, as the rejected one will never run.
+        reject.set(false);
+        dispatcher.dispatch(rejecting, "a", event("a2"));
+        assertEquals(0, dispatcher.getCoalescedCount());
+        tasks.poll().run();
+        assertEquals(Arrays.asList("a2"), events);
+        assertEquals(0, dispatcher.getPendingCount());
+    }
+
+    @Test
+    public void batchInterval() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+                latch.countDown();
+            }
+        };
+        dispatcher.setBatchInterval(200);
+        dispatcher.dispatch(direct, "a", event("a1"));
+        assertEquals(1, events.size());
+        // The next batch waits out the interval, collecting events meanwhile.
+        long start = System.currentTimeMillis();
+        dispatcher.dispatch(direct, "a", event("a2"));
+        dispatcher.dispatch(direct, "a", event("a3"));
+        assertEquals(1, dispatcher.getPendingCount());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 150);
+        assertEquals(Arrays.asList("a1", "a2"), events);
+        assertEquals(1, dispatcher.getCoalescedCount());
+        assertEquals(2, dispatcher.getDeliveredCount());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ByteArrayMapTest {
+    @Test
+    public void basics() {
+        ByteArrayMap<String> map = new ByteArrayMap<String>();
+        byte[] key = { 1, 2, 3 };
+        assertNull(map.get(key));
+        assertNull(map.put(key, "a"));
+        key[0] = 9; // The map keeps its own copy.
+        assertEquals("a", map.get(new byte[] { 1, 2, 3 }));
+        assertNull(map.get(key));
+        assertNull(map.put(key, "b"));
+        assertEquals("a", map.put(new byte[] { 1, 2, 3 }, "c"));
+        assertEquals(2, map.size());
+        // Replacing a value keeps its place.
+        Iterator<String> values = map.values().iterator();
+        assertEquals("c", values.next());
+        assertEquals("b", values.next());
+        assertFalse(values.hasNext());
+        assertEquals("c", map.remove(new byte[] { 1, 2, 3 }));
+        assertNull(map.remove(new byte[] { 1, 2, 3 }));
+        assertFalse(map.containsKey(new byte[] { 1, 2, 3 }));
+        assertTrue(map.containsKey(key));
+        assertEquals(1, map.size());
+        assertArrayEquals(key, map.keys().iterator().next());
+    }
+
+    @Test
+    public void randomOperations() {
+        // Checked against a LinkedHashMap, including the iteration order, across resizes and removals.
+        ByteArrayMap<Integer> map = new ByteArrayMap<Integer>();
+        Map<ByteString, Integer> expected = new LinkedHashMap<ByteString, Integer>();
+        List<byte[]> added = new ArrayList<byte[]>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            if (random.nextInt(3) < 2 || added.isEmpty()) {
+                byte[] key = new byte[random.nextInt(3) == 0 ? 20 : 2];
+                random.nextBytes(key);
+                Integer previous = expected.put(ByteString.copyFrom(key), i);
+                assertEquals(previous, map.put(key, i));
+                if (previous == null)
+                    added.add(key);
+            } else {
+                byte[] key = added.remove(random.nextInt(added.size()));
+                assertEquals(expected.remove(ByteString.copyFrom(key)), map.remove(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(new ArrayList<Integer>(expected.values()), new ArrayList<Integer>(map.values()));
+        Iterator<byte[]> keys = map.keys().iterator();
+        for (ByteString key : expected.keySet()) {
+            assertArrayEquals(key.toByteArray(), keys.next());
+            assertEquals(expected.get(key), map.get(key.toByteArray()));
+        }
+    }
+}
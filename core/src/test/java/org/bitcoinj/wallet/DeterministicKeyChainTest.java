@@ -23,6 +23,7 @@ import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.utils.BriefLogFormatter;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.listeners.AbstractKeyChainEventListener;
+import org.bitcoinj.wallet.listeners.KeyChainLookaheadListener;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -33,6 +34,7 @@ import org.spongycastle.crypto.params.KeyParameter;
 import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.junit.Assert.*;
@@ -75,6 +77,24 @@ public class DeterministicKeyChainTest {
         assertFalse(key3.isPubKeyOnly());
     }
 
+    @Test
+    public void deriveKeyRange() throws Exception {
+        chain.getKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, 3);
+        int numKeys = chain.numKeys();
+        List<DeterministicKey> keys = chain.deriveKeyRange(KeyChain.KeyPurpose.RECEIVE_FUNDS, 1, 100);
+        assertEquals(100, keys.size());
+        // Keys the chain already had are the very same objects, the rest match what the chain itself would derive.
+        assertSame(chain.findKeyFromPubKey(keys.get(0).getPubKey()), keys.get(0));
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals(1 + i, keys.get(i).getChildNumber().num());
+        assertEquals(numKeys, chain.numKeys());
+        chain.setLookaheadSize(200);
+        chain.maybeLookAhead();
+        for (DeterministicKey key : keys)
+            assertEquals(key, chain.findKeyFromPubKey(key.getPubKey()));
+        assertEquals(keys.get(99).getPubKeyPoint(), chain.deriveKeyRange(KeyChain.KeyPurpose.RECEIVE_FUNDS, 100, 1).get(0).getPubKeyPoint());
+    }
+
     @Test
     public void getKeys() throws Exception {
         chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
@@ -201,6 +221,36 @@ public class DeterministicKeyChainTest {
         assertEquals(1, listenerKeys.get(0).size());  // 1 key.
     }
 
+    @Test
+    public void parallelLookahead() throws Exception {
+        chain.setLookaheadSize(1000);
+        final List<Integer> progress = new CopyOnWriteArrayList<Integer>();
+        chain.addLookaheadListener(new KeyChainLookaheadListener() {
+            @Override
+            public void onLookaheadProgress(DeterministicKeyChain chain, int keysDerived, int keysNeeded) {
+                assertEquals(2 * (1000 + 333), keysNeeded);
+                progress.add(keysDerived);
+            }
+        }, Threading.SAME_THREAD);
+        chain.maybeLookAhead();
+        assertFalse(progress.isEmpty());
+        // Progress only ever goes up, and ends at the number of keys needed.
+        for (int i = 1; i < progress.size(); i++)
+            assertTrue(progress.get(i) > progress.get(i - 1));
+        assertEquals(2 * (1000 + 333), (int) progress.get(progress.size() - 1));
+        // The chain must end up with exactly the keys that would be derived one by one.
+        DeterministicKey parent = chain.getKeyByPath(DeterministicKeyChain.INTERNAL_PATH, false);
+        for (int i = 0; i < 1000 + 333; i += 97) {
+            DeterministicKey expected = HDKeyDerivation.deriveChildKey(parent, new ChildNumber(i, false));
+            assertEquals(expected.getPubKeyPoint(), chain.findKeyFromPubKey(expected.getPubKey()).getPubKeyPoint());
+        }
+        int numKeys = chain.numKeys();
+        progress.clear();
+        chain.maybeLookAhead();
+        assertTrue(progress.isEmpty());
+        assertEquals(numKeys, chain.numKeys());
+    }
+
     @Test
     public void random() {
         // Can't test much here but verify the constructor worked and the class is functional. The other tests rely on
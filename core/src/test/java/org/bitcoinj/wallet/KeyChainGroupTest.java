@@ -166,6 +166,34 @@ public class KeyChainGroupTest {
         assertNull(group.findKeyFromPubHash(d.getPubKeyHash()));
     }
 
+    @Test
+    public void findKeyAfterKeysChange() throws Exception {
+        ECKey a = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        assertEquals(a, group.findKeyFromPubHash(a.getPubKeyHash()));
+
+        // Keys added after the first lookup, by lookahead or by importing, are found too.
+        ECKey b = null;
+        for (int i = 0; i < LOOKAHEAD_SIZE * 3; i++)
+            b = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        assertEquals(b, group.findKeyFromPubHash(b.getPubKeyHash()));
+        ECKey c = new ECKey();
+        group.importKeys(c);
+        assertEquals(c, group.findKeyFromPubKey(c.getPubKey()));
+        group.removeImportedKey(c);
+        assertNull(group.findKeyFromPubKey(c.getPubKey()));
+        assertNull(group.findKeyFromPubHash(c.getPubKeyHash()));
+
+        // After encryption the encrypted copies are found, and then keys the new chains add.
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = scrypt.deriveKey("password");
+        group.encrypt(scrypt, aesKey);
+        assertTrue(checkNotNull(group.findKeyFromPubHash(a.getPubKeyHash())).isEncrypted());
+        ECKey d = null;
+        for (int i = 0; i < LOOKAHEAD_SIZE * 3; i++)
+            d = group.freshKey(KeyChain.KeyPurpose.CHANGE);
+        assertEquals(d, group.findKeyFromPubKey(d.getPubKey()));
+    }
+
     @Test
     public void currentP2SHAddress() throws Exception {
         group = createMarriedKeyChainGroup();
@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class LazyTransactionStoreTest extends TestWithWallet {
+    private Transaction received, spend;
+    private byte[] walletBytes;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // A transaction that ends up in the spent pool, and one spending it that has change left.
+        received = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        spend = wallet.createSend(new ECKey().toAddress(PARAMS), CENT);
+        wallet.commitTx(spend);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, spend);
+        assertTrue(wallet.getTransactionPool(WalletTransaction.Pool.SPENT).containsKey(received.getHash()));
+        assertTrue(wallet.getTransactionPool(WalletTransaction.Pool.UNSPENT).containsKey(spend.getHash()));
+        walletBytes = serialize(wallet);
+    }
+
+    private static byte[] serialize(Wallet wallet) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet, output);
+        return output.toByteArray();
+    }
+
+    private Wallet readLazily(byte[] bytes) throws Exception {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadTransactionsLazily(true);
+        return serializer.readWallet(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void historyIsLoadedWhenNeeded() throws Exception {
+        Wallet lazy = readLazily(walletBytes);
+        assertEquals(1, lazy.getLazyTransactions().size(null));
+        assertEquals(wallet.getBalance(), lazy.getBalance());
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), lazy.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(1, lazy.getPoolSize(WalletTransaction.Pool.SPENT));
+        assertTrue(lazy.isConsistent());
+        // Nothing got loaded so far.
+        assertEquals(1, lazy.getLazyTransactions().size(null));
+        Transaction spendCopy = lazy.getTransaction(spend.getHash());
+        assertNull(spendCopy.getInput(0).getConnectedOutput());
+
+        Transaction receivedCopy = lazy.getTransaction(received.getHash());
+        assertEquals(0, lazy.getLazyTransactions().size(null));
+        assertEquals(spendCopy.getInput(0), receivedCopy.getOutput(0).getSpentBy());
+        assertEquals(receivedCopy.getOutput(0), spendCopy.getInput(0).getConnectedOutput());
+        assertEquals(wallet.getTransactions(true), lazy.getTransactions(true));
+        assertTrue(lazy.isConsistent());
+    }
+
+    @Test
+    public void readFromProto() throws Exception {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadTransactionsLazily(true);
+        Wallet lazy = serializer.readWallet(PARAMS, null,
+                WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(walletBytes)));
+        assertEquals(1, lazy.getLazyTransactions().size(null));
+        assertEquals(wallet.getTransactions(true), lazy.getTransactions(true));
+    }
+
+    @Test
+    public void savesWithoutLoading() throws Exception {
+        Wallet lazy = readLazily(walletBytes);
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(lazy);
+        assertEquals(1, lazy.getLazyTransactions().size(null));
+        assertEquals(2, proto.getTransactionCount());
+        Wallet eager = new WalletProtobufSerializer().readWallet(PARAMS, null, proto);
+        assertEquals(wallet.getTransactions(true), eager.getTransactions(true));
+        assertEquals(wallet.getBalance(), eager.getBalance());
+    }
+
+    @Test
+    public void depthCatchesUp() throws Exception {
+        Wallet lazy = readLazily(walletBytes);
+        int depth = received.getConfidence().getDepthInBlocks();
+        StoredBlock block = FakeTxBuilder.createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).storedBlock;
+        lazy.notifyNewBestBlock(block);
+        // Saving brings the depth up to date without loading the transaction.
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(lazy);
+        assertEquals(1, lazy.getLazyTransactions().size(null));
+        for (Protos.Transaction txProto : proto.getTransactionList())
+            if (txProto.getHash().equals(ByteString.copyFrom(received.getHash().getBytes())))
+                assertEquals(depth + 1, txProto.getConfidence().getDepth());
+        // And so does loading it.
+        assertEquals(depth + 1, lazy.getTransaction(received.getHash()).getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void doubleSpendOfHistoryIsFound() throws Exception {
+        Wallet lazy = readLazily(walletBytes);
+        Transaction doubleSpend = new Transaction(PARAMS);
+        doubleSpend.addInput(received.getOutput(0));
+        doubleSpend.addOutput(CENT, new ECKey());
+        assertTrue(lazy.isTransactionRelevant(doubleSpend));
+        assertEquals(0, lazy.getLazyTransactions().size(null));
+    }
+
+    @Test
+    public void snapshotDoesNotLoad() throws Exception {
+        Wallet lazy = readLazily(walletBytes);
+        WalletSnapshot snapshot = lazy.getSnapshot();
+        assertEquals(1, lazy.getLazyTransactions().size(null));
+        assertEquals(2, snapshot.getTransactionCount());
+        assertEquals(wallet.getBalance(), snapshot.getBalance());
+        assertNotNull(snapshot.getTransaction(spend.getHash()));
+        assertEquals(1, lazy.getLazyTransactions().size(null));
+        // Transactions that weren't loaded are when asked for.
+        assertEquals(received.getHash(), snapshot.getTransaction(received.getHash()).getHash());
+        assertEquals(0, lazy.getLazyTransactions().size(null));
+        assertEquals(wallet.getTransactions(true), snapshot.getTransactions(true));
+    }
+
+    @Test
+    public void fileIsOnlyOpenWhileUsed() throws Exception {
+        Wallet lazy = readLazily(walletBytes);
+        LazyTransactionStore store = lazy.getLazyTransactions();
+        assertFalse(store.isFileOpen());
+        serialize(lazy);
+        assertFalse(store.isFileOpen());
+        assertNotNull(lazy.getTransaction(received.getHash()));
+        assertFalse(store.isFileOpen());
+    }
+
+    @Test
+    public void clearTransactions() throws Exception {
+        Wallet lazy = readLazily(walletBytes);
+        lazy.clearTransactions(0);
+        assertNull(lazy.getLazyTransactions());
+        assertEquals(0, lazy.getPoolSize(WalletTransaction.Pool.SPENT));
+        assertTrue(lazy.getTransactions(true).isEmpty());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.KeyCrypterScrypt;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class UnspentOutputIndexTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Wallet wallet;
+    private UnspentOutputIndex index;
+    private ECKey otherKey;
+    private TransactionOutput mine, other;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        wallet = new Wallet(PARAMS);
+        index = new UnspentOutputIndex(wallet);
+        otherKey = new ECKey();
+        mine = createFakeTx(PARAMS, COIN, wallet.currentReceiveAddress()).getOutput(0);
+        other = createFakeTx(PARAMS, CENT, otherKey.toAddress(PARAMS)).getOutput(0);
+    }
+
+    @Test
+    public void totals() throws Exception {
+        assertTrue(index.add(mine));
+        assertTrue(index.add(other));
+        assertFalse(index.add(mine));
+        assertEquals(2, index.size());
+        assertEquals(COIN.add(CENT), index.getValue());
+        assertEquals(COIN, index.getSignableValue());
+        assertTrue(index.canSignFor(mine));
+        assertFalse(index.canSignFor(other));
+
+        assertTrue(index.remove(mine));
+        assertFalse(index.remove(mine));
+        assertEquals(CENT, index.getValue());
+        assertEquals(ZERO, index.getSignableValue());
+
+        index.clear();
+        assertTrue(index.isEmpty());
+        assertEquals(ZERO, index.getValue());
+    }
+
+    @Test
+    public void iteratorRemove() throws Exception {
+        index.add(mine);
+        index.add(other);
+        assertEquals(COIN, index.getSignableValue());
+        for (Iterator<TransactionOutput> it = index.iterator(); it.hasNext(); ) {
+            if (it.next() == mine)
+                it.remove();
+        }
+        assertFalse(index.contains(mine));
+        assertEquals(CENT, index.getValue());
+        assertEquals(ZERO, index.getSignableValue());
+    }
+
+    @Test
+    public void keysChanged() throws Exception {
+        index.add(mine);
+        index.add(other);
+        assertEquals(COIN, index.getSignableValue());
+        wallet.importKey(otherKey);
+        // Until told otherwise, the index remembers that it couldn't sign.
+        assertFalse(index.canSignFor(other));
+        index.keysChanged();
+        assertTrue(index.canSignFor(other));
+        assertEquals(COIN.add(CENT), index.getSignableValue());
+    }
+
+    @Test
+    public void walletKeepsIndexUpToDate() throws Exception {
+        wallet.myUnspents.add(other);
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        wallet.importKey(otherKey);
+        assertEquals(CENT, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(CENT, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void walletKeepsIndexUpToDateWhenEncrypted() throws Exception {
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = keyCrypter.deriveKey("password");
+        wallet.encrypt(keyCrypter, aesKey);
+        wallet.myUnspents.add(other);
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        // The key chains are replaced when encrypting, which doesn't keep the wallet from hearing about new keys.
+        wallet.importKeysAndEncrypt(Collections.singletonList(otherKey), aesKey);
+        assertEquals(CENT, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        wallet.removeKey(wallet.getImportedKeys().get(0));
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletFilesTest extends TestWithWallet {
+    private File file, journal;
+    private WalletFiles files;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("wallet", null);
+        journal = WalletFiles.getJournalFile(file);
+        files = wallet.autosaveToFile(file, 0, TimeUnit.SECONDS, null, true);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        files.shutdownAndWait();
+        file.delete();
+        journal.delete();
+        super.tearDown();
+    }
+
+    private void assertSameWallet(Wallet expected, Wallet actual) {
+        assertEquals(expected.getBalance(Wallet.BalanceType.ESTIMATED), actual.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(expected.getBalance(), actual.getBalance());
+        assertEquals(expected.getTransactions(true), actual.getTransactions(true));
+        assertEquals(expected.getLastBlockSeenHeight(), actual.getLastBlockSeenHeight());
+        assertEquals(expected.getLastBlockSeenHash(), actual.getLastBlockSeenHash());
+        for (Transaction tx : expected.getTransactions(true)) {
+            TransactionConfidence confidence = actual.getTransaction(tx.getHash()).getConfidence();
+            assertEquals(tx.getConfidence().getConfidenceType(), confidence.getConfidenceType());
+            assertEquals(tx.getConfidence().getDepthInBlocks(), confidence.getDepthInBlocks());
+        }
+        for (WalletTransaction.Pool pool : WalletTransaction.Pool.values())
+            assertEquals(expected.getTransactionPool(pool).keySet(), actual.getTransactionPool(pool).keySet());
+    }
+
+    @Test
+    public void journal() throws Exception {
+        files.saveNow();
+        long snapshotLength = file.length();
+        long journalLength = journal.length();
+        assertTrue(journalLength > 0);
+
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        assertEquals(snapshotLength, file.length());
+        assertTrue(journal.length() > journalLength);
+        journalLength = journal.length();
+
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        Transaction spend = wallet.createSend(new ECKey().toAddress(PARAMS), CENT);
+        wallet.commitTx(spend);
+        files.saveNow();
+        assertEquals(snapshotLength, file.length());
+        assertTrue(journal.length() > journalLength);
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertSameWallet(wallet, loaded);
+        assertEquals(3, loaded.getTransactions(true).size());
+        assertEquals(WalletTransaction.Pool.PENDING, loaded.getWalletTransaction(spend.getHash()).getPool());
+        assertTrue(loaded.getTransaction(tx1.getHash()).getConfidence().getDepthInBlocks() > 1);
+    }
+
+    @Test
+    public void concurrentSaves() throws Exception {
+        files.saveNow();
+        long snapshotLength = file.length();
+        // Saves on other threads write each other's journal records while the wallet keeps changing.
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> savers = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            Thread saver = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get())
+                            files.saveNow();
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            saver.start();
+            savers.add(saver);
+        }
+        for (int i = 0; i < 10; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        done.set(true);
+        for (Thread saver : savers)
+            saver.join();
+        assertNull(failure.get());
+        files.saveNow();
+        assertEquals(snapshotLength, file.length());
+        assertSameWallet(wallet, Wallet.loadFromFile(file));
+    }
+
+    @Test
+    public void keysAreJournaled() throws Exception {
+        files.saveNow();
+        ECKey key = new ECKey();
+        wallet.importKey(key);
+        files.saveNow();
+        assertTrue(Wallet.loadFromFile(file).hasKey(key));
+    }
+
+    @Test
+    public void removalsWriteSnapshot() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        long snapshotLength = file.length();
+        wallet.clearTransactions(0);
+        files.saveNow();
+        assertTrue(file.length() < snapshotLength);
+        assertSameWallet(wallet, Wallet.loadFromFile(file));
+    }
+
+    @Test
+    public void truncatedJournal() throws Exception {
+        files.saveNow();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        long journalLength = journal.length();
+        Wallet expected = Wallet.loadFromFile(file);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        files.saveNow();
+        // Pretend we crashed halfway through writing the last record.
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        raf.setLength(journalLength + 10);
+        raf.close();
+        assertSameWallet(expected, Wallet.loadFromFile(file));
+    }
+
+    @Test
+    public void staleJournalIsIgnored() throws Exception {
+        files.saveNow();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        wallet.clearTransactions(0);
+        wallet.saveToFile(file);
+        assertTrue(journal.exists());
+        assertSameWallet(wallet, Wallet.loadFromFile(file));
+    }
+}
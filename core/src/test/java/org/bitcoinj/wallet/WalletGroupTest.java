@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletGroupTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private BlockStore blockStore;
+    private WalletGroup group;
+    private Wallet wallet1, wallet2;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        blockStore = new MemoryBlockStore(PARAMS);
+        group = new WalletGroup();
+        wallet1 = new Wallet(PARAMS);
+        wallet2 = new Wallet(PARAMS);
+        group.addWallet(wallet1);
+        group.addWallet(wallet2);
+    }
+
+    private void receiveInBlock(Transaction... transactions) throws Exception {
+        FakeTxBuilder.BlockPair bp = FakeTxBuilder.createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, transactions);
+        int offset = 0;
+        for (Transaction tx : transactions)
+            group.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, offset++);
+        group.notifyNewBestBlock(bp.storedBlock);
+    }
+
+    @Test
+    public void dispatchesOnlyToMatchingWallets() throws Exception {
+        Transaction tx = createFakeTx(PARAMS, COIN, wallet1.currentReceiveAddress());
+        assertEquals(ImmutableSet.of(wallet1), group.findWallets(tx));
+        receiveInBlock(tx);
+        assertEquals(COIN, wallet1.getBalance());
+        assertEquals(ZERO, wallet2.getBalance());
+        assertEquals(0, wallet2.getTransactions(true).size());
+        assertEquals(1, wallet2.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void sharedTransactionIsCopied() throws Exception {
+        Transaction tx = createFakeTx(PARAMS, COIN, wallet1.currentReceiveAddress());
+        tx.addOutput(CENT, wallet2.currentReceiveAddress());
+        receiveInBlock(tx);
+        assertEquals(COIN, wallet1.getBalance());
+        assertEquals(CENT, wallet2.getBalance());
+        assertNotSame(wallet1.getTransaction(tx.getHash()), wallet2.getTransaction(tx.getHash()));
+    }
+
+    @Test
+    public void spendsAreDispatched() throws Exception {
+        // A pay to pubkey output can only be recognised by its outpoint when spent.
+        Transaction tx = createFakeTx(PARAMS, COIN, wallet1.currentReceiveKey());
+        receiveInBlock(tx);
+        Transaction spend = new Transaction(PARAMS);
+        spend.addInput(tx.getOutput(0));
+        spend.addOutput(COIN, new ECKey().toAddress(PARAMS));
+        assertEquals(ImmutableSet.of(wallet1), group.findWallets(spend));
+        receiveInBlock(spend);
+        assertEquals(ZERO, wallet1.getBalance());
+    }
+
+    @Test
+    public void hashOnlyNotification() throws Exception {
+        Transaction tx = createFakeTx(PARAMS, COIN, wallet2.currentReceiveAddress());
+        assertEquals(ImmutableSet.of(wallet2), group.findWalletsForPendingTransaction(tx));
+        wallet2.receivePending(tx, null);
+        FakeTxBuilder.BlockPair bp = FakeTxBuilder.createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, tx);
+        assertTrue(group.notifyTransactionIsInBlock(tx.getHash(), bp.storedBlock,
+                AbstractBlockChain.NewBlockType.BEST_CHAIN, 0));
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING,
+                wallet2.getTransaction(tx.getHash()).getConfidence().getConfidenceType());
+        assertFalse(group.notifyTransactionIsInBlock(Sha256Hash.ZERO_HASH, bp.storedBlock,
+                AbstractBlockChain.NewBlockType.BEST_CHAIN, 1));
+    }
+
+    @Test
+    public void doubleSpendOfPendingTransaction() throws Exception {
+        // The double spend pays nothing to the wallet, only its pending transaction spends the same output.
+        Transaction tx = createFakeTx(PARAMS, COIN, wallet2.currentReceiveAddress());
+        wallet2.receivePending(tx, null);
+        Transaction doubleSpend = new Transaction(PARAMS);
+        doubleSpend.addInput(new TransactionInput(PARAMS, doubleSpend, new byte[] {}, tx.getInput(0).getOutpoint()));
+        doubleSpend.addOutput(COIN, new ECKey().toAddress(PARAMS));
+        assertEquals(ImmutableSet.of(wallet2), group.findWallets(doubleSpend));
+        receiveInBlock(doubleSpend);
+        assertEquals(TransactionConfidence.ConfidenceType.DEAD,
+                wallet2.getTransaction(tx.getHash()).getConfidence().getConfidenceType());
+        // Once it's dead, the wallet doesn't need to hear about spends of its outputs any more.
+        assertEquals(ImmutableSet.of(), group.findWallets(doubleSpend));
+    }
+
+    private BloomFilter mergedWalletFilters(int size, double fpRate, long tweak) {
+        BloomFilter filter = new BloomFilter(size, fpRate, tweak);
+        for (Wallet wallet : group.getWallets())
+            filter.merge(wallet.getBloomFilter(size, fpRate, tweak));
+        return filter;
+    }
+
+    private BloomFilter groupFilter(int size, double fpRate, long tweak) {
+        group.beginBloomFilterCalculation();
+        try {
+            return group.getBloomFilter(size, fpRate, tweak);
+        } finally {
+            group.endBloomFilterCalculation();
+        }
+    }
+
+    @Test
+    public void filterIsUpdatedIncrementally() throws Exception {
+        BloomFilter filter = groupFilter(1000, 0.001, 1);
+        assertEquals(mergedWalletFilters(1000, 0.001, 1), filter);
+        ECKey key = new ECKey();
+        assertFalse(filter.contains(key.getPubKeyHash()));
+        wallet1.importKey(key);
+        receiveInBlock(createFakeTx(PARAMS, COIN, wallet2.currentReceiveKey()));
+
+        BloomFilter updated = groupFilter(1000, 0.001, 1);
+        assertTrue(updated.contains(key.getPubKeyHash()));
+        assertEquals(mergedWalletFilters(1000, 0.001, 1), updated);
+        // The filter handed out before is left alone.
+        assertFalse(filter.contains(key.getPubKeyHash()));
+        // Other parameters give a new filter.
+        assertEquals(mergedWalletFilters(2000, 0.001, 2), groupFilter(2000, 0.001, 2));
+    }
+
+    @Test
+    public void removeWallet() throws Exception {
+        ECKey key = wallet2.currentReceiveKey();
+        assertTrue(groupFilter(1000, 0.001, 1).contains(key.getPubKey()));
+        assertTrue(group.removeWallet(wallet2));
+        assertFalse(group.removeWallet(wallet2));
+        assertEquals(mergedWalletFilters(1000, 0.001, 1), groupFilter(1000, 0.001, 1));
+        Transaction tx = createFakeTx(PARAMS, COIN, key);
+        assertTrue(group.findWallets(tx).isEmpty());
+        // Keys added to a removed wallet don't matter any more.
+        wallet2.importKey(new ECKey());
+        assertTrue(group.findWallets(tx).isEmpty());
+    }
+}
@@ -2375,6 +2375,77 @@ public class WalletTest extends TestWithWallet {
         assertEquals(2, request11.tx.getOutputs().size());
     }
 
+    @Test
+    public void confidenceNotificationDepths() throws Exception {
+        wallet.setConfidenceNotificationDepths(1, 3);
+        final Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        final ListenableFuture<TransactionConfidence> depthFuture = tx.getConfidence().getDepthFuture(5,
+                Threading.SAME_THREAD);
+        final List<Integer> depths = new ArrayList<Integer>();
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, new TransactionConfidenceEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction changed) {
+                if (changed == tx)
+                    depths.add(changed.getConfidence().getDepthInBlocks());
+            }
+        });
+        for (int i = 0; i < 5; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        // Depth is always up to date, but listeners only hear about the notification depths and the ones waited for.
+        assertEquals(6, tx.getConfidence().getDepthInBlocks());
+        assertEquals(Arrays.asList(3, 5), depths);
+        assertTrue(depthFuture.isDone());
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        WalletSnapshot empty = wallet.getSnapshot();
+        assertEquals(Coin.ZERO, empty.getBalance());
+        assertSame(empty, wallet.getSnapshot());
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        WalletSnapshot snapshot = wallet.getSnapshot();
+        assertNotSame(empty, snapshot);
+        assertEquals(COIN, snapshot.getBalance());
+        assertEquals(COIN, snapshot.getBalance(BalanceType.AVAILABLE));
+        assertEquals(tx, snapshot.getTransaction(tx.getHash()));
+        assertEquals(1, snapshot.getTransactions(false).size());
+        assertEquals(wallet.getLastBlockSeenHeight(), snapshot.getLastBlockSeenHeight());
+
+        // While another thread is busy with the wallet, the last snapshot is returned instead of waiting for it.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    locked.countDown();
+                    done.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        writer.start();
+        locked.await();
+        assertSame(snapshot, wallet.getSnapshot());
+        done.countDown();
+        writer.join();
+        assertEquals(COIN.add(CENT), wallet.getSnapshot().getBalance());
+        assertEquals(2, wallet.getSnapshot().getTransactionCount());
+
+        // Which outputs can be spent changes with the keys.
+        ECKey key = new ECKey();
+        wallet.addWatchedAddress(key.toAddress(PARAMS));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, key.toAddress(PARAMS));
+        assertEquals(COIN.add(CENT), wallet.getSnapshot().getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        wallet.importKey(key);
+        assertEquals(COIN.add(COIN).add(CENT), wallet.getSnapshot().getBalance(BalanceType.ESTIMATED_SPENDABLE));
+    }
+
     @Test
     public void coinSelection_coinTimesDepth() throws Exception {
         Transaction txCent = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);